@@ -119,7 +119,9 @@ public final class Instruments
 
   private void initializeProgramNames()
   {
-    Synthesizer synthesizer = Catcher.getSynthesizer();
+    // The names come from the default soundbank, so there is no need to open
+    // the synthesizer, which the Player does in the background
+    Synthesizer synthesizer = getSynthesizer();
     Instrument[] instruments = synthesizer.getAvailableInstruments();
 
     for (int i = 0; i < instruments.length; i++)
@@ -133,7 +135,18 @@ public final class Instruments
         programNames[program] = instrument.getName();
       }
     }
-    synthesizer.close();
+  }
+
+  private static Synthesizer getSynthesizer()
+  {
+    try
+    {
+      return MidiSystem.getSynthesizer();
+    }
+    catch (MidiUnavailableException e)
+    {
+      throw new RuntimeException(e);
+    }
   }
 
   // The programNames are returned in General MIDI order by the
@@ -336,6 +336,7 @@ public class KeyboardPanel extends GridBagPanel
   {
     private int key;
     private boolean isChord;
+    private long pressNanos = System.nanoTime();
 
     public NoteOnEvent(int key, boolean isChord)
     {
@@ -343,6 +344,15 @@ public class KeyboardPanel extends GridBagPanel
       this.isChord = isChord;
     }
 
+    /**
+     * Returns the System.nanoTime at which the key was pressed.
+     */
+
+    public long getPressNanos()
+    {
+      return pressNanos;
+    }
+
     public int getKey()
     {
       return key;
@@ -0,0 +1,142 @@
+// Copyright 2007 Anthony F. Stuart - All rights reserved.
+//
+// This program and the accompanying materials are made available
+// under the terms of the GNU General Public License. For other license
+// options please contact the copyright owner.
+//
+// This program is made available on an "as is" basis, without
+// warranties or conditions of any kind, either express or implied.
+
+package com.riffcrafter.common.midi;
+
+/**
+ * Converts between ticks and measures for a Midi, taking its time signature
+ * changes into account.
+ *
+ * Each segment holds a number of beats per measure and starts with the
+ * number of the measure that it starts. A time signature change always
+ * starts a new measure, so a change that falls within a measure ends that
+ * measure early. A conversion is a binary search for the segment followed
+ * by a division within it. Midi keeps the map up to date as time signature
+ * changes are added and removed.
+ *
+ * Measures and beats are numbered from zero, and a beat is a quarter note,
+ * as in Midi.findTicksPerMeasure.
+ */
+
+public class MeasureMap extends SegmentMap
+{
+  public static final int DEFAULT_BEATS_PER_MEASURE = 4;
+
+  MeasureMap()
+  {
+    super(DEFAULT_BEATS_PER_MEASURE);
+  }
+
+  /**
+   * Sets the time signature that takes effect at the tick.
+   */
+
+  @Override
+  synchronized void put(long tick, int beatsPerMeasure)
+  {
+    super.put(tick, Math.max(1, beatsPerMeasure));
+  }
+
+  /**
+   * Returns the number of the measure that contains the tick.
+   */
+
+  public synchronized long getMeasure(long tick)
+  {
+    int index = findSegment(tick);
+    return starts[index] + (Math.max(0, tick - ticks[index]) / getTicksPerMeasure(index));
+  }
+
+  /**
+   * Returns the number of the beat within its measure that contains the
+   * tick.
+   */
+
+  public synchronized int getBeat(long tick)
+  {
+    return (int)((tick - getMeasureStart(tick)) / Midi.DEFAULT_RESOLUTION);
+  }
+
+  /**
+   * Returns the tick at which the measure starts.
+   */
+
+  public synchronized long getMeasureTick(long measure)
+  {
+    int index = findSegmentByStart(measure);
+    return ticks[index] + Math.max(0, measure - starts[index]) * getTicksPerMeasure(index);
+  }
+
+  /**
+   * Returns the tick at which the measure that contains the tick starts.
+   */
+
+  public synchronized long getMeasureStart(long tick)
+  {
+    int index = findSegment(tick);
+    int ticksPerMeasure = getTicksPerMeasure(index);
+    return ticks[index] + (Math.max(0, tick - ticks[index]) / ticksPerMeasure) * ticksPerMeasure;
+  }
+
+  /**
+   * Returns the tick at which the measure that follows the one that contains
+   * the tick starts, which is where the time signature changes if that comes
+   * first.
+   */
+
+  public synchronized long getMeasureEnd(long tick)
+  {
+    int index = findSegment(tick);
+    long measureEnd = getMeasureStart(tick) + getTicksPerMeasure(index);
+    if (index + 1 < size)
+    {
+      measureEnd = Math.min(measureEnd, ticks[index + 1]);
+    }
+    return measureEnd;
+  }
+
+  /**
+   * Returns the tick if it starts a measure, otherwise the start of the
+   * following measure.
+   */
+
+  public synchronized long roundUp(long tick)
+  {
+    long measureStart = getMeasureStart(tick);
+    return measureStart == tick ? tick : getMeasureEnd(tick);
+  }
+
+  public synchronized int getTicksPerMeasure(long tick)
+  {
+    return getTicksPerMeasure(findSegment(tick));
+  }
+
+  public synchronized int getBeatsPerMeasure(long tick)
+  {
+    return values[findSegment(tick)];
+  }
+
+  /**
+   * Returns the number of measures started in the ticks, counting one cut
+   * short by the next time signature change.
+   */
+
+  @Override
+  protected long getLength(long deltaTicks, int beatsPerMeasure)
+  {
+    int ticksPerMeasure = beatsPerMeasure * Midi.DEFAULT_RESOLUTION;
+    return (deltaTicks + ticksPerMeasure - 1) / ticksPerMeasure;
+  }
+
+  private int getTicksPerMeasure(int index)
+  {
+    return values[index] * Midi.DEFAULT_RESOLUTION;
+  }
+
+}
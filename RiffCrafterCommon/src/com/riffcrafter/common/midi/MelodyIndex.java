@@ -0,0 +1,481 @@
+// Copyright 2007 Anthony F. Stuart - All rights reserved.
+//
+// This program and the accompanying materials are made available
+// under the terms of the GNU General Public License. For other license
+// options please contact the copyright owner.
+//
+// This program is made available on an "as is" basis, without
+// warranties or conditions of any kind, either express or implied.
+
+package com.riffcrafter.common.midi;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map.Entry;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.riffcrafter.common.midi.TickEventMap.TickEvent;
+import com.riffcrafter.library.util.LongIdentityMap;
+
+/**
+ * Finds the songs that contain a melody.
+ *
+ * The melody of a channel is its highest note at each tick of a TickEventMap,
+ * with ticks and durations quantized by Clusters trained on the song, in the
+ * same way as the Analyzer. Each run of GRAM_LENGTH + 1 melody notes becomes
+ * an n-gram of GRAM_LENGTH pitch intervals and the GRAM_LENGTH - 1 ratios
+ * between successive inter-onset intervals, so a melody is found in any key
+ * and at any tempo or resolution.
+ *
+ * Each distinct n-gram has an identity in a LongIdentityMap, whose frequency
+ * is the number of channels that contain it, and a postings array of those
+ * channels. A query scores each channel by the inverse document frequency
+ * weight of the query n-grams that it contains, as a fraction of the total
+ * weight of the query, and returns the best channels first. Songs are
+ * identified by small non-negative integers, and the drum channel is not
+ * indexed.
+ *
+ * The index has no user interface dependencies. Searches share a read lock
+ * and updates take the write lock.
+ */
+
+public class MelodyIndex
+{
+  public static final int GRAM_LENGTH = 4;
+
+  private static final int INTERVAL_BITS = 6;
+  private static final int MAXIMUM_INTERVAL = (1 << (INTERVAL_BITS - 1)) - 1;
+  private static final int RATIO_BITS = 4;
+  private static final int MAXIMUM_RATIO_STEP = 4;
+  private static final int INITIAL_POSTINGS_CAPACITY = 4;
+  private static final int CHANNEL_BITS = 4;
+
+  private LongIdentityMap grams = new LongIdentityMap();
+  private int[][] postings = new int[1][];
+  private int[] postingCounts = new int[1];
+
+  private ArrayList<int[]> gramsById = new ArrayList<int[]>();
+  private int channelCount;
+  private int gramCount;
+
+  private ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+  /**
+   * Indexes the melodies of the song, replacing any previous song with the
+   * same id.
+   */
+
+  public void add(int id, Midi midi)
+  {
+    if (id < 0)
+    {
+      throw new IllegalArgumentException("Negative id " + id);
+    }
+
+    // Extract outside the lock, so searches continue while a song is parsed
+    long[][] gramsByChannel = getGramsByChannel(midi);
+
+    lock.writeLock().lock();
+    try
+    {
+      remove(id);
+      while (gramsById.size() <= id)
+      {
+        gramsById.add(null);
+      }
+
+      int totalGramCount = 0;
+      for (long[] channelGrams : gramsByChannel)
+      {
+        totalGramCount += channelGrams == null ? 0 : channelGrams.length;
+      }
+
+      int[] identities = new int[totalGramCount];
+      int identityCount = 0;
+      for (int channel = 0; channel < gramsByChannel.length; channel++)
+      {
+        long[] channelGrams = gramsByChannel[channel];
+        if (channelGrams != null)
+        {
+          int posting = (id << CHANNEL_BITS) | channel;
+          for (long gram : channelGrams)
+          {
+            int identity = grams.find(gram);
+            if (grams.getFrequency(identity) == 1)
+            {
+              gramCount++;
+            }
+            addPosting(identity, posting);
+            identities[identityCount++] = identity;
+          }
+          channelCount++;
+        }
+      }
+      gramsById.set(id, identities);
+    }
+    finally
+    {
+      lock.writeLock().unlock();
+    }
+  }
+
+  public void remove(int id)
+  {
+    lock.writeLock().lock();
+    try
+    {
+      int[] identities = id >= 0 && id < gramsById.size() ? gramsById.get(id) : null;
+      if (identities != null)
+      {
+        gramsById.set(id, null);
+        boolean[] isChannelRemoved = new boolean[MidiConstants.MAX_CHANNELS];
+        for (int identity : identities)
+        {
+          int channel = removePosting(identity, id);
+          if (channel != -1)
+          {
+            isChannelRemoved[channel] = true;
+            int frequency = grams.getFrequency(identity) - 1;
+            grams.setFrequency(identity, frequency);
+            if (frequency == 0)
+            {
+              gramCount--;
+            }
+          }
+        }
+        for (boolean isRemoved : isChannelRemoved)
+        {
+          if (isRemoved)
+          {
+            channelCount--;
+          }
+        }
+      }
+    }
+    finally
+    {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Returns the channels whose melodies best match the melodies in the
+   * selection, best first, up to maximumMatchCount of them. A selection needs
+   * at least GRAM_LENGTH + 1 notes on a channel to match anything.
+   */
+
+  public ArrayList<Match> find(Midi selection, int maximumMatchCount)
+  {
+    if (maximumMatchCount < 0)
+    {
+      throw new IllegalArgumentException("Negative maximumMatchCount " + maximumMatchCount);
+    }
+
+    long[] queryGrams = getDistinctGrams(getGramsByChannel(selection));
+    ArrayList<Match> matches = new ArrayList<Match>();
+
+    lock.readLock().lock();
+    try
+    {
+      LongIdentityMap candidates = new LongIdentityMap();
+      float[] scores = new float[64];
+      float totalWeight = 0;
+
+      for (long gram : queryGrams)
+      {
+        int identity = grams.get(gram);
+        int frequency = grams.getFrequency(identity);
+        float weight = getWeight(frequency);
+        totalWeight += weight;
+        if (frequency > 0)
+        {
+          int[] gramPostings = postings[identity];
+          int count = postingCounts[identity];
+          for (int i = 0; i < count; i++)
+          {
+            int candidate = candidates.find(gramPostings[i]);
+            if (candidate >= scores.length)
+            {
+              scores = Arrays.copyOf(scores, scores.length << 1);
+            }
+            scores[candidate] += weight;
+          }
+        }
+      }
+
+      for (int candidate = 1; candidate <= candidates.size(); candidate++)
+      {
+        int posting = (int)candidates.getKey(candidate);
+        matches.add(new Match(posting >>> CHANNEL_BITS, posting & ((1 << CHANNEL_BITS) - 1), scores[candidate] / totalWeight));
+      }
+    }
+    finally
+    {
+      lock.readLock().unlock();
+    }
+
+    Collections.sort(matches);
+    if (matches.size() > maximumMatchCount)
+    {
+      return new ArrayList<Match>(matches.subList(0, maximumMatchCount));
+    }
+    return matches;
+  }
+
+  public int getChannelCount()
+  {
+    lock.readLock().lock();
+    try
+    {
+      return channelCount;
+    }
+    finally
+    {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Returns the number of distinct n-grams in the indexed songs. N-grams
+   * whose songs have all been removed keep their identities, in case they
+   * are added again, but are not counted.
+   */
+
+  public int getGramCount()
+  {
+    lock.readLock().lock();
+    try
+    {
+      return gramCount;
+    }
+    finally
+    {
+      lock.readLock().unlock();
+    }
+  }
+
+  private float getWeight(int frequency)
+  {
+    // Rare n-grams identify a melody better than common ones, such as scales
+    return (float)Math.log(1 + (double)(channelCount + 1) / (frequency + 1));
+  }
+
+  private void addPosting(int identity, int posting)
+  {
+    if (identity >= postings.length)
+    {
+      int capacity = Math.max(identity + 1, postings.length << 1);
+      postings = Arrays.copyOf(postings, capacity);
+      postingCounts = Arrays.copyOf(postingCounts, capacity);
+    }
+    int[] gramPostings = postings[identity];
+    int count = postingCounts[identity];
+    if (gramPostings == null)
+    {
+      gramPostings = new int[INITIAL_POSTINGS_CAPACITY];
+      postings[identity] = gramPostings;
+    }
+    else if (count == gramPostings.length)
+    {
+      gramPostings = Arrays.copyOf(gramPostings, count << 1);
+      postings[identity] = gramPostings;
+    }
+    gramPostings[count] = posting;
+    postingCounts[identity] = count + 1;
+  }
+
+  /**
+   * Removes the first posting of the n-gram for the song and returns its
+   * channel, or -1 if there is none.
+   */
+
+  private int removePosting(int identity, int id)
+  {
+    int[] gramPostings = postings[identity];
+    int count = postingCounts[identity];
+    for (int i = 0; i < count; i++)
+    {
+      if ((gramPostings[i] >>> CHANNEL_BITS) == id)
+      {
+        int channel = gramPostings[i] & ((1 << CHANNEL_BITS) - 1);
+        System.arraycopy(gramPostings, i + 1, gramPostings, i, count - i - 1);
+        postingCounts[identity] = count - 1;
+        return channel;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the distinct n-grams of each channel of the song, or null for a
+   * channel that has none.
+   */
+
+  public static long[][] getGramsByChannel(Midi midi)
+  {
+    Cluster ticks = new Cluster();
+    Cluster durations = new Cluster();
+    boolean[] isChannelPresent = new boolean[MidiConstants.MAX_CHANNELS];
+    for (Midel midel : midi.getMidels())
+    {
+      if (midel instanceof Note)
+      {
+        Note note = (Note)midel;
+        ticks.train(note.getTick());
+        durations.train(note.getDuration());
+        isChannelPresent[note.getChannel()] = true;
+      }
+    }
+
+    long[][] gramsByChannel = new long[MidiConstants.MAX_CHANNELS][];
+    for (int channel = 0; channel < MidiConstants.MAX_CHANNELS; channel++)
+    {
+      if (isChannelPresent[channel] && channel != Instruments.DRUM_CHANNEL)
+      {
+        TickEventMap tickEventMap = new TickEventMap(midi, channel, ticks, durations);
+        long[] channelGrams = getGrams(tickEventMap);
+        if (channelGrams.length > 0)
+        {
+          gramsByChannel[channel] = channelGrams;
+        }
+      }
+    }
+    return gramsByChannel;
+  }
+
+  private static long[] getGrams(TickEventMap tickEventMap)
+  {
+    int size = tickEventMap.size();
+    long[] melodyTicks = new long[size];
+    int[] melodyKeys = new int[size];
+    int melodyLength = 0;
+
+    for (Entry<Long, TickEvent> entry : tickEventMap.getTickEvents())
+    {
+      int highestKey = -1;
+      for (Note note : entry.getValue().getNoteOnIterable())
+      {
+        highestKey = Math.max(highestKey, note.getKey());
+      }
+      if (highestKey != -1)
+      {
+        melodyTicks[melodyLength] = entry.getKey();
+        melodyKeys[melodyLength] = highestKey;
+        melodyLength++;
+      }
+    }
+
+    int gramCount = Math.max(0, melodyLength - GRAM_LENGTH);
+    long[] channelGrams = new long[gramCount];
+    for (int start = 0; start < gramCount; start++)
+    {
+      long gram = 0;
+      for (int i = start; i < start + GRAM_LENGTH; i++)
+      {
+        int interval = Math.max(-MAXIMUM_INTERVAL, Math.min(MAXIMUM_INTERVAL, melodyKeys[i + 1] - melodyKeys[i]));
+        gram = (gram << INTERVAL_BITS) | (interval + MAXIMUM_INTERVAL);
+        if (i > start)
+        {
+          long previousOnset = melodyTicks[i] - melodyTicks[i - 1];
+          long onset = melodyTicks[i + 1] - melodyTicks[i];
+          gram = (gram << RATIO_BITS) | getRatioStep(previousOnset, onset);
+        }
+      }
+      channelGrams[start] = gram;
+    }
+
+    return getDistinctGrams(channelGrams);
+  }
+
+  /**
+   * Returns the ratio of two inter-onset intervals in half octave (sqrt 2)
+   * steps, so that small timing variations usually fall in the same step.
+   */
+
+  private static int getRatioStep(long previousOnset, long onset)
+  {
+    double halfOctaves = 2 * Math.log((double)onset / previousOnset) / Math.log(2);
+    int step = (int)Math.round(halfOctaves);
+    return Math.max(-MAXIMUM_RATIO_STEP, Math.min(MAXIMUM_RATIO_STEP, step)) + MAXIMUM_RATIO_STEP;
+  }
+
+  private static long[] getDistinctGrams(long[]... gramArrays)
+  {
+    int length = 0;
+    for (long[] gramArray : gramArrays)
+    {
+      length += gramArray == null ? 0 : gramArray.length;
+    }
+    long[] distinctGrams = new long[length];
+    int offset = 0;
+    for (long[] gramArray : gramArrays)
+    {
+      if (gramArray != null)
+      {
+        System.arraycopy(gramArray, 0, distinctGrams, offset, gramArray.length);
+        offset += gramArray.length;
+      }
+    }
+    Arrays.sort(distinctGrams);
+    int count = 0;
+    for (int i = 0; i < length; i++)
+    {
+      if (count == 0 || distinctGrams[i] != distinctGrams[count - 1])
+      {
+        distinctGrams[count++] = distinctGrams[i];
+      }
+    }
+    return Arrays.copyOf(distinctGrams, count);
+  }
+
+  public static class Match implements Comparable<Match>
+  {
+    private int id;
+    private int channel;
+    private float score;
+
+    private Match(int id, int channel, float score)
+    {
+      this.id = id;
+      this.channel = channel;
+      this.score = score;
+    }
+
+    public int getId()
+    {
+      return id;
+    }
+
+    public int getChannel()
+    {
+      return channel;
+    }
+
+    /**
+     * Returns the weighted fraction of the query that the channel contains,
+     * from zero to one.
+     */
+
+    public float getScore()
+    {
+      return score;
+    }
+
+    public int compareTo(Match that)
+    {
+      int deltaScore = Float.compare(that.score, this.score);
+      if (deltaScore != 0)
+      {
+        return deltaScore;
+      }
+      return this.id != that.id ? (this.id < that.id ? -1 : 1) : this.channel - that.channel;
+    }
+
+    public String toString()
+    {
+      return "[id=" + id + ", channel=" + channel + ", score=" + score + "]";
+    }
+  }
+
+}
@@ -12,7 +12,6 @@ package com.riffcrafter.common.midi;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -23,6 +22,7 @@ import java.util.NavigableSet;
 import java.util.NoSuchElementException;
 import java.util.TreeSet;
 
+import javax.sound.midi.InvalidMidiDataException;
 import javax.sound.midi.MetaMessage;
 import javax.sound.midi.MidiEvent;
 import javax.sound.midi.MidiMessage;
@@ -33,15 +33,14 @@ import javax.sound.midi.Track;
 import javax.swing.tree.DefaultTreeModel;
 
 import com.riffcrafter.common.midi.ProgramChange.ProgramChangeComparator;
-import com.riffcrafter.common.thirdparty.Base64;
-import com.riffcrafter.common.thirdparty.Base64.OutputStream;
+import com.riffcrafter.library.util.Base64Codec;
 import com.riffcrafter.library.util.Navigator;
 
 public class Midi
 {
   public static final int DEFAULT_TEMPO_IN_BPM = 120; // quarter notes per minute
   public static final int DEFAULT_RESOLUTION = 250; // ticks per quarter note
-  private static final int DEFAULT_BEATS_PER_MEASURE = 4;
+  private static final int SMF_OVERHEAD = 256;
 
   private int lyricType;
   private int ticksPerLetter;
@@ -53,6 +52,9 @@ public class Midi
   private TreeSet<TimeSignatureChange> timeSignatureChanges = new TreeSet<TimeSignatureChange>();
   private StatisticsManager statisticsManager = new StatisticsManager();
   private ArrayList<MidiListener> midiListeners = new ArrayList<MidiListener>();
+  private PlaybackCache playbackCache;
+  private TempoMap tempoMap = new TempoMap();
+  private MeasureMap measureMap = new MeasureMap();
 
   public Midi()
   {
@@ -86,6 +88,21 @@ public class Midi
     return midi;
   }
 
+  /**
+   * Returns a copy of this Midi that also copies each Midel, so that it does
+   * not share anything with this Midi and can be handed to another thread.
+   */
+
+  public Midi deepCopy()
+  {
+    Midi midi = new Midi();
+    for (Midel midel : midels)
+    {
+      midi.add(midel.clone());
+    }
+    return midi;
+  }
+
   private Midi copyChannel(int channel)
   {
     Midi midi = new Midi();
@@ -216,11 +233,18 @@ public class Midi
     {
       TempoChange tempoChange = (TempoChange)midel;
       tempoChanges.add(tempoChange);
+      updateTempoMap(tempoChange.getTick());
     }
     else if (midel instanceof TimeSignatureChange)
     {
       TimeSignatureChange timeSignatureChange = (TimeSignatureChange)midel;
       timeSignatureChanges.add(timeSignatureChange);
+      updateMeasureMap(timeSignatureChange.getTick());
+    }
+
+    if (playbackCache != null)
+    {
+      playbackCache.onAdd(midel);
     }
 
     fireAdd(midel);
@@ -252,11 +276,17 @@ public class Midi
     {
       TempoChange tempoChange = (TempoChange)midel;
       tempoChanges.remove(tempoChange);
+      updateTempoMap(tempoChange.getTick());
     }
     else if (midel instanceof TimeSignatureChange)
     {
       TimeSignatureChange timeSignatureChange = (TimeSignatureChange)midel;
       timeSignatureChanges.remove(timeSignatureChange);
+      updateMeasureMap(timeSignatureChange.getTick());
+    }
+    if (playbackCache != null)
+    {
+      playbackCache.onRemove(midel);
     }
     fireRemove(midel);
   }
@@ -516,9 +546,8 @@ public class Midi
 
   public Midi roundToMeasure(long left, long right)
   {
-    int ticksPerMeasure = findTicksPerMeasure(left);
-    long measureBegin = (left / ticksPerMeasure) * ticksPerMeasure;
-    long measureEnd = ((right + ticksPerMeasure - 1) / ticksPerMeasure) * ticksPerMeasure;
+    long measureBegin = measureMap.getMeasureStart(left);
+    long measureEnd = measureMap.roundUp(right);
 
     Midi newMidi = new Midi();
 
@@ -586,7 +615,8 @@ public class Midi
   // Because the tempo can (and does) change throughout a midi file,
   // doing the conversion correctly requires adjusting the "time" in
   // ms for every tempo change up to the controlling tempo change.
-  // We do not currently handle this.
+  // The static methods do not handle this. The instance methods use
+  // the TempoMap, which does.
 
   public static long convertMillisToTicks(long millis)
   {
@@ -600,6 +630,46 @@ public class Midi
     note.setDuration(convertMillisToTicks(note.getDuration()));
   }
 
+  /**
+   * Returns the number of ticks in the given number of milliseconds
+   * following the tick, at the tempo in effect.
+   */
+
+  public long convertMillisToTicks(long tick, long millis)
+  {
+    return tempoMap.convertMillisToTicks(tick, millis);
+  }
+
+  /**
+   * Converts a note whose tick and duration are in milliseconds from
+   * baseTick, such as one that has been recorded, to ticks.
+   */
+
+  public void convertMillisToTicks(Note note, long baseTick)
+  {
+    long tick = baseTick + tempoMap.convertMillisToTicks(baseTick, note.getTick());
+    note.setTick(tick);
+    note.setDuration(tempoMap.convertMillisToTicks(tick, note.getDuration()));
+  }
+
+  public TempoMap getTempoMap()
+  {
+    return tempoMap;
+  }
+
+  private void updateTempoMap(long tick)
+  {
+    TempoChange tempoChange = findTempoChange(tick);
+    if (tempoChange != null && tempoChange.getTick() == tick)
+    {
+      tempoMap.put(tick, tempoChange.getUsecPerQuarterNote());
+    }
+    else
+    {
+      tempoMap.remove(tick);
+    }
+  }
+
   public static long convertResolution(long tick, long resolution)
   {
     // It may make more sense to think of this as dividing by the ratio
@@ -638,12 +708,39 @@ public class Midi
       toTrack(sequence);
       return sequence;
     }
-    catch (Exception e)
+    catch (InvalidMidiDataException e)
     {
       throw new RuntimeException(e);
     }
   }
 
+  /**
+   * Returns a Sequence for playing this Midi. The Sequence is kept from one
+   * call to the next and brought up to date with the changes made in
+   * between, so this is much faster than toSequence for a large Midi that is
+   * played repeatedly. The Sequence must not be modified, and is only valid
+   * until the next change; use toSequence for a Sequence to keep or write.
+   */
+
+  public Sequence getPlaybackSequence()
+  {
+    if (playbackCache == null)
+    {
+      playbackCache = new PlaybackCache(this);
+    }
+    return playbackCache.getSequence();
+  }
+
+  /**
+   * Returns a number that changes whenever a Midel is added or removed after
+   * the first call to getPlaybackSequence.
+   */
+
+  public int getPlaybackVersion()
+  {
+    return playbackCache == null ? 0 : playbackCache.getVersion();
+  }
+
   /**
    * Multitrack sequences must be written as file type 1.
    * 
@@ -657,10 +754,18 @@ public class Midi
    * Therefore, for tempo events to have an effect, they
    * should be placed in the lowest numbered channel.
    */
-  public void toTrack(Sequence sequence) throws Exception
+  public void toTrack(Sequence sequence)
   {
-    HashMap<Integer, Track> tracks = new HashMap<Integer, Track>();
+    toTrack(sequence, new HashMap<Integer, Track>());
+  }
 
+  /**
+   * Adds the midels to the sequence, creating the track for each channel
+   * that is not already in the tracks map.
+   */
+
+  void toTrack(Sequence sequence, HashMap<Integer, Track> tracks)
+  {
     signSequence(sequence, tracks);
 
     for (Midel midel : midels)
@@ -695,20 +800,30 @@ public class Midi
   public long getBaseTick()
   {
     long minTick = getFirstTick();
-    int ticksPerMeasure = findTicksPerMeasure(minTick);
-    return (minTick / ticksPerMeasure) * ticksPerMeasure;
+    return measureMap.getMeasureStart(minTick);
   }
 
   public int findTicksPerMeasure(long tick)
   {
-    int beatsPerMeasure = DEFAULT_BEATS_PER_MEASURE;
-    TimeSignatureChange lastTimeSignatureChange = findTimeSignatureChange(tick);
-    if (lastTimeSignatureChange != null)
+    return measureMap.getTicksPerMeasure(tick);
+  }
+
+  public MeasureMap getMeasureMap()
+  {
+    return measureMap;
+  }
+
+  private void updateMeasureMap(long tick)
+  {
+    TimeSignatureChange timeSignatureChange = findTimeSignatureChange(tick);
+    if (timeSignatureChange != null && timeSignatureChange.getTick() == tick)
+    {
+      measureMap.put(tick, timeSignatureChange.getBeatsPerMeasure());
+    }
+    else
     {
-      beatsPerMeasure = lastTimeSignatureChange.getBeatsPerMeasure();
+      measureMap.remove(tick);
     }
-    int ticksPerMeasure = beatsPerMeasure * DEFAULT_RESOLUTION;
-    return ticksPerMeasure;
   }
 
   public void changeProgram(int channel, long tick, int program, boolean isUpdate)
@@ -730,6 +845,37 @@ public class Midi
     add(programChange);
   }
 
+  /**
+   * Returns the programs that the channels play with, in ascending order:
+   * those selected by the program changes, and the one each channel with
+   * notes starts with, which is its default program if it has no program
+   * change at the start.
+   */
+
+  public int[] getPrograms()
+  {
+    TreeSet<Integer> programs = new TreeSet<Integer>();
+    for (ProgramChange programChange : programChanges)
+    {
+      programs.add(programChange.getProgram());
+    }
+    for (int channel : getActiveChannels())
+    {
+      int program = getProgram(channel, 0);
+      if (program >= 0)
+      {
+        programs.add(program);
+      }
+    }
+    int[] values = new int[programs.size()];
+    int index = 0;
+    for (int program : programs)
+    {
+      values[index++] = program;
+    }
+    return values;
+  }
+
   // NB: This gets call frequently. It must be very fast.
   // NB: programChanges is ordered by channel, then tick.
 
@@ -745,38 +891,17 @@ public class Midi
     return controllingProgramChange;
   }
 
+  // NB: The search keys sort after every change at the tick, so floor
+  // returns the last change at or before the tick, which is the one in effect.
+
   public TempoChange findTempoChange(long tick)
   {
-    TempoChange controllingTempoChange = null;
-    for (TempoChange tempoChange : tempoChanges)
-    {
-      if (tempoChange.getTick() > tick)
-      {
-        return controllingTempoChange;
-      }
-      else
-      {
-        controllingTempoChange = tempoChange;
-      }
-    }
-    return controllingTempoChange;
+    return tempoChanges.floor(new TempoChange(tick));
   }
 
   public TimeSignatureChange findTimeSignatureChange(long tick)
   {
-    TimeSignatureChange controllingTimeSignatureChange = null;
-    for (TimeSignatureChange timeSignatureChange : timeSignatureChanges)
-    {
-      if (timeSignatureChange.getTick() > tick)
-      {
-        return controllingTimeSignatureChange;
-      }
-      else
-      {
-        controllingTimeSignatureChange = timeSignatureChange;
-      }
-    }
-    return controllingTimeSignatureChange;
+    return timeSignatureChanges.floor(new TimeSignatureChange(tick));
   }
 
   public int getProgram(int channel, long tick)
@@ -878,7 +1003,7 @@ public class Midi
     return null;
   }
 
-  private int getLowestChannel()
+  int getLowestChannel()
   {
     // TODO: Monitor the cost of this operation and cache the lowest channel, if necessary
     int lowestChannel = Integer.MAX_VALUE;
@@ -1323,31 +1448,56 @@ public class Midi
     return ceilingMidel;
   }
 
+  /**
+   * Returns the standard MIDI file for this Midi in Base64, encoded in one
+   * pass from the bytes written by toByteArray.
+   */
+
   public String toBase64()
   {
-    try
-    {
-      Sequence sequence = toSequence();
-      ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-      OutputStream base64OutputStream = new Base64.OutputStream(byteArrayOutputStream);
-      Catcher.write(sequence, MidiConstants.MULTIPLE_TRACK, base64OutputStream);
-      base64OutputStream.close();
-      byteArrayOutputStream.close();
-      String base64 = byteArrayOutputStream.toString();
-      return base64;
-    }
-    catch (IOException e)
-    {
-      throw new RuntimeException(e);
-    }
+    SmfOutputStream smfOutputStream = writeSmf();
+    return smfOutputStream.toBase64();
+  }
+
+  public byte[] toByteArray()
+  {
+    SmfOutputStream smfOutputStream = writeSmf();
+    return smfOutputStream.toByteArray();
+  }
+
+  private SmfOutputStream writeSmf()
+  {
+    Sequence sequence = toSequence();
+    SmfOutputStream smfOutputStream = new SmfOutputStream(getEstimatedSmfSize());
+    Catcher.write(sequence, MidiConstants.MULTIPLE_TRACK, smfOutputStream);
+    return smfOutputStream;
+  }
+
+  /**
+   * Returns an estimate of the size of the standard MIDI file, so that it can
+   * usually be written without growing the buffer. A note is a note on and a
+   * note off event of up to five bytes each, with running status.
+   */
+
+  private int getEstimatedSmfSize()
+  {
+    return SMF_OVERHEAD + (midels.size() * 10) + ((programChanges.size() + tempoChanges.size() + timeSignatureChanges.size()) * 12);
+  }
+
+  public static Midi fromByteArray(byte[] bytes)
+  {
+    return new Midi(new ByteArrayInputStream(bytes));
   }
 
+  /**
+   * Creates a Midi from a standard MIDI file in Base64, as written by
+   * toBase64 or by the thirdparty Base64 streams, which break lines. Throws
+   * an IllegalArgumentException if the text is not Base64.
+   */
+
   public static Midi fromBase64(String base64)
   {
-    ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(base64.getBytes());
-    InputStream base64InputStream = new Base64.InputStream(byteArrayInputStream);
-    Midi midi = new Midi(base64InputStream);
-    return midi;
+    return fromByteArray(Base64Codec.decode(base64));
   }
 
   public String toString()
@@ -1865,4 +2015,21 @@ public class Midi
     }
   }
 
+  /**
+   * Gives the encoder access to the buffer, to avoid copying it.
+   */
+
+  private static class SmfOutputStream extends ByteArrayOutputStream
+  {
+    private SmfOutputStream(int size)
+    {
+      super(size);
+    }
+
+    private String toBase64()
+    {
+      return Base64Codec.encode(buf, 0, count);
+    }
+  }
+
 }
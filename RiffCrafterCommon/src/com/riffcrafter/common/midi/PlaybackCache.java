@@ -0,0 +1,276 @@
+// Copyright 2007 Anthony F. Stuart - All rights reserved.
+//
+// This program and the accompanying materials are made available
+// under the terms of the GNU General Public License. For other license
+// options please contact the copyright owner.
+//
+// This program is made available on an "as is" basis, without
+// warranties or conditions of any kind, either express or implied.
+
+package com.riffcrafter.common.midi;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.Track;
+
+/**
+ * Keeps the playback Sequence for a Midi, with a track per channel as
+ * written by Midi.toTrack, so that playback can start without converting
+ * every Midel.
+ *
+ * Changes to the Midi are recorded as they happen and applied to the tracks
+ * the next time the Sequence is requested, which is when playback is about
+ * to start, so a Sequence is never changed while it is playing. Each change
+ * costs a search of its channel's track, so after MAXIMUM_PENDING_CHANGES
+ * changes, or a change that would move the track that must come first or
+ * shorten a track, the Sequence is rebuilt instead.
+ *
+ * A Sequencer may not notice that the tracks of a Sequence it already has
+ * have changed, so each new version of the tracks is returned in a new
+ * Sequence that shares the Track objects of the previous one.
+ */
+
+class PlaybackCache
+{
+  private static final int MAXIMUM_PENDING_CHANGES = 64;
+  private static final int END_OF_TRACK = 0x2f;
+
+  private Midi midi;
+  private PlaybackSequence sequence;
+  private HashMap<Integer, Track> tracks;
+  private int firstChannel;
+  private Sequence scratchSequence;
+
+  private ArrayList<Midel> pendingMidels = new ArrayList<Midel>();
+  private BitSet pendingAdds = new BitSet();
+  private boolean isRebuildRequired = true;
+
+  private int version;
+  private int sequenceVersion = -1;
+
+  PlaybackCache(Midi midi)
+  {
+    this.midi = midi;
+  }
+
+  void onAdd(Midel midel)
+  {
+    record(midel, true);
+  }
+
+  void onRemove(Midel midel)
+  {
+    record(midel, false);
+  }
+
+  private void record(Midel midel, boolean isAdd)
+  {
+    version++;
+    if (!isRebuildRequired)
+    {
+      if (pendingMidels.size() == MAXIMUM_PENDING_CHANGES)
+      {
+        requireRebuild();
+      }
+      else
+      {
+        pendingAdds.set(pendingMidels.size(), isAdd);
+        pendingMidels.add(midel);
+      }
+    }
+  }
+
+  int getVersion()
+  {
+    return version;
+  }
+
+  Sequence getSequence()
+  {
+    if (!isRebuildRequired && pendingMidels.size() > 0)
+    {
+      applyPendingChanges();
+    }
+    if (isRebuildRequired)
+    {
+      rebuild();
+    }
+    if (sequenceVersion != version)
+    {
+      sequence = PlaybackSequence.create(sequence);
+      sequenceVersion = version;
+    }
+    return sequence;
+  }
+
+  private void requireRebuild()
+  {
+    isRebuildRequired = true;
+    pendingMidels.clear();
+    pendingAdds.clear();
+  }
+
+  private void rebuild()
+  {
+    sequence = PlaybackSequence.create(null);
+    tracks = new HashMap<Integer, Track>();
+    midi.toTrack(sequence, tracks);
+    firstChannel = midi.size() == 0 ? Integer.MAX_VALUE : midi.getLowestChannel();
+    isRebuildRequired = false;
+    sequenceVersion = version;
+  }
+
+  private void applyPendingChanges()
+  {
+    int size = pendingMidels.size();
+    for (int i = 0; i < size && !isRebuildRequired; i++)
+    {
+      Midel midel = pendingMidels.get(i);
+      int channel = midel.getChannel();
+      Track track = tracks.get(channel);
+      if (channel < firstChannel)
+      {
+        // The signature, and with it the tempo changes, must stay in the first track
+        requireRebuild();
+      }
+      else if (pendingAdds.get(i))
+      {
+        if (track == null)
+        {
+          track = sequence.createTrack();
+          tracks.put(channel, track);
+        }
+        midel.addTo(track);
+      }
+      else if (track == null || !removeEvents(track, midel) || isTrackTooLong(track))
+      {
+        requireRebuild();
+      }
+    }
+    pendingMidels.clear();
+    pendingAdds.clear();
+  }
+
+  /**
+   * Removes the events that the Midel adds to a track, returning false if
+   * any of them cannot be found.
+   */
+
+  private boolean removeEvents(Track track, Midel midel)
+  {
+    if (scratchSequence == null)
+    {
+      scratchSequence = PlaybackSequence.create(null);
+    }
+    Track scratchTrack = scratchSequence.createTrack();
+    try
+    {
+      midel.addTo(scratchTrack);
+      int eventCount = scratchTrack.size() - 1; // all but the end of track
+      for (int i = 0; i < eventCount; i++)
+      {
+        MidiEvent event = findEvent(track, scratchTrack.get(i));
+        if (event == null)
+        {
+          return false;
+        }
+        track.remove(event);
+      }
+      return true;
+    }
+    finally
+    {
+      scratchSequence.deleteTrack(scratchTrack);
+    }
+  }
+
+  private static MidiEvent findEvent(Track track, MidiEvent targetEvent)
+  {
+    long tick = targetEvent.getTick();
+    int low = 0;
+    int high = track.size() - 1;
+    while (low < high)
+    {
+      int middle = (low + high) >>> 1;
+      if (track.get(middle).getTick() < tick)
+      {
+        low = middle + 1;
+      }
+      else
+      {
+        high = middle;
+      }
+    }
+
+    MidiMessage targetMessage = targetEvent.getMessage();
+    int size = track.size();
+    for (int i = low; i < size; i++)
+    {
+      MidiEvent event = track.get(i);
+      if (event.getTick() != tick)
+      {
+        break;
+      }
+      MidiMessage message = event.getMessage();
+      if (message.getLength() == targetMessage.getLength() && Arrays.equals(message.getMessage(), targetMessage.getMessage()))
+      {
+        return event;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns true if the end of track is later than the last event, because
+   * the last event was removed. Tracks only lengthen themselves.
+   */
+
+  private static boolean isTrackTooLong(Track track)
+  {
+    int size = track.size();
+    if (size < 2)
+    {
+      return false;
+    }
+    MidiMessage message = track.get(size - 1).getMessage();
+    boolean isEndOfTrack = message.getLength() > 1 && (message.getMessage()[0] & 0xff) == 0xff && (message.getMessage()[1] & 0xff) == END_OF_TRACK;
+    return isEndOfTrack && track.get(size - 1).getTick() > track.get(size - 2).getTick();
+  }
+
+  /**
+   * A Sequence that starts with the tracks of another one.
+   */
+
+  private static class PlaybackSequence extends Sequence
+  {
+    private PlaybackSequence() throws InvalidMidiDataException
+    {
+      super(PPQ, Midi.DEFAULT_RESOLUTION);
+    }
+
+    private static PlaybackSequence create(PlaybackSequence that)
+    {
+      try
+      {
+        PlaybackSequence sequence = new PlaybackSequence();
+        if (that != null)
+        {
+          sequence.tracks.addAll(that.tracks);
+        }
+        return sequence;
+      }
+      catch (InvalidMidiDataException e)
+      {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,161 @@
+// Copyright 2007 Anthony F. Stuart - All rights reserved.
+//
+// This program and the accompanying materials are made available
+// under the terms of the GNU General Public License. For other license
+// options please contact the copyright owner.
+//
+// This program is made available on an "as is" basis, without
+// warranties or conditions of any kind, either express or implied.
+
+package com.riffcrafter.common.midi;
+
+/**
+ * A list of segments, one for each tick at which a value such as the tempo
+ * changes, each with its position in another unit, such as microseconds,
+ * at the tick where it starts. The first segment starts at tick zero with a
+ * default value, until a change replaces it.
+ *
+ * A subclass converts a number of ticks at a value into the other unit, and
+ * the start of each segment is the sum of the lengths of those before it.
+ * Changing the value at a tick only recomputes the starts of the segments
+ * that follow it.
+ */
+
+abstract class SegmentMap
+{
+  private static final int INITIAL_CAPACITY = 4;
+
+  protected long[] ticks = new long[INITIAL_CAPACITY];
+  protected long[] starts = new long[INITIAL_CAPACITY];
+  protected int[] values = new int[INITIAL_CAPACITY];
+  protected int size;
+
+  private int defaultValue;
+
+  SegmentMap(int defaultValue)
+  {
+    this.defaultValue = defaultValue;
+    values[0] = defaultValue;
+    size = 1;
+  }
+
+  /**
+   * Returns the length, in the unit of the starts, of deltaTicks ticks at
+   * the value.
+   */
+
+  protected abstract long getLength(long deltaTicks, int value);
+
+  /**
+   * Sets the value that takes effect at the tick.
+   */
+
+  synchronized void put(long tick, int value)
+  {
+    int index = findSegment(tick);
+    if (ticks[index] != tick)
+    {
+      index++;
+      if (size == ticks.length)
+      {
+        ticks = resize(ticks);
+        starts = resize(starts);
+        int[] newValues = new int[values.length * 2];
+        System.arraycopy(values, 0, newValues, 0, size);
+        values = newValues;
+      }
+      System.arraycopy(ticks, index, ticks, index + 1, size - index);
+      System.arraycopy(starts, index, starts, index + 1, size - index);
+      System.arraycopy(values, index, values, index + 1, size - index);
+      size++;
+      ticks[index] = tick;
+    }
+    values[index] = value;
+    updateStarts(index);
+  }
+
+  /**
+   * Removes the value that takes effect at the tick, if any. The value in
+   * effect before the tick continues through it.
+   */
+
+  synchronized void remove(long tick)
+  {
+    int index = findSegment(tick);
+    if (ticks[index] != tick)
+    {
+      return;
+    }
+    if (index == 0)
+    {
+      values[0] = defaultValue;
+    }
+    else
+    {
+      System.arraycopy(ticks, index + 1, ticks, index, size - index - 1);
+      System.arraycopy(starts, index + 1, starts, index, size - index - 1);
+      System.arraycopy(values, index + 1, values, index, size - index - 1);
+      size--;
+    }
+    updateStarts(index);
+  }
+
+  public synchronized int size()
+  {
+    return size;
+  }
+
+  /**
+   * Returns the last segment that starts at or before the tick.
+   */
+
+  protected int findSegment(long tick)
+  {
+    return findLast(ticks, tick);
+  }
+
+  /**
+   * Returns the last segment whose start, in the other unit, is at or
+   * before the position.
+   */
+
+  protected int findSegmentByStart(long start)
+  {
+    return findLast(starts, start);
+  }
+
+  private int findLast(long[] sortedValues, long value)
+  {
+    int low = 0;
+    int high = size - 1;
+    while (low < high)
+    {
+      int middle = (low + high + 1) >>> 1;
+      if (sortedValues[middle] <= value)
+      {
+        low = middle;
+      }
+      else
+      {
+        high = middle - 1;
+      }
+    }
+    return low;
+  }
+
+  private void updateStarts(int fromIndex)
+  {
+    for (int i = Math.max(1, fromIndex); i < size; i++)
+    {
+      starts[i] = starts[i - 1] + getLength(ticks[i] - ticks[i - 1], values[i - 1]);
+    }
+  }
+
+  private long[] resize(long[] values)
+  {
+    long[] newValues = new long[values.length * 2];
+    System.arraycopy(values, 0, newValues, 0, size);
+    return newValues;
+  }
+
+}
@@ -9,6 +9,7 @@
 
 package com.riffcrafter.common.midi;
 
+import javax.sound.midi.InvalidMidiDataException;
 import javax.sound.midi.MetaMessage;
 
 public class TempoChange extends MetaEvent
@@ -26,6 +27,32 @@ public class TempoChange extends MetaEvent
     quarterNotesPerMinute = USEC_PER_MINUTE / usecPerQuarterNote;
   }
 
+  /**
+   * Creates a TempoChange that sorts after any other Midel at the tick, for
+   * use as a search key.
+   */
+
+  TempoChange(long tick)
+  {
+    this(tick, createMessage(TempoMap.DEFAULT_USEC_PER_QUARTER_NOTE));
+    sequence = HIGHEST_IN_SEQUENCE;
+  }
+
+  private static MetaMessage createMessage(int usecPerQuarterNote)
+  {
+    try
+    {
+      byte[] data = new byte[] { (byte)(usecPerQuarterNote >> 16), (byte)(usecPerQuarterNote >> 8), (byte)usecPerQuarterNote };
+      MetaMessage message = new MetaMessage();
+      message.setMessage(MidiConstants.MM_TEMPO, data, data.length);
+      return message;
+    }
+    catch (InvalidMidiDataException e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+
   public static String toString(byte[] data)
   {
     int usecPerQuarterNote = ((data[0] & 0xff) << 16) | ((data[1] & 0xff) << 8) | (data[2] & 0xff);
@@ -49,6 +76,11 @@ public class TempoChange extends MetaEvent
     return "Tempo: " + quarterNotesPerMinute + " bpm";
   }
 
+  public int getUsecPerQuarterNote()
+  {
+    return usecPerQuarterNote;
+  }
+
   public int getTempoInBPM()
   {
     return quarterNotesPerMinute;
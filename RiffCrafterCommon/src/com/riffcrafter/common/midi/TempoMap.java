@@ -0,0 +1,119 @@
+// Copyright 2007 Anthony F. Stuart - All rights reserved.
+//
+// This program and the accompanying materials are made available
+// under the terms of the GNU General Public License. For other license
+// options please contact the copyright owner.
+//
+// This program is made available on an "as is" basis, without
+// warranties or conditions of any kind, either express or implied.
+
+package com.riffcrafter.common.midi;
+
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.Track;
+
+/**
+ * Converts between ticks and time for a Midi, or for a Sequence, taking its
+ * tempo changes into account.
+ *
+ * Each segment holds a tempo and starts with the time in microseconds at
+ * which it starts. A conversion is a binary search for the segment followed
+ * by a linear interpolation within it. Midi keeps the map up to date as
+ * tempo changes are added and removed.
+ */
+
+public class TempoMap extends SegmentMap
+{
+  public static final int DEFAULT_USEC_PER_QUARTER_NOTE = TempoChange.USEC_PER_MINUTE / Midi.DEFAULT_TEMPO_IN_BPM;
+
+  private int resolution;
+
+  TempoMap()
+  {
+    super(DEFAULT_USEC_PER_QUARTER_NOTE);
+    resolution = Midi.DEFAULT_RESOLUTION;
+  }
+
+  /**
+   * Creates a map of the tempo changes in all tracks of the sequence, at its
+   * resolution. Of the changes at the same tick, the one in the last track
+   * takes effect. A sequence timed in SMPTE frames has no tempo, and a
+   * quarter note is taken to be a frame.
+   */
+
+  public TempoMap(Sequence sequence)
+  {
+    super(getDefaultUsecPerQuarterNote(sequence));
+    resolution = sequence.getResolution();
+    if (sequence.getDivisionType() == Sequence.PPQ)
+    {
+      for (Track track : sequence.getTracks())
+      {
+        int eventCount = track.size();
+        for (int i = 0; i < eventCount; i++)
+        {
+          MidiMessage message = track.get(i).getMessage();
+          if (message instanceof MetaMessage && ((MetaMessage)message).getType() == MidiConstants.MM_TEMPO)
+          {
+            byte[] data = ((MetaMessage)message).getData();
+            if (data.length == 3)
+            {
+              put(track.get(i).getTick(), ((data[0] & 0xff) << 16) | ((data[1] & 0xff) << 8) | (data[2] & 0xff));
+            }
+          }
+        }
+      }
+    }
+  }
+
+  private static int getDefaultUsecPerQuarterNote(Sequence sequence)
+  {
+    float divisionType = sequence.getDivisionType();
+    return divisionType == Sequence.PPQ ? DEFAULT_USEC_PER_QUARTER_NOTE : Math.round(1000000 / divisionType);
+  }
+
+  public synchronized long getMicros(long tick)
+  {
+    int index = findSegment(tick);
+    return starts[index] + getLength(tick - ticks[index], values[index]);
+  }
+
+  public synchronized long getTick(long micros)
+  {
+    int index = findSegmentByStart(micros);
+    return ticks[index] + ((micros - starts[index]) * resolution) / values[index];
+  }
+
+  public long getMillis(long tick)
+  {
+    return getMicros(tick) / 1000;
+  }
+
+  /**
+   * Returns the number of ticks in the given number of milliseconds
+   * following the tick.
+   */
+
+  public synchronized long convertMillisToTicks(long tick, long millis)
+  {
+    return getTick(getMicros(tick) + millis * 1000) - tick;
+  }
+
+  public synchronized int getUsecPerQuarterNote(long tick)
+  {
+    return values[findSegment(tick)];
+  }
+
+  /**
+   * Returns the time in microseconds of the ticks at the tempo.
+   */
+
+  @Override
+  protected long getLength(long deltaTicks, int usecPerQuarterNote)
+  {
+    return (deltaTicks * usecPerQuarterNote) / resolution;
+  }
+
+}
@@ -9,6 +9,7 @@
 
 package com.riffcrafter.common.midi;
 
+import javax.sound.midi.InvalidMidiDataException;
 import javax.sound.midi.MetaMessage;
 
 public class TimeSignatureChange extends MetaEvent
@@ -24,6 +25,32 @@ public class TimeSignatureChange extends MetaEvent
     beatUnit = 1 << (bytes[4] & 0xff);
   }
 
+  /**
+   * Creates a TimeSignatureChange that sorts after any other Midel at the
+   * tick, for use as a search key.
+   */
+
+  TimeSignatureChange(long tick)
+  {
+    this(tick, createMessage());
+    sequence = HIGHEST_IN_SEQUENCE;
+  }
+
+  private static MetaMessage createMessage()
+  {
+    try
+    {
+      byte[] data = new byte[] { 4, 2, 24, 8 }; // 4/4
+      MetaMessage message = new MetaMessage();
+      message.setMessage(MidiConstants.MM_TIME_SIGNATURE, data, data.length);
+      return message;
+    }
+    catch (InvalidMidiDataException e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+
   public static byte[] fromString(String value)
   {
     String[] values = value.split("/");
@@ -0,0 +1,37 @@
+// Copyright 2007 Anthony F. Stuart - All rights reserved.
+//
+// This program and the accompanying materials are made available
+// under the terms of the GNU General Public License. For other license
+// options please contact the copyright owner.
+//
+// This program is made available on an "as is" basis, without
+// warranties or conditions of any kind, either express or implied.
+
+package com.riffcrafter.common.services;
+
+/**
+ * The songs served by CatalogServer. Implementations must be safe to call
+ * from many request threads at once.
+ */
+
+public interface Catalog
+{
+  public static final String ID = "Id";
+  public static final String TITLE = "Title";
+  public static final String ARTIST = "Artist";
+  public static final String DATE = "Date";
+  public static final String USER = "User";
+
+  /**
+   * Returns a Table of the matching entries, with ID, TITLE, ARTIST, DATE and
+   * USER columns.
+   */
+
+  public Table search(SearchRequest searchRequest);
+
+  /**
+   * Returns the entry with the given id, or null if there is no such entry.
+   */
+
+  public CatalogEntry getEntry(int id);
+}
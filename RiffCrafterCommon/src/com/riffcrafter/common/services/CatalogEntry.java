@@ -0,0 +1,77 @@
+// Copyright 2007 Anthony F. Stuart - All rights reserved.
+//
+// This program and the accompanying materials are made available
+// under the terms of the GNU General Public License. For other license
+// options please contact the copyright owner.
+//
+// This program is made available on an "as is" basis, without
+// warranties or conditions of any kind, either express or implied.
+
+package com.riffcrafter.common.services;
+
+import java.io.File;
+
+public class CatalogEntry
+{
+  private int id;
+  private String title;
+  private String artist;
+  private String date;
+  private String user;
+  private File file;
+
+  public CatalogEntry(int id, String title, String artist, String date, String user, File file)
+  {
+    this.id = id;
+    this.title = title;
+    this.artist = artist;
+    this.date = date;
+    this.user = user;
+    this.file = file;
+  }
+
+  public int getId()
+  {
+    return id;
+  }
+
+  public String getTitle()
+  {
+    return title;
+  }
+
+  public String getArtist()
+  {
+    return artist;
+  }
+
+  /**
+   * Returns the date in yyyy-MM-dd form, so that dates compare as Strings.
+   */
+
+  public String getDate()
+  {
+    return date;
+  }
+
+  public String getUser()
+  {
+    return user;
+  }
+
+  public File getFile()
+  {
+    return file;
+  }
+
+  public Object[] toRow()
+  {
+    return new Object[] { id, title, artist, date, user };
+  }
+
+  public String toString()
+  {
+    return "[id=" + id + ", title=" + title + ", artist=" + artist + ", date=" + date + ", user=" + user + ", file=" + file + "]";
+  }
+
+}
@@ -0,0 +1,617 @@
+// Copyright 2007 Anthony F. Stuart - All rights reserved.
+//
+// This program and the accompanying materials are made available
+// under the terms of the GNU General Public License. For other license
+// options please contact the copyright owner.
+//
+// This program is made available on an "as is" basis, without
+// warranties or conditions of any kind, either express or implied.
+
+package com.riffcrafter.common.services;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.riffcrafter.library.util.BinaryReader;
+import com.riffcrafter.library.util.BinaryWriter;
+
+/**
+ * An in-memory Catalog that answers searches from inverted indexes rather
+ * than by examining every entry.
+ *
+ * A search matches as DirectoryCatalog does: the title, artist and user of
+ * a SearchRequest must each appear anywhere within those of an entry,
+ * ignoring case, so "beat" matches "Heartbeat". Titles and artists are split
+ * into lower case words, and each word maps to the sorted ids of the entries
+ * that contain it. Each word of the request lies within a word of every
+ * entry that matches, so the candidates are the entries with a word that
+ * contains each of them, and only the candidates are then checked in full.
+ * The words that contain a request word are found from a second index, from
+ * each string of up to three characters (a gram) to the words that contain
+ * it: a request word of up to three characters is itself a gram, and a
+ * longer one lies only within the words that contain the least common of
+ * its three character grams, so only those words are examined. Users are
+ * indexed the same way, and dates are kept in order so that a date range is
+ * a single sub map. The ids that match each field are combined in BitSets,
+ * and the rows are returned in id order.
+ *
+ * Entries can be added and removed while the index is in use; searches share
+ * a read lock and updates take the write lock. Ids must be small
+ * non-negative integers, such as the position of an entry in a list.
+ *
+ * An index can be saved to a snapshot file and loaded again without visiting
+ * the files it describes. The snapshot holds the entries, and the word
+ * indexes are rebuilt as it is read.
+ */
+
+public class CatalogIndex implements Catalog
+{
+  private ArrayList<CatalogEntry> entries = new ArrayList<CatalogEntry>();
+  private int size;
+
+  private KeyIndex titleWords = new KeyIndex();
+  private KeyIndex artistWords = new KeyIndex();
+  private KeyIndex users = new KeyIndex();
+  private TreeMap<String, Postings> dates = new TreeMap<String, Postings>();
+
+  private ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+  public void add(CatalogEntry entry)
+  {
+    int id = entry.getId();
+    if (id < 0)
+    {
+      throw new IllegalArgumentException("Negative id " + id);
+    }
+
+    lock.writeLock().lock();
+    try
+    {
+      remove(id);
+      while (entries.size() <= id)
+      {
+        entries.add(null);
+      }
+      entries.set(id, entry);
+      size++;
+      for (String word : getWords(entry.getTitle()))
+      {
+        titleWords.add(word, id);
+      }
+      for (String word : getWords(entry.getArtist()))
+      {
+        artistWords.add(word, id);
+      }
+      users.add(normalize(entry.getUser()), id);
+      addPosting(dates, entry.getDate(), id);
+    }
+    finally
+    {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Removes the entry with the given id, if there is one.
+   */
+
+  public void remove(int id)
+  {
+    lock.writeLock().lock();
+    try
+    {
+      CatalogEntry entry = id >= 0 && id < entries.size() ? entries.get(id) : null;
+      if (entry != null)
+      {
+        entries.set(id, null);
+        size--;
+        for (String word : getWords(entry.getTitle()))
+        {
+          titleWords.remove(word, id);
+        }
+        for (String word : getWords(entry.getArtist()))
+        {
+          artistWords.remove(word, id);
+        }
+        users.remove(normalize(entry.getUser()), id);
+        removePosting(dates, entry.getDate(), id);
+      }
+    }
+    finally
+    {
+      lock.writeLock().unlock();
+    }
+  }
+
+  public CatalogEntry getEntry(int id)
+  {
+    lock.readLock().lock();
+    try
+    {
+      return id >= 0 && id < entries.size() ? entries.get(id) : null;
+    }
+    finally
+    {
+      lock.readLock().unlock();
+    }
+  }
+
+  public int size()
+  {
+    lock.readLock().lock();
+    try
+    {
+      return size;
+    }
+    finally
+    {
+      lock.readLock().unlock();
+    }
+  }
+
+  public Table search(SearchRequest searchRequest)
+  {
+    String afterDate = normalize(searchRequest.getAfterDate());
+    String beforeDate = normalize(searchRequest.getBeforeDate());
+    String user = normalize(searchRequest.getUser());
+
+    ArrayList<Object[]> rows = new ArrayList<Object[]>();
+
+    lock.readLock().lock();
+    try
+    {
+      BitSet matches = null;
+      String title = normalize(searchRequest.getTitle());
+      if (title != null)
+      {
+        matches = intersect(matches, matchWords(titleWords, title));
+        matches = confirm(matches, TITLE, title);
+      }
+      String artist = normalize(searchRequest.getArtist());
+      if (artist != null)
+      {
+        matches = intersect(matches, matchWords(artistWords, artist));
+        matches = confirm(matches, ARTIST, artist);
+      }
+      if (user != null)
+      {
+        matches = intersect(matches, users.match(user, entries.size()));
+      }
+      if (afterDate != null || beforeDate != null)
+      {
+        matches = intersect(matches, matchDates(afterDate, beforeDate));
+      }
+
+      if (matches == null)
+      {
+        for (CatalogEntry entry : entries)
+        {
+          if (entry != null)
+          {
+            rows.add(entry.toRow());
+          }
+        }
+      }
+      else
+      {
+        for (int id = matches.nextSetBit(0); id >= 0; id = matches.nextSetBit(id + 1))
+        {
+          rows.add(entries.get(id).toRow());
+        }
+      }
+    }
+    finally
+    {
+      lock.readLock().unlock();
+    }
+
+    Table table = createTable();
+    table.addRows(rows);
+    return table;
+  }
+
+  /**
+   * Returns the entries with words that contain every word of the value, or
+   * null if the value has no words. These are the only entries that can
+   * contain the value.
+   */
+
+  private BitSet matchWords(KeyIndex index, String value)
+  {
+    BitSet matches = null;
+    for (String word : getWords(value))
+    {
+      matches = intersect(matches, index.match(word, entries.size()));
+    }
+    return matches;
+  }
+
+  /**
+   * Returns those of the matches, or of all entries if matches is null, whose
+   * column contains the normalized value.
+   */
+
+  private BitSet confirm(BitSet matches, String column, String value)
+  {
+    if (matches == null)
+    {
+      matches = new BitSet(entries.size());
+      for (int id = 0; id < entries.size(); id++)
+      {
+        matches.set(id, entries.get(id) != null);
+      }
+    }
+    for (int id = matches.nextSetBit(0); id >= 0; id = matches.nextSetBit(id + 1))
+    {
+      CatalogEntry entry = entries.get(id);
+      String text = TITLE.equals(column) ? entry.getTitle() : entry.getArtist();
+      if (text == null || !text.toLowerCase().contains(value))
+      {
+        matches.clear(id);
+      }
+    }
+    return matches;
+  }
+
+  private BitSet matchDates(String afterDate, String beforeDate)
+  {
+    NavigableMap<String, Postings> range = dates;
+    if (afterDate != null)
+    {
+      range = range.tailMap(afterDate, false);
+    }
+    if (beforeDate != null)
+    {
+      range = range.headMap(beforeDate, false);
+    }
+    BitSet dateMatches = new BitSet(entries.size());
+    for (Postings postings : range.values())
+    {
+      postings.addTo(dateMatches);
+    }
+    return dateMatches;
+  }
+
+  private static BitSet intersect(BitSet matches, BitSet newMatches)
+  {
+    if (matches == null)
+    {
+      return newMatches;
+    }
+    matches.and(newMatches);
+    return matches;
+  }
+
+  private static <K> void addPosting(Map<K, Postings> index, K key, int id)
+  {
+    if (key != null)
+    {
+      Postings postings = index.get(key);
+      if (postings == null)
+      {
+        postings = new Postings();
+        index.put(key, postings);
+      }
+      postings.add(id);
+    }
+  }
+
+  private static <K> boolean removePosting(Map<K, Postings> index, K key, int id)
+  {
+    if (key != null)
+    {
+      Postings postings = index.get(key);
+      if (postings != null && postings.remove(id) && postings.isEmpty())
+      {
+        index.remove(key);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Splits the value into the distinct lower case words that it contains. A
+   * word is a run of letters and digits.
+   */
+
+  static ArrayList<String> getWords(String value)
+  {
+    ArrayList<String> words = new ArrayList<String>();
+    if (value != null)
+    {
+      int length = value.length();
+      int start = -1;
+      for (int i = 0; i <= length; i++)
+      {
+        boolean isWordCharacter = i < length && Character.isLetterOrDigit(value.charAt(i));
+        if (isWordCharacter && start == -1)
+        {
+          start = i;
+        }
+        else if (!isWordCharacter && start != -1)
+        {
+          String word = value.substring(start, i).toLowerCase();
+          if (!words.contains(word))
+          {
+            words.add(word);
+          }
+          start = -1;
+        }
+      }
+    }
+    return words;
+  }
+
+  private static String normalize(String value)
+  {
+    if (value == null)
+    {
+      return null;
+    }
+    value = value.trim().toLowerCase();
+    return value.length() == 0 ? null : value;
+  }
+
+  static Table createTable()
+  {
+    Table table = new Table();
+    table.setColumnNames(new String[] { ID, TITLE, ARTIST, DATE, USER });
+    return table;
+  }
+
+  public void writeSnapshot(File file)
+  {
+    try
+    {
+      BinaryWriter binaryWriter = new BinaryWriter(new BufferedOutputStream(new FileOutputStream(file)));
+      lock.readLock().lock();
+      try
+      {
+        binaryWriter.beginMessage(MessageTypes.CATALOG_SNAPSHOT);
+        binaryWriter.writeInt(size);
+        for (CatalogEntry entry : entries)
+        {
+          if (entry != null)
+          {
+            binaryWriter.writeInt(entry.getId());
+            binaryWriter.writeString(entry.getTitle());
+            binaryWriter.writeString(entry.getArtist());
+            binaryWriter.writeString(entry.getDate());
+            binaryWriter.writeString(entry.getUser());
+            binaryWriter.writeString(entry.getFile() == null ? null : entry.getFile().getPath());
+          }
+        }
+        binaryWriter.endMessage();
+      }
+      finally
+      {
+        lock.readLock().unlock();
+        binaryWriter.close();
+      }
+    }
+    catch (FileNotFoundException e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Adds the entries in a snapshot written by writeSnapshot.
+   */
+
+  public void readSnapshot(File file)
+  {
+    try
+    {
+      FileInputStream fileInputStream = new FileInputStream(file);
+      try
+      {
+        BinaryReader binaryReader = new BinaryReader(new BufferedInputStream(fileInputStream));
+        binaryReader.beginMessage(MessageTypes.CATALOG_SNAPSHOT);
+        int count = binaryReader.readInt();
+        for (int i = 0; i < count; i++)
+        {
+          int id = binaryReader.readInt();
+          String title = binaryReader.readString();
+          String artist = binaryReader.readString();
+          String date = binaryReader.readString();
+          String user = binaryReader.readString();
+          String path = binaryReader.readString();
+          add(new CatalogEntry(id, title, artist, date, user, path == null ? null : new File(path)));
+        }
+        binaryReader.endMessage();
+      }
+      finally
+      {
+        fileInputStream.close();
+      }
+    }
+    catch (IOException e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * The ids of the entries for each key, such as each word of a title, with
+   * the keys that contain each gram of up to GRAM_LENGTH characters, so
+   * that the keys containing a value can be found without examining every
+   * key.
+   */
+
+  private static class KeyIndex
+  {
+    private static final int GRAM_LENGTH = 3;
+
+    private HashMap<String, Postings> keys = new HashMap<String, Postings>();
+    private HashMap<String, HashSet<String>> grams = new HashMap<String, HashSet<String>>();
+
+    private void add(String key, int id)
+    {
+      if (key != null)
+      {
+        if (!keys.containsKey(key))
+        {
+          for (String gram : getGrams(key))
+          {
+            HashSet<String> gramKeys = grams.get(gram);
+            if (gramKeys == null)
+            {
+              gramKeys = new HashSet<String>();
+              grams.put(gram, gramKeys);
+            }
+            gramKeys.add(key);
+          }
+        }
+        addPosting(keys, key, id);
+      }
+    }
+
+    private void remove(String key, int id)
+    {
+      if (removePosting(keys, key, id))
+      {
+        for (String gram : getGrams(key))
+        {
+          HashSet<String> gramKeys = grams.get(gram);
+          gramKeys.remove(key);
+          if (gramKeys.isEmpty())
+          {
+            grams.remove(gram);
+          }
+        }
+      }
+    }
+
+    /**
+     * Returns the entries with a key that contains the value. A value of up
+     * to GRAM_LENGTH characters is a gram, and its keys are exactly those
+     * that contain it. A longer value can only be within the keys that
+     * contain every one of its grams, so the keys of its least common gram
+     * are checked.
+     */
+
+    private BitSet match(String value, int idCount)
+    {
+      BitSet keyMatches = new BitSet(idCount);
+      boolean isGram = value.length() <= GRAM_LENGTH;
+      HashSet<String> candidates = isGram ? grams.get(value) : null;
+      for (int i = 0; !isGram && i + GRAM_LENGTH <= value.length(); i++)
+      {
+        HashSet<String> gramKeys = grams.get(value.substring(i, i + GRAM_LENGTH));
+        if (gramKeys == null)
+        {
+          return keyMatches;
+        }
+        if (candidates == null || gramKeys.size() < candidates.size())
+        {
+          candidates = gramKeys;
+        }
+      }
+      if (candidates != null)
+      {
+        for (String key : candidates)
+        {
+          if (isGram || key.contains(value))
+          {
+            keys.get(key).addTo(keyMatches);
+          }
+        }
+      }
+      return keyMatches;
+    }
+
+    /**
+     * Returns the distinct strings of one to GRAM_LENGTH characters within
+     * the key.
+     */
+
+    private static HashSet<String> getGrams(String key)
+    {
+      HashSet<String> keyGrams = new HashSet<String>();
+      int length = key.length();
+      for (int i = 0; i < length; i++)
+      {
+        for (int j = i + 1; j <= Math.min(i + GRAM_LENGTH, length); j++)
+        {
+          keyGrams.add(key.substring(i, j));
+        }
+      }
+      return keyGrams;
+    }
+  }
+
+  /**
+   * The ids of the entries for one key, in ascending order. Ids are usually
+   * added in ascending order, which appends them.
+   */
+
+  private static class Postings
+  {
+    private static final int INITIAL_CAPACITY = 4;
+
+    private int[] ids = new int[INITIAL_CAPACITY];
+    private int count;
+
+    private void add(int id)
+    {
+      int index = count == 0 || ids[count - 1] < id ? count : Arrays.binarySearch(ids, 0, count, id);
+      if (index >= 0 && index < count)
+      {
+        return;
+      }
+      if (index < 0)
+      {
+        index = -index - 1;
+      }
+      if (count == ids.length)
+      {
+        ids = Arrays.copyOf(ids, count * 2);
+      }
+      System.arraycopy(ids, index, ids, index + 1, count - index);
+      ids[index] = id;
+      count++;
+    }
+
+    private boolean remove(int id)
+    {
+      int index = Arrays.binarySearch(ids, 0, count, id);
+      if (index < 0)
+      {
+        return false;
+      }
+      System.arraycopy(ids, index + 1, ids, index, count - index - 1);
+      count--;
+      return true;
+    }
+
+    private boolean isEmpty()
+    {
+      return count == 0;
+    }
+
+    private void addTo(BitSet bitSet)
+    {
+      for (int i = 0; i < count; i++)
+      {
+        bitSet.set(ids[i]);
+      }
+    }
+  }
+
+}
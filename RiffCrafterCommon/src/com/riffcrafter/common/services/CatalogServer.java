@@ -0,0 +1,360 @@
+// Copyright 2007 Anthony F. Stuart - All rights reserved.
+//
+// This program and the accompanying materials are made available
+// under the terms of the GNU General Public License. For other license
+// options please contact the copyright owner.
+//
+// This program is made available on an "as is" basis, without
+// warranties or conditions of any kind, either express or implied.
+
+package com.riffcrafter.common.services;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.riffcrafter.library.services.Request;
+import com.riffcrafter.library.services.Response;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves search and download requests from a Catalog over HTTP, in either of
+ * the encodings supported by ConnectionFromClient.
+ *
+ * Connections are managed by the HttpServer's selector thread, so idle
+ * keep-alive connections from thousands of clients cost no threads; each
+ * request is handled by a thread from a fixed pool, and requests queue when
+ * all of the threads are busy. Responses are streamed to the client as they
+ * are written (chunked), gzip compressed when the client accepts it, and
+ * downloads in the binary encoding send the MIDI file from disk as is.
+ */
+
+public class CatalogServer
+{
+  private static final String USAGE = "Usage: java CatalogServer [--port=n] [--threads=n] [--user=name] [--snapshot=file] directory";
+
+  private static final int DEFAULT_PORT = 8080;
+  private static final int DEFAULT_THREADS_PER_PROCESSOR = 8;
+  private static final int BACKLOG = 1024;
+  private static final String GZIP = "gzip";
+
+  private Catalog catalog;
+  private HttpServer httpServer;
+  private ExecutorService executorService;
+
+  private AtomicLong requestCount = new AtomicLong();
+  private AtomicLong errorCount = new AtomicLong();
+
+  public static void main(String[] args) throws Exception
+  {
+    System.setProperty("java.awt.headless", "true");
+
+    int port = DEFAULT_PORT;
+    int threadCount = Runtime.getRuntime().availableProcessors() * DEFAULT_THREADS_PER_PROCESSOR;
+    String user = System.getProperty("user.name");
+    File directory = null;
+    File snapshot = null;
+
+    for (String arg : args)
+    {
+      if (arg.startsWith("--port="))
+      {
+        port = Integer.parseInt(getValue(arg));
+      }
+      else if (arg.startsWith("--threads="))
+      {
+        threadCount = Integer.parseInt(getValue(arg));
+      }
+      else if (arg.startsWith("--user="))
+      {
+        user = getValue(arg);
+      }
+      else if (arg.startsWith("--snapshot="))
+      {
+        snapshot = new File(getValue(arg));
+      }
+      else if (arg.startsWith("--") || directory != null)
+      {
+        usage();
+      }
+      else
+      {
+        directory = new File(arg);
+      }
+    }
+
+    if (directory == null || !directory.isDirectory() || threadCount < 1)
+    {
+      usage();
+    }
+
+    CatalogIndex catalog;
+    if (snapshot != null && snapshot.exists())
+    {
+      catalog = new CatalogIndex();
+      catalog.readSnapshot(snapshot);
+    }
+    else
+    {
+      catalog = new DirectoryCatalog(directory, user);
+      if (snapshot != null)
+      {
+        catalog.writeSnapshot(snapshot);
+      }
+    }
+
+    CatalogServer catalogServer = new CatalogServer(catalog);
+    catalogServer.start(port, threadCount);
+    System.out.println("Serving " + catalog.size() + " files from " + directory + " on port " + catalogServer.getPort());
+  }
+
+  private static String getValue(String arg)
+  {
+    return arg.substring(arg.indexOf('=') + 1);
+  }
+
+  private static void usage()
+  {
+    System.err.println(USAGE);
+    System.exit(1);
+  }
+
+  public CatalogServer(Catalog catalog)
+  {
+    this.catalog = catalog;
+  }
+
+  /**
+   * Starts the server. A port of zero selects any free port (see getPort).
+   */
+
+  public void start(int port, int threadCount)
+  {
+    try
+    {
+      httpServer = HttpServer.create(new InetSocketAddress(port), BACKLOG);
+    }
+    catch (IOException e)
+    {
+      throw new RuntimeException(e);
+    }
+
+    executorService = new ThreadPoolExecutor(threadCount, threadCount, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+    {
+      private AtomicInteger threadNumber = new AtomicInteger();
+
+      public Thread newThread(Runnable runnable)
+      {
+        Thread thread = new Thread(runnable, "CatalogServer-" + threadNumber.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+
+    httpServer.createContext("/", new RequestHandler());
+    httpServer.setExecutor(executorService);
+    httpServer.start();
+  }
+
+  public void stop()
+  {
+    httpServer.stop(0);
+    executorService.shutdown();
+  }
+
+  public int getPort()
+  {
+    return httpServer.getAddress().getPort();
+  }
+
+  public long getRequestCount()
+  {
+    return requestCount.get();
+  }
+
+  public long getErrorCount()
+  {
+    return errorCount.get();
+  }
+
+  private Response process(Request request)
+  {
+    if (request instanceof SearchRequest)
+    {
+      return search((SearchRequest)request);
+    }
+    return download((DownloadRequest)request);
+  }
+
+  private SearchResponse search(SearchRequest searchRequest)
+  {
+    SearchResponse searchResponse = new SearchResponse();
+    try
+    {
+      searchResponse.setTable(catalog.search(searchRequest));
+    }
+    catch (RuntimeException e)
+    {
+      errorCount.incrementAndGet();
+      searchResponse.setStatus(Status.ERROR);
+      searchResponse.setMessage(e.toString());
+    }
+    return searchResponse;
+  }
+
+  private DownloadResponse download(DownloadRequest downloadRequest)
+  {
+    DownloadResponse downloadResponse = new DownloadResponse();
+    CatalogEntry entry = catalog.getEntry(downloadRequest.getId());
+    if (entry == null)
+    {
+      downloadResponse.setStatus(Status.ERROR);
+      downloadResponse.setMessage("No such id " + downloadRequest.getId());
+    }
+    else
+    {
+      downloadResponse.setTitle(entry.getTitle());
+      downloadResponse.setMidiFile(entry.getFile());
+    }
+    return downloadResponse;
+  }
+
+  private class RequestHandler implements HttpHandler
+  {
+    public void handle(HttpExchange httpExchange) throws IOException
+    {
+      requestCount.incrementAndGet();
+      boolean isDecoded = false;
+      try
+      {
+        if (!"POST".equals(httpExchange.getRequestMethod()))
+        {
+          httpExchange.sendResponseHeaders(405, -1);
+          return;
+        }
+
+        InputStream inputStream = httpExchange.getRequestBody();
+        if (GZIP.equals(httpExchange.getRequestHeaders().getFirst("Content-Encoding")))
+        {
+          inputStream = new GZIPInputStream(inputStream);
+        }
+
+        String contentType = httpExchange.getRequestHeaders().getFirst("Content-Type");
+        String acceptEncoding = httpExchange.getRequestHeaders().getFirst("Accept-Encoding");
+        boolean isCompressed = acceptEncoding != null && acceptEncoding.contains(GZIP);
+        ResponseBody responseBody = new ResponseBody(httpExchange, isCompressed);
+
+        ConnectionFromClient connectionFromClient = new ConnectionFromClient(inputStream, responseBody, contentType);
+        Request request = connectionFromClient.receiveCommandRequest();
+        if (request == null)
+        {
+          errorCount.incrementAndGet();
+          httpExchange.sendResponseHeaders(400, -1);
+          return;
+        }
+        isDecoded = true;
+
+        Response response = process(request);
+        responseBody.setContentType(connectionFromClient.getContentType());
+        connectionFromClient.sendCommandResponse(response);
+        responseBody.close();
+      }
+      catch (RuntimeException e)
+      {
+        // The request could not be decoded, could not be processed, or the client went away
+        errorCount.incrementAndGet();
+        // Unless the response is already under way, report it as the client's fault or ours
+        if (httpExchange.getResponseCode() == -1)
+        {
+          httpExchange.sendResponseHeaders(isDecoded ? 500 : 400, -1);
+        }
+      }
+      finally
+      {
+        httpExchange.close();
+      }
+    }
+  }
+
+  /**
+   * The body of a response, which sends the response headers when it is first
+   * written to, so that the status of a request that cannot be decoded can
+   * still be reported. The body is sent in chunks, so a large response never
+   * has to be held in memory to learn its length.
+   */
+
+  private static class ResponseBody extends OutputStream
+  {
+    private HttpExchange httpExchange;
+    private boolean isCompressed;
+    private String contentType;
+    private OutputStream outputStream;
+
+    private ResponseBody(HttpExchange httpExchange, boolean isCompressed)
+    {
+      this.httpExchange = httpExchange;
+      this.isCompressed = isCompressed;
+    }
+
+    private void setContentType(String contentType)
+    {
+      this.contentType = contentType;
+    }
+
+    private OutputStream getOutputStream() throws IOException
+    {
+      if (outputStream == null)
+      {
+        httpExchange.getResponseHeaders().set("Content-Type", contentType);
+        if (isCompressed)
+        {
+          httpExchange.getResponseHeaders().set("Content-Encoding", GZIP);
+        }
+        httpExchange.sendResponseHeaders(200, 0);
+        outputStream = httpExchange.getResponseBody();
+        if (isCompressed)
+        {
+          outputStream = new GZIPOutputStream(outputStream);
+        }
+      }
+      return outputStream;
+    }
+
+    public void write(int b) throws IOException
+    {
+      getOutputStream().write(b);
+    }
+
+    public void write(byte[] bytes, int offset, int length) throws IOException
+    {
+      getOutputStream().write(bytes, offset, length);
+    }
+
+    public void flush() throws IOException
+    {
+      if (outputStream != null)
+      {
+        outputStream.flush();
+      }
+    }
+
+    public void close() throws IOException
+    {
+      getOutputStream().close();
+    }
+  }
+
+}
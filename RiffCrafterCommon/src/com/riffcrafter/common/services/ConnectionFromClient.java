@@ -12,25 +12,60 @@ package com.riffcrafter.common.services;
 import java.io.InputStream;
 import java.io.OutputStream;
 
+import com.riffcrafter.library.services.ContentTypes;
 import com.riffcrafter.library.services.Request;
 import com.riffcrafter.library.services.Response;
+import com.riffcrafter.library.util.BinaryReader;
+import com.riffcrafter.library.util.BinaryWriter;
 import com.riffcrafter.library.util.XmlReader;
 import com.riffcrafter.library.util.XmlWriter;
 
 
 public class ConnectionFromClient
 {
+  private boolean isBinary;
   private XmlReader xmlReader;
   private XmlWriter xmlWriter;
+  private BinaryReader binaryReader;
+  private BinaryWriter binaryWriter;
 
   public ConnectionFromClient(InputStream inputStream, OutputStream outputStream)
   {
-    xmlReader = new XmlReader(inputStream);
-    xmlWriter = new XmlWriter(outputStream);
+    this(inputStream, outputStream, ContentTypes.XML);
+  }
+
+  /**
+   * Creates a connection that reads requests and writes responses in the
+   * encoding given by the content type of the client's request.
+   */
+
+  public ConnectionFromClient(InputStream inputStream, OutputStream outputStream, String contentType)
+  {
+    isBinary = contentType != null && contentType.startsWith(ContentTypes.BINARY);
+    if (isBinary)
+    {
+      binaryReader = new BinaryReader(inputStream);
+      binaryWriter = new BinaryWriter(outputStream);
+    }
+    else
+    {
+      xmlReader = new XmlReader(inputStream);
+      xmlWriter = new XmlWriter(outputStream, true);
+    }
+  }
+
+  public String getContentType()
+  {
+    return isBinary ? ContentTypes.BINARY : ContentTypes.XML;
   }
 
   public Request receiveCommandRequest()
   {
+    if (isBinary)
+    {
+      return receiveBinaryRequest();
+    }
+
     Request request = null;
     String tag = xmlReader.peekTag();
     if (tag.equals(Tags.SEARCH_REQUEST))
@@ -44,8 +79,30 @@ public class ConnectionFromClient
     return request;
   }
 
+  private Request receiveBinaryRequest()
+  {
+    Request request = null;
+    int messageType = binaryReader.peekMessageType();
+    if (messageType == MessageTypes.SEARCH_REQUEST)
+    {
+      request = new SearchRequest(binaryReader);
+    }
+    else if (messageType == MessageTypes.DOWNLOAD_REQUEST)
+    {
+      request = new DownloadRequest(binaryReader);
+    }
+    return request;
+  }
+
   public void sendCommandResponse(Response commandResponse)
   {
-    commandResponse.writeXml(xmlWriter, 0);
+    if (isBinary)
+    {
+      commandResponse.writeBinary(binaryWriter);
+    }
+    else
+    {
+      commandResponse.writeXml(xmlWriter, 0);
+    }
   }
 }
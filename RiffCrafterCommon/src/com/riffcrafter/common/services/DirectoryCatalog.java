@@ -0,0 +1,65 @@
+// Copyright 2007 Anthony F. Stuart - All rights reserved.
+//
+// This program and the accompanying materials are made available
+// under the terms of the GNU General Public License. For other license
+// options please contact the copyright owner.
+//
+// This program is made available on an "as is" basis, without
+// warranties or conditions of any kind, either express or implied.
+
+package com.riffcrafter.common.services;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * A Catalog of the MIDI files in a directory tree. The title of an entry is
+ * the file name without its extension, the artist is the name of the
+ * directory that contains it, the date is the date it was last modified and
+ * the user is the owner of the catalog. Entries are numbered from zero in
+ * path order when the catalog is created.
+ */
+
+public class DirectoryCatalog extends CatalogIndex
+{
+  public DirectoryCatalog(File directory, String user)
+  {
+    SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+    addEntries(directory, user, dateFormat);
+  }
+
+  private void addEntries(File directory, String user, SimpleDateFormat dateFormat)
+  {
+    File[] files = directory.listFiles();
+    if (files == null)
+    {
+      return;
+    }
+
+    Arrays.sort(files);
+    for (File file : files)
+    {
+      if (file.isDirectory())
+      {
+        addEntries(file, user, dateFormat);
+      }
+      else if (isMidiFile(file))
+      {
+        String name = file.getName();
+        String title = name.substring(0, name.lastIndexOf('.'));
+        String artist = directory.getName();
+        String date = dateFormat.format(new Date(file.lastModified()));
+        add(new CatalogEntry(size(), title, artist, date, user, file));
+      }
+    }
+  }
+
+  private static boolean isMidiFile(File file)
+  {
+    String name = file.getName().toLowerCase();
+    return name.endsWith(".mid") || name.endsWith(".midi") || name.endsWith(".kar");
+  }
+
+}
@@ -10,6 +10,8 @@
 package com.riffcrafter.common.services;
 
 import com.riffcrafter.library.services.Request;
+import com.riffcrafter.library.util.BinaryReader;
+import com.riffcrafter.library.util.BinaryWriter;
 import com.riffcrafter.library.util.XmlReader;
 import com.riffcrafter.library.util.XmlWriter;
 
@@ -27,6 +29,11 @@ public class DownloadRequest implements Request
     readXml(xmlReader);
   }
 
+  public DownloadRequest(BinaryReader binaryReader)
+  {
+    readBinary(binaryReader);
+  }
+
   public void writeXml(XmlWriter xmlWriter, int level)
   {
     int nextLevel = level + 1;
@@ -42,6 +49,20 @@ public class DownloadRequest implements Request
     xmlReader.endTag(Tags.DOWNLOAD_REQUEST);
   }
 
+  public void writeBinary(BinaryWriter binaryWriter)
+  {
+    binaryWriter.beginMessage(MessageTypes.DOWNLOAD_REQUEST);
+    binaryWriter.writeInt(id);
+    binaryWriter.endMessage();
+  }
+
+  public void readBinary(BinaryReader binaryReader)
+  {
+    binaryReader.beginMessage(MessageTypes.DOWNLOAD_REQUEST);
+    id = binaryReader.readInt();
+    binaryReader.endMessage();
+  }
+
   public String toString()
   {
     return "[id=" + id + "]";
@@ -9,27 +9,51 @@
 
 package com.riffcrafter.common.services;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
 import com.riffcrafter.common.midi.Midi;
 import com.riffcrafter.library.services.Response;
+import com.riffcrafter.library.util.BinaryReader;
+import com.riffcrafter.library.util.BinaryWriter;
 import com.riffcrafter.library.util.XmlReader;
 import com.riffcrafter.library.util.XmlWriter;
 
 
 public class DownloadResponse implements Response
 {
+  private static final int MAXIMUM_HEADER_LENGTH = 64;
+
   private int status = Status.OKAY;
   private String message;
   private Midi midi;
+  private File midiFile;
   private String title;
 
   public void writeXml(XmlWriter xmlWriter, int level)
   {
     int nextLevel = level + 1;
+    int xmlStatus = status;
+    String xmlMessage = message;
+    if (status == Status.OKAY && midiFile == null && midi == null)
+    {
+      // The reader expects a MIDI file after the title of every OKAY response
+      xmlStatus = Status.ERROR;
+      xmlMessage = "Download has no MIDI file";
+    }
     xmlWriter.beginTag(Tags.DOWNLOAD_RESPONSE, level);
-    xmlWriter.writeTaggedInt(Tags.STATUS, status, nextLevel);
-    xmlWriter.writeTaggedString(Tags.MESSAGE, message, nextLevel);
+    xmlWriter.writeTaggedInt(Tags.STATUS, xmlStatus, nextLevel);
+    xmlWriter.writeTaggedString(Tags.MESSAGE, xmlMessage, nextLevel);
     xmlWriter.writeTaggedString(Tags.DOWNLOAD_TITLE, title, nextLevel);
-    //midi.writeXml(xmlWriter, nextLevel);
+    // The standard MIDI file bytes follow the title as is
+    if (xmlStatus == Status.OKAY)
+    {
+      writeMidi(xmlWriter);
+    }
     xmlWriter.endTag(Tags.DOWNLOAD_RESPONSE, level);
   }
 
@@ -39,10 +63,129 @@ public class DownloadResponse implements Response
     status = xmlReader.readTaggedInt(Tags.STATUS);
     message = xmlReader.readTaggedString(Tags.MESSAGE);
     title = xmlReader.readTaggedString(Tags.DOWNLOAD_TITLE);
-    midi = new Midi(xmlReader);
+    if (status == Status.OKAY)
+    {
+      midi = Midi.fromByteArray(readMidi(xmlReader));
+    }
     xmlReader.endTag(Tags.DOWNLOAD_RESPONSE);
   }
 
+  public void writeBinary(BinaryWriter binaryWriter)
+  {
+    binaryWriter.beginMessage(MessageTypes.DOWNLOAD_RESPONSE);
+    binaryWriter.writeInt(status);
+    binaryWriter.writeString(message);
+    binaryWriter.writeString(title);
+    // The standard MIDI file bytes, rather than Base64 text
+    if (midiFile != null)
+    {
+      binaryWriter.writeFile(midiFile);
+    }
+    else
+    {
+      binaryWriter.writeBytes(midi == null ? null : midi.toByteArray());
+    }
+    binaryWriter.endMessage();
+  }
+
+  public void readBinary(BinaryReader binaryReader)
+  {
+    binaryReader.beginMessage(MessageTypes.DOWNLOAD_RESPONSE);
+    status = binaryReader.readInt();
+    message = binaryReader.readString();
+    title = binaryReader.readString();
+    byte[] bytes = binaryReader.readBytes();
+    midi = bytes == null ? null : Midi.fromByteArray(bytes);
+    binaryReader.endMessage();
+  }
+
+  private void writeMidi(XmlWriter xmlWriter)
+  {
+    try
+    {
+      if (midiFile != null)
+      {
+        FileInputStream fileInputStream = new FileInputStream(midiFile);
+        try
+        {
+          byte[] buffer = new byte[8192];
+          int count;
+          while ((count = fileInputStream.read(buffer)) != -1)
+          {
+            xmlWriter.write(buffer, 0, count);
+          }
+        }
+        finally
+        {
+          fileInputStream.close();
+        }
+      }
+      else if (midi != null)
+      {
+        xmlWriter.write(midi.toByteArray());
+      }
+    }
+    catch (IOException e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Reads the standard MIDI file that follows the title, chunk by chunk, so
+   * as to stop at its end rather than reading ahead into the closing tag.
+   */
+
+  private byte[] readMidi(XmlReader xmlReader)
+  {
+    ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+    DataInputStream dataInputStream = new DataInputStream(xmlReader);
+    DataOutputStream dataOutputStream = new DataOutputStream(byteArrayOutputStream);
+    try
+    {
+      int firstByte = dataInputStream.readUnsignedByte();
+      while (Character.isWhitespace(firstByte))
+      {
+        firstByte = dataInputStream.readUnsignedByte();
+      }
+      byte[] type = new byte[4];
+      type[0] = (byte)firstByte;
+      dataInputStream.readFully(type, 1, 3);
+      int length = dataInputStream.readInt();
+      if (!new String(type, "US-ASCII").equals("MThd") || length < 6 || length > MAXIMUM_HEADER_LENGTH)
+      {
+        throw new RuntimeException("Download is not a standard MIDI file");
+      }
+      byte[] headerData = new byte[length];
+      dataInputStream.readFully(headerData);
+      dataOutputStream.write(type);
+      dataOutputStream.writeInt(length);
+      dataOutputStream.write(headerData);
+      int trackCount = ((headerData[2] & 0xff) << 8) | (headerData[3] & 0xff);
+      byte[] buffer = new byte[8192];
+      for (int i = 0; i < trackCount; i++)
+      {
+        dataInputStream.readFully(type);
+        length = dataInputStream.readInt();
+        dataOutputStream.write(type);
+        dataOutputStream.writeInt(length);
+        // Copied a piece at a time, so a bad length runs out of input rather than memory
+        while (length > 0)
+        {
+          int count = Math.min(length, buffer.length);
+          dataInputStream.readFully(buffer, 0, count);
+          dataOutputStream.write(buffer, 0, count);
+          length -= count;
+        }
+      }
+    }
+    catch (IOException e)
+    {
+      throw new RuntimeException(e);
+    }
+    return byteArrayOutputStream.toByteArray();
+  }
+
   public String getMessage()
   {
     return message;
@@ -83,4 +226,13 @@ public class DownloadResponse implements Response
     this.midi = midi;
   }
 
+  /**
+   * Sets a standard MIDI file to send as is, rather than encoding a Midi.
+   */
+
+  public void setMidiFile(File midiFile)
+  {
+    this.midiFile = midiFile;
+  }
+
 }
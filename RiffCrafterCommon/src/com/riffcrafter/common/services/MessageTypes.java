@@ -0,0 +1,21 @@
+// Copyright 2007 Anthony F. Stuart - All rights reserved.
+//
+// This program and the accompanying materials are made available
+// under the terms of the GNU General Public License. For other license
+// options please contact the copyright owner.
+//
+// This program is made available on an "as is" basis, without
+// warranties or conditions of any kind, either express or implied.
+
+package com.riffcrafter.common.services;
+
+public interface MessageTypes
+{
+
+  public static final int SEARCH_REQUEST = 1;
+  public static final int SEARCH_RESPONSE = 2;
+  public static final int DOWNLOAD_REQUEST = 3;
+  public static final int DOWNLOAD_RESPONSE = 4;
+  public static final int CATALOG_SNAPSHOT = 5;
+
+}
@@ -0,0 +1,24 @@
+// Copyright 2007 Anthony F. Stuart - All rights reserved.
+//
+// This program and the accompanying materials are made available
+// under the terms of the GNU General Public License. For other license
+// options please contact the copyright owner.
+//
+// This program is made available on an "as is" basis, without
+// warranties or conditions of any kind, either express or implied.
+
+package com.riffcrafter.common.services;
+
+/**
+ * Receives the rows of a Table as they are decoded. The methods are invoked
+ * on the thread that is reading the response.
+ */
+
+public interface RowListener
+{
+  public void onColumns(String[] columnNames, int rowCount);
+
+  public void onRow(Object[] values);
+
+  public void onEnd();
+}
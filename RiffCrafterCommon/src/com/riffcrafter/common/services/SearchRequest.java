@@ -10,6 +10,8 @@
 package com.riffcrafter.common.services;
 
 import com.riffcrafter.library.services.Request;
+import com.riffcrafter.library.util.BinaryReader;
+import com.riffcrafter.library.util.BinaryWriter;
 import com.riffcrafter.library.util.XmlReader;
 import com.riffcrafter.library.util.XmlWriter;
 
@@ -31,6 +33,11 @@ public class SearchRequest implements Request
     readXml(xmlReader);
   }
 
+  public SearchRequest(BinaryReader binaryReader)
+  {
+    readBinary(binaryReader);
+  }
+
   public void writeXml(XmlWriter xmlWriter, int level)
   {
     int nextLevel = level + 1;
@@ -54,6 +61,28 @@ public class SearchRequest implements Request
     xmlReader.endTag(Tags.SEARCH_REQUEST);
   }
 
+  public void writeBinary(BinaryWriter binaryWriter)
+  {
+    binaryWriter.beginMessage(MessageTypes.SEARCH_REQUEST);
+    binaryWriter.writeString(title);
+    binaryWriter.writeString(artist);
+    binaryWriter.writeString(afterDate);
+    binaryWriter.writeString(beforeDate);
+    binaryWriter.writeString(user);
+    binaryWriter.endMessage();
+  }
+
+  public void readBinary(BinaryReader binaryReader)
+  {
+    binaryReader.beginMessage(MessageTypes.SEARCH_REQUEST);
+    title = binaryReader.readString();
+    artist = binaryReader.readString();
+    afterDate = binaryReader.readString();
+    beforeDate = binaryReader.readString();
+    user = binaryReader.readString();
+    binaryReader.endMessage();
+  }
+
   public String toString()
   {
     return "[title=" + title + ", artist=" + artist + ", afterDate=" + afterDate + ", beforeDate=" + beforeDate + ", user=" + user + "]";
@@ -10,6 +10,8 @@
 package com.riffcrafter.common.services;
 
 import com.riffcrafter.library.services.Response;
+import com.riffcrafter.library.util.BinaryReader;
+import com.riffcrafter.library.util.BinaryWriter;
 import com.riffcrafter.library.util.XmlReader;
 import com.riffcrafter.library.util.XmlWriter;
 
@@ -19,6 +21,7 @@ public class SearchResponse implements Response
   private int status = Status.OKAY;
   private String message;
   private Table table;
+  private RowListener rowListener;
 
   public void writeXml(XmlWriter xmlWriter, int level)
   {
@@ -40,10 +43,47 @@ public class SearchResponse implements Response
     xmlReader.beginTag(Tags.SEARCH_RESPONSE);
     status = xmlReader.readTaggedInt(Tags.STATUS);
     message = xmlReader.readTaggedString(Tags.MESSAGE);
-    table = new Table(xmlReader);
+    if (rowListener == null)
+    {
+      table = new Table(xmlReader);
+    }
+    else
+    {
+      Table.readXml(xmlReader, rowListener);
+    }
     xmlReader.endTag(Tags.SEARCH_RESPONSE);
   }
 
+  public void writeBinary(BinaryWriter binaryWriter)
+  {
+    if (table == null)
+    {
+      table = new Table();
+    }
+
+    binaryWriter.beginMessage(MessageTypes.SEARCH_RESPONSE);
+    binaryWriter.writeInt(status);
+    binaryWriter.writeString(message);
+    table.writeBinary(binaryWriter);
+    binaryWriter.endMessage();
+  }
+
+  public void readBinary(BinaryReader binaryReader)
+  {
+    binaryReader.beginMessage(MessageTypes.SEARCH_RESPONSE);
+    status = binaryReader.readInt();
+    message = binaryReader.readString();
+    if (rowListener == null)
+    {
+      table = new Table(binaryReader);
+    }
+    else
+    {
+      Table.readBinary(binaryReader, rowListener);
+    }
+    binaryReader.endMessage();
+  }
+
   public String getMessage()
   {
     return message;
@@ -74,4 +114,14 @@ public class SearchResponse implements Response
     this.table = table;
   }
 
+  /**
+   * Streams the rows of the Table to the listener as they are read, instead
+   * of building the Table, in which case getTable returns null.
+   */
+
+  public void setRowListener(RowListener rowListener)
+  {
+    this.rowListener = rowListener;
+  }
+
 }
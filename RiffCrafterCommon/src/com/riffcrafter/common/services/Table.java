@@ -9,16 +9,39 @@
 
 package com.riffcrafter.common.services;
 
-import javax.swing.table.DefaultTableModel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
+import javax.swing.table.AbstractTableModel;
+
+import com.riffcrafter.library.util.BinaryReader;
+import com.riffcrafter.library.util.BinaryWriter;
 import com.riffcrafter.library.util.Resources;
 import com.riffcrafter.library.util.XmlReader;
 import com.riffcrafter.library.util.XmlWriter;
 
+/**
+ * A table of search results, stored by column. A column holds its values in a
+ * primitive int array for as long as every value is an Integer, and in an
+ * Object array otherwise. Integers keep their type in both the XML and the
+ * binary form, so a column of them is still stored as ints when a Table is
+ * read, and getInt returns a value without boxing it.
+ *
+ * The static readXml and readBinary methods deliver the rows to a RowListener
+ * as they are decoded, so a caller can display the first rows of a large
+ * result before the rest has arrived (see TableUpdater).
+ */
 
-public class Table extends DefaultTableModel
+public class Table extends AbstractTableModel
 {
+  private static final int INITIAL_CAPACITY = 16;
+  private static final int MAXIMUM_INITIAL_CAPACITY = 65536;
 
+  private ArrayList<String> columnNames = new ArrayList<String>();
+  private ArrayList<Column> columns = new ArrayList<Column>();
+  private int rowCount;
+  private int capacity = INITIAL_CAPACITY;
   private boolean isEditable;
 
   public Table()
@@ -27,7 +50,12 @@ public class Table extends DefaultTableModel
 
   public Table(XmlReader xmlReader)
   {
-    readXml(xmlReader);
+    readXml(xmlReader, new Loader());
+  }
+
+  public Table(BinaryReader binaryReader)
+  {
+    readBinary(binaryReader, new Loader());
   }
 
   public void writeXml(XmlWriter xmlWriter, int level)
@@ -59,32 +87,181 @@ public class Table extends DefaultTableModel
 
   }
 
-  private void readXml(XmlReader xmlReader)
+  public static void readXml(XmlReader xmlReader, RowListener rowListener)
   {
     xmlReader.beginTag(Tags.TABLE);
     int rowCount = xmlReader.readTaggedInt(Tags.ROW_COUNT);
     int columnCount = xmlReader.readTaggedInt(Tags.COLUMN_COUNT);
 
+    String[] columnNames = new String[columnCount];
     for (int column = 0; column < columnCount; column++)
     {
-      String columnName = xmlReader.readTaggedString(Tags.HEADING);
-      columnName = Resources.get("Table.Heading." + columnName, columnName);
-      addColumn(columnName);
+      columnNames[column] = getHeading(xmlReader.readTaggedString(Tags.HEADING));
     }
 
-    setRowCount(rowCount);
+    rowListener.onColumns(columnNames, rowCount);
 
     for (int row = 0; row < rowCount; row++)
     {
+      Object[] values = new Object[columnCount];
       for (int column = 0; column < columnCount; column++)
       {
-        Object value = xmlReader.readTaggedObject(Tags.VALUE);
-        setValueAt(value, row, column);
+        values[column] = xmlReader.readTaggedObject(Tags.VALUE);
       }
+      rowListener.onRow(values);
     }
 
     xmlReader.endTag(Tags.TABLE);
 
+    rowListener.onEnd();
+  }
+
+  public void writeBinary(BinaryWriter binaryWriter)
+  {
+    int rowCount = getRowCount();
+    int columnCount = getColumnCount();
+
+    binaryWriter.writeInt(rowCount);
+    binaryWriter.writeInt(columnCount);
+
+    for (int column = 0; column < columnCount; column++)
+    {
+      binaryWriter.writeString(getColumnName(column));
+    }
+
+    for (int row = 0; row < rowCount; row++)
+    {
+      for (int column = 0; column < columnCount; column++)
+      {
+        binaryWriter.writeObject(getValueAt(row, column));
+      }
+    }
+  }
+
+  public static void readBinary(BinaryReader binaryReader, RowListener rowListener)
+  {
+    int rowCount = binaryReader.readInt();
+    int columnCount = binaryReader.readInt();
+
+    String[] columnNames = new String[columnCount];
+    for (int column = 0; column < columnCount; column++)
+    {
+      columnNames[column] = getHeading(binaryReader.readString());
+    }
+
+    rowListener.onColumns(columnNames, rowCount);
+
+    for (int row = 0; row < rowCount; row++)
+    {
+      Object[] values = new Object[columnCount];
+      for (int column = 0; column < columnCount; column++)
+      {
+        values[column] = binaryReader.readObject();
+      }
+      rowListener.onRow(values);
+    }
+
+    rowListener.onEnd();
+  }
+
+  private static String getHeading(String columnName)
+  {
+    return Resources.get("Table.Heading." + columnName, columnName);
+  }
+
+  public void addColumn(String columnName)
+  {
+    appendColumn(columnName);
+    fireTableStructureChanged();
+  }
+
+  public void setColumnNames(String[] columnNames)
+  {
+    this.columnNames.clear();
+    columns.clear();
+    for (String columnName : columnNames)
+    {
+      appendColumn(columnName);
+    }
+    fireTableStructureChanged();
+  }
+
+  public void addRow(Object[] values)
+  {
+    appendRow(values);
+    fireTableRowsInserted(rowCount - 1, rowCount - 1);
+  }
+
+  /**
+   * Appends the rows and notifies listeners once, rather than once per row.
+   */
+
+  public void addRows(List<Object[]> rows)
+  {
+    if (rows.size() > 0)
+    {
+      int firstRow = rowCount;
+      ensureCapacity(rowCount + rows.size());
+      for (Object[] values : rows)
+      {
+        appendRow(values);
+      }
+      fireTableRowsInserted(firstRow, rowCount - 1);
+    }
+  }
+
+  public void setRowCount(int rowCount)
+  {
+    int oldRowCount = this.rowCount;
+    ensureCapacity(rowCount);
+    for (int column = 0; column < columns.size(); column++)
+    {
+      columns.set(column, columns.get(column).resize(oldRowCount, rowCount));
+    }
+    this.rowCount = rowCount;
+    if (rowCount > oldRowCount)
+    {
+      fireTableRowsInserted(oldRowCount, rowCount - 1);
+    }
+    else if (rowCount < oldRowCount)
+    {
+      fireTableRowsDeleted(rowCount, oldRowCount - 1);
+    }
+  }
+
+  public int getRowCount()
+  {
+    return rowCount;
+  }
+
+  public int getColumnCount()
+  {
+    return columns.size();
+  }
+
+  public String getColumnName(int column)
+  {
+    return columnNames.get(column);
+  }
+
+  public Object getValueAt(int row, int column)
+  {
+    return columns.get(column).get(row);
+  }
+
+  /**
+   * Returns a value, which must be a number, as an int.
+   */
+
+  public int getInt(int row, int column)
+  {
+    return columns.get(column).getInt(row);
+  }
+
+  public void setValueAt(Object value, int row, int column)
+  {
+    setValue(row, column, value);
+    fireTableCellUpdated(row, column);
   }
 
   public void setEditable(boolean isEditable)
@@ -96,4 +273,189 @@ public class Table extends DefaultTableModel
   {
     return isEditable;
   }
+
+  private void appendColumn(String columnName)
+  {
+    columnNames.add(columnName);
+    // Existing rows have a null value in the new column, which an IntColumn cannot hold
+    columns.add(rowCount == 0 ? new IntColumn(capacity) : new ObjectColumn(capacity));
+  }
+
+  private void appendRow(Object[] values)
+  {
+    ensureCapacity(rowCount + 1);
+    int row = rowCount++;
+    int columnCount = columns.size();
+    for (int column = 0; column < columnCount; column++)
+    {
+      setValue(row, column, column < values.length ? values[column] : null);
+    }
+  }
+
+  private void setValue(int row, int column, Object value)
+  {
+    Column oldColumn = columns.get(column);
+    Column newColumn = oldColumn.set(row, value, rowCount);
+    if (newColumn != oldColumn)
+    {
+      columns.set(column, newColumn);
+    }
+  }
+
+  private void ensureCapacity(int minimumCapacity)
+  {
+    if (minimumCapacity > capacity)
+    {
+      capacity = Math.max(minimumCapacity, capacity + (capacity >> 1));
+      for (Column column : columns)
+      {
+        column.setCapacity(capacity);
+      }
+    }
+  }
+
+  private static abstract class Column
+  {
+    protected abstract Object get(int row);
+
+    protected abstract int getInt(int row);
+
+    /**
+     * Sets the value and returns this column, or a replacement column of a
+     * type that can hold the value.
+     */
+
+    protected abstract Column set(int row, Object value, int rowCount);
+
+    protected abstract void setCapacity(int capacity);
+
+    /**
+     * Clears the rows that are removed, or returns a replacement column of a
+     * type that can hold the null values of rows that are added.
+     */
+
+    protected abstract Column resize(int oldRowCount, int newRowCount);
+  }
+
+  private static class IntColumn extends Column
+  {
+    private int[] values;
+
+    private IntColumn(int capacity)
+    {
+      values = new int[capacity];
+    }
+
+    protected Object get(int row)
+    {
+      return values[row];
+    }
+
+    protected int getInt(int row)
+    {
+      return values[row];
+    }
+
+    protected Column set(int row, Object value, int rowCount)
+    {
+      if (value instanceof Integer)
+      {
+        values[row] = (Integer)value;
+        return this;
+      }
+      ObjectColumn objectColumn = new ObjectColumn(values.length);
+      for (int i = 0; i < rowCount; i++)
+      {
+        objectColumn.values[i] = values[i];
+      }
+      return objectColumn.set(row, value, rowCount);
+    }
+
+    protected void setCapacity(int capacity)
+    {
+      values = Arrays.copyOf(values, capacity);
+    }
+
+    protected Column resize(int oldRowCount, int newRowCount)
+    {
+      if (newRowCount <= oldRowCount)
+      {
+        return this;
+      }
+      ObjectColumn objectColumn = new ObjectColumn(values.length);
+      for (int i = 0; i < oldRowCount; i++)
+      {
+        objectColumn.values[i] = values[i];
+      }
+      return objectColumn;
+    }
+  }
+
+  private static class ObjectColumn extends Column
+  {
+    private Object[] values;
+
+    private ObjectColumn(int capacity)
+    {
+      values = new Object[capacity];
+    }
+
+    protected Object get(int row)
+    {
+      return values[row];
+    }
+
+    protected int getInt(int row)
+    {
+      return ((Number)values[row]).intValue();
+    }
+
+    protected Column set(int row, Object value, int rowCount)
+    {
+      values[row] = value;
+      return this;
+    }
+
+    protected void setCapacity(int capacity)
+    {
+      values = Arrays.copyOf(values, capacity);
+    }
+
+    protected Column resize(int oldRowCount, int newRowCount)
+    {
+      if (newRowCount < oldRowCount)
+      {
+        Arrays.fill(values, newRowCount, oldRowCount, null);
+      }
+      return this;
+    }
+  }
+
+  /**
+   * Loads a Table as it is being read, before it has any listeners, so it does
+   * not fire any events.
+   */
+
+  private class Loader implements RowListener
+  {
+    public void onColumns(String[] columnNames, int rowCount)
+    {
+      // The row count comes from the other end, so it only sizes the initial allocation
+      ensureCapacity(Math.min(rowCount, MAXIMUM_INITIAL_CAPACITY));
+      for (String columnName : columnNames)
+      {
+        appendColumn(columnName);
+      }
+    }
+
+    public void onRow(Object[] values)
+    {
+      appendRow(values);
+    }
+
+    public void onEnd()
+    {
+    }
+  }
+
 }
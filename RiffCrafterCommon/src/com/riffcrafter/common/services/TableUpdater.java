@@ -0,0 +1,81 @@
+// Copyright 2007 Anthony F. Stuart - All rights reserved.
+//
+// This program and the accompanying materials are made available
+// under the terms of the GNU General Public License. For other license
+// options please contact the copyright owner.
+//
+// This program is made available on an "as is" basis, without
+// warranties or conditions of any kind, either express or implied.
+
+package com.riffcrafter.common.services;
+
+import java.awt.EventQueue;
+import java.util.ArrayList;
+
+/**
+ * Adds rows to a Table that is displayed in the user interface as they are
+ * decoded on another thread. Rows are handed to the event dispatch thread in
+ * pages, starting with a small one so that the first rows appear quickly, and
+ * doubling up to a maximum so that a large result does not flood the event
+ * queue.
+ */
+
+public class TableUpdater implements RowListener
+{
+  private static final int MAXIMUM_PAGE_SIZE = 4096;
+
+  private Table table;
+  private int pageSize;
+  private ArrayList<Object[]> page;
+
+  public TableUpdater(Table table, int firstPageSize)
+  {
+    this.table = table;
+    this.pageSize = firstPageSize;
+    page = new ArrayList<Object[]>(pageSize);
+  }
+
+  public void onColumns(final String[] columnNames, int rowCount)
+  {
+    EventQueue.invokeLater(new Runnable()
+    {
+      public void run()
+      {
+        table.setRowCount(0);
+        table.setColumnNames(columnNames);
+      }
+    });
+  }
+
+  public void onRow(Object[] values)
+  {
+    page.add(values);
+    if (page.size() == pageSize)
+    {
+      flush();
+      pageSize = Math.min(pageSize * 2, MAXIMUM_PAGE_SIZE);
+    }
+  }
+
+  public void onEnd()
+  {
+    flush();
+  }
+
+  private void flush()
+  {
+    if (page.size() > 0)
+    {
+      final ArrayList<Object[]> rows = page;
+      page = new ArrayList<Object[]>(pageSize);
+      EventQueue.invokeLater(new Runnable()
+      {
+        public void run()
+        {
+          table.addRows(rows);
+        }
+      });
+    }
+  }
+
+}
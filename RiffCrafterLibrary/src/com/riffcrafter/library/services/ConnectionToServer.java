@@ -9,63 +9,382 @@
 
 package com.riffcrafter.library.services;
 
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
+import com.riffcrafter.library.util.BinaryReader;
+import com.riffcrafter.library.util.BinaryWriter;
 import com.riffcrafter.library.util.XmlReader;
 import com.riffcrafter.library.util.XmlWriter;
 
+/**
+ * Sends Requests to the server and reads its Responses.
+ *
+ * Each response is read to the end of the stream and the stream is closed
+ * rather than disconnected, so that HttpURLConnection can reuse the
+ * underlying persistent (keep-alive) connection for the next request. The
+ * client always accepts a gzip compressed response, and compresses its
+ * requests if compression is enabled, which requires a server that accepts
+ * a gzip Content-Encoding.
+ *
+ * Requests can be submitted to run concurrently on a small pool of threads.
+ * Every invocation records its latency and the number of bytes sent and
+ * received, and the connection keeps running totals.
+ */
 
 public class ConnectionToServer
 {
+  private static final int DEFAULT_MAXIMUM_CONCURRENT_REQUESTS = 4;
+  private static final String GZIP = "gzip";
+
   private URL serverUrl;
+  private String contentType;
+  private volatile boolean isCompressed;
+  private int maximumConcurrentRequests = DEFAULT_MAXIMUM_CONCURRENT_REQUESTS;
+  private ExecutorService executorService;
+
+  private AtomicLong invocationCount = new AtomicLong();
+  private AtomicLong totalLatencyNanos = new AtomicLong();
+  private AtomicLong totalBytesSent = new AtomicLong();
+  private AtomicLong totalBytesReceived = new AtomicLong();
 
   public ConnectionToServer(URL serverUrl)
+  {
+    this(serverUrl, ContentTypes.XML);
+  }
+
+  /**
+   * Creates a connection that sends requests in the encoding given by the
+   * content type (see ContentTypes). The server replies in the same encoding,
+   * or in XML if it does not support the one requested, so responses are
+   * decoded according to the content type of the reply.
+   */
+
+  public ConnectionToServer(URL serverUrl, String contentType)
   {
     this.serverUrl = serverUrl;
+    this.contentType = contentType;
+  }
+
+  public void setCompressed(boolean isCompressed)
+  {
+    this.isCompressed = isCompressed;
+  }
+
+  public synchronized void setMaximumConcurrentRequests(int maximumConcurrentRequests)
+  {
+    if (executorService != null)
+    {
+      throw new IllegalStateException("Requests have already been submitted");
+    }
+    this.maximumConcurrentRequests = maximumConcurrentRequests;
   }
 
   public void invoke(Request request, Response response)
   {
-    OutputStream outputStream = null;
-    InputStream inputStream = null;
+    execute(request, response);
+  }
+
+  /**
+   * Sends the request, reads the reply into the response and returns the
+   * statistics for the invocation.
+   */
+
+  public Invocation execute(Request request, Response response)
+  {
+    long startTime = System.nanoTime();
+    HttpURLConnection connection = null;
+    CountingOutputStream countingOutputStream = null;
+    CountingInputStream countingInputStream = null;
 
     try
     {
-      HttpURLConnection connection = (HttpURLConnection)serverUrl.openConnection();
+      connection = (HttpURLConnection)serverUrl.openConnection();
       connection.setRequestMethod("POST");
       connection.setDoOutput(true);
-      outputStream = connection.getOutputStream();
-      XmlWriter xmlWriter = new XmlWriter(outputStream);
-      request.writeXml(xmlWriter, 0);
-      inputStream = connection.getInputStream();
-      XmlReader xmlReader = new XmlReader(inputStream);
-      response.readXml(xmlReader);
+      connection.setRequestProperty("Content-Type", contentType);
+      connection.setRequestProperty("Accept", contentType);
+      connection.setRequestProperty("Accept-Encoding", GZIP);
+      if (isCompressed)
+      {
+        connection.setRequestProperty("Content-Encoding", GZIP);
+      }
+
+      countingOutputStream = new CountingOutputStream(connection.getOutputStream());
+      OutputStream outputStream = isCompressed ? new GZIPOutputStream(countingOutputStream) : countingOutputStream;
+      if (isBinary(contentType))
+      {
+        BinaryWriter binaryWriter = new BinaryWriter(outputStream);
+        request.writeBinary(binaryWriter);
+      }
+      else
+      {
+        XmlWriter xmlWriter = new XmlWriter(outputStream, true);
+        request.writeXml(xmlWriter, 0);
+      }
+      outputStream.close();
+
+      countingInputStream = new CountingInputStream(connection.getInputStream());
+      InputStream inputStream = GZIP.equals(connection.getContentEncoding()) ? new GZIPInputStream(countingInputStream) : countingInputStream;
+      try
+      {
+        if (isBinary(connection.getContentType()))
+        {
+          BinaryReader binaryReader = new BinaryReader(inputStream);
+          response.readBinary(binaryReader);
+        }
+        else
+        {
+          XmlReader xmlReader = new XmlReader(inputStream);
+          response.readXml(xmlReader);
+        }
+        drain(inputStream);
+      }
+      finally
+      {
+        inputStream.close();
+      }
     }
     catch (IOException e)
     {
+      releaseErrorStream(connection);
       throw new RuntimeException(e);
     }
-    finally
+    catch (RuntimeException e)
     {
-      try
+      releaseErrorStream(connection);
+      throw e;
+    }
+
+    long latencyNanos = System.nanoTime() - startTime;
+    Invocation invocation = new Invocation(latencyNanos, countingOutputStream.getCount(), countingInputStream.getCount());
+    invocationCount.incrementAndGet();
+    totalLatencyNanos.addAndGet(latencyNanos);
+    totalBytesSent.addAndGet(invocation.getBytesSent());
+    totalBytesReceived.addAndGet(invocation.getBytesReceived());
+    return invocation;
+  }
+
+  /**
+   * Submits the request to be sent on another thread, so that several
+   * requests can be in progress at once. The response is complete when the
+   * Future is done.
+   */
+
+  public Future<Invocation> submit(final Request request, final Response response)
+  {
+    return getExecutorService().submit(new Callable<Invocation>()
+    {
+      public Invocation call()
+      {
+        return execute(request, response);
+      }
+    });
+  }
+
+  public synchronized void shutdown()
+  {
+    if (executorService != null)
+    {
+      executorService.shutdown();
+      executorService = null;
+    }
+  }
+
+  public long getInvocationCount()
+  {
+    return invocationCount.get();
+  }
+
+  public long getTotalLatencyMillis()
+  {
+    return totalLatencyNanos.get() / 1000000;
+  }
+
+  public long getTotalBytesSent()
+  {
+    return totalBytesSent.get();
+  }
+
+  public long getTotalBytesReceived()
+  {
+    return totalBytesReceived.get();
+  }
+
+  private synchronized ExecutorService getExecutorService()
+  {
+    if (executorService == null)
+    {
+      executorService = Executors.newFixedThreadPool(maximumConcurrentRequests, new ThreadFactory()
+      {
+        public Thread newThread(Runnable runnable)
+        {
+          Thread thread = new Thread(runnable, "ConnectionToServer");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return executorService;
+  }
+
+  private static void drain(InputStream inputStream) throws IOException
+  {
+    byte[] buffer = new byte[1024];
+    while (inputStream.read(buffer) != -1)
+    {
+    }
+  }
+
+  /**
+   * Reads and closes the error stream after a failure, which also allows the
+   * connection to be reused.
+   */
+
+  private static void releaseErrorStream(HttpURLConnection connection)
+  {
+    if (connection != null)
+    {
+      InputStream errorStream = connection.getErrorStream();
+      if (errorStream != null)
       {
-        if (outputStream != null)
+        try
         {
-          outputStream.close();
+          drain(errorStream);
+          errorStream.close();
         }
-        if (inputStream != null)
+        catch (IOException e)
         {
-          inputStream.close();
         }
       }
-      catch (Exception e)
+    }
+  }
+
+  private static boolean isBinary(String contentType)
+  {
+    return contentType != null && contentType.startsWith(ContentTypes.BINARY);
+  }
+
+  public static class Invocation
+  {
+    private long latencyNanos;
+    private long bytesSent;
+    private long bytesReceived;
+
+    private Invocation(long latencyNanos, long bytesSent, long bytesReceived)
+    {
+      this.latencyNanos = latencyNanos;
+      this.bytesSent = bytesSent;
+      this.bytesReceived = bytesReceived;
+    }
+
+    public long getLatencyMillis()
+    {
+      return latencyNanos / 1000000;
+    }
+
+    public long getLatencyNanos()
+    {
+      return latencyNanos;
+    }
+
+    /**
+     * Returns the number of bytes in the request body, after compression.
+     */
+
+    public long getBytesSent()
+    {
+      return bytesSent;
+    }
+
+    /**
+     * Returns the number of bytes in the response body, before decompression.
+     */
+
+    public long getBytesReceived()
+    {
+      return bytesReceived;
+    }
+
+    public String toString()
+    {
+      return "[latencyMillis=" + getLatencyMillis() + ", bytesSent=" + bytesSent + ", bytesReceived=" + bytesReceived + "]";
+    }
+  }
+
+  private static class CountingOutputStream extends FilterOutputStream
+  {
+    private long count;
+
+    private CountingOutputStream(OutputStream outputStream)
+    {
+      super(outputStream);
+    }
+
+    public void write(int b) throws IOException
+    {
+      out.write(b);
+      count++;
+    }
+
+    public void write(byte[] bytes, int offset, int length) throws IOException
+    {
+      out.write(bytes, offset, length);
+      count += length;
+    }
+
+    private long getCount()
+    {
+      return count;
+    }
+  }
+
+  private static class CountingInputStream extends FilterInputStream
+  {
+    private long count;
+
+    private CountingInputStream(InputStream inputStream)
+    {
+      super(inputStream);
+    }
+
+    public int read() throws IOException
+    {
+      int b = in.read();
+      if (b != -1)
       {
+        count++;
+      }
+      return b;
+    }
 
+    public int read(byte[] bytes, int offset, int length) throws IOException
+    {
+      int readCount = in.read(bytes, offset, length);
+      if (readCount > 0)
+      {
+        count += readCount;
       }
+      return readCount;
+    }
+
+    private long getCount()
+    {
+      return count;
     }
   }
+
 }
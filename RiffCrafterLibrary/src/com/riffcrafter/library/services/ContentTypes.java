@@ -0,0 +1,18 @@
+// Copyright 2007 Anthony F. Stuart - All rights reserved.
+//
+// This program and the accompanying materials are made available
+// under the terms of the GNU General Public License. For other license
+// options please contact the copyright owner.
+//
+// This program is made available on an "as is" basis, without
+// warranties or conditions of any kind, either express or implied.
+
+package com.riffcrafter.library.services;
+
+public interface ContentTypes
+{
+
+  public static final String XML = "text/xml";
+  public static final String BINARY = "application/x-riffcrafter-binary";
+
+}
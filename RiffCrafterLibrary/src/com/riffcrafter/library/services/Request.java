@@ -9,11 +9,13 @@
 
 package com.riffcrafter.library.services;
 
+import com.riffcrafter.library.util.BinaryWriter;
 import com.riffcrafter.library.util.XmlWriter;
 
 public interface Request
 {
 
   void writeXml(XmlWriter xmlWriter, int level);
+  void writeBinary(BinaryWriter binaryWriter);
 
 }
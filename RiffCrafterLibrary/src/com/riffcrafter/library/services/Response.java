@@ -9,6 +9,8 @@
 
 package com.riffcrafter.library.services;
 
+import com.riffcrafter.library.util.BinaryReader;
+import com.riffcrafter.library.util.BinaryWriter;
 import com.riffcrafter.library.util.XmlReader;
 import com.riffcrafter.library.util.XmlWriter;
 
@@ -16,4 +18,6 @@ public interface Response
 {
   void readXml(XmlReader xmlReader);
   void writeXml(XmlWriter xmlWriter, int level);
+  void readBinary(BinaryReader binaryReader);
+  void writeBinary(BinaryWriter binaryWriter);
 }
@@ -0,0 +1,143 @@
+// Copyright 2007 Anthony F. Stuart - All rights reserved.
+//
+// This program and the accompanying materials are made available
+// under the terms of the GNU General Public License. For other license
+// options please contact the copyright owner.
+//
+// This program is made available on an "as is" basis, without
+// warranties or conditions of any kind, either express or implied.
+
+package com.riffcrafter.library.util;
+
+/**
+ * Encodes and decodes standard (RFC 3548) Base64 between byte arrays and
+ * Strings in a single pass over pre-sized arrays.
+ *
+ * The encoder does not break lines. The decoder ignores white space, so it
+ * reads the line broken output of the thirdparty Base64 streams as well, and
+ * stops at the first padding character.
+ */
+
+public class Base64Codec
+{
+  private static final char[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+  private static final char PAD = '=';
+
+  private static final int WHITE_SPACE = -1;
+  private static final int INVALID = -2;
+  private static final int[] VALUES = new int[128];
+
+  static
+  {
+    for (int i = 0; i < VALUES.length; i++)
+    {
+      VALUES[i] = Character.isWhitespace((char)i) ? WHITE_SPACE : INVALID;
+    }
+    for (int i = 0; i < ALPHABET.length; i++)
+    {
+      VALUES[ALPHABET[i]] = i;
+    }
+  }
+
+  public static String encode(byte[] bytes)
+  {
+    return encode(bytes, 0, bytes.length);
+  }
+
+  public static String encode(byte[] bytes, int offset, int length)
+  {
+    char[] chars = new char[((length + 2) / 3) * 4];
+    int end = offset + length;
+    int fullEnd = offset + (length / 3) * 3;
+    int charIndex = 0;
+
+    for (int i = offset; i < fullEnd; i += 3)
+    {
+      int triple = ((bytes[i] & 0xff) << 16) | ((bytes[i + 1] & 0xff) << 8) | (bytes[i + 2] & 0xff);
+      chars[charIndex++] = ALPHABET[triple >>> 18];
+      chars[charIndex++] = ALPHABET[(triple >>> 12) & 0x3f];
+      chars[charIndex++] = ALPHABET[(triple >>> 6) & 0x3f];
+      chars[charIndex++] = ALPHABET[triple & 0x3f];
+    }
+
+    int remainder = end - fullEnd;
+    if (remainder > 0)
+    {
+      int triple = (bytes[fullEnd] & 0xff) << 16;
+      if (remainder == 2)
+      {
+        triple |= (bytes[fullEnd + 1] & 0xff) << 8;
+      }
+      chars[charIndex++] = ALPHABET[triple >>> 18];
+      chars[charIndex++] = ALPHABET[(triple >>> 12) & 0x3f];
+      chars[charIndex++] = remainder == 2 ? ALPHABET[(triple >>> 6) & 0x3f] : PAD;
+      chars[charIndex++] = PAD;
+    }
+
+    return new String(chars);
+  }
+
+  /**
+   * Decodes the Base64 text, or throws an IllegalArgumentException if it
+   * contains a character that is not Base64 or white space.
+   */
+
+  public static byte[] decode(String base64)
+  {
+    int length = base64.length();
+    byte[] bytes = new byte[(length / 4) * 3 + 3];
+    int byteIndex = 0;
+    int quad = 0;
+    int quadLength = 0;
+
+    for (int i = 0; i < length; i++)
+    {
+      char c = base64.charAt(i);
+      if (c == PAD)
+      {
+        break;
+      }
+      int value = c < VALUES.length ? VALUES[c] : INVALID;
+      if (value < 0)
+      {
+        if (value == WHITE_SPACE)
+        {
+          continue;
+        }
+        throw new IllegalArgumentException("Invalid Base64 character " + (int)c + " at " + i);
+      }
+      quad = (quad << 6) | value;
+      if (++quadLength == 4)
+      {
+        bytes[byteIndex++] = (byte)(quad >>> 16);
+        bytes[byteIndex++] = (byte)(quad >>> 8);
+        bytes[byteIndex++] = (byte)quad;
+        quad = 0;
+        quadLength = 0;
+      }
+    }
+
+    if (quadLength == 1)
+    {
+      throw new IllegalArgumentException("Truncated Base64 input");
+    }
+    if (quadLength == 2)
+    {
+      bytes[byteIndex++] = (byte)(quad >>> 4);
+    }
+    else if (quadLength == 3)
+    {
+      bytes[byteIndex++] = (byte)(quad >>> 10);
+      bytes[byteIndex++] = (byte)(quad >>> 2);
+    }
+
+    if (byteIndex == bytes.length)
+    {
+      return bytes;
+    }
+    byte[] result = new byte[byteIndex];
+    System.arraycopy(bytes, 0, result, 0, byteIndex);
+    return result;
+  }
+
+}
@@ -0,0 +1,261 @@
+// Copyright 2007 Anthony F. Stuart - All rights reserved.
+//
+// This program and the accompanying materials are made available
+// under the terms of the GNU General Public License. For other license
+// options please contact the copyright owner.
+//
+// This program is made available on an "as is" basis, without
+// warranties or conditions of any kind, either express or implied.
+
+package com.riffcrafter.library.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Reads messages written by BinaryWriter.
+ */
+
+public class BinaryReader
+{
+  private static final int BUFFER_SIZE = 8192;
+  private static final int MAXIMUM_LENGTH = 64 * 1024 * 1024;
+  private static final Charset CHARSET = Charset.forName(BinaryWriter.ENCODING);
+
+  private InputStream inputStream;
+  private byte[] buffer = new byte[BUFFER_SIZE];
+  private int position;
+  private int limit;
+
+  public BinaryReader(InputStream inputStream)
+  {
+    this.inputStream = inputStream;
+  }
+
+  public void beginMessage(int expectedMessageType)
+  {
+    int messageType = readMessageType();
+    if (messageType != expectedMessageType)
+    {
+      throw unexpectedInputException("message type " + expectedMessageType, Integer.toString(messageType));
+    }
+  }
+
+  public void endMessage()
+  {
+  }
+
+  /**
+   * Returns the type of the next message without consuming it.
+   */
+
+  public int peekMessageType()
+  {
+    // The magic number and the longest message type, unless the input ends first
+    if (limit - position < 4 + 5)
+    {
+      fill(4 + 5);
+    }
+    int savedPosition = position;
+    int messageType = readMessageType();
+    position = savedPosition;
+    return messageType;
+  }
+
+  private int readMessageType()
+  {
+    require(4);
+    int magic = ((buffer[position] & 0xff) << 24) | ((buffer[position + 1] & 0xff) << 16) | ((buffer[position + 2] & 0xff) << 8) | (buffer[position + 3] & 0xff);
+    if (magic != BinaryWriter.MAGIC)
+    {
+      throw unexpectedInputException("binary message", Integer.toHexString(magic));
+    }
+    position += 4;
+    return readInt();
+  }
+
+  public int readInt()
+  {
+    long value = readLong();
+    if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE)
+    {
+      throw unexpectedInputException("int", Long.toString(value));
+    }
+    return (int)value;
+  }
+
+  public long readLong()
+  {
+    long zigZagValue = 0;
+    int shift = 0;
+    int b;
+    do
+    {
+      if (shift > 63)
+      {
+        throw unexpectedInputException("variable length value", "too many bytes");
+      }
+      if (position == limit)
+      {
+        require(1);
+      }
+      b = buffer[position++];
+      zigZagValue |= (long)(b & 0x7f) << shift;
+      shift += 7;
+    }
+    while ((b & 0x80) != 0);
+    return (zigZagValue >>> 1) ^ -(zigZagValue & 1);
+  }
+
+  public boolean readBoolean()
+  {
+    require(1);
+    return buffer[position++] != 0;
+  }
+
+  public String readString()
+  {
+    int length = readLength();
+    if (length == -1)
+    {
+      return null;
+    }
+    if (length <= buffer.length)
+    {
+      // Decode in place, without copying the bytes into an array first
+      require(length);
+      String value = new String(buffer, position, length, CHARSET);
+      position += length;
+      return value;
+    }
+    return new String(readBytes(length), CHARSET);
+  }
+
+  public byte[] readBytes()
+  {
+    int length = readLength();
+    if (length == -1)
+    {
+      return null;
+    }
+    return readBytes(length);
+  }
+
+  private byte[] readBytes(int length)
+  {
+    byte[] bytes = new byte[length];
+    int count = Math.min(length, limit - position);
+    System.arraycopy(buffer, position, bytes, 0, count);
+    position += count;
+    try
+    {
+      while (count < length)
+      {
+        int readCount = inputStream.read(bytes, count, length - count);
+        if (readCount == -1)
+        {
+          throw new EOFException();
+        }
+        count += readCount;
+      }
+    }
+    catch (IOException e)
+    {
+      throw new RuntimeException(e);
+    }
+    return bytes;
+  }
+
+  private int readLength()
+  {
+    int length = readInt();
+    if (length < -1 || length > MAXIMUM_LENGTH)
+    {
+      throw unexpectedInputException("length", Integer.toString(length));
+    }
+    return length;
+  }
+
+  public Object readObject()
+  {
+    int valueType = readInt();
+    switch (valueType)
+    {
+      case BinaryWriter.NULL_VALUE:
+        return null;
+      case BinaryWriter.INT_VALUE:
+        return readInt();
+      case BinaryWriter.LONG_VALUE:
+        return readLong();
+      case BinaryWriter.BOOLEAN_VALUE:
+        return readBoolean();
+      case BinaryWriter.STRING_VALUE:
+        return readString();
+      default:
+        throw unexpectedInputException("value type", Integer.toString(valueType));
+    }
+  }
+
+  /**
+   * Ensures that at least count bytes are available in the buffer. Count must
+   * not exceed the size of the buffer.
+   */
+
+  private void require(int count)
+  {
+    if (limit - position < count && !fill(count))
+    {
+      throw new RuntimeException(new EOFException());
+    }
+  }
+
+  /**
+   * Moves the unread bytes to the start of the buffer and reads until at least
+   * count bytes are available. Returns false if the end of input is reached
+   * first.
+   */
+
+  private boolean fill(int count)
+  {
+    System.arraycopy(buffer, position, buffer, 0, limit - position);
+    limit -= position;
+    position = 0;
+    try
+    {
+      while (limit < count)
+      {
+        int readCount = inputStream.read(buffer, limit, buffer.length - limit);
+        if (readCount == -1)
+        {
+          return false;
+        }
+        limit += readCount;
+      }
+      return true;
+    }
+    catch (IOException e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public void close()
+  {
+    try
+    {
+      inputStream.close();
+    }
+    catch (IOException e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public RuntimeException unexpectedInputException(String expected, String actual)
+  {
+    return new RuntimeException("Expected " + expected + ", got " + actual);
+  }
+
+}
@@ -0,0 +1,237 @@
+// Copyright 2007 Anthony F. Stuart - All rights reserved.
+//
+// This program and the accompanying materials are made available
+// under the terms of the GNU General Public License. For other license
+// options please contact the copyright owner.
+//
+// This program is made available on an "as is" basis, without
+// warranties or conditions of any kind, either express or implied.
+
+package com.riffcrafter.library.util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes the binary equivalent of the tagged XML written by XmlWriter. A
+ * message starts with its type, followed by its fields in a fixed order.
+ * Integers are written as zig-zag variable length values, and Strings and
+ * byte arrays are prefixed with their length (-1 for null), so a reader never
+ * has to scan for a delimiter or decode an entity.
+ */
+
+public class BinaryWriter
+{
+  public static final int MAGIC = 0x52434231; // RCB1
+  public static final String ENCODING = "UTF-8";
+
+  public static final int NULL_VALUE = 0;
+  public static final int INT_VALUE = 1;
+  public static final int LONG_VALUE = 2;
+  public static final int BOOLEAN_VALUE = 3;
+  public static final int STRING_VALUE = 4;
+
+  private OutputStream underlyingOutputStream;
+  private DataOutputStream outputStream;
+
+  public BinaryWriter(OutputStream outputStream)
+  {
+    this.underlyingOutputStream = outputStream;
+    this.outputStream = new DataOutputStream(new BufferedOutputStream(outputStream));
+  }
+
+  public void beginMessage(int messageType)
+  {
+    try
+    {
+      outputStream.writeInt(MAGIC);
+    }
+    catch (IOException e)
+    {
+      throw new RuntimeException(e);
+    }
+    writeInt(messageType);
+  }
+
+  /**
+   * Ends a message and writes it to the underlying stream.
+   */
+
+  public void endMessage()
+  {
+    flush();
+  }
+
+  public void writeInt(int value)
+  {
+    writeLong(value);
+  }
+
+  public void writeLong(long value)
+  {
+    try
+    {
+      long zigZagValue = (value << 1) ^ (value >> 63);
+      while ((zigZagValue & ~0x7fL) != 0)
+      {
+        outputStream.writeByte((int)((zigZagValue & 0x7f) | 0x80));
+        zigZagValue >>>= 7;
+      }
+      outputStream.writeByte((int)zigZagValue);
+    }
+    catch (IOException e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public void writeBoolean(boolean value)
+  {
+    try
+    {
+      outputStream.writeBoolean(value);
+    }
+    catch (IOException e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public void writeString(String value)
+  {
+    try
+    {
+      writeBytes(value == null ? null : value.getBytes(ENCODING));
+    }
+    catch (UnsupportedEncodingException e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public void writeBytes(byte[] value)
+  {
+    if (value == null)
+    {
+      writeInt(-1);
+    }
+    else
+    {
+      writeInt(value.length);
+      try
+      {
+        outputStream.write(value);
+      }
+      catch (IOException e)
+      {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  /**
+   * Writes the contents of the file in the same format as writeBytes. The
+   * file is transferred by its FileChannel straight to the underlying stream,
+   * without being read into memory.
+   */
+
+  public void writeFile(File file)
+  {
+    try
+    {
+      FileInputStream fileInputStream = new FileInputStream(file);
+      try
+      {
+        FileChannel fileChannel = fileInputStream.getChannel();
+        long size = fileChannel.size();
+        if (size > Integer.MAX_VALUE)
+        {
+          throw new IOException("File too large: " + file);
+        }
+        writeInt((int)size);
+        outputStream.flush();
+        WritableByteChannel outputChannel = Channels.newChannel(underlyingOutputStream);
+        long position = 0;
+        while (position < size)
+        {
+          position += fileChannel.transferTo(position, size - position, outputChannel);
+        }
+      }
+      finally
+      {
+        fileInputStream.close();
+      }
+    }
+    catch (IOException e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Writes an Integer, Long, Boolean or String (or the String value of any
+   * other object) preceded by its type, so that the reader gets back an
+   * object of the same type.
+   */
+
+  public void writeObject(Object value)
+  {
+    if (value == null)
+    {
+      writeInt(NULL_VALUE);
+    }
+    else if (value instanceof Integer)
+    {
+      writeInt(INT_VALUE);
+      writeInt((Integer)value);
+    }
+    else if (value instanceof Long)
+    {
+      writeInt(LONG_VALUE);
+      writeLong((Long)value);
+    }
+    else if (value instanceof Boolean)
+    {
+      writeInt(BOOLEAN_VALUE);
+      writeBoolean((Boolean)value);
+    }
+    else
+    {
+      writeInt(STRING_VALUE);
+      writeString(value.toString());
+    }
+  }
+
+  public void flush()
+  {
+    try
+    {
+      outputStream.flush();
+    }
+    catch (IOException e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public void close()
+  {
+    try
+    {
+      outputStream.close();
+    }
+    catch (IOException e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+
+}
@@ -12,7 +12,7 @@ package com.riffcrafter.library.util;
 public class Hex
 {
   private static char lookup[] = {
-      '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'd', 'd', 'e', 'f'
+      '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'
   };
 
   public static int lookup(char input)
@@ -0,0 +1,175 @@
+// Copyright 2007 Anthony F. Stuart - All rights reserved.
+//
+// This program and the accompanying materials are made available
+// under the terms of the GNU General Public License. For other license
+// options please contact the copyright owner.
+//
+// This program is made available on an "as is" basis, without
+// warranties or conditions of any kind, either express or implied.
+
+package com.riffcrafter.library.util;
+
+import java.util.Arrays;
+
+/**
+ * Assigns a sequential identity (starting at one) to each distinct long key
+ * and counts the number of times each key has been found.
+ *
+ * This is an open addressing (linear probe) hash table that keeps the key,
+ * identity and frequency for a slot in parallel primitive arrays, so finding
+ * a key does not box or allocate. An identity of zero marks an empty slot.
+ */
+
+public class LongIdentityMap
+{
+  private static final int DEFAULT_CAPACITY = 64;
+  private static final int MAXIMUM_LOAD_PERCENT = 50;
+
+  private long[] keys;
+  private int[] identities;
+  private int[] frequencies;
+  private int[] slotsByIdentity;
+
+  private int count;
+  private int shift;
+  private int mask;
+  private int threshold;
+
+  public LongIdentityMap()
+  {
+    this(DEFAULT_CAPACITY);
+  }
+
+  public LongIdentityMap(int expectedSize)
+  {
+    int capacity = DEFAULT_CAPACITY;
+    while (capacity * MAXIMUM_LOAD_PERCENT / 100 < expectedSize)
+    {
+      capacity <<= 1;
+    }
+    allocate(capacity);
+    slotsByIdentity = new int[threshold + 1];
+  }
+
+  /**
+   * Returns the identity for the key, assigning the next identity if the key
+   * has not been seen before, and increments the frequency of the key.
+   */
+
+  public int find(long key)
+  {
+    int slot = getSlot(key);
+    int identity = identities[slot];
+    if (identity == 0)
+    {
+      if (count == threshold)
+      {
+        rehash(keys.length << 1);
+        slot = getSlot(key);
+      }
+      identity = ++count;
+      keys[slot] = key;
+      identities[slot] = identity;
+      frequencies[slot] = 1;
+      if (identity >= slotsByIdentity.length)
+      {
+        slotsByIdentity = Arrays.copyOf(slotsByIdentity, slotsByIdentity.length << 1);
+      }
+      slotsByIdentity[identity] = slot;
+    }
+    else
+    {
+      frequencies[slot]++;
+    }
+    return identity;
+  }
+
+  /**
+   * Returns the identity for the key, or zero if the key has not been found.
+   * Unlike find, this does not change the frequency.
+   */
+
+  public int get(long key)
+  {
+    return identities[getSlot(key)];
+  }
+
+  public int getFrequency(int identity)
+  {
+    if (identity <= 0 || identity > count)
+    {
+      return 0;
+    }
+    return frequencies[slotsByIdentity[identity]];
+  }
+
+  public long getKey(int identity)
+  {
+    return keys[slotsByIdentity[identity]];
+  }
+
+  public void setFrequency(int identity, int frequency)
+  {
+    frequencies[slotsByIdentity[identity]] = frequency;
+  }
+
+  public int size()
+  {
+    return count;
+  }
+
+  public void clear()
+  {
+    Arrays.fill(identities, 0);
+    count = 0;
+  }
+
+  private int getSlot(long key)
+  {
+    int slot = hash(key);
+    while (identities[slot] != 0 && keys[slot] != key)
+    {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private int hash(long key)
+  {
+    // Fibonacci hashing spreads the sequential keys built by the Analyzer
+    return (int)((key * 0x9E3779B97F4A7C15L) >>> shift);
+  }
+
+  private void allocate(int capacity)
+  {
+    keys = new long[capacity];
+    identities = new int[capacity];
+    frequencies = new int[capacity];
+    mask = capacity - 1;
+    shift = 64 - Integer.numberOfTrailingZeros(capacity);
+    threshold = (capacity * MAXIMUM_LOAD_PERCENT) / 100;
+  }
+
+  private void rehash(int capacity)
+  {
+    long[] oldKeys = keys;
+    int[] oldIdentities = identities;
+    int[] oldFrequencies = frequencies;
+
+    allocate(capacity);
+
+    for (int i = 0; i < oldKeys.length; i++)
+    {
+      int identity = oldIdentities[i];
+      if (identity != 0)
+      {
+        int slot = getSlot(oldKeys[i]);
+        keys[slot] = oldKeys[i];
+        identities[slot] = identity;
+        frequencies[slot] = oldFrequencies[i];
+        slotsByIdentity[identity] = slot;
+      }
+    }
+  }
+
+}
@@ -35,6 +35,21 @@ public class Settings
     return Preferences.userRoot().node(rootPathName);
   }
   
+  /**
+   * Returns the named subdirectory of the user's settings directory, creating
+   * it if necessary. This is for data that does not belong in preferences,
+   * such as caches.
+   */
+
+  public static File getDirectory(String name)
+  {
+    String settingsDirectoryName = Resources.get("Application.Settings.Directory", ".riffcrafter");
+    File settingsDirectory = new File(System.getProperty("user.home"), settingsDirectoryName);
+    File directory = new File(settingsDirectory, name);
+    directory.mkdirs();
+    return directory;
+  }
+
   public static void clear()
   {
     try
@@ -9,31 +9,58 @@
 
 package com.riffcrafter.library.util;
 
-import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-
-public class XmlReader extends BufferedInputStream
+import java.util.Arrays;
+
+/**
+ * Pull parser for the simple tagged XML written by XmlWriter.
+ *
+ * The reader scans its own byte buffer directly, without synchronization,
+ * matches expected tags against the bytes in place, parses numbers from the
+ * bytes without creating intermediate Strings and decodes values into a
+ * reusable character buffer. Bytes are mapped to chars one to one, which is
+ * sufficient because XmlWriter encodes everything outside of ASCII as a
+ * character reference.
+ *
+ * XmlReader is also an InputStream, so that a value that is not XML (e.g. a
+ * MIDI file) can be read from the same stream once the tags before it have
+ * been read.
+ */
+
+public class XmlReader extends InputStream
 {
-  public enum States { BEGIN, AMPERSAND
-  
-  }
+  private static final int BUFFER_SIZE = 8192;
+  private static final int MAXIMUM_TAG_CACHE_SIZE = 256;
+
+  private InputStream inputStream;
+  private byte[] buffer = new byte[BUFFER_SIZE];
+  private int position;
+  private int limit;
+  private long bufferOffset;
+  private int mark = -1;
+  private int tagStart;
+  private int tagEnd;
 
-  private int inputPosition;
-  private String unreadBuffer = "";
-  private int unreadIndex;
+  private char[] value = new char[128];
+  private int valueLength;
+
+  private char[] tagChars = new char[32];
+
+  private String[] tagCache = new String[16];
+  private int tagCacheSize;
 
   public XmlReader(File file) throws FileNotFoundException
   {
-    super(new FileInputStream(file));
+    this(new FileInputStream(file));
   }
 
   public XmlReader(InputStream inputStream)
   {
-    super(inputStream);
+    this.inputStream = inputStream;
   }
 
   public static XmlReader open(File file)
@@ -47,12 +74,12 @@ public class XmlReader extends BufferedInputStream
       throw new RuntimeException(e);
     }
   }
-  
+
   public void close()
   {
     try
     {
-      super.close();
+      inputStream.close();
     }
     catch (IOException e)
     {
@@ -62,170 +89,465 @@ public class XmlReader extends BufferedInputStream
 
   public void beginTag(String expectedTag)
   {
-    String tag = getNextTag();
-    if (!tag.equals(expectedTag))
+    scanTag(false);
+    if (!matches(tagStart, tagEnd, expectedTag))
     {
-      throw unexpectedInputException(expectedTag, tag);
+      throw unexpectedTagException(expectedTag);
     }
   }
 
   public void endTag(String expectedTag)
   {
-    String tag = getNextTag();
-    if (tag.charAt(0) != '/' || !tag.substring(1).equals(expectedTag))
+    scanTag(false);
+    if (tagEnd == tagStart || buffer[tagStart] != '/' || !matches(tagStart + 1, tagEnd, expectedTag))
     {
-      throw unexpectedInputException(expectedTag, tag);
+      throw unexpectedTagException("/" + expectedTag);
     }
   }
 
+  /**
+   * Returns the next tag without consuming it. The same String instance is
+   * returned each time a given tag is peeked.
+   */
+
   public String peekTag()
   {
-    mark(128);
-    String tag = getNextTag();
-    reset();
-    return tag;
+    scanTag(true);
+    return getTag(tagStart, tagEnd);
   }
 
-  private String getNextTag()
+  /**
+   * Reads a value written by XmlWriter.writeTaggedObject. A value in the form
+   * written for an Integer or Long is returned as an Integer, or as a Long if
+   * it does not fit, and any other value as a String. The XML does not record
+   * types, so a String in that form also comes back as a number.
+   */
+
+  public Object readTaggedObject(String tag)
   {
-    int c;
-    while ((c = read()) != -1 && Character.isWhitespace(c))
-    {
+    readValue(tag);
+    Object number = parseNumber();
+    return number == null ? new String(value, 0, valueLength) : number;
+  }
 
+  public int readTaggedInt(String tag)
+  {
+    long value = readTaggedLong(tag);
+    if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE)
+    {
+      throw new NumberFormatException("Value out of range for " + tag + ": " + value);
     }
+    return (int)value;
+  }
 
-    if (c != '<')
+  public long readTaggedLong(String tag)
+  {
+    beginTag(tag);
+
+    long valuePosition = getInputPosition();
+    boolean isNegative = false;
+    int digitCount = 0;
+    long value = 0;
+
+    int c = nextByte();
+    if (c == '-')
     {
-      throw unexpectedInputException("<", Character.toString((char)c));
+      isNegative = true;
+      c = nextByte();
     }
 
-    StringBuffer tagBuffer = new StringBuffer();
+    while (c >= '0' && c <= '9')
+    {
+      // Accumulate negatively so that Long.MIN_VALUE can be represented
+      long newValue = (value * 10) - (c - '0');
+      if (value < Long.MIN_VALUE / 10 || newValue > value)
+      {
+        throw new NumberFormatException("Value out of range for " + tag + " at position " + valuePosition);
+      }
+      value = newValue;
+      digitCount++;
+      c = nextByte();
+    }
 
-    while ((c = read()) != -1 && c != '>')
+    if (c != '<' || digitCount == 0)
     {
-      tagBuffer.append((char)c);
+      throw new NumberFormatException("Expected digits for " + tag + " at position " + valuePosition);
     }
 
-    return tagBuffer.toString();
-  }
+    position--;
+    endTag(tag);
 
-  public Object readTaggedObject(String tag)
-  {
-    // TODO: Decode object
-    return readTaggedString(tag);
+    if (isNegative)
+    {
+      return value;
+    }
+    if (value == Long.MIN_VALUE)
+    {
+      throw new NumberFormatException("Value out of range for " + tag + " at position " + valuePosition);
+    }
+    return -value;
   }
 
-  public int readTaggedInt(String tag)
+  public boolean readTaggedBoolean(String tag)
   {
-    String value = readTaggedString(tag);
-    return Integer.parseInt(value);
+    readValue(tag);
+    return valueLength == 4 && Character.toLowerCase(value[0]) == 't' && Character.toLowerCase(value[1]) == 'r' && Character.toLowerCase(value[2]) == 'u' && Character.toLowerCase(value[3]) == 'e';
   }
-  
-  public long readTaggedLong(String tag)
+
+  public String readTaggedString(String tag)
   {
-    String value = readTaggedString(tag);
-    return Long.parseLong(value);
+    readValue(tag);
+    return new String(value, 0, valueLength);
   }
 
-  public boolean readTaggedBoolean(String tag)
+  private void readValue(String tag)
   {
-    String value = readTaggedString(tag);
-    return Boolean.parseBoolean(value);
+    beginTag(tag);
+
+    valueLength = 0;
+
+    for (;;)
+    {
+      if (position == limit && !fill())
+      {
+        throw unexpectedInputException("</" + tag + ">", "end of input");
+      }
+
+      // Copy the run of plain bytes in the buffer in one pass
+      int runStart = position;
+      byte b;
+      while (position < limit && (b = buffer[position]) != '<' && b != '&')
+      {
+        position++;
+      }
+      appendValue(runStart, position);
+
+      if (position < limit)
+      {
+        if (buffer[position] == '<')
+        {
+          break;
+        }
+        position++;
+        appendValue(decode());
+      }
+    }
+
+    endTag(tag);
   }
 
-  public String readTaggedString(String tag)
+  /**
+   * Returns the value as a number if it is a decimal integer with no leading
+   * zeros, plus sign or spaces, so that it is written again the same way, or
+   * null if not.
+   */
+
+  private Object parseNumber()
   {
-    beginTag(tag);
+    int start = valueLength > 0 && value[0] == '-' ? 1 : 0;
+    int digitCount = valueLength - start;
+    if (digitCount == 0 || (value[start] == '0' && (digitCount > 1 || start == 1)))
+    {
+      return null;
+    }
 
-    StringBuffer buffer = new StringBuffer();
+    long number = 0;
+    for (int i = start; i < valueLength; i++)
+    {
+      char c = value[i];
+      if (c < '0' || c > '9')
+      {
+        return null;
+      }
+      // Accumulate negatively so that Long.MIN_VALUE can be represented
+      long newNumber = (number * 10) - (c - '0');
+      if (number < Long.MIN_VALUE / 10 || newNumber > number)
+      {
+        return null;
+      }
+      number = newNumber;
+    }
 
-    int c;
+    if (start == 0)
+    {
+      if (number == Long.MIN_VALUE)
+      {
+        return null;
+      }
+      number = -number;
+    }
+
+    if (number >= Integer.MIN_VALUE && number <= Integer.MAX_VALUE)
+    {
+      return Integer.valueOf((int)number);
+    }
+    return Long.valueOf(number);
+  }
 
-    States state = States.BEGIN;
-    StringBuffer encodingBuffer = new StringBuffer();
-    
-    while ((c = read()) != -1 && c != '<')
+  private char decode()
+  {
+    long entityPosition = getInputPosition();
+    int c = nextByte();
+    if (c == '#')
     {
-      switch (state)
+      int code = 0;
+      int digitCount = 0;
+      while ((c = nextByte()) >= '0' && c <= '9' && digitCount < 6)
       {
-        case BEGIN:
-          if (c == '&')
-          {
-            state = States.AMPERSAND;
-          }
-          else
-          {
-            buffer.append((char)c);
-          }
-          break;
-        case AMPERSAND:
-          if (c == ';')
+        code = (code * 10) + (c - '0');
+        digitCount++;
+      }
+      if (c != ';' || digitCount == 0 || code > Character.MAX_VALUE)
+      {
+        throw new RuntimeException("Expected character reference at position " + entityPosition);
+      }
+      return (char)code;
+    }
+
+    int first = c;
+    int second = nextByte();
+    int third = second == ';' ? ';' : nextByte();
+    if (third == ';')
+    {
+      if (first == 'l' && second == 't')
+      {
+        return '<';
+      }
+      if (first == 'g' && second == 't')
+      {
+        return '>';
+      }
+    }
+    else
+    {
+      int fourth = nextByte();
+      if (first == 'a' && second == 'm' && third == 'p' && fourth == ';')
+      {
+        return '&';
+      }
+      if (fourth != ';')
+      {
+        int fifth = nextByte();
+        if (fifth == ';')
+        {
+          if (first == 'q' && second == 'u' && third == 'o' && fourth == 't')
           {
-            buffer.append(decode(encodingBuffer.toString()));
-            encodingBuffer.setLength(0);
-            state = States.BEGIN;
+            return '"';
           }
-          else
+          if (first == 'a' && second == 'p' && third == 'o' && fourth == 's')
           {
-            encodingBuffer.append((char)c);
+            return '\'';
           }
-          break;
+        }
       }
     }
 
-    unread(c);
+    throw new RuntimeException("Expected coded value at position " + entityPosition);
+  }
 
-    endTag(tag);
+  /**
+   * Skips whitespace and scans the next tag, setting tagStart and tagEnd to
+   * the positions of its name in the buffer, and leaving the position just
+   * past the closing bracket, or, if isPeek is true, where it was.
+   */
+
+  private void scanTag(boolean isPeek)
+  {
+    // The mark keeps the bytes from there on in the buffer when it is refilled
+    mark = position;
+    try
+    {
+      int c;
+      while ((c = nextByte()) != -1 && Character.isWhitespace(c))
+      {
+        if (!isPeek)
+        {
+          mark = position;
+        }
+      }
+
+      if (c != '<')
+      {
+        throw unexpectedInputException("<", c == -1 ? "end of input" : Character.toString((char)c));
+      }
+
+      int tagOffset = position - mark;
+      while ((c = nextByte()) != -1 && c != '>')
+      {
+      }
+
+      if (c == -1)
+      {
+        throw unexpectedInputException(">", "end of input");
+      }
 
-    return buffer.toString();
+      tagStart = mark + tagOffset;
+      tagEnd = position - 1;
+      if (isPeek)
+      {
+        position = mark;
+      }
+    }
+    finally
+    {
+      mark = -1;
+    }
+  }
+
+  private boolean matches(int start, int end, String tag)
+  {
+    int length = tag.length();
+    if (end - start != length)
+    {
+      return false;
+    }
+    for (int i = 0; i < length; i++)
+    {
+      if (buffer[start + i] != tag.charAt(i))
+      {
+        return false;
+      }
+    }
+    return true;
   }
 
-  private char decode(String codedValue)
+  private String getTag(int start, int end)
   {
-    char c;
-    if (codedValue.equals("lt"))
+    for (int i = 0; i < tagCacheSize; i++)
     {
-      c = '<';
+      String tag = tagCache[i];
+      if (matches(start, end, tag))
+      {
+        return tag;
+      }
     }
-    else if (codedValue.equals("gt"))
+
+    String tag = decode(start, end);
+    if (tagCacheSize < MAXIMUM_TAG_CACHE_SIZE)
+    {
+      if (tagCacheSize == tagCache.length)
+      {
+        tagCache = Arrays.copyOf(tagCache, tagCacheSize * 2);
+      }
+      tag = tag.intern();
+      tagCache[tagCacheSize++] = tag;
+    }
+    return tag;
+  }
+
+  private void appendValue(int start, int end)
+  {
+    int length = end - start;
+    if (valueLength + length > value.length)
     {
-      c = '>';
+      value = Arrays.copyOf(value, Math.max(value.length * 2, valueLength + length));
     }
-    else if (codedValue.equals("amp"))
+    for (int i = start; i < end; i++)
     {
-      c = '&';
+      value[valueLength++] = (char)(buffer[i] & 0xff);
     }
-    else if (codedValue.equals("quot"))
+  }
+
+  private void appendValue(char c)
+  {
+    if (valueLength == value.length)
     {
-      c = '"';
+      value = Arrays.copyOf(value, value.length * 2);
     }
-    else if (codedValue.equals("apos"))
+    value[valueLength++] = c;
+  }
+
+  private int nextByte()
+  {
+    if (position == limit && !fill())
     {
-      c = '\'';
+      return -1;
     }
-    else if (codedValue.charAt(0) == '#')
+    return buffer[position++] & 0xff;
+  }
+
+  /**
+   * Refills the buffer, discarding the bytes that have been consumed, except
+   * for those from the mark on. Returns false at end of input.
+   */
+
+  private boolean fill()
+  {
+    if (mark == -1)
     {
-      c = (char)Integer.parseInt(codedValue.substring(1));
+      bufferOffset += limit;
+      position = 0;
+      limit = 0;
     }
     else
     {
-      throw unexpectedInputException("coded value", codedValue);
+      if (mark > 0)
+      {
+        System.arraycopy(buffer, mark, buffer, 0, limit - mark);
+        bufferOffset += mark;
+        position -= mark;
+        limit -= mark;
+        mark = 0;
+      }
+      if (limit == buffer.length)
+      {
+        buffer = Arrays.copyOf(buffer, buffer.length * 2);
+      }
     }
-    return c;
+    return readMore();
   }
 
+  private boolean readMore()
+  {
+    try
+    {
+      int count = inputStream.read(buffer, limit, buffer.length - limit);
+      if (count <= 0)
+      {
+        return false;
+      }
+      limit += count;
+      return true;
+    }
+    catch (IOException e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private long getInputPosition()
+  {
+    return bufferOffset + position;
+  }
+
+  // InputStream methods, for reading non-XML content that follows a tag
+
   public int read()
   {
-    inputPosition++;
+    return nextByte();
+  }
 
-    if (unreadIndex < unreadBuffer.length())
+  public int read(byte[] bytes, int offset, int length)
+  {
+    if (length == 0)
     {
-      return unreadBuffer.charAt(unreadIndex++);
+      return 0;
+    }
+    if (position < limit)
+    {
+      int count = Math.min(length, limit - position);
+      System.arraycopy(buffer, position, bytes, offset, count);
+      position += count;
+      return count;
     }
-
     try
     {
-      return super.read();
+      int count = inputStream.read(bytes, offset, length);
+      if (count > 0)
+      {
+        bufferOffset += count;
+      }
+      return count;
     }
     catch (IOException e)
     {
@@ -233,12 +555,11 @@ public class XmlReader extends BufferedInputStream
     }
   }
 
-  public void reset()
+  public int available()
   {
     try
     {
-      inputPosition -= pos - markpos;
-      super.reset();
+      return (limit - position) + inputStream.available();
     }
     catch (IOException e)
     {
@@ -246,21 +567,33 @@ public class XmlReader extends BufferedInputStream
     }
   }
 
-  private void unread(String value)
+  /**
+   * Returns the bytes of a tag in the buffer as a String, one character per
+   * byte, as tags are ASCII.
+   */
+
+  private String decode(int start, int end)
   {
-    unreadBuffer = value;
-    unreadIndex = 0;
-    inputPosition -= value.length();
+    int length = end - start;
+    if (tagChars.length < length)
+    {
+      tagChars = new char[Math.max(length, tagChars.length * 2)];
+    }
+    for (int i = 0; i < length; i++)
+    {
+      tagChars[i] = (char)(buffer[start + i] & 0xff);
+    }
+    return new String(tagChars, 0, length);
   }
 
-  private void unread(int c)
+  private RuntimeException unexpectedTagException(String expected)
   {
-    unread(Character.toString((char)c));
+    return unexpectedInputException(expected, decode(tagStart, tagEnd));
   }
 
   public RuntimeException unexpectedInputException(String expected, String actual)
   {
-    return new RuntimeException("Expected " + expected + ", got " + actual + " at position " + inputPosition);
+    return new RuntimeException("Expected " + expected + ", got " + actual + " at position " + getInputPosition());
   }
 
 }
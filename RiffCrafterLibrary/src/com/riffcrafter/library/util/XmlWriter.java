@@ -11,19 +11,54 @@ package com.riffcrafter.library.util;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Writes the simple tagged XML read by XmlReader.
+ *
+ * Tags, indentation and encoded values are appended directly to a reusable
+ * byte buffer, using byte arrays precomputed for each tag, and the buffer is
+ * written to the underlying stream in large chunks. The buffer is flushed
+ * whenever a top level (level zero) element is ended, so that a complete
+ * request or response is always sent.
+ *
+ * In compact mode, elements are written without indentation or line breaks,
+ * for responses that are only read by a program.
+ */
 
 public class XmlWriter extends PrintStream
 {
+  private static final int BUFFER_SIZE = 8192;
+  private static final byte[] LINE_SEPARATOR = System.getProperty("line.separator").getBytes();
+
+  private OutputStream outputStream;
+  private boolean isCompact;
+
+  private byte[] buffer = new byte[BUFFER_SIZE];
+  private int count;
+  private byte[] indentation = new byte[0];
+  private HashMap<String, TagBytes> tagBytesMap = new HashMap<String, TagBytes>();
+
   public XmlWriter(File file) throws FileNotFoundException
   {
-    super(file);
+    this(new FileOutputStream(file));
   }
 
   public XmlWriter(OutputStream outputStream)
+  {
+    this(outputStream, false);
+  }
+
+  public XmlWriter(OutputStream outputStream, boolean isCompact)
   {
     super(outputStream);
+    this.outputStream = outputStream;
+    this.isCompact = isCompact;
   }
 
   public static XmlWriter open(File file)
@@ -40,45 +75,53 @@ public class XmlWriter extends PrintStream
 
   public void beginTag(String tag, int level)
   {
-    println("<" + tag + ">", level);
+    beginLine(level);
+    append(getTagBytes(tag).begin);
+    endLine();
   }
 
   public void endTag(String tag, int level)
   {
-    println("</" + tag + ">", level);
-  }
-
-  private void println(String tag, int level)
-  {
-    StringBuffer buffer = new StringBuffer(level + tag.length());
-    int indent = level * 2;
-    while (indent-- > 0)
+    beginLine(level);
+    append(getTagBytes(tag).end);
+    endLine();
+    if (level == 0)
     {
-      buffer.append(" ");
+      flush();
     }
-    buffer.append(tag);
-    println(buffer);
   }
 
   public void writeTaggedObject(String tag, Object value, int level)
   {
     // TODO: Encode object
-    writeTaggedString(tag, value.toString(), level);
+    if (value instanceof Integer || value instanceof Long)
+    {
+      writeTaggedLong(tag, ((Number)value).longValue(), level);
+    }
+    else
+    {
+      writeTaggedString(tag, value.toString(), level);
+    }
   }
 
   public void writeTaggedInt(String tag, int value, int level)
   {
-    writeTaggedString(tag, Integer.toString(value), level);
+    writeTaggedLong(tag, value, level);
   }
 
   public void writeTaggedLong(String tag, long value, int level)
   {
-    writeTaggedString(tag, Long.toString(value), level);
+    TagBytes tagBytes = getTagBytes(tag);
+    beginLine(level);
+    append(tagBytes.begin);
+    appendDigits(value);
+    append(tagBytes.end);
+    endLine();
   }
 
   public void writeTaggedBoolean(String tag, boolean value, int level)
   {
-    writeTaggedString(tag, Boolean.toString(value), level);
+    writeTaggedStringRaw(tag, value ? "true" : "false", level);
   }
 
   public void writeTaggedString(String tag, Object value, int level)
@@ -87,45 +130,269 @@ public class XmlWriter extends PrintStream
     {
       value = "";
     }
-    println("<" + tag + ">" + encode(value.toString()) + "</" + tag + ">", level);
+    TagBytes tagBytes = getTagBytes(tag);
+    beginLine(level);
+    append(tagBytes.begin);
+    appendEncoded(value.toString());
+    append(tagBytes.end);
+    endLine();
   }
 
   public void writeTaggedStringRaw(String tag, Object value, int level)
   {
-    println("<" + tag + ">" + value.toString() + "</" + tag + ">", level);
+    TagBytes tagBytes = getTagBytes(tag);
+    beginLine(level);
+    append(tagBytes.begin);
+    appendRaw(value.toString());
+    append(tagBytes.end);
+    endLine();
   }
 
   public static String encode(String source)
   {
     int length = source.length();
-    StringBuffer target = new StringBuffer(length * 2);
+    StringBuilder target = new StringBuilder(length * 2);
 
     for (int i = 0; i < length; i++)
     {
       char sourceChar = source.charAt(i);
-      if (sourceChar == '<')
-        target.append("&lt;");
-      else if (sourceChar == '>')
-        target.append("&gt;");
-      else if (sourceChar == '&')
-        target.append("&amp;");
-      else if (sourceChar == '\"')
-        target.append("&quot;");
-      else if (sourceChar == '\'')
-        target.append("&#39;"); // NB: JEditorPane does not understand &apos;
-      else if (sourceChar == '\t')
-        target.append("&#9;");
-      else if (sourceChar == '\n')
-        target.append("&#10;");
-      else if (sourceChar == '\r')
-        target.append("&#13;");
+      String entity = getEntity(sourceChar);
+      if (entity != null)
+        target.append(entity);
       else if (sourceChar < 0x7f)
         target.append(sourceChar);
       else
-        target.append("&#" + Integer.toString((int)sourceChar) + ";");
+        target.append("&#").append((int)sourceChar).append(';');
     }
 
     return target.toString();
   }
 
+  private static String getEntity(char c)
+  {
+    switch (c)
+    {
+      case '<':
+        return "&lt;";
+      case '>':
+        return "&gt;";
+      case '&':
+        return "&amp;";
+      case '\"':
+        return "&quot;";
+      case '\'':
+        return "&#39;"; // NB: JEditorPane does not understand &apos;
+      case '\t':
+        return "&#9;";
+      case '\n':
+        return "&#10;";
+      case '\r':
+        return "&#13;";
+      default:
+        return null;
+    }
+  }
+
+  private TagBytes getTagBytes(String tag)
+  {
+    TagBytes tagBytes = tagBytesMap.get(tag);
+    if (tagBytes == null)
+    {
+      tagBytes = new TagBytes(tag);
+      tagBytesMap.put(tag, tagBytes);
+    }
+    return tagBytes;
+  }
+
+  private void beginLine(int level)
+  {
+    if (!isCompact)
+    {
+      int indent = level * 2;
+      if (indent > indentation.length)
+      {
+        indentation = new byte[indent * 2];
+        Arrays.fill(indentation, (byte)' ');
+      }
+      append(indentation, 0, indent);
+    }
+  }
+
+  private void endLine()
+  {
+    if (!isCompact)
+    {
+      append(LINE_SEPARATOR);
+    }
+  }
+
+  private void appendEncoded(String value)
+  {
+    int length = value.length();
+    ensureCapacity(length);
+    for (int i = 0; i < length; i++)
+    {
+      char c = value.charAt(i);
+      if (c < 0x7f && c != '<' && c != '>' && c != '&' && c != '\"' && c != '\'' && c != '\t' && c != '\n' && c != '\r')
+      {
+        if (count == buffer.length)
+        {
+          ensureCapacity(length - i);
+        }
+        buffer[count++] = (byte)c;
+      }
+      else
+      {
+        String entity = getEntity(c);
+        if (entity != null)
+        {
+          appendRaw(entity);
+        }
+        else
+        {
+          appendByte('&');
+          appendByte('#');
+          appendDigits(c);
+          appendByte(';');
+        }
+      }
+    }
+  }
+
+  private void appendRaw(String value)
+  {
+    int length = value.length();
+    ensureCapacity(length);
+    for (int i = 0; i < length; i++)
+    {
+      char c = value.charAt(i);
+      buffer[count++] = (byte)(c <= 0xff ? c : '?');
+    }
+  }
+
+  private void appendDigits(long value)
+  {
+    ensureCapacity(20);
+    if (value < 0)
+    {
+      buffer[count++] = '-';
+    }
+    else
+    {
+      // Work with negative values so that Long.MIN_VALUE can be represented
+      value = -value;
+    }
+    int start = count;
+    do
+    {
+      buffer[count++] = (byte)('0' - (value % 10));
+      value /= 10;
+    }
+    while (value != 0);
+    // Digits were produced least significant first
+    for (int i = start, j = count - 1; i < j; i++, j--)
+    {
+      byte digit = buffer[i];
+      buffer[i] = buffer[j];
+      buffer[j] = digit;
+    }
+  }
+
+  private void appendByte(int b)
+  {
+    if (count == buffer.length)
+    {
+      ensureCapacity(1);
+    }
+    buffer[count++] = (byte)b;
+  }
+
+  private void append(byte[] bytes)
+  {
+    append(bytes, 0, bytes.length);
+  }
+
+  private void append(byte[] bytes, int offset, int length)
+  {
+    ensureCapacity(length);
+    System.arraycopy(bytes, offset, buffer, count, length);
+    count += length;
+  }
+
+  /**
+   * Makes room for length more bytes, by writing the buffer to the underlying
+   * stream and, for values larger than the buffer, by growing it.
+   */
+
+  private void ensureCapacity(int length)
+  {
+    if (count + length > buffer.length)
+    {
+      flushBuffer();
+      if (length > buffer.length)
+      {
+        buffer = new byte[Math.max(length, buffer.length * 2)];
+      }
+    }
+  }
+
+  private void flushBuffer()
+  {
+    if (count > 0)
+    {
+      try
+      {
+        outputStream.write(buffer, 0, count);
+      }
+      catch (IOException e)
+      {
+        throw new RuntimeException(e);
+      }
+      count = 0;
+    }
+  }
+
+  // PrintStream methods, which write through the buffer so that output stays in order
+
+  public void write(int b)
+  {
+    appendByte(b);
+  }
+
+  public void write(byte[] bytes, int offset, int length)
+  {
+    append(bytes, offset, length);
+  }
+
+  public void flush()
+  {
+    flushBuffer();
+    try
+    {
+      outputStream.flush();
+    }
+    catch (IOException e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public void close()
+  {
+    flush();
+    super.close();
+  }
+
+  private static class TagBytes
+  {
+    private byte[] begin;
+    private byte[] end;
+
+    private TagBytes(String tag)
+    {
+      begin = ("<" + tag + ">").getBytes();
+      end = ("</" + tag + ">").getBytes();
+    }
+  }
+
 }
@@ -0,0 +1,212 @@
+// Copyright 2007 Anthony F. Stuart - All rights reserved.
+//
+// This program and the accompanying materials are made available
+// under the terms of the GNU General Public License. For other license
+// options please contact the copyright owner.
+//
+// This program is made available on an "as is" basis, without
+// warranties or conditions of any kind, either express or implied.
+
+package com.riffcrafter.studio.app;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import com.riffcrafter.common.midi.Midel;
+import com.riffcrafter.common.midi.Midi;
+import com.riffcrafter.common.midi.Note;
+import com.riffcrafter.common.midi.TimeSignatureChange;
+import com.riffcrafter.library.util.Hex;
+import com.riffcrafter.studio.app.Analyzer.AnalyzerNode;
+
+/**
+ * On-disk cache of Analyzer trees, one file per channel analysis, named by a
+ * hash of everything the analysis depends on. Any problem reading or writing
+ * the cache is treated as a miss, so the cache can never break an analysis.
+ */
+
+public class AnalysisCache
+{
+  private static final int MAGIC = 0x52434143; // RCAC
+  private static final int VERSION = 2;
+  private static final String SUFFIX = ".analysis";
+
+  private File directory;
+
+  public AnalysisCache(File directory)
+  {
+    this.directory = directory;
+  }
+
+  /**
+   * Returns the cache key for an analysis of the channel. The Analyzer trains
+   * its tick and duration clusters on every note in the Midi and forms measures
+   * using the time signatures, so those are part of the key too, not just the
+   * notes in the channel.
+   */
+
+  public static String getKey(Midi midi, int channel, boolean isBuildGrammar, boolean isGroupByMeasure, boolean isGroupByGap, int minimumGroupSize, int percentAverageGap)
+  {
+    KeyBuilder keyBuilder = new KeyBuilder();
+
+    keyBuilder.add(VERSION);
+    keyBuilder.add(channel);
+    keyBuilder.add(isBuildGrammar ? 1 : 0);
+    keyBuilder.add(isGroupByMeasure ? 1 : 0);
+    keyBuilder.add(isGroupByGap ? 1 : 0);
+    keyBuilder.add(minimumGroupSize);
+    keyBuilder.add(percentAverageGap);
+
+    for (Midel midel : midi.getMidels())
+    {
+      if (midel instanceof Note)
+      {
+        Note note = (Note)midel;
+        keyBuilder.add(note.getTick());
+        keyBuilder.add(note.getDuration());
+        if (note.getChannel() == channel)
+        {
+          keyBuilder.add(note.getKey());
+          keyBuilder.add(note.getVelocity());
+        }
+      }
+      else if (midel instanceof TimeSignatureChange)
+      {
+        TimeSignatureChange timeSignatureChange = (TimeSignatureChange)midel;
+        keyBuilder.add(timeSignatureChange.getTick());
+        keyBuilder.add(timeSignatureChange.getBeatsPerMeasure());
+      }
+    }
+
+    return keyBuilder.getKey();
+  }
+
+  public AnalyzerNode get(Analyzer analyzer, Midi midi, int channel, String key)
+  {
+    File file = getFile(key);
+    if (!file.isFile())
+    {
+      return null;
+    }
+
+    try
+    {
+      DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      try
+      {
+        if (input.readInt() != MAGIC || input.readInt() != VERSION)
+        {
+          throw new IOException("Unrecognized analysis cache file " + file);
+        }
+        return analyzer.read(input, midi, channel);
+      }
+      finally
+      {
+        input.close();
+      }
+    }
+    catch (IOException e)
+    {
+      file.delete();
+      return null;
+    }
+    catch (RuntimeException e)
+    {
+      // A file that reads but does not fit the Midi, such as a note index out of range
+      file.delete();
+      return null;
+    }
+  }
+
+  public void put(Analyzer analyzer, AnalyzerNode root, String key)
+  {
+    File file = getFile(key);
+    File temporaryFile = new File(directory, key + ".tmp");
+
+    try
+    {
+      DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile)));
+      try
+      {
+        output.writeInt(MAGIC);
+        output.writeInt(VERSION);
+        analyzer.write(output, root);
+      }
+      finally
+      {
+        output.close();
+      }
+      // Rename so a reader never sees a partially written file
+      file.delete();
+      if (!temporaryFile.renameTo(file))
+      {
+        temporaryFile.delete();
+      }
+    }
+    catch (IOException e)
+    {
+      temporaryFile.delete();
+    }
+  }
+
+  public void clear()
+  {
+    File[] files = directory.listFiles();
+    if (files != null)
+    {
+      for (File file : files)
+      {
+        if (file.getName().endsWith(SUFFIX))
+        {
+          file.delete();
+        }
+      }
+    }
+  }
+
+  private File getFile(String key)
+  {
+    return new File(directory, key + SUFFIX);
+  }
+
+  private static class KeyBuilder
+  {
+    private MessageDigest messageDigest;
+    private byte[] buffer = new byte[8];
+
+    private KeyBuilder()
+    {
+      try
+      {
+        messageDigest = MessageDigest.getInstance("SHA-1");
+      }
+      catch (NoSuchAlgorithmException e)
+      {
+        throw new RuntimeException(e);
+      }
+    }
+
+    private void add(long value)
+    {
+      for (int i = 0; i < buffer.length; i++)
+      {
+        buffer[i] = (byte)(value >>> (i * 8));
+      }
+      messageDigest.update(buffer);
+    }
+
+    private String getKey()
+    {
+      return Hex.toHexString(messageDigest.digest());
+    }
+  }
+
+}
@@ -0,0 +1,222 @@
+// Copyright 2007 Anthony F. Stuart - All rights reserved.
+//
+// This program and the accompanying materials are made available
+// under the terms of the GNU General Public License. For other license
+// options please contact the copyright owner.
+//
+// This program is made available on an "as is" basis, without
+// warranties or conditions of any kind, either express or implied.
+
+package com.riffcrafter.studio.app;
+
+import java.util.Enumeration;
+import java.util.concurrent.ExecutionException;
+
+import javax.swing.SwingWorker;
+
+import com.riffcrafter.common.midi.Midi;
+import com.riffcrafter.studio.app.Analyzer.AnalyzerNode;
+import com.riffcrafter.studio.app.Analyzer.Phase;
+import com.riffcrafter.studio.app.Analyzer.ProgressListener;
+
+/**
+ * Analyzes a channel on a background thread so that the user interface stays
+ * responsive while the grammar is built. The task works on a deep copy of the
+ * Midi taken when it is created, which must be on the event dispatch thread,
+ * reports progress through the SwingWorker progress property (0 to 100) and
+ * can be cancelled at any time.
+ *
+ * The notes in the analysis are copies of the Editor's notes, which compare
+ * as equal to them.
+ */
+
+public class AnalysisTask extends SwingWorker<AnalyzerNode, Void> implements ProgressListener
+{
+  private static final int INITIAL_TREE_PERCENT = 20;
+
+  private Editor editor;
+  private int channel;
+  private Midi midi;
+  private boolean isBuildGrammar;
+  private boolean isGroupByMeasure;
+  private boolean isGroupByGap;
+  private int minimumGroupSize;
+  private int percentAverageGap;
+  private AnalysisCache analysisCache;
+
+  private Analyzer analyzer = new Analyzer();
+  private boolean isCacheHit;
+  private volatile long initialTreeMillis;
+  private volatile long grammarMillis;
+  private volatile int nodeCount;
+  private String errorMessage;
+
+  public AnalysisTask(Editor editor, int channel, boolean isBuildGrammar, boolean isGroupByMeasure, boolean isGroupByGap, int minimumGroupSize, int percentAverageGap, AnalysisCache analysisCache)
+  {
+    this.editor = editor;
+    this.channel = channel;
+    this.midi = editor.getMidi().deepCopy();
+    this.isBuildGrammar = isBuildGrammar;
+    this.isGroupByMeasure = isGroupByMeasure;
+    this.isGroupByGap = isGroupByGap;
+    this.minimumGroupSize = minimumGroupSize;
+    this.percentAverageGap = percentAverageGap;
+    this.analysisCache = analysisCache;
+  }
+
+  @Override
+  protected AnalyzerNode doInBackground()
+  {
+    String cacheKey = AnalysisCache.getKey(midi, channel, isBuildGrammar, isGroupByMeasure, isGroupByGap, minimumGroupSize, percentAverageGap);
+
+    long startTime = System.currentTimeMillis();
+    AnalyzerNode root = analysisCache.get(analyzer, midi, channel, cacheKey);
+    if (root != null)
+    {
+      isCacheHit = true;
+      initialTreeMillis = System.currentTimeMillis() - startTime;
+    }
+    else
+    {
+      analyzer.setProgressListener(this);
+      root = analyzer.createInitialTree(midi, channel, isGroupByMeasure, isGroupByGap, minimumGroupSize, percentAverageGap);
+      initialTreeMillis = System.currentTimeMillis() - startTime;
+      if (isBuildGrammar)
+      {
+        startTime = System.currentTimeMillis();
+        analyzer.buildGrammar(root);
+        grammarMillis = System.currentTimeMillis() - startTime;
+      }
+      analysisCache.put(analyzer, root, cacheKey);
+    }
+
+    nodeCount = getNodeCount(root);
+    setProgress(100);
+    return root;
+  }
+
+  public void onProgress(Phase phase, int completed, int total)
+  {
+    int percent;
+    if (total <= 0)
+    {
+      percent = 0;
+    }
+    else if (!isBuildGrammar)
+    {
+      percent = (completed * 100) / total;
+    }
+    else if (phase == Phase.INITIAL_TREE)
+    {
+      percent = (completed * INITIAL_TREE_PERCENT) / total;
+    }
+    else
+    {
+      percent = INITIAL_TREE_PERCENT + ((completed * (100 - INITIAL_TREE_PERCENT)) / total);
+    }
+    setProgress(Math.max(0, Math.min(100, percent)));
+  }
+
+  /**
+   * Cancels the task, stopping the Analyzer at its next cancellation check
+   * rather than interrupting the thread, which could leave the cache file
+   * half written.
+   */
+
+  public void cancel()
+  {
+    analyzer.cancel();
+    cancel(false);
+  }
+
+  /**
+   * Returns the analysis, or null if the task was cancelled or failed, in
+   * which case getErrorMessage describes the failure. Must only be called
+   * once the task is done.
+   */
+
+  public AnalyzerNode getAnalysis()
+  {
+    if (isCancelled())
+    {
+      return null;
+    }
+    try
+    {
+      return get();
+    }
+    catch (ExecutionException e)
+    {
+      Throwable cause = e.getCause() == null ? e : e.getCause();
+      errorMessage = cause.getMessage() == null ? cause.toString() : cause.getMessage();
+      return null;
+    }
+    catch (InterruptedException e)
+    {
+      errorMessage = e.toString();
+      return null;
+    }
+  }
+
+  /**
+   * Returns a description of why the task failed, or null if it did not.
+   */
+
+  public String getErrorMessage()
+  {
+    return errorMessage;
+  }
+
+  public boolean isFor(Editor editor, int channel)
+  {
+    return this.editor == editor && this.channel == channel;
+  }
+
+  public Editor getEditor()
+  {
+    return editor;
+  }
+
+  public int getChannel()
+  {
+    return channel;
+  }
+
+  public boolean isCacheHit()
+  {
+    return isCacheHit;
+  }
+
+  public long getInitialTreeMillis()
+  {
+    return initialTreeMillis;
+  }
+
+  public long getGrammarMillis()
+  {
+    return grammarMillis;
+  }
+
+  public long getElapsedMillis()
+  {
+    return initialTreeMillis + grammarMillis;
+  }
+
+  public int getNodeCount()
+  {
+    return nodeCount;
+  }
+
+  private static int getNodeCount(AnalyzerNode root)
+  {
+    int count = 0;
+    Enumeration<?> enumeration = root.preorderEnumeration();
+    while (enumeration.hasMoreElements())
+    {
+      enumeration.nextElement();
+      count++;
+    }
+    return count;
+  }
+
+}
@@ -9,12 +9,16 @@
 
 package com.riffcrafter.studio.app;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Enumeration;
-import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
 
 import javax.swing.tree.DefaultMutableTreeNode;
 
@@ -29,11 +33,10 @@ import com.riffcrafter.common.midi.NoteName;
 import com.riffcrafter.common.midi.TempoChange;
 import com.riffcrafter.common.midi.TickEventMap;
 import com.riffcrafter.common.midi.TickEventMap.TickEvent;
+import com.riffcrafter.library.util.LongIdentityMap;
 
 public class Analyzer
 {
-  private static final int ARRAY_SIZE_INCREMENT = 20;
-
   private IdentityManager patternManager = new IdentityManager();
   private IdentityManager chordManager = new IdentityManager();
   private IdentityManager groupManager = new IdentityManager();
@@ -42,8 +45,13 @@ public class Analyzer
   private Cluster durations = new Cluster();
 
   private int lastGroupIndex;
+  private boolean isTrained;
   private boolean isDebug = false;
 
+  private ProgressListener progressListener;
+  private volatile boolean isCancelled;
+  private int grammarDepth;
+
   private Midi midi;
 
   public AnalyzerNode buildGrammar(Midi midi, int targetChannelIndex, boolean isGroupByMeasure, boolean isGroupByGap, int minimumGroupSize, int percentAverageGap)
@@ -58,15 +66,17 @@ public class Analyzer
     this.midi = midi;
 
     RootNode root = new RootNode(targetChannelIndex);
+    root.isGroupByMeasure = isGroupByMeasure;
+    root.isGroupByGap = isGroupByGap;
+    root.minimumGroupSize = minimumGroupSize;
+    root.percentAverageGap = percentAverageGap;
 
     trainClusters(midi);
+    checkCancelled();
 
     TickEventMap tickEventMap = new TickEventMap(midi, targetChannelIndex, ticks, durations);
 
-    long lastTick = 0;
-    long lastMeasure = 0;
     long minimumGapSize = 0;
-    lastGroupIndex = 0;
 
     if (isGroupByGap)
     {
@@ -74,11 +84,39 @@ public class Analyzer
       minimumGapSize = (averageNoteGap * percentAverageGap) / 100;
     }
 
+    formNodes(root, tickEventMap, isGroupByMeasure, isGroupByGap, minimumGroupSize, minimumGapSize, 0, minimumGroupSize);
+
+    root.complete();
+
+    return root;
+  }
+
+  /**
+   * Form chords, and measures or groups, from the notes in tickEventMap and
+   * add them to root. The last measure is only formed if it contains at least
+   * lastMeasureMinimumGroupSize notes.
+   */
+
+  private void formNodes(RootNode root, TickEventMap tickEventMap, boolean isGroupByMeasure, boolean isGroupByGap, int minimumGroupSize, long minimumGapSize, long firstMeasure, int lastMeasureMinimumGroupSize)
+  {
+    long lastTick = 0;
+    long lastMeasure = firstMeasure;
+    lastGroupIndex = 0;
+
     ArrayList<Note> activeNotes = new ArrayList<Note>();
     ChordNode chordNode = new ChordNode();
 
+    int tickEventCount = tickEventMap.size();
+    int tickEventIndex = 0;
+
     for (Map.Entry<Long, TickEvent> entry : tickEventMap.getTickEvents())
     {
+      checkCancelled();
+      if (progressListener != null && (tickEventIndex++ % PROGRESS_INTERVAL) == 0)
+      {
+        progressListener.onProgress(Phase.INITIAL_TREE, tickEventIndex, tickEventCount);
+      }
+
       TickEvent tickEvent = entry.getValue();
       for (Note note : tickEvent.getNoteOffIterable())
       {
@@ -114,17 +152,7 @@ public class Analyzer
       {
         if (isGroupByMeasure)
         {
-          long tick = note.getTick();
-          long duration = note.getDuration();
-          int ticksPerMeasure = midi.findTicksPerMeasure(tick);
-          // TODO: Check fuzzy logic to see where this note is intended to fall
-          if (duration > ticksPerMeasure)
-          {
-            // Keep long notes that straddle measure from pulling all accompanying notes into the next measure
-            duration = ticksPerMeasure;
-          }
-          tick += (duration / 2);
-          long thisMeasure = tick / ticksPerMeasure;
+          long thisMeasure = getMeasure(note);
           if (thisMeasure > lastMeasure) // note gt so that fuzzy logic on small notes that overlap long ones doesn't pull thisMeasure back to previous measure.
           {
             chordNode = addLastNoteSet(root, chordNode);
@@ -157,7 +185,7 @@ public class Analyzer
     {
       chordNode = addLastNoteSet(root, chordNode);
       MeasureNode measureNode = new MeasureNode(lastMeasure);
-      formGroup(root, measureNode, minimumGroupSize);
+      formGroup(root, measureNode, lastMeasureMinimumGroupSize);
     }
     else if (isGroupByGap)
     {
@@ -167,10 +195,253 @@ public class Analyzer
         formGroup(root, groupNode, minimumGroupSize);
       }
     }
+  }
 
-    root.complete();
+  private long getMeasure(Note note)
+  {
+    long tick = note.getTick();
+    long duration = note.getDuration();
+    int ticksPerMeasure = midi.findTicksPerMeasure(tick);
+    // TODO: Check fuzzy logic to see where this note is intended to fall
+    if (duration > ticksPerMeasure)
+    {
+      // Keep long notes that straddle measure from pulling all accompanying notes into the next measure
+      duration = ticksPerMeasure;
+    }
+    tick += (duration / 2);
+    return midi.getMeasureMap().getMeasure(tick);
+  }
 
-    return root;
+  /**
+   * Brings a tree from createInitialTree (and optionally buildGrammar) up to
+   * date after the notes between firstTick and lastTick have changed. Chords
+   * and measures are formed again for just the affected measures and spliced
+   * into the tree. If the new measures have the same hash keys as the ones they
+   * replace (e.g. after a velocity change) the patterns are kept and the new
+   * measures take the place of the old ones within them. Otherwise repeat
+   * detection is run again over the measures, without forming them again.
+   * 
+   * The tree is updated with the settings it was built with (see
+   * isBuiltWith). Only trees grouped by measure can be updated. Returns false
+   * if the tree could not be updated, in which case it must be analyzed from
+   * scratch.
+   * 
+   * The tick and duration clusters are not retrained, so a new note that does
+   * not fall in an existing cluster may be quantized differently than it would
+   * be by a full analysis.
+   */
+
+  public boolean reanalyze(AnalyzerNode root, Midi midi, long firstTick, long lastTick)
+  {
+    if (!(root instanceof RootNode) || !((RootNode)root).isGroupByMeasure)
+    {
+      return false;
+    }
+
+    this.midi = midi;
+
+    if (!isTrained)
+    {
+      // Trees restored from the AnalysisCache are not trained
+      trainClusters(midi);
+    }
+
+    RootNode rootNode = (RootNode)root;
+    int channel = rootNode.channel;
+    int minimumGroupSize = rootNode.minimumGroupSize;
+
+    ArrayList<AnalyzerNode> units = new ArrayList<AnalyzerNode>();
+    getUnits(rootNode, units);
+
+    // Include a measure on each side for chords that straddle the boundary
+    long firstMeasure = Math.max(0, getMeasure(firstTick) - 1);
+    long lastMeasure = getMeasure(lastTick) + 1;
+
+    int firstIndex = 0;
+    while (firstIndex < units.size() && getUnitMeasure(units.get(firstIndex)) < firstMeasure)
+    {
+      firstIndex++;
+    }
+
+    int lastIndex = firstIndex; // exclusive
+    while (lastIndex < units.size() && getUnitMeasure(units.get(lastIndex)) <= lastMeasure)
+    {
+      lastIndex++;
+    }
+
+    boolean isLastMeasure = lastIndex == units.size();
+
+    int channelNoteCount = 0;
+    Midi changedMidi = new Midi();
+    for (Midel midel : midi.getMidels())
+    {
+      if (midel instanceof Note && midel.getChannel() == channel)
+      {
+        channelNoteCount++;
+        long measure = getMeasure((Note)midel);
+        if (measure >= firstMeasure && (measure <= lastMeasure || isLastMeasure))
+        {
+          changedMidi.add(midel);
+        }
+      }
+    }
+
+    int keptNoteCount = 0;
+    for (int i = 0; i < units.size(); i++)
+    {
+      if (i < firstIndex || i >= lastIndex)
+      {
+        keptNoteCount += units.get(i).getNoteCount();
+      }
+    }
+
+    if (keptNoteCount + changedMidi.size() != channelNoteCount)
+    {
+      // A note was assigned to a different measure than the one it was found in
+      return false;
+    }
+
+    RootNode changedRoot = new RootNode(channel);
+    TickEventMap tickEventMap = new TickEventMap(changedMidi, channel, ticks, durations);
+    formNodes(changedRoot, tickEventMap, true, false, minimumGroupSize, 0, firstMeasure, isLastMeasure ? minimumGroupSize : 1);
+
+    ArrayList<AnalyzerNode> changedUnits = new ArrayList<AnalyzerNode>();
+    getUnits(changedRoot, changedUnits);
+
+    for (int i = firstIndex; i < lastIndex; i++)
+    {
+      releaseIdentities(units.get(i));
+    }
+
+    boolean isSameHashKeys = changedUnits.size() == lastIndex - firstIndex;
+    for (int i = 0; i < changedUnits.size() && isSameHashKeys; i++)
+    {
+      isSameHashKeys = changedUnits.get(i).getHashKey() == units.get(firstIndex + i).getHashKey();
+    }
+
+    if (isSameHashKeys)
+    {
+      for (int i = 0; i < changedUnits.size(); i++)
+      {
+        AnalyzerNode oldUnit = units.get(firstIndex + i);
+        AnalyzerNode parent = (AnalyzerNode)oldUnit.getParent();
+        int index = parent.getIndex(oldUnit);
+        parent.remove(index);
+        parent.insert(changedUnits.get(i), index);
+        updateNoteCounts(parent);
+      }
+    }
+    else
+    {
+      rootNode.removeAllChildren();
+      for (int i = 0; i < firstIndex; i++)
+      {
+        rootNode.add(units.get(i));
+      }
+      for (AnalyzerNode changedUnit : changedUnits)
+      {
+        rootNode.add(changedUnit);
+      }
+      for (int i = lastIndex; i < units.size(); i++)
+      {
+        rootNode.add(units.get(i));
+      }
+      if (rootNode.isBuildGrammar)
+      {
+        patternManager.clear();
+        buildGrammar(rootNode);
+      }
+    }
+
+    rootNode.complete();
+
+    return true;
+  }
+
+  /**
+   * Returns true if the tree was built with the given settings, so that it
+   * can be updated by reanalyze rather than analyzed again. The gap
+   * percentage only matters when grouping by gap.
+   */
+
+  public boolean isBuiltWith(AnalyzerNode root, boolean isBuildGrammar, boolean isGroupByMeasure, boolean isGroupByGap, int minimumGroupSize, int percentAverageGap)
+  {
+    if (!(root instanceof RootNode))
+    {
+      return false;
+    }
+    RootNode rootNode = (RootNode)root;
+    return rootNode.isBuildGrammar == isBuildGrammar && rootNode.isGroupByMeasure == isGroupByMeasure && rootNode.isGroupByGap == isGroupByGap && rootNode.minimumGroupSize == minimumGroupSize && (!isGroupByGap || rootNode.percentAverageGap == percentAverageGap);
+  }
+
+  /**
+   * Gets the nodes formed by createInitialTree, which buildGrammar may have
+   * moved into (nested) PatternNodes.
+   */
+
+  private void getUnits(AnalyzerNode parent, ArrayList<AnalyzerNode> units)
+  {
+    int childCount = parent.getChildCount();
+    for (int i = 0; i < childCount; i++)
+    {
+      AnalyzerNode child = (AnalyzerNode)parent.getChildAt(i);
+      if (child instanceof PatternNode)
+      {
+        getUnits(child, units);
+      }
+      else
+      {
+        units.add(child);
+      }
+    }
+  }
+
+  private long getUnitMeasure(AnalyzerNode unit)
+  {
+    if (unit instanceof MeasureNode)
+    {
+      return ((MeasureNode)unit).measureNumber;
+    }
+
+    // Notes left over at the end that did not form a measure
+    long measure = 0;
+    for (Note note : unit.getNotes())
+    {
+      measure = Math.max(measure, getMeasure(note));
+    }
+    return measure;
+  }
+
+  private long getMeasure(long tick)
+  {
+    return midi.getMeasureMap().getMeasure(tick);
+  }
+
+  private void releaseIdentities(AnalyzerNode unit)
+  {
+    Enumeration<?> enumeration = unit.depthFirstEnumeration();
+    while (enumeration.hasMoreElements())
+    {
+      AnalyzerNode analyzerNode = (AnalyzerNode)enumeration.nextElement();
+      if (analyzerNode instanceof ChordNode)
+      {
+        chordManager.release(((ChordNode)analyzerNode).chordNumber);
+      }
+      else if (analyzerNode instanceof GroupNode)
+      {
+        groupManager.release(((GroupNode)analyzerNode).groupNumber);
+      }
+    }
+  }
+
+  private void updateNoteCounts(AnalyzerNode node)
+  {
+    while (node instanceof PatternNode)
+    {
+      PatternNode patternNode = (PatternNode)node;
+      patternNode.noteCount = patternNode.getNoteCount();
+      node = (AnalyzerNode)node.getParent();
+    }
   }
 
   /**
@@ -349,6 +620,7 @@ public class Analyzer
         durations.train(note.getDuration());
       }
     }
+    isTrained = true;
   }
 
   // Example of loop limits:
@@ -364,16 +636,39 @@ public class Analyzer
   // p = maxHaystackIndex (11 - 3) -> 8
 
   private static final int INITIAL_WINDOW_SIZE = -1;
+  private static final int PROGRESS_INTERVAL = 100;
   private static final int MINIMUM_WINDOW_SIZE = 2;
 
   public void buildGrammar(AnalyzerNode parent)
   {
+    if (parent instanceof RootNode)
+    {
+      ((RootNode)parent).isBuildGrammar = true;
+    }
+
     int windowSize = INITIAL_WINDOW_SIZE;
     int oldChildCount = parent.getChildCount();
 
-    while ((windowSize = getWindowSize(parent, windowSize)) > MINIMUM_WINDOW_SIZE)
+    // Progress is reported for the window size passes over the root, which include the nested passes
+    boolean isReportProgress = progressListener != null && grammarDepth == 0;
+    int maximumWindowSize = getWindowSize(parent, windowSize);
+
+    grammarDepth++;
+    try
+    {
+      while ((windowSize = getWindowSize(parent, windowSize)) > MINIMUM_WINDOW_SIZE)
+      {
+        checkCancelled();
+        scan(parent, windowSize);
+        if (isReportProgress)
+        {
+          progressListener.onProgress(Phase.GRAMMAR, maximumWindowSize - windowSize + 1, maximumWindowSize - MINIMUM_WINDOW_SIZE);
+        }
+      }
+    }
+    finally
     {
-      scan(parent, windowSize);
+      grammarDepth--;
     }
 
     int newChildCount = parent.getChildCount();
@@ -400,6 +695,7 @@ public class Analyzer
     int maxNeedleIndex = parent.getChildCount() - (2 * windowSize);
     for (int needleIndex = 0; needleIndex <= maxNeedleIndex && toReplace.size() == 0; needleIndex++)
     {
+      checkCancelled();
       int maxHaystackIndex = parent.getChildCount() - windowSize;
       for (int haystackIndex = needleIndex + windowSize; haystackIndex <= maxHaystackIndex; haystackIndex++)
       {
@@ -505,35 +801,311 @@ public class Analyzer
     return patternNode;
   }
 
+  public void setProgressListener(ProgressListener progressListener)
+  {
+    this.progressListener = progressListener;
+  }
+
+  /**
+   * Requests that an analysis running on another thread stop. The analysis
+   * throws CancellationException at its next check.
+   */
+
+  public void cancel()
+  {
+    isCancelled = true;
+  }
+
+  public boolean isCancelled()
+  {
+    return isCancelled;
+  }
+
+  private void checkCancelled()
+  {
+    if (isCancelled)
+    {
+      throw new CancellationException();
+    }
+  }
+
+  public enum Phase
+  {
+    INITIAL_TREE, GRAMMAR
+  }
+
+  public interface ProgressListener
+  {
+    public void onProgress(Phase phase, int completed, int total);
+  }
+
+  // Persistence (see AnalysisCache). Notes are written as their index in the
+  // channel's note order so that a tree can be restored against a newly loaded
+  // copy of the same Midi. Numbers are written as zig-zag variable length
+  // integers, which keeps the typical tree at a few bytes per node.
+
+  private static final int ROOT_NODE = 0;
+  private static final int NOTE_NODE = 1;
+  private static final int CHORD_NODE = 2;
+  private static final int PATTERN_NODE = 3;
+  private static final int MEASURE_NODE = 4;
+  private static final int GROUP_NODE = 5;
+
+  public void write(DataOutput output, AnalyzerNode root) throws IOException
+  {
+    int channel = ((RootNode)root).channel;
+    ArrayList<Note> notes = getChannelNotes(midi, channel);
+    IdentityHashMap<Note, Integer> noteIndexes = new IdentityHashMap<Note, Integer>(notes.size());
+    for (Note note : notes)
+    {
+      noteIndexes.put(note, noteIndexes.size());
+    }
+
+    writeVarLong(output, notes.size());
+    patternManager.write(output);
+    chordManager.write(output);
+    groupManager.write(output);
+    writeNode(output, root, noteIndexes);
+  }
+
+  public AnalyzerNode read(DataInput input, Midi midi, int channel) throws IOException
+  {
+    this.midi = midi;
+
+    ArrayList<Note> notes = getChannelNotes(midi, channel);
+    if (readVarLong(input) != notes.size())
+    {
+      throw new IOException("Analysis does not match channel notes");
+    }
+
+    patternManager.read(input);
+    chordManager.read(input);
+    groupManager.read(input);
+    return readNode(input, notes);
+  }
+
+  private ArrayList<Note> getChannelNotes(Midi midi, int channel)
+  {
+    ArrayList<Note> notes = new ArrayList<Note>();
+    for (Midel midel : midi.getMidels())
+    {
+      if (midel instanceof Note && midel.getChannel() == channel)
+      {
+        notes.add((Note)midel);
+      }
+    }
+    return notes;
+  }
+
+  private void writeNode(DataOutput output, AnalyzerNode node, IdentityHashMap<Note, Integer> noteIndexes) throws IOException
+  {
+    if (node instanceof NoteNode)
+    {
+      output.writeByte(NOTE_NODE);
+      writeVarLong(output, noteIndexes.get(((NoteNode)node).getNote()));
+      writeVarLong(output, node.getHashKey());
+      return;
+    }
+
+    if (node instanceof RootNode)
+    {
+      RootNode rootNode = (RootNode)node;
+      output.writeByte(ROOT_NODE);
+      writeVarLong(output, rootNode.channel);
+      writeVarLong(output, rootNode.noteCount);
+      output.writeBoolean(rootNode.isBuildGrammar);
+      output.writeBoolean(rootNode.isGroupByMeasure);
+      output.writeBoolean(rootNode.isGroupByGap);
+      writeVarLong(output, rootNode.minimumGroupSize);
+      writeVarLong(output, rootNode.percentAverageGap);
+    }
+    else if (node instanceof ChordNode)
+    {
+      output.writeByte(CHORD_NODE);
+      writeVarLong(output, ((ChordNode)node).chordNumber);
+    }
+    else if (node instanceof PatternNode)
+    {
+      PatternNode patternNode = (PatternNode)node;
+      output.writeByte(PATTERN_NODE);
+      writeVarLong(output, patternNode.patternNumber);
+      writeVarLong(output, patternNode.noteCount);
+    }
+    else if (node instanceof MeasureNode)
+    {
+      MeasureNode measureNode = (MeasureNode)node;
+      output.writeByte(MEASURE_NODE);
+      writeVarLong(output, measureNode.measureNumber);
+      writeVarLong(output, measureNode.noteCount);
+    }
+    else if (node instanceof GroupNode)
+    {
+      GroupNode groupNode = (GroupNode)node;
+      output.writeByte(GROUP_NODE);
+      writeVarLong(output, groupNode.groupNumber);
+      writeVarLong(output, groupNode.noteCount);
+    }
+    else
+    {
+      throw new IOException("Unexpected node type " + node.getClass().getName());
+    }
+
+    writeVarLong(output, node.hashKey);
+
+    int childCount = node.getChildCount();
+    writeVarLong(output, childCount);
+    for (int i = 0; i < childCount; i++)
+    {
+      writeNode(output, (AnalyzerNode)node.getChildAt(i), noteIndexes);
+    }
+  }
+
+  private AnalyzerNode readNode(DataInput input, ArrayList<Note> notes) throws IOException
+  {
+    int type = input.readByte();
+
+    if (type == NOTE_NODE)
+    {
+      int noteIndex = (int)readVarLong(input);
+      if (noteIndex < 0 || noteIndex >= notes.size())
+      {
+        throw new IOException("Note index out of range");
+      }
+      return new NoteNode(notes.get(noteIndex), readVarLong(input));
+    }
+
+    AnalyzerNode node;
+    switch (type)
+    {
+      case ROOT_NODE:
+        RootNode rootNode = new RootNode((int)readVarLong(input));
+        rootNode.noteCount = (int)readVarLong(input);
+        rootNode.isBuildGrammar = input.readBoolean();
+        rootNode.isGroupByMeasure = input.readBoolean();
+        rootNode.isGroupByGap = input.readBoolean();
+        rootNode.minimumGroupSize = (int)readVarLong(input);
+        rootNode.percentAverageGap = (int)readVarLong(input);
+        node = rootNode;
+        break;
+      case CHORD_NODE:
+        ChordNode chordNode = new ChordNode();
+        chordNode.chordNumber = (int)readVarLong(input);
+        node = chordNode;
+        break;
+      case PATTERN_NODE:
+        PatternNode patternNode = new PatternNode();
+        patternNode.patternNumber = (int)readVarLong(input);
+        patternNode.noteCount = (int)readVarLong(input);
+        node = patternNode;
+        break;
+      case MEASURE_NODE:
+        MeasureNode measureNode = new MeasureNode(readVarLong(input));
+        measureNode.noteCount = (int)readVarLong(input);
+        node = measureNode;
+        break;
+      case GROUP_NODE:
+        GroupNode groupNode = new GroupNode();
+        groupNode.groupNumber = (int)readVarLong(input);
+        groupNode.noteCount = (int)readVarLong(input);
+        node = groupNode;
+        break;
+      default:
+        throw new IOException("Unexpected node type " + type);
+    }
+
+    node.setHashKey(readVarLong(input));
+
+    int childCount = (int)readVarLong(input);
+    for (int i = 0; i < childCount; i++)
+    {
+      node.add(readNode(input, notes));
+    }
+
+    if (node instanceof ChordNode)
+    {
+      ChordNode chordNode = (ChordNode)node;
+      chordNode.chordName = getChordName(chordNode.getNotes());
+    }
+
+    return node;
+  }
+
+  private static void writeVarLong(DataOutput output, long value) throws IOException
+  {
+    long zigZag = (value << 1) ^ (value >> 63);
+    while ((zigZag & ~0x7fL) != 0)
+    {
+      output.writeByte((int)((zigZag & 0x7f) | 0x80));
+      zigZag >>>= 7;
+    }
+    output.writeByte((int)zigZag);
+  }
+
+  private static long readVarLong(DataInput input) throws IOException
+  {
+    long zigZag = 0;
+    for (int shift = 0; shift < 64; shift += 7)
+    {
+      int b = input.readByte();
+      zigZag |= (long)(b & 0x7f) << shift;
+      if ((b & 0x80) == 0)
+      {
+        return (zigZag >>> 1) ^ -(zigZag & 1);
+      }
+    }
+    throw new IOException("Malformed variable length integer");
+  }
+
   private class IdentityManager
   {
-    private int count;
-    private HashMap<Long, Integer> map = new HashMap<Long, Integer>();
-    private IntegerArray frequency = new IntegerArray();
+    private LongIdentityMap map = new LongIdentityMap();
 
     private int find(AnalyzerNode parentNode, long hashKey)
     {
-      int index;
-      Integer value = map.get(hashKey);
-      if (value == null)
+      return map.find(hashKey); // All IdentityManagers start at one
+    }
+
+    public int getFrequency(int index)
+    {
+      return map.getFrequency(index);
+    }
+
+    private void release(int index)
+    {
+      int frequency = map.getFrequency(index);
+      if (frequency > 0)
       {
-        index = ++count; // All IdentityManagers start at one
-        map.put(hashKey, index);
-        frequency.set(index, 1);
+        map.setFrequency(index, frequency - 1);
       }
-      else
+    }
+
+    private void clear()
+    {
+      map.clear();
+    }
+
+    private void write(DataOutput output) throws IOException
+    {
+      int size = map.size();
+      writeVarLong(output, size);
+      for (int i = 1; i <= size; i++)
       {
-        index = value.intValue();
-        int occurrences = frequency.get(index);
-        occurrences++;
-        frequency.set(index, occurrences);
+        writeVarLong(output, map.getKey(i));
+        writeVarLong(output, map.getFrequency(i));
       }
-      return index;
     }
 
-    public int getFrequency(int index)
+    private void read(DataInput input) throws IOException
     {
-      return frequency.get(index);
+      map.clear();
+      int size = (int)readVarLong(input);
+      for (int i = 1; i <= size; i++)
+      {
+        long hashKey = readVarLong(input);
+        int frequency = (int)readVarLong(input);
+        map.find(hashKey);
+        map.setFrequency(i, frequency);
+      }
     }
 
   }
@@ -670,27 +1242,6 @@ public class Analyzer
     return chordSuffix.toString();
   }
 
-  private class IntegerArray
-  {
-    int[] values = new int[ARRAY_SIZE_INCREMENT];
-
-    public void set(int index, int value)
-    {
-      if (index >= values.length)
-      {
-        int newLength = ((values.length + ARRAY_SIZE_INCREMENT) / ARRAY_SIZE_INCREMENT) * ARRAY_SIZE_INCREMENT;
-        values = Arrays.copyOf(values, newLength);
-      }
-      values[index] = value;
-    }
-
-    public int get(int index)
-    {
-      return values[index];
-    }
-
-  }
-
   public class AnalyzerNode extends DefaultMutableTreeNode
   {
     private long hashKey;
@@ -723,6 +1274,11 @@ public class Analyzer
       this.hashKey = hashKey;
     }
 
+    public Analyzer getAnalyzer()
+    {
+      return Analyzer.this;
+    }
+
     public long calculateHashKey()
     {
       int sequenceNumber = 1;
@@ -843,6 +1399,12 @@ public class Analyzer
       setHashKey(hashKey);
     }
 
+    private NoteNode(Note note, long hashKey)
+    {
+      super(note);
+      setHashKey(hashKey);
+    }
+
     @Override
     public long calculateHashKey()
     {
@@ -867,7 +1429,7 @@ public class Analyzer
 
   }
 
-  private class ChordNode extends AnalyzerNode
+  class ChordNode extends AnalyzerNode
   {
     private int chordNumber;
     private String chordName;
@@ -917,6 +1479,13 @@ public class Analyzer
     private int channel;
     private int noteCount;
 
+    // The settings the tree was built with, which reanalyze uses to update it
+    private boolean isBuildGrammar;
+    private boolean isGroupByMeasure;
+    private boolean isGroupByGap;
+    private int minimumGroupSize;
+    private int percentAverageGap;
+
     private RootNode(int channel)
     {
       this.channel = channel;
@@ -0,0 +1,554 @@
+// Copyright 2007 Anthony F. Stuart - All rights reserved.
+//
+// This program and the accompanying materials are made available
+// under the terms of the GNU General Public License. For other license
+// options please contact the copyright owner.
+//
+// This program is made available on an "as is" basis, without
+// warranties or conditions of any kind, either express or implied.
+
+package com.riffcrafter.studio.app;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.riffcrafter.common.midi.Channel;
+import com.riffcrafter.common.midi.Instruments;
+import com.riffcrafter.common.midi.Midi;
+import com.riffcrafter.common.midi.Statistics;
+import com.riffcrafter.common.midi.Midi.KeyScore;
+import com.riffcrafter.studio.app.Analyzer.AnalyzerNode;
+
+/**
+ * Headless entry point that runs structure and key analysis over every MIDI
+ * file in a directory tree and writes one result per file (JSON Lines) or per
+ * channel (CSV). Nothing here touches AWT, so it can run on a server without
+ * a display. Files are analyzed by a bounded pool of worker threads and a
+ * failure in one file is reported in its result without stopping the run.
+ */
+
+public class BatchAnalyzer
+{
+  private static final String USAGE = "Usage: java BatchAnalyzer [--threads=n] [--format=jsonl|csv] [--output=file] [--group-by=measure|gap|none] [--minimum-group-size=n] [--percent-average-gap=n] [--no-grammar] directory";
+
+  private static final String FORMAT_JSONL = "jsonl";
+  private static final String FORMAT_CSV = "csv";
+
+  private static final int MINIMUM_KEY_CONFIDENCE = 50;
+  private static final int PROGRESS_INTERVAL = 1000;
+  private static final int QUEUED_FILES_PER_THREAD = 4;
+
+  private int threadCount = Runtime.getRuntime().availableProcessors();
+  private String format = FORMAT_JSONL;
+  private String outputFileName;
+  private boolean isBuildGrammar = true;
+  private boolean isGroupByMeasure = true;
+  private boolean isGroupByGap = false;
+  private int minimumGroupSize = 5;
+  private int percentAverageGap = 200;
+  private File directory;
+
+  private Writer writer;
+  private AtomicInteger fileCount = new AtomicInteger();
+  private AtomicInteger errorCount = new AtomicInteger();
+  private LatencyStatistics latencyStatistics = new LatencyStatistics();
+
+  public static void main(String[] args) throws Exception
+  {
+    System.setProperty("java.awt.headless", "true");
+    BatchAnalyzer batchAnalyzer = new BatchAnalyzer();
+    batchAnalyzer.processArguments(args);
+    batchAnalyzer.run();
+  }
+
+  public void processArguments(String[] args)
+  {
+    for (int i = 0; i < args.length; i++)
+    {
+      String arg = args[i];
+      if (arg.startsWith("--threads="))
+      {
+        threadCount = Integer.parseInt(getValue(arg));
+      }
+      else if (arg.startsWith("--format="))
+      {
+        format = getValue(arg);
+        if (!format.equals(FORMAT_JSONL) && !format.equals(FORMAT_CSV))
+        {
+          usage();
+        }
+      }
+      else if (arg.startsWith("--output="))
+      {
+        outputFileName = getValue(arg);
+      }
+      else if (arg.startsWith("--group-by="))
+      {
+        String groupBy = getValue(arg);
+        isGroupByMeasure = groupBy.equals("measure");
+        isGroupByGap = groupBy.equals("gap");
+        if (!isGroupByMeasure && !isGroupByGap && !groupBy.equals("none"))
+        {
+          usage();
+        }
+      }
+      else if (arg.startsWith("--minimum-group-size="))
+      {
+        minimumGroupSize = Integer.parseInt(getValue(arg));
+      }
+      else if (arg.startsWith("--percent-average-gap="))
+      {
+        percentAverageGap = Integer.parseInt(getValue(arg));
+      }
+      else if (arg.equals("--no-grammar"))
+      {
+        isBuildGrammar = false;
+      }
+      else if (arg.startsWith("--") || directory != null)
+      {
+        usage();
+      }
+      else
+      {
+        directory = new File(arg);
+      }
+    }
+
+    if (directory == null || !directory.isDirectory() || threadCount < 1)
+    {
+      usage();
+    }
+  }
+
+  private String getValue(String arg)
+  {
+    return arg.substring(arg.indexOf('=') + 1);
+  }
+
+  private void usage()
+  {
+    System.err.println(USAGE);
+    System.exit(1);
+  }
+
+  public void run() throws IOException, InterruptedException
+  {
+    OutputStream outputStream = System.out;
+    if (outputFileName != null)
+    {
+      outputStream = new FileOutputStream(outputFileName);
+    }
+
+    // Keep diagnostics printed by the midi library out of the results
+    PrintStream standardOutput = System.out;
+    System.setOut(System.err);
+
+    writer = new BufferedWriter(new OutputStreamWriter(outputStream, "UTF-8"));
+    if (format.equals(FORMAT_CSV))
+    {
+      writer.write("file,channel,notes,chords,measures,groups,patterns,lowestKey,highestKey,averageKey,key,relativeKey,confidence,millis,error\n");
+    }
+
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(threadCount, threadCount, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(threadCount * QUEUED_FILES_PER_THREAD), new ThreadPoolExecutor.CallerRunsPolicy());
+
+    long startTime = System.nanoTime();
+
+    submit(executor, directory);
+
+    executor.shutdown();
+    executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+
+    long elapsedNanos = System.nanoTime() - startTime;
+
+    writer.flush();
+    if (outputFileName != null)
+    {
+      writer.close();
+    }
+
+    System.setOut(standardOutput);
+
+    int files = fileCount.get();
+    double elapsedSeconds = elapsedNanos / 1e9;
+    System.err.printf("Analyzed %d files (%d errors) in %.1f s using %d threads, %.1f files/s\n", files, errorCount.get(), elapsedSeconds, threadCount, files / Math.max(elapsedSeconds, 1e-9));
+    System.err.println(latencyStatistics);
+  }
+
+  private void submit(ThreadPoolExecutor executor, File directory)
+  {
+    File[] files = directory.listFiles();
+    if (files == null)
+    {
+      return;
+    }
+
+    Arrays.sort(files);
+
+    for (File file : files)
+    {
+      if (file.isDirectory())
+      {
+        submit(executor, file);
+      }
+      else if (isMidiFile(file))
+      {
+        executor.execute(new FileAnalysisTask(file));
+      }
+    }
+  }
+
+  private boolean isMidiFile(File file)
+  {
+    String name = file.getName().toLowerCase();
+    return name.endsWith(".mid") || name.endsWith(".midi") || name.endsWith(".kar");
+  }
+
+  private FileResult analyze(File file)
+  {
+    FileResult fileResult = new FileResult(file);
+    long startTime = System.nanoTime();
+    try
+    {
+      Midi midi = new Midi(file.getPath());
+      for (int channel : midi.getActiveChannels())
+      {
+        fileResult.channelResults.add(analyze(midi, channel));
+      }
+    }
+    catch (Throwable t)
+    {
+      // Isolate the failure to this file (including StackOverflowError from deeply nested grammars)
+      fileResult.error = t.toString();
+    }
+    fileResult.elapsedNanos = System.nanoTime() - startTime;
+    return fileResult;
+  }
+
+  private ChannelResult analyze(Midi midi, int channel)
+  {
+    Analyzer analyzer = new Analyzer();
+    AnalyzerNode root = analyzer.createInitialTree(midi, channel, isGroupByMeasure, isGroupByGap, minimumGroupSize, percentAverageGap);
+    if (isBuildGrammar)
+    {
+      analyzer.buildGrammar(root);
+    }
+
+    ChannelResult channelResult = new ChannelResult(channel);
+
+    Enumeration<?> enumeration = root.depthFirstEnumeration();
+    while (enumeration.hasMoreElements())
+    {
+      Object node = enumeration.nextElement();
+      if (node instanceof Analyzer.NoteNode)
+      {
+        channelResult.noteCount++;
+      }
+      else if (node instanceof Analyzer.ChordNode)
+      {
+        channelResult.chordCount++;
+      }
+      else if (node instanceof Analyzer.MeasureNode)
+      {
+        channelResult.measureCount++;
+      }
+      else if (node instanceof Analyzer.GroupNode)
+      {
+        channelResult.groupCount++;
+      }
+      else if (node instanceof Analyzer.PatternNode)
+      {
+        channelResult.patternCount++;
+      }
+    }
+
+    Statistics statistics = midi.getStatistics(channel);
+    channelResult.lowestKey = statistics.getLowestKey();
+    channelResult.highestKey = statistics.getHighestKey();
+    channelResult.averageKey = statistics.getAverageKey();
+
+    if (channel != Instruments.DRUM_CHANNEL)
+    {
+      ArrayList<KeyScore> keyScores = root.getMidi().getKeyScores(MINIMUM_KEY_CONFIDENCE);
+      if (keyScores.size() > 0)
+      {
+        channelResult.keyScore = keyScores.get(0);
+      }
+    }
+
+    return channelResult;
+  }
+
+  private void write(FileResult fileResult) throws IOException
+  {
+    String text = format.equals(FORMAT_CSV) ? fileResult.toCsv() : fileResult.toJson();
+    synchronized (writer)
+    {
+      writer.write(text);
+    }
+  }
+
+  private static String escapeJson(String value)
+  {
+    StringBuilder buffer = new StringBuilder(value.length() + 2);
+    buffer.append('"');
+    for (int i = 0; i < value.length(); i++)
+    {
+      char c = value.charAt(i);
+      switch (c)
+      {
+        case '"':
+          buffer.append("\\\"");
+          break;
+        case '\\':
+          buffer.append("\\\\");
+          break;
+        case '\n':
+          buffer.append("\\n");
+          break;
+        case '\r':
+          buffer.append("\\r");
+          break;
+        case '\t':
+          buffer.append("\\t");
+          break;
+        default:
+          if (c < ' ')
+          {
+            buffer.append(String.format("\\u%04x", (int)c));
+          }
+          else
+          {
+            buffer.append(c);
+          }
+      }
+    }
+    buffer.append('"');
+    return buffer.toString();
+  }
+
+  private static String escapeCsv(String value)
+  {
+    if (value.indexOf(',') == -1 && value.indexOf('"') == -1 && value.indexOf('\n') == -1 && value.indexOf('\r') == -1)
+    {
+      return value;
+    }
+    return "\"" + value.replace("\"", "\"\"") + "\"";
+  }
+
+  private class FileAnalysisTask implements Runnable
+  {
+    private File file;
+
+    private FileAnalysisTask(File file)
+    {
+      this.file = file;
+    }
+
+    public void run()
+    {
+      FileResult fileResult = analyze(file);
+      latencyStatistics.add(fileResult.elapsedNanos);
+      if (fileResult.error != null)
+      {
+        errorCount.incrementAndGet();
+      }
+      try
+      {
+        write(fileResult);
+      }
+      catch (IOException e)
+      {
+        throw new RuntimeException(e);
+      }
+      int count = fileCount.incrementAndGet();
+      if (count % PROGRESS_INTERVAL == 0)
+      {
+        System.err.println("Analyzed " + count + " files, " + errorCount.get() + " errors");
+      }
+    }
+  }
+
+  private static class FileResult
+  {
+    private File file;
+    private long elapsedNanos;
+    private String error;
+    private ArrayList<ChannelResult> channelResults = new ArrayList<ChannelResult>();
+
+    private FileResult(File file)
+    {
+      this.file = file;
+    }
+
+    private long getElapsedMillis()
+    {
+      return elapsedNanos / 1000000;
+    }
+
+    private String toJson()
+    {
+      StringBuilder buffer = new StringBuilder();
+      buffer.append("{\"file\":");
+      buffer.append(escapeJson(file.getPath()));
+      buffer.append(",\"millis\":");
+      buffer.append(getElapsedMillis());
+      if (error != null)
+      {
+        buffer.append(",\"error\":");
+        buffer.append(escapeJson(error));
+      }
+      buffer.append(",\"channels\":[");
+      for (int i = 0; i < channelResults.size(); i++)
+      {
+        if (i > 0)
+        {
+          buffer.append(',');
+        }
+        channelResults.get(i).appendJson(buffer);
+      }
+      buffer.append("]}\n");
+      return buffer.toString();
+    }
+
+    private String toCsv()
+    {
+      StringBuilder buffer = new StringBuilder();
+      String fileName = escapeCsv(file.getPath());
+      for (ChannelResult channelResult : channelResults)
+      {
+        buffer.append(fileName);
+        buffer.append(',');
+        channelResult.appendCsv(buffer);
+        buffer.append(',');
+        buffer.append(getElapsedMillis());
+        buffer.append(",\n");
+      }
+      if (error != null)
+      {
+        buffer.append(fileName);
+        buffer.append(",,,,,,,,,,,,,");
+        buffer.append(getElapsedMillis());
+        buffer.append(',');
+        buffer.append(escapeCsv(error));
+        buffer.append('\n');
+      }
+      return buffer.toString();
+    }
+  }
+
+  private static class ChannelResult
+  {
+    private int channel;
+    private int noteCount;
+    private int chordCount;
+    private int measureCount;
+    private int groupCount;
+    private int patternCount;
+    private int lowestKey;
+    private int highestKey;
+    private int averageKey;
+    private KeyScore keyScore;
+
+    private ChannelResult(int channel)
+    {
+      this.channel = channel;
+    }
+
+    private void appendJson(StringBuilder buffer)
+    {
+      buffer.append("{\"channel\":").append(Channel.getChannelNumber(channel));
+      buffer.append(",\"notes\":").append(noteCount);
+      buffer.append(",\"chords\":").append(chordCount);
+      buffer.append(",\"measures\":").append(measureCount);
+      buffer.append(",\"groups\":").append(groupCount);
+      buffer.append(",\"patterns\":").append(patternCount);
+      buffer.append(",\"lowestKey\":").append(lowestKey);
+      buffer.append(",\"highestKey\":").append(highestKey);
+      buffer.append(",\"averageKey\":").append(averageKey);
+      if (keyScore != null)
+      {
+        buffer.append(",\"key\":").append(escapeJson(keyScore.getKey()));
+        buffer.append(",\"relativeKey\":").append(escapeJson(keyScore.getRelativeKey()));
+        buffer.append(",\"confidence\":").append(keyScore.getConfidence());
+      }
+      buffer.append('}');
+    }
+
+    private void appendCsv(StringBuilder buffer)
+    {
+      buffer.append(Channel.getChannelNumber(channel)).append(',');
+      buffer.append(noteCount).append(',');
+      buffer.append(chordCount).append(',');
+      buffer.append(measureCount).append(',');
+      buffer.append(groupCount).append(',');
+      buffer.append(patternCount).append(',');
+      buffer.append(lowestKey).append(',');
+      buffer.append(highestKey).append(',');
+      buffer.append(averageKey).append(',');
+      if (keyScore != null)
+      {
+        buffer.append(escapeCsv(keyScore.getKey())).append(',');
+        buffer.append(escapeCsv(keyScore.getRelativeKey())).append(',');
+        buffer.append(keyScore.getConfidence());
+      }
+      else
+      {
+        buffer.append(",,");
+      }
+    }
+  }
+
+  private static class LatencyStatistics
+  {
+    private long[] latencies = new long[1024];
+    private int count;
+
+    private synchronized void add(long nanos)
+    {
+      if (count == latencies.length)
+      {
+        latencies = Arrays.copyOf(latencies, count * 2);
+      }
+      latencies[count++] = nanos;
+    }
+
+    private long getPercentile(long[] sortedLatencies, int percentile)
+    {
+      int index = (int)(((long)(sortedLatencies.length - 1) * percentile) / 100);
+      return sortedLatencies[index] / 1000000;
+    }
+
+    public synchronized String toString()
+    {
+      if (count == 0)
+      {
+        return "Latency: no files analyzed";
+      }
+
+      long[] sortedLatencies = Arrays.copyOf(latencies, count);
+      Arrays.sort(sortedLatencies);
+
+      long total = 0;
+      for (long latency : sortedLatencies)
+      {
+        total += latency;
+      }
+
+      return "Latency (ms): mean=" + ((total / count) / 1000000) + ", p50=" + getPercentile(sortedLatencies, 50) + ", p95=" + getPercentile(sortedLatencies, 95) + ", p99=" + getPercentile(sortedLatencies, 99) + ", max=" + getPercentile(sortedLatencies, 100);
+    }
+  }
+
+}
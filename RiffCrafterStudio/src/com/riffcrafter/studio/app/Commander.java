@@ -10,6 +10,7 @@
 package com.riffcrafter.studio.app;
 
 import com.riffcrafter.common.midi.Channel;
+import com.riffcrafter.common.midi.MeasureMap;
 import com.riffcrafter.common.midi.Midi;
 import com.riffcrafter.common.midi.Note;
 
@@ -184,15 +185,15 @@ public class Commander
 
   private long resolveMeasure(Editor editor, Token token)
   {
-    long ticksPerMeasure = editor.findTicksPerMeasure(tick);
-    long measure = (tick / ticksPerMeasure);
+    MeasureMap measureMap = editor.getMeasureMap();
+    long measure = measureMap.getMeasure(tick);
     measure = resolve(token, measure);
-    long lastMeasure = (editor.getMaxTick() / ticksPerMeasure) + 4;
+    long lastMeasure = measureMap.getMeasure(editor.getMaxTick()) + 4;
     if (measure < 0 || measure > lastMeasure)
     {
       throw new RuntimeException("Expected measure in range 0 through " + lastMeasure + ", received " + measure);
     }
-    tick = measure * ticksPerMeasure;
+    tick = measureMap.getMeasureTick(measure);
     return tick; // only return it if valid
   }
 
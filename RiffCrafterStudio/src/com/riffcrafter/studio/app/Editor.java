@@ -11,6 +11,7 @@ package com.riffcrafter.studio.app;
 
 import java.awt.BorderLayout;
 import java.awt.Component;
+import java.awt.EventQueue;
 import java.awt.Rectangle;
 import java.awt.Toolkit;
 import java.awt.datatransfer.Clipboard;
@@ -22,17 +23,21 @@ import java.awt.event.AdjustmentEvent;
 import java.io.File;
 import java.util.Arrays;
 
+import javax.sound.midi.Receiver;
 import javax.sound.midi.Sequence;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JTabbedPane;
+import javax.swing.filechooser.FileNameExtensionFilter;
 import javax.swing.tree.TreePath;
 
 import com.riffcrafter.common.midi.Catcher;
+import com.riffcrafter.common.midi.MeasureMap;
 import com.riffcrafter.common.midi.Midel;
 import com.riffcrafter.common.midi.Midi;
 import com.riffcrafter.common.midi.MidiConstants;
 import com.riffcrafter.common.midi.Note;
+import com.riffcrafter.common.midi.TimeSignatureChange;
 import com.riffcrafter.common.midi.Midi.MidiListener;
 import com.riffcrafter.library.dialog.GridBagPanel;
 import com.riffcrafter.library.util.Broker;
@@ -42,6 +47,7 @@ import com.riffcrafter.studio.app.Analyzer.AnalyzerNode;
 import com.riffcrafter.studio.dialog.CommonDialog;
 import com.riffcrafter.studio.dialog.KeyboardInputPanel;
 import com.riffcrafter.studio.dialog.FileDialog.SaveDialog;
+import com.riffcrafter.studio.midi.AudioRenderer;
 import com.riffcrafter.studio.midi.StaffNotator;
 import com.riffcrafter.studio.midi.GraphicalNotator;
 import com.riffcrafter.studio.midi.Notator;
@@ -55,6 +61,8 @@ import com.riffcrafter.studio.undo.UndoableRemove;
 
 public class Editor extends JPanel
 {
+  private static final long NO_CHANGE = -1;
+
   private String fileName;
   private Midi midi;
 
@@ -90,9 +98,14 @@ public class Editor extends JPanel
   private boolean isSolo[] = new boolean[MidiConstants.MAX_CHANNELS];
   private AnalyzerNode channelAnalysis[] = new AnalyzerNode[MidiConstants.MAX_CHANNELS];
   private TreePath channelAnalysisSelection[] = new TreePath[MidiConstants.MAX_CHANNELS];
+  private long channelAnalysisFirstChangedTick[] = new long[MidiConstants.MAX_CHANNELS];
+  private long channelAnalysisLastChangedTick[] = new long[MidiConstants.MAX_CHANNELS];
   private GridBagPanel graphicalNotatorPanel;
   private GridBagPanel staffNotatorPanel;
   private Tabulator tabulator;
+  private long loopRegionStart = -1;
+  private long loopRegionEnd = -1;
+  private boolean isPlayingWholeSequence;
 
   public Editor(Studio studio)
   {
@@ -102,6 +115,7 @@ public class Editor extends JPanel
     Arrays.fill(velocity, KeyboardInputPanel.DEFAULT_VELOCITY);
     Arrays.fill(duration, KeyboardInputPanel.DEFAULT_DURATION);
     Arrays.fill(articulation, KeyboardInputPanel.DEFAULT_ARTICULATION);
+    Arrays.fill(channelAnalysisFirstChangedTick, NO_CHANGE);
   }
 
   /**
@@ -120,6 +134,7 @@ public class Editor extends JPanel
   public void openFile(String fileName)
   {
     midi = new Midi(fileName);
+    studio.getPlayer().preload(midi.getPrograms());
     initialize();
     open(fileName);
     selectLowestChannel();
@@ -224,10 +239,22 @@ public class Editor extends JPanel
     {
       saveAs();
     }
+    else if (command.equals("ExportAudio"))
+    {
+      exportAudio(false);
+    }
+    else if (command.equals("ExportAudioStems"))
+    {
+      exportAudio(true);
+    }
     else if (command.equals("Close"))
     {
       close();
     }
+    else if (command.equals("LoopSelection"))
+    {
+      loopSelection();
+    }
     else if (command.equals("Begin"))
     {
       setCurrentTick(0);
@@ -425,6 +452,71 @@ public class Editor extends JPanel
     return save();
   }
 
+  /**
+   * Renders the file to a WAV file in one pass, or if isStems is true, each
+   * channel to its own WAV file beside it, named name-channel-N.wav, on as
+   * many threads as there are processors.
+   */
+
+  private void exportAudio(final boolean isStems)
+  {
+    SaveDialog saveDialog = new SaveDialog(this);
+    saveDialog.setFileFilter(new FileNameExtensionFilter(Resources.get("Editor.ExportAudio.Description"), "wav"));
+    String fileName = saveDialog.showDialog();
+    if (fileName == null)
+    {
+      return;
+    }
+    if (!fileName.toLowerCase().endsWith(".wav"))
+    {
+      fileName += ".wav";
+    }
+
+    final File file = new File(fileName);
+    final Sequence sequence = midi.toSequence();
+    final AudioRenderer audioRenderer = new AudioRenderer();
+    audioRenderer.synchronize(this);
+
+    Thread thread = new Thread(new Runnable()
+    {
+      public void run()
+      {
+        String message;
+        try
+        {
+          long startTime = System.currentTimeMillis();
+          if (isStems)
+          {
+            String baseName = file.getName().substring(0, file.getName().length() - ".wav".length());
+            int stemCount = audioRenderer.renderStems(sequence, file.getAbsoluteFile().getParentFile(), baseName, Runtime.getRuntime().availableProcessors()).size();
+            long elapsedTime = System.currentTimeMillis() - startTime;
+            message = Resources.format("Editor.ExportAudio.StemsDone", stemCount, file, elapsedTime / 1000.0);
+          }
+          else
+          {
+            audioRenderer.render(sequence, file);
+            long elapsedTime = System.currentTimeMillis() - startTime;
+            message = Resources.format("Editor.ExportAudio.Done", file, elapsedTime / 1000.0);
+          }
+        }
+        catch (RuntimeException e)
+        {
+          Throwable cause = e.getCause() == null ? e : e.getCause();
+          message = Resources.format("Editor.ExportAudio.Failed", file, cause.getMessage());
+        }
+        final String finalMessage = message;
+        EventQueue.invokeLater(new Runnable()
+        {
+          public void run()
+          {
+            CommonDialog.showOkay(Editor.this, finalMessage);
+          }
+        });
+      }
+    }, "ExportAudio");
+    thread.start();
+  }
+
   private void cut()
   {
     copy();
@@ -511,40 +603,121 @@ public class Editor extends JPanel
 
     player.stop();
 
-    long tickPosition;
-    Sequence sequence;
-
     Midi selection = getSelection();
     if (studio.isSelection() && selection != null && selection.size() > 0)
     {
-      tickPosition = selection.getFirstTick();
-      sequence = selection.toSequence();
+      playSelection(selection, bridger);
     }
     else
     {
-      tickPosition = getCurrentTick();
-      sequence = midi.toSequence();
+      isPlayingWholeSequence = true;
+      player.play(midi.getPlaybackSequence(), getCurrentTick(), this, bridger, loopRegionStart, loopRegionEnd);
     }
+  }
+
+  /**
+   * Loops the region covered by the selection, rounded out to measures if
+   * round to measure is on, or stops looping a region if nothing is
+   * selected. The region applies only when playing the whole sequence, not
+   * to playing or auditioning a selection, and can be changed while playing.
+   */
 
-    player.play(sequence, tickPosition, this, bridger);
+  public void loopSelection()
+  {
+    Midi selection = getSelection();
+    if (selection == null || selection.size() == 0)
+    {
+      loopRegionStart = -1;
+      loopRegionEnd = -1;
+    }
+    else
+    {
+      loopRegionStart = selection.getFirstTick();
+      loopRegionEnd = selection.getMaxTick();
+      if (studio.isRoundToMeasure())
+      {
+        MeasureMap measureMap = midi.getMeasureMap();
+        loopRegionStart = measureMap.getMeasureStart(loopRegionStart);
+        loopRegionEnd = measureMap.roundUp(loopRegionEnd);
+      }
+    }
+    Player player = studio.getPlayer();
+    if (isPlayingWholeSequence && player.isPlaying(this))
+    {
+      player.setLoopRegion(loopRegionStart, loopRegionEnd);
+    }
   }
 
   public void playVisual(Midi midi)
   {
-    Player player = studio.getPlayer();
-    player.stop();
-    long tickPosition = midi.getFirstTick();
-    Sequence sequence = midi.toSequence();
-    player.play(sequence, tickPosition, this, bridger);
+    studio.getPlayer().stop();
+    playSelection(midi, bridger);
   }
 
   public void play(Midi midi)
+  {
+    studio.getPlayer().stop();
+    playSelection(midi, null);
+  }
+
+  /**
+   * Plays a selection, or other part of the file, from the playback
+   * Sequence of the whole file if it consists of all of the notes on its
+   * channels from its first tick up to its max tick, as a selection of a
+   * range of measures does, and otherwise from a Sequence of its own.
+   * A selection is a new Midi each time, so a Sequence of its own is built
+   * from scratch, and only the first case benefits from the playback cache.
+   */
+
+  private void playSelection(Midi selection, Bridger bridger)
   {
     Player player = studio.getPlayer();
-    player.stop();
-    long tickPosition = midi.getFirstTick();
-    Sequence sequence = midi.toSequence();
-    player.play(sequence, tickPosition, this, null);
+    isPlayingWholeSequence = false;
+    long firstTick = selection.getFirstTick();
+    int channelMask = getRangeChannelMask(selection);
+    if (channelMask != 0)
+    {
+      player.playRange(midi.getPlaybackSequence(), firstTick, selection.getMaxTick(), channelMask, this, bridger);
+    }
+    else
+    {
+      player.play(selection.getPlaybackSequence(), firstTick, this, bridger);
+    }
+  }
+
+  /**
+   * Returns the channels of the selection, one bit per channel, if its
+   * notes are in the file and are all of the notes on those channels from
+   * its first tick up to its max tick, or 0 if not.
+   */
+
+  private int getRangeChannelMask(Midi selection)
+  {
+    int channelMask = 0;
+    int noteCount = 0;
+    for (Midel midel : selection.getMidels())
+    {
+      if (!midi.contains(midel))
+      {
+        return 0;
+      }
+      if (midel instanceof Note)
+      {
+        channelMask |= 1 << midel.getChannel();
+        noteCount++;
+      }
+    }
+    long maxTick = selection.getMaxTick();
+    Midel midel = midi.ceiling(new Midel(selection.getFirstTick(), Midel.LOWEST_IN_SEQUENCE));
+    while (midel != null && midel.getTick() < maxTick)
+    {
+      if (midel instanceof Note && (channelMask & (1 << midel.getChannel())) != 0 && --noteCount < 0)
+      {
+        return 0;
+      }
+      midel = midi.getNext(midel);
+    }
+    return channelMask;
   }
 
   public void rest(long duration)
@@ -554,9 +727,14 @@ public class Editor extends JPanel
     setCurrentTick(tick);
   }
 
-  public void play(int channel, int key, int velocity)
+  public Receiver getThruReceiver()
   {
-    studio.getPlayer().play(this, channel, key, velocity);
+    return studio.getPlayer().getThruReceiver(this);
+  }
+
+  public void play(int channel, int key, int velocity, long pressNanos)
+  {
+    studio.getPlayer().play(this, channel, key, velocity, pressNanos);
   }
 
   public void stop(int channel, int key)
@@ -670,6 +848,11 @@ public class Editor extends JPanel
     return midi.findTicksPerMeasure(tick);
   }
 
+  public MeasureMap getMeasureMap()
+  {
+    return midi.getMeasureMap();
+  }
+
   public void pasteRelative(Midi sourceMidi)
   {
     pasteRelative(sourceMidi, true);
@@ -707,9 +890,7 @@ public class Editor extends JPanel
       long nextTick = currentTick + sourceMidiLength;
       if (isFillToMeasure)
       {
-        int ticksPerMeasure = midi.findTicksPerMeasure(currentTick);
-        long nextMeasure = (nextTick + ticksPerMeasure - 1) / ticksPerMeasure;
-        nextTick = nextMeasure * ticksPerMeasure;
+        nextTick = midi.getMeasureMap().roundUp(nextTick);
       }
       setCurrentTick(nextTick);
     }
@@ -870,7 +1051,9 @@ public class Editor extends JPanel
   {
     long tick = getCurrentTick();
     midi.changeProgram(channel, tick, program, isUpdate);
-    studio.getPlayer().getSynthesizer().getChannels()[channel].programChange(program);
+    Player player = studio.getPlayer();
+    player.preload(new int[] { program });
+    player.setProgram(channel, program);
   }
 
   public int getVelocity(int channel)
@@ -929,7 +1112,7 @@ public class Editor extends JPanel
   {
     for (int i = 0; i < channelAnalysis.length; i++)
     {
-      channelAnalysis[i] = null;
+      setChannelAnalysis(i, null);
     }
   }
 
@@ -941,6 +1124,60 @@ public class Editor extends JPanel
   public void setChannelAnalysis(int channel, AnalyzerNode root)
   {
     channelAnalysis[channel] = root;
+    channelAnalysisFirstChangedTick[channel] = NO_CHANGE;
+  }
+
+  /**
+   * Returns true if notes in the channel have changed since its analysis
+   * was set. The changed ticks are available to update it incrementally.
+   */
+
+  public boolean isChannelAnalysisChanged(int channel)
+  {
+    return channelAnalysisFirstChangedTick[channel] != NO_CHANGE;
+  }
+
+  public long getChannelAnalysisFirstChangedTick(int channel)
+  {
+    return channelAnalysisFirstChangedTick[channel];
+  }
+
+  public long getChannelAnalysisLastChangedTick(int channel)
+  {
+    return channelAnalysisLastChangedTick[channel];
+  }
+
+  private void recordAnalysisChange(Midel midel)
+  {
+    if (midel instanceof Note)
+    {
+      // The analysis of a channel draws on the notes of the whole Midi, so a
+      // change in one channel marks every analysis as changed over its ticks
+      Note note = (Note)midel;
+      long firstTick = note.getTick();
+      long lastTick = firstTick + note.getDuration();
+      for (int channel = 0; channel < channelAnalysis.length; channel++)
+      {
+        if (channelAnalysis[channel] != null)
+        {
+          if (channelAnalysisFirstChangedTick[channel] == NO_CHANGE)
+          {
+            channelAnalysisFirstChangedTick[channel] = firstTick;
+            channelAnalysisLastChangedTick[channel] = lastTick;
+          }
+          else
+          {
+            channelAnalysisFirstChangedTick[channel] = Math.min(channelAnalysisFirstChangedTick[channel], firstTick);
+            channelAnalysisLastChangedTick[channel] = Math.max(channelAnalysisLastChangedTick[channel], lastTick);
+          }
+        }
+      }
+    }
+    else if (midel instanceof TimeSignatureChange)
+    {
+      // Measures move in every channel
+      clearAllAnalysis();
+    }
   }
 
   public TreePath getChannelAnalysisSelection(int channel)
@@ -959,6 +1196,7 @@ public class Editor extends JPanel
     public void onAddMidel(Midi midi, Midel addMidel)
     {
       setModified(true);
+      recordAnalysisChange(addMidel);
       undoManager.addEdit(new UndoableAdd(midi, addMidel));
       studio.onMidiChange();
     }
@@ -966,6 +1204,7 @@ public class Editor extends JPanel
     public void onRemoveMidel(Midi midi, Midel removeMidel)
     {
       setModified(true);
+      recordAnalysisChange(removeMidel);
       undoManager.addEdit(new UndoableRemove(midi, removeMidel));
       studio.onMidiChange();
     }
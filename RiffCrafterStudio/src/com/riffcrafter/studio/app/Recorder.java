@@ -320,10 +320,9 @@ public class Recorder
             long milliTick = keyMillis[i] - startTime;
             long milliDuration = currentTimeMillis - keyMillis[i];
             Note note = new Note(channel, i, keyVelocities[i], milliTick, milliDuration);
-            Midi.convertMillisToTicks(note);
+            editor.getMidi().convertMillisToTicks(note, baseTick);
             if (note.getDuration() > minimumDuration)
             {
-              note.setTick(note.getTick() + baseTick);
               notes.add(note);
               recordedNotes.add(note);
             }
@@ -9,9 +9,12 @@
 
 package com.riffcrafter.studio.dialog;
 
+import java.awt.EventQueue;
 import java.awt.Graphics;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
 import java.util.ArrayList;
 import java.util.Enumeration;
 
@@ -26,6 +29,7 @@ import javax.swing.JSpinner;
 import javax.swing.JTable;
 import javax.swing.JTree;
 import javax.swing.SpinnerNumberModel;
+import javax.swing.SwingWorker;
 import javax.swing.event.TableModelListener;
 import javax.swing.table.TableModel;
 import javax.swing.tree.DefaultTreeModel;
@@ -40,16 +44,23 @@ import com.riffcrafter.common.midi.Midi;
 import com.riffcrafter.common.midi.Note;
 import com.riffcrafter.common.midi.Midi.KeyScore;
 import com.riffcrafter.library.dialog.GridBagPanel;
+import com.riffcrafter.library.util.Resources;
+import com.riffcrafter.library.util.Settings;
+import com.riffcrafter.studio.app.AnalysisCache;
+import com.riffcrafter.studio.app.AnalysisTask;
 import com.riffcrafter.studio.app.Analyzer;
 import com.riffcrafter.studio.app.Editor;
 import com.riffcrafter.studio.app.Analyzer.AnalyzerNode;
 
 public class AnalyzerPanel extends GridBagPanel
 {
+  private static final String STRUCTURE_ANALYSIS = Resources.get("AnalyzerPanel.Title");
+
   private Editor editor;
   private int channel;
 
   private JTree tree;
+  private JLabel structureAnalysisLabel;
   private TreePanel treePanel;
   private JRadioButton groupByMeasureRadioButton;
   private JRadioButton groupByGapRadioButton;
@@ -59,15 +70,19 @@ public class AnalyzerPanel extends GridBagPanel
   private JCheckBox buildGrammarCheckBox;
 
   private TableModel defaultKeySignatureTableModel = new KeyScoresTableModel();
+  private AnalysisCache analysisCache = new AnalysisCache(Settings.getDirectory("analysis"));
+  private AnalysisTask analysisTask;
+  private AnalysisTask failedTask;
 
   private RefreshListener refreshListener = new RefreshListener();
   private boolean isInSelectChannel;
   private boolean isInOnMidiSelect;
   private boolean isInSetSelectionPaths;
+  private boolean isAnalysisScheduled;
 
   public AnalyzerPanel()
   {
-    JLabel structureAnalysisLabel = new JLabel("Structure Analysis:");
+    structureAnalysisLabel = new JLabel(STRUCTURE_ANALYSIS);
     add(structureAnalysisLabel, "x=0,y=0,top=5,left=5,bottom=0,right=5,anchor=w,fill=n,weightx=0,weighty=0,gridwidth=1,gridheight=1");
 
     treePanel = new TreePanel();
@@ -107,6 +122,16 @@ public class AnalyzerPanel extends GridBagPanel
     if (editor != null)
     {
       root = editor.getChannelAnalysis(channel);
+      if (root != null && !isBuiltWithCurrentSettings(root))
+      {
+        // Settings that do not fire the refresh listener (e.g. the spinners) have changed
+        editor.setChannelAnalysis(channel, null);
+        root = null;
+      }
+      if (root != null && editor.isChannelAnalysisChanged(channel))
+      {
+        root = reanalyze(root);
+      }
     }
     return root;
   }
@@ -121,11 +146,39 @@ public class AnalyzerPanel extends GridBagPanel
     return root;
   }
 
+  private boolean isBuiltWithCurrentSettings(AnalyzerNode root)
+  {
+    boolean isBuildGrammar = buildGrammarCheckBox.isSelected();
+    boolean isGroupByMeasure = groupByMeasureRadioButton.isSelected();
+    boolean isGroupByGap = groupByGapRadioButton.isSelected();
+    int minimumGroupSize = ((Number)minimumGroupSizeSpinner.getValue()).intValue();
+    int percentAverageGap = ((Number)percentAverageGapSpinner.getValue()).intValue();
+    return root.getAnalyzer().isBuiltWith(root, isBuildGrammar, isGroupByMeasure, isGroupByGap, minimumGroupSize, percentAverageGap);
+  }
+
   @Override
   protected void paintComponent(Graphics g)
   {
-    getAnalysis();
     super.paintComponent(g);
+    // The analysis is only wanted while the panel is visible, but updating it
+    // can take a while, so it is done after painting rather than during it
+    scheduleAnalysis();
+  }
+
+  private void scheduleAnalysis()
+  {
+    if (!isAnalysisScheduled)
+    {
+      isAnalysisScheduled = true;
+      EventQueue.invokeLater(new Runnable()
+      {
+        public void run()
+        {
+          isAnalysisScheduled = false;
+          getAnalysis();
+        }
+      });
+    }
   }
 
   public void displayChannel(Editor editor, int channel)
@@ -137,6 +190,7 @@ public class AnalyzerPanel extends GridBagPanel
     // changing the channel if it is not the current channel.
     if (editor != this.editor || channel != this.channel) // TODO: add !isInSelectPaths if necessary
     {
+      cancelAnalysis();
       this.editor = editor;
       this.channel = channel;
 
@@ -149,7 +203,7 @@ public class AnalyzerPanel extends GridBagPanel
       }
       else
       {
-        AnalyzerNode root = editor.getChannelAnalysis(channel);
+        AnalyzerNode root = getRoot();
         if (root == null)
         {
           tree.setModel(null);
@@ -172,7 +226,9 @@ public class AnalyzerPanel extends GridBagPanel
 
   public void onMidiChange()
   {
-    editor.setChannelAnalysis(channel, null);
+    // Editor records which ticks changed so that getRoot can update the analysis
+    // incrementally, but a background analysis of the old Midi is now stale
+    cancelAnalysis();
     repaint();
   }
 
@@ -191,6 +247,10 @@ public class AnalyzerPanel extends GridBagPanel
           if (note.getChannel() == channel)
           {
             TreePath treePath = find(note);
+            if (treePath == null)
+            {
+              continue;
+            }
             if (firstPath == null)
             {
               firstPath = treePath;
@@ -225,6 +285,10 @@ public class AnalyzerPanel extends GridBagPanel
   private TreePath find(Note note)
   {
     AnalyzerNode root = getAnalysis();
+    if (root == null)
+    {
+      return null;
+    }
     Enumeration enumeration = root.depthFirstEnumeration();
     while (enumeration.hasMoreElements())
     {
@@ -315,6 +379,12 @@ public class AnalyzerPanel extends GridBagPanel
     tree.scrollPathToVisible(selectionPath);
   }
 
+  /**
+   * Starts a background analysis of the current channel, if one is not
+   * already running, and returns null. The tree is displayed when the
+   * analysis completes.
+   */
+
   private AnalyzerNode analyze()
   {
     if (editor == null)
@@ -322,19 +392,96 @@ public class AnalyzerPanel extends GridBagPanel
       return null;
     }
 
+    if (analysisTask != null && analysisTask.isFor(editor, channel))
+    {
+      return null;
+    }
+
+    if (failedTask != null && failedTask.isFor(editor, channel))
+    {
+      return null; // not retried until the Midi, channel or settings change
+    }
+
+    cancelAnalysis();
+
     boolean isBuildGrammar = buildGrammarCheckBox.isSelected();
     boolean isGroupByMeasure = groupByMeasureRadioButton.isSelected();
     boolean isGroupByGap = groupByGapRadioButton.isSelected();
     int minimumGroupSize = ((Number)minimumGroupSizeSpinner.getValue()).intValue();
     int percentAverageGap = ((Number)percentAverageGapSpinner.getValue()).intValue();
 
+    analysisTask = new AnalysisTask(editor, channel, isBuildGrammar, isGroupByMeasure, isGroupByGap, minimumGroupSize, percentAverageGap, analysisCache);
+    analysisTask.addPropertyChangeListener(new AnalysisTaskListener(analysisTask));
+    structureAnalysisLabel.setText(Resources.get("AnalyzerPanel.Analyzing"));
+    analysisTask.execute();
+    return null;
+  }
+
+  private void cancelAnalysis()
+  {
+    failedTask = null;
+    if (analysisTask != null)
+    {
+      analysisTask.cancel();
+      analysisTask = null;
+      structureAnalysisLabel.setText(STRUCTURE_ANALYSIS);
+    }
+  }
+
+  private void onAnalysisDone(AnalysisTask task)
+  {
+    if (task != analysisTask)
+    {
+      return; // cancelled, superseded by another task
+    }
+
+    analysisTask = null;
+    AnalyzerNode root = task.getAnalysis();
+    if (root == null)
+    {
+      if (task.getErrorMessage() == null)
+      {
+        structureAnalysisLabel.setText(STRUCTURE_ANALYSIS);
+      }
+      else
+      {
+        failedTask = task;
+        structureAnalysisLabel.setText(Resources.format("AnalyzerPanel.Failed", task.getErrorMessage()));
+      }
+      return;
+    }
+
+    Editor editor = task.getEditor();
+    int channel = task.getChannel();
+    setModel(root);
+    editor.setChannelAnalysis(channel, root);
+    editor.setChannelAnalysisSelection(channel, null);
+
+    if (task.isCacheHit())
+    {
+      structureAnalysisLabel.setText(Resources.format("AnalyzerPanel.Cached", task.getNodeCount()));
+    }
+    else
+    {
+      structureAnalysisLabel.setText(Resources.format("AnalyzerPanel.Analyzed", task.getNodeCount(), task.getInitialTreeMillis(), task.getGrammarMillis()));
+    }
+  }
+
+  private AnalyzerNode reanalyze(AnalyzerNode root)
+  {
     Midi midi = editor.getMidi();
-    Analyzer analyzer = new Analyzer();
-    AnalyzerNode root = analyzer.createInitialTree(midi, channel, isGroupByMeasure, isGroupByGap, minimumGroupSize, percentAverageGap);
-    if (isBuildGrammar)
+    long firstTick = editor.getChannelAnalysisFirstChangedTick(channel);
+    long lastTick = editor.getChannelAnalysisLastChangedTick(channel);
+    Analyzer analyzer = root.getAnalyzer();
+    if (!analyzer.reanalyze(root, midi, firstTick, lastTick))
     {
-      analyzer.buildGrammar(root);
+      editor.setChannelAnalysis(channel, null);
+      return null;
     }
+
+    // Not cached: it is updated without retraining its clusters, so it may
+    // not be what a full analysis under the current key would produce.
+
     setModel(root);
     editor.setChannelAnalysis(channel, root);
     editor.setChannelAnalysisSelection(channel, null);
@@ -435,11 +582,40 @@ public class AnalyzerPanel extends GridBagPanel
   {
     public void actionPerformed(ActionEvent e)
     {
+      cancelAnalysis();
       editor.clearAllAnalysis();
+      tree.setModel(null);
       analyze();
     }
   }
 
+  private class AnalysisTaskListener implements PropertyChangeListener
+  {
+    private AnalysisTask task;
+
+    private AnalysisTaskListener(AnalysisTask task)
+    {
+      this.task = task;
+    }
+
+    public void propertyChange(PropertyChangeEvent evt)
+    {
+      // SwingWorker fires property changes on the event dispatch thread
+      if (task != analysisTask)
+      {
+        return;
+      }
+      if ("progress".equals(evt.getPropertyName()))
+      {
+        structureAnalysisLabel.setText(Resources.format("AnalyzerPanel.Progress", evt.getNewValue()));
+      }
+      else if ("state".equals(evt.getPropertyName()) && evt.getNewValue() == SwingWorker.StateValue.DONE)
+      {
+        onAnalysisDone(task);
+      }
+    }
+  }
+
   private class TreePanel extends GridBagPanel
   {
     private TreePanel()
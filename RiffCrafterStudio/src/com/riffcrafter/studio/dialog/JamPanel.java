@@ -48,6 +48,8 @@ import com.riffcrafter.library.dialog.WidthConstrainedList;
 import com.riffcrafter.library.dialog.WidthConstrainedTextField;
 import com.riffcrafter.studio.app.Editor;
 import com.riffcrafter.studio.dialog.JamPanel.MainJamPanel.JamSessionPanel;
+import com.riffcrafter.studio.dialog.JamTransfer.SendListener;
+import com.riffcrafter.studio.dialog.JamTransfer.Statistics;
 
 // x=0,y=0,top=0,left=0,bottom=0,right=0,anchor=e,fill=n,weightx=0,weighty=0,gridwidth=1,gridheight=1
 
@@ -60,6 +62,7 @@ public class JamPanel extends GridBagPanel
   private Editor editor;
   private String userId;
   private Messenger messenger;
+  private JamTransfer jamTransfer;
   private MainJamPanel mainJamPanel;
   private FlashingTabbedPane jamSessionTabbedPane;
 
@@ -117,6 +120,7 @@ public class JamPanel extends GridBagPanel
     String errorMessage = messenger.login(userId, password);
     if (errorMessage == null)
     {
+      jamTransfer = new JamTransfer(messenger);
       setUserId(userId);
       displayMainJamPanel();
     }
@@ -126,6 +130,7 @@ public class JamPanel extends GridBagPanel
   private void logout()
   {
     setUserId(null);
+    jamTransfer.shutdown();
     messenger.logout();
     displayLoginPanel();
   }
@@ -140,7 +145,24 @@ public class JamPanel extends GridBagPanel
 
     jamSessionTabbedPane.flash(jamSessionPanel);
 
-    if (message.startsWith(RSJM))
+    if (JamTransfer.isTransferMessage(message))
+    {
+      try
+      {
+        Midi midi = jamTransfer.receive(sessionName, fromUser, message);
+        if (midi != null)
+        {
+          MessageListElement messageListElement = new MusicMessageListElement(timestamp, fromUser, midi);
+          jamSessionPanel.addRecentMessage(messageListElement);
+        }
+      }
+      catch (RuntimeException e)
+      {
+        MessageListElement messageListElement = new MessageListElement(timestamp, fromUser, "Music could not be received: " + e.getMessage());
+        jamSessionPanel.addRecentMessage(messageListElement);
+      }
+    }
+    else if (message.startsWith(RSJM))
     {
       Midi midi = receiveBlocks(jamSessionPanel.getMessageBuffer(), message);
       if (midi != null)
@@ -156,37 +178,9 @@ public class JamPanel extends GridBagPanel
     }
   }
 
-  private String sendBlocks(String sessionName, String buffer)
-  {
-    int offset = 0;
-    int bytesRemaining = buffer.length();
-    int blockCount = (bytesRemaining + (BLOCK_SIZE - 1)) / BLOCK_SIZE;
-    for (int i = 1; i <= blockCount; i++)
-    {
-      if (i > 1)
-      {
-        try
-        {
-          Thread.sleep(100);
-        }
-        catch (InterruptedException e)
-        {
-          throw new RuntimeException(e);
-        }
-      }
-      int blockSize = Math.min(BLOCK_SIZE, bytesRemaining);
-      String block = buffer.substring(offset, offset + blockSize);
-      String midiMessage = RSJM + i + "," + blockCount + "=" + block;
-      String errorMessage = messenger.sendMessage(sessionName, midiMessage);
-      if (errorMessage != null)
-      {
-        return errorMessage;
-      }
-      offset += blockSize;
-      bytesRemaining -= blockSize;
-    }
-    return null;
-  }
+  /**
+   * Reassembles music sent by versions that predate JamTransfer.
+   */
 
   private Midi receiveBlocks(MessageBuffer messageBuffer, String message)
   {
@@ -579,6 +573,7 @@ public class JamPanel extends GridBagPanel
       private DefaultListModel recentMessageListModel;
       private JList recentMessageList;
       private DefaultListModel participantsListModel;
+      private JButton sendMusicButton;
       public MessageBuffer messageBuffer;
 
       public JamSessionPanel(String sessionName, ArrayList<String> participants)
@@ -625,7 +620,7 @@ public class JamPanel extends GridBagPanel
         sendButton.addActionListener(sendActionListener);
         add(sendButton, "x=0,y=6,top=0,left=5,bottom=5,right=0,anchor=w,fill=n,weightx=0,weighty=0,gridwidth=1,gridheight=1");
 
-        JButton sendMusicButton = new JButton("Send Music");
+        sendMusicButton = new JButton("Send Music");
         sendMusicButton.addActionListener(new SendMusicActionListener());
         add(sendMusicButton, "x=1,y=6,top=0,left=5,bottom=5,right=0,anchor=w,fill=n,weightx=0,weighty=0,gridwidth=1,gridheight=1");
 
@@ -717,14 +712,23 @@ public class JamPanel extends GridBagPanel
           return;
         }
 
-        String base64 = midi.toBase64();
-        String errorMessage = sendBlocks(sessionName, base64);
-        if (errorMessage == null)
-        {
-          MusicMessageListElement musicMessageListElement = new MusicMessageListElement(new Date(), userId, midi);
-          addRecentMessage(musicMessageListElement);
-          messageTextField.setText("");
-        }
+        sendMusicButton.setEnabled(false);
+        jamTransfer.send(sessionName, midi, new MusicSendListener(midi));
+      }
+
+      private void onMusicSent(Midi midi, Statistics statistics)
+      {
+        sendMusicButton.setText("Send Music");
+        sendMusicButton.setEnabled(true);
+        MusicMessageListElement musicMessageListElement = new MusicMessageListElement(new Date(), userId, midi, statistics.toString());
+        addRecentMessage(musicMessageListElement);
+      }
+
+      private void onMusicError(String errorMessage)
+      {
+        sendMusicButton.setText("Send Music");
+        sendMusicButton.setEnabled(true);
+        CommonDialog.showOkay(this, "Your music could not be sent: " + errorMessage);
       }
 
       private void receiveMusic()
@@ -759,6 +763,31 @@ public class JamPanel extends GridBagPanel
 
       }
 
+      public class MusicSendListener implements SendListener
+      {
+        private Midi midi;
+
+        private MusicSendListener(Midi midi)
+        {
+          this.midi = midi;
+        }
+
+        public void onProgress(int blocksSent, int blockCount)
+        {
+          sendMusicButton.setText("Sending " + ((blocksSent * 100) / blockCount) + "%");
+        }
+
+        public void onSent(Statistics statistics)
+        {
+          onMusicSent(midi, statistics);
+        }
+
+        public void onError(String errorMessage)
+        {
+          onMusicError(errorMessage);
+        }
+      }
+
       public class ReceiveMusicActionListener implements ActionListener
       {
         public void actionPerformed(ActionEvent e)
@@ -851,6 +880,12 @@ public class JamPanel extends GridBagPanel
       this.text = "Music message containing " + midi.size() + " elements";
     }
 
+    public MusicMessageListElement(Date timestamp, String user, Midi midi, String details)
+    {
+      this(timestamp, user, midi);
+      this.text += " (" + details + ")";
+    }
+
     private Midi getMidi()
     {
       return midi;
@@ -882,7 +917,13 @@ public class JamPanel extends GridBagPanel
     public String toString();
   }
 
-  private interface Messenger
+  /**
+   * A messenger is used on the event dispatch thread, except for
+   * sendMessage, which JamTransfer also calls from its own thread, so an
+   * implementation must allow for that.
+   */
+
+  interface Messenger
   {
 
     String login(String userId, String password);
@@ -954,17 +995,27 @@ public class JamPanel extends GridBagPanel
 
     public void open(String sessionName, ArrayList<String> participants)
     {
-      conferences.put(sessionName, participants);
+      synchronized (conferences)
+      {
+        conferences.put(sessionName, participants);
+      }
     }
 
     public void close(String sessionName)
     {
-      conferences.remove(sessionName);
+      synchronized (conferences)
+      {
+        conferences.remove(sessionName);
+      }
     }
 
     public String sendMessage(final String sessionName, final String message)
     {
-      final ArrayList<String> participants = conferences.get(sessionName);
+      final ArrayList<String> participants;
+      synchronized (conferences)
+      {
+        participants = conferences.get(sessionName);
+      }
       Thread responder = new Thread(new Runnable()
       {
         public void run()
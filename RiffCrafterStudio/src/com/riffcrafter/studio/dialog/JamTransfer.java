@@ -0,0 +1,452 @@
+// Copyright 2007 Anthony F. Stuart - All rights reserved.
+//
+// This program and the accompanying materials are made available
+// under the terms of the GNU General Public License. For other license
+// options please contact the copyright owner.
+//
+// This program is made available on an "as is" basis, without
+// warranties or conditions of any kind, either express or implied.
+
+package com.riffcrafter.studio.dialog;
+
+import java.awt.EventQueue;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.riffcrafter.common.midi.Midi;
+import com.riffcrafter.library.util.Base64Codec;
+import com.riffcrafter.studio.dialog.JamPanel.Messenger;
+
+/**
+ * Sends music to a Jam session as a series of text messages, and reassembles
+ * the music from the messages it receives.
+ *
+ * The standard MIDI file is gzip compressed and Base64 encoded, then split
+ * into blocks of BLOCK_SIZE characters. Each block is sent as
+ *
+ * RSJM2-transferId,blockNumber,blockCount,payloadChecksum,blockChecksum=block
+ *
+ * where the checksums are CRC32 values in hex. Blocks are sent by a
+ * background thread, one transfer at a time, so the user interface never
+ * waits for the messenger. The pause between blocks adapts to the messenger:
+ * it shrinks while sends succeed and doubles when one fails, and a failed
+ * block is sent again, up to MAXIMUM_RETRIES times.
+ *
+ * A receiver accepts the blocks of each transfer in any order, ignores
+ * duplicate and corrupt blocks, verifies the reassembled payload and drops
+ * transfers that are not completed within TRANSFER_TIMEOUT milliseconds.
+ *
+ * Music of more than MAXIMUM_MIDI_SIZE bytes, or that takes more than
+ * MAXIMUM_BLOCK_COUNT blocks, is not sent, and a receiver ignores blocks
+ * that claim a larger transfer and refuses a payload that inflates beyond
+ * it, so a corrupt or hostile message cannot exhaust memory.
+ */
+
+public class JamTransfer
+{
+  public static final String PREFIX = "RSJM2-"; // RiffCrafter Studio Jam Message, version 2
+
+  private static final int BLOCK_SIZE = 500;
+  private static final int MINIMUM_INTERVAL = 10;
+  private static final int INITIAL_INTERVAL = 25;
+  private static final int MAXIMUM_INTERVAL = 2000;
+  private static final int MAXIMUM_RETRIES = 5;
+  private static final int TRANSFER_TIMEOUT = 60000;
+  private static final int MAXIMUM_MIDI_SIZE = 4 * 1024 * 1024;
+  private static final int MAXIMUM_BLOCK_COUNT = 4000;
+
+  private static AtomicInteger nextTransferId = new AtomicInteger((int)(System.currentTimeMillis() & 0xffff));
+
+  private Messenger messenger;
+  private ExecutorService executorService;
+  private int interval = INITIAL_INTERVAL;
+  private HashMap<String, Assembly> assemblies = new HashMap<String, Assembly>();
+
+  public JamTransfer(Messenger messenger)
+  {
+    this.messenger = messenger;
+    executorService = Executors.newSingleThreadExecutor(new ThreadFactory()
+    {
+      public Thread newThread(Runnable runnable)
+      {
+        Thread thread = new Thread(runnable, "JamTransfer");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  public static boolean isTransferMessage(String message)
+  {
+    return message.startsWith(PREFIX);
+  }
+
+  /**
+   * Queues the music to be sent to the session. The listener is notified on
+   * the event dispatch thread.
+   */
+
+  public void send(final String sessionName, final Midi midi, final SendListener sendListener)
+  {
+    executorService.execute(new Runnable()
+    {
+      public void run()
+      {
+        sendTransfer(sessionName, midi, sendListener);
+      }
+    });
+  }
+
+  public void shutdown()
+  {
+    executorService.shutdownNow();
+  }
+
+  private void sendTransfer(String sessionName, Midi midi, final SendListener sendListener)
+  {
+    try
+    {
+      sendBlocks(sessionName, midi, sendListener);
+    }
+    catch (final RuntimeException e)
+    {
+      // Otherwise the executor would swallow it and the listener never hear
+      EventQueue.invokeLater(new Runnable()
+      {
+        public void run()
+        {
+          sendListener.onError(e.toString());
+        }
+      });
+    }
+  }
+
+  private void sendBlocks(String sessionName, Midi midi, final SendListener sendListener)
+  {
+    long startTime = System.nanoTime();
+
+    byte[] bytes = midi.toByteArray();
+    if (bytes.length > MAXIMUM_MIDI_SIZE)
+    {
+      throw new RuntimeException("Music is larger than " + MAXIMUM_MIDI_SIZE + " bytes");
+    }
+    byte[] compressedBytes = compress(bytes);
+    String payload = Base64Codec.encode(compressedBytes);
+    String payloadChecksum = getChecksum(payload);
+    int transferId = nextTransferId.incrementAndGet() & 0xffff;
+
+    final int blockCount = (payload.length() + (BLOCK_SIZE - 1)) / BLOCK_SIZE;
+    if (blockCount > MAXIMUM_BLOCK_COUNT)
+    {
+      throw new RuntimeException("Music takes more than " + MAXIMUM_BLOCK_COUNT + " blocks");
+    }
+    int retryCount = 0;
+    for (int blockNumber = 1; blockNumber <= blockCount; blockNumber++)
+    {
+      if (Thread.currentThread().isInterrupted())
+      {
+        return;
+      }
+
+      int offset = (blockNumber - 1) * BLOCK_SIZE;
+      String block = payload.substring(offset, Math.min(offset + BLOCK_SIZE, payload.length()));
+      String message = PREFIX + Integer.toHexString(transferId) + "," + blockNumber + "," + blockCount + "," + payloadChecksum + "," + getChecksum(block) + "=" + block;
+
+      long sendStartTime = System.nanoTime();
+      final String errorMessage = messenger.sendMessage(sessionName, message);
+      long sendMillis = (System.nanoTime() - sendStartTime) / 1000000;
+
+      if (errorMessage == null)
+      {
+        retryCount = 0;
+        interval = Math.max(MINIMUM_INTERVAL, interval - (interval >> 2));
+        final int blocksSent = blockNumber;
+        EventQueue.invokeLater(new Runnable()
+        {
+          public void run()
+          {
+            sendListener.onProgress(blocksSent, blockCount);
+          }
+        });
+      }
+      else
+      {
+        interval = Math.min(MAXIMUM_INTERVAL, interval << 1);
+        if (++retryCount > MAXIMUM_RETRIES)
+        {
+          EventQueue.invokeLater(new Runnable()
+          {
+            public void run()
+            {
+              sendListener.onError(errorMessage);
+            }
+          });
+          return;
+        }
+        blockNumber--;
+      }
+
+      if (blockNumber < blockCount && !pause(interval - sendMillis))
+      {
+        return;
+      }
+    }
+
+    final Statistics statistics = new Statistics(bytes.length, compressedBytes.length, payload.length(), blockCount, (System.nanoTime() - startTime) / 1000000);
+    EventQueue.invokeLater(new Runnable()
+    {
+      public void run()
+      {
+        sendListener.onSent(statistics);
+      }
+    });
+  }
+
+  /**
+   * Returns false if the sender was interrupted.
+   */
+
+  private static boolean pause(long millis)
+  {
+    if (millis > 0)
+    {
+      try
+      {
+        Thread.sleep(millis);
+      }
+      catch (InterruptedException e)
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Adds a block received from a user in a session, and returns the music
+   * once all of its blocks have been received, or null. Must be called on
+   * the event dispatch thread.
+   */
+
+  public Midi receive(String sessionName, String fromUser, String message)
+  {
+    long now = System.currentTimeMillis();
+    removeExpiredAssemblies(now);
+
+    int equals = message.indexOf('=');
+    if (equals == -1)
+    {
+      return null;
+    }
+
+    String[] fields = message.substring(PREFIX.length(), equals).split(",");
+    String block = message.substring(equals + 1);
+    if (fields.length != 5 || !fields[4].equals(getChecksum(block)))
+    {
+      return null;
+    }
+
+    int blockNumber;
+    int blockCount;
+    try
+    {
+      blockNumber = Integer.parseInt(fields[1]);
+      blockCount = Integer.parseInt(fields[2]);
+    }
+    catch (NumberFormatException e)
+    {
+      return null;
+    }
+    if (blockCount < 1 || blockCount > MAXIMUM_BLOCK_COUNT || blockNumber < 1 || blockNumber > blockCount)
+    {
+      return null;
+    }
+
+    String key = sessionName + "\n" + fromUser + "\n" + fields[0];
+    Assembly assembly = assemblies.get(key);
+    if (assembly == null || assembly.blocks.length != blockCount)
+    {
+      assembly = new Assembly(blockCount, fields[3]);
+      assemblies.put(key, assembly);
+    }
+    assembly.lastTime = now;
+
+    if (assembly.blocks[blockNumber - 1] == null)
+    {
+      assembly.blocks[blockNumber - 1] = block;
+      assembly.blocksReceived++;
+    }
+
+    if (assembly.blocksReceived < blockCount)
+    {
+      return null;
+    }
+
+    assemblies.remove(key);
+    StringBuilder payload = new StringBuilder(blockCount * BLOCK_SIZE);
+    for (String assembledBlock : assembly.blocks)
+    {
+      payload.append(assembledBlock);
+    }
+    String payloadString = payload.toString();
+    if (!assembly.payloadChecksum.equals(getChecksum(payloadString)))
+    {
+      return null;
+    }
+    return Midi.fromByteArray(decompress(Base64Codec.decode(payloadString)));
+  }
+
+  private void removeExpiredAssemblies(long now)
+  {
+    Iterator<Assembly> iterator = assemblies.values().iterator();
+    while (iterator.hasNext())
+    {
+      if (now - iterator.next().lastTime > TRANSFER_TIMEOUT)
+      {
+        iterator.remove();
+      }
+    }
+  }
+
+  private static String getChecksum(String value)
+  {
+    CRC32 crc32 = new CRC32();
+    int length = value.length();
+    for (int i = 0; i < length; i++)
+    {
+      crc32.update(value.charAt(i));
+    }
+    return Long.toHexString(crc32.getValue());
+  }
+
+  private static byte[] compress(byte[] bytes)
+  {
+    try
+    {
+      ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(bytes.length / 2 + 64);
+      GZIPOutputStream gzipOutputStream = new GZIPOutputStream(byteArrayOutputStream);
+      gzipOutputStream.write(bytes);
+      gzipOutputStream.close();
+      return byteArrayOutputStream.toByteArray();
+    }
+    catch (IOException e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static byte[] decompress(byte[] bytes)
+  {
+    try
+    {
+      GZIPInputStream gzipInputStream = new GZIPInputStream(new ByteArrayInputStream(bytes));
+      ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(bytes.length * 4);
+      byte[] buffer = new byte[4096];
+      int length;
+      while ((length = gzipInputStream.read(buffer)) != -1)
+      {
+        if (byteArrayOutputStream.size() + length > MAXIMUM_MIDI_SIZE)
+        {
+          throw new RuntimeException("Music received is larger than " + MAXIMUM_MIDI_SIZE + " bytes");
+        }
+        byteArrayOutputStream.write(buffer, 0, length);
+      }
+      return byteArrayOutputStream.toByteArray();
+    }
+    catch (IOException e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static class Assembly
+  {
+    private String[] blocks;
+    private int blocksReceived;
+    private String payloadChecksum;
+    private long lastTime;
+
+    private Assembly(int blockCount, String payloadChecksum)
+    {
+      this.blocks = new String[blockCount];
+      this.payloadChecksum = payloadChecksum;
+    }
+  }
+
+  public interface SendListener
+  {
+    void onProgress(int blocksSent, int blockCount);
+
+    void onSent(Statistics statistics);
+
+    void onError(String errorMessage);
+  }
+
+  public static class Statistics
+  {
+    private int byteCount;
+    private int compressedByteCount;
+    private int characterCount;
+    private int blockCount;
+    private long elapsedMillis;
+
+    private Statistics(int byteCount, int compressedByteCount, int characterCount, int blockCount, long elapsedMillis)
+    {
+      this.byteCount = byteCount;
+      this.compressedByteCount = compressedByteCount;
+      this.characterCount = characterCount;
+      this.blockCount = blockCount;
+      this.elapsedMillis = elapsedMillis;
+    }
+
+    public int getByteCount()
+    {
+      return byteCount;
+    }
+
+    public int getCompressedByteCount()
+    {
+      return compressedByteCount;
+    }
+
+    public int getCharacterCount()
+    {
+      return characterCount;
+    }
+
+    public int getBlockCount()
+    {
+      return blockCount;
+    }
+
+    public long getElapsedMillis()
+    {
+      return elapsedMillis;
+    }
+
+    /**
+     * Returns the rate at which MIDI file bytes were sent, in bytes per second.
+     */
+
+    public long getBytesPerSecond()
+    {
+      return (byteCount * 1000L) / Math.max(1, elapsedMillis);
+    }
+
+    public String toString()
+    {
+      return byteCount + " bytes (" + compressedByteCount + " compressed) in " + blockCount + " blocks, " + elapsedMillis + " ms, " + getBytesPerSecond() + " bytes/s";
+    }
+  }
+
+}
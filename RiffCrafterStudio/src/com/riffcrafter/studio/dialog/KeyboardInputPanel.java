@@ -106,7 +106,7 @@ public class KeyboardInputPanel extends GridBagPanel
       if (noteOnEvent.isChord() || duration == AS_PLAYED)
       {
         addArticulationAsPlayed();
-        editor.play(channel, key, velocity);
+        editor.play(channel, key, velocity, noteOnEvent.getPressNanos());
       }
       else
       {
@@ -124,9 +124,8 @@ public class KeyboardInputPanel extends GridBagPanel
       {
         long thisTime = System.currentTimeMillis();
         long gap = Math.min(2000, thisTime - lastTime);
-        long ticks = Midi.convertMillisToTicks(gap);
         long currentTick = editor.getCurrentTick();
-        currentTick += ticks;
+        currentTick += editor.getMidi().convertMillisToTicks(currentTick, gap);
         editor.setCurrentTick(currentTick);
       }
     }
@@ -141,7 +140,7 @@ public class KeyboardInputPanel extends GridBagPanel
         if (duration == AS_PLAYED)
         {
           duration = noteOffEvent.getDuration();
-          duration = Midi.convertMillisToTicks(duration);
+          duration = editor.getMidi().convertMillisToTicks(editor.getCurrentTick(), duration);
           lastTime = System.currentTimeMillis();
         }
         duration = articulationPanel.articulate(duration);
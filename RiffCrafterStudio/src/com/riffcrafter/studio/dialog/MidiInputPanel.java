@@ -9,13 +9,18 @@
 
 package com.riffcrafter.studio.dialog;
 
+import java.awt.EventQueue;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import javax.sound.midi.InvalidMidiDataException;
 import javax.sound.midi.MidiDevice;
 import javax.sound.midi.MidiMessage;
 import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
 import javax.sound.midi.Transmitter;
 import javax.sound.midi.MidiDevice.Info;
 import javax.swing.ComboBoxModel;
@@ -29,6 +34,7 @@ import com.riffcrafter.common.midi.Catcher;
 import com.riffcrafter.common.midi.Instruments;
 import com.riffcrafter.common.midi.Midel;
 import com.riffcrafter.common.midi.Midi;
+import com.riffcrafter.common.midi.MidiConstants;
 import com.riffcrafter.common.midi.Note;
 import com.riffcrafter.common.midi.Midi.NoteBuilder;
 import com.riffcrafter.library.dialog.GridBagPanel;
@@ -40,11 +46,13 @@ public class MidiInputPanel extends GridBagPanel
 {
   private static final int DEFAULT_MAXIMUM_GAP = 2000;
   private static final int DEFAULT_MIDI_RESOLUTION = 500000;
+  private static final int ALL_NOTES_OFF = 123;
 
-  private Editor editor;
-  private int channel;
+  private volatile Editor editor;
+  private volatile int channel;
 
   private MidiDevice inputDevice;
+  private MidiInputReceiver midiInputReceiver;
   private JComboBox midiDeviceComboBox;
   private MidiInputControlPanel midiInputControlPanel;
   private MidiInputSettingsPanel midiInputSettingsPanel;
@@ -81,7 +89,8 @@ public class MidiInputPanel extends GridBagPanel
     Transmitter transmitter = Catcher.getTransmitter(inputDevice);
     //    Midi midi = new Midi();
     //    NoteBuilder noteBuilder = midi.new NoteBuilder(Midi.DEFAULT_RESOLUTION);
-    MidiInputReceiver midiInputReceiver = new MidiInputReceiver();
+    Receiver thruReceiver = editor == null ? null : editor.getThruReceiver();
+    midiInputReceiver = new MidiInputReceiver(thruReceiver, midiInputSettingsPanel.isRecordToCurrentChannel(), midiInputSettingsPanel.getMaximumGap(), midiInputSettingsPanel.getResolution());
     transmitter.setReceiver(midiInputReceiver);
   }
 
@@ -92,6 +101,11 @@ public class MidiInputPanel extends GridBagPanel
       inputDevice.close();
     }
     inputDevice = null;
+    if (midiInputReceiver != null)
+    {
+      midiInputReceiver.close();
+      midiInputReceiver = null;
+    }
   }
 
   public void selectChannel(Editor editor, int channel)
@@ -199,42 +213,64 @@ public class MidiInputPanel extends GridBagPanel
 
   }
 
+  /**
+   * Receives messages from the input device on the device's thread. Channel
+   * messages are sent straight on to the synthesizer, so what is played is
+   * heard without delay. Completed notes are put on a queue, and committed
+   * to the editor on the event dispatch thread, as many at a time as have
+   * arrived since the last commit.
+   */
+
   public class MidiInputReceiver implements Receiver
   {
+    private volatile Receiver thruReceiver;
+    private boolean isRecordToCurrentChannel;
+    private long maximumGap;
+    private long resolution;
+
+    // Used only on the device's thread
     private Midi midi;
     private NoteBuilder noteBuilder;
-    private long timeBase = -1;
     private long lastTime = -1;
 
-    public MidiInputReceiver()
+    private ConcurrentLinkedQueue<Capture> captureQueue = new ConcurrentLinkedQueue<Capture>();
+    private AtomicBoolean isCommitPending = new AtomicBoolean();
+
+    // Used only on the event dispatch thread
+    private long timeBase = -1;
+
+    public MidiInputReceiver(Receiver thruReceiver, boolean isRecordToCurrentChannel, long maximumGap, long resolution)
     {
+      this.thruReceiver = thruReceiver;
+      this.isRecordToCurrentChannel = isRecordToCurrentChannel;
+      this.maximumGap = maximumGap;
+      this.resolution = resolution;
       this.midi = new Midi();
       this.noteBuilder = midi.new NoteBuilder(Midi.DEFAULT_RESOLUTION);
     }
 
     public void close()
     {
+      if (thruReceiver != null)
+      {
+        sendAllNotesOff();
+        thruReceiver = null;
+      }
     }
 
-    // The send method manages two timepieces:
-    //
-    //  1. timeBase, in external device resolution, for external midi events
-    //  2. thisTime/lastTime, in system milliseconds, for detecting pauses in input
-    //
-    // We use two timepieces to eliminate the need to make any assumptions about
-    // the relation between the two timepieces.
-    //
-    // The call to editor.pasteRelative specifies false for the isResetFirstTick
-    // argument. This preserves the Midel's tick, which is the delta from the last
-    // pasteRelative. We specify true for isAdvanceOnTick which sets currentTick
-    // the end of the pasted area.
-    //
-    // We use timeBase to keep track of the delta (in external device units)
-    // between notes, so basically all MIDI time keeping is done using external
-    // units which converted to our resolution so that Midels can be stored.
-    
+    // The send method detects pauses in input using thisTime/lastTime, in
+    // system milliseconds, and queues each Midel as the NoteBuilder completes
+    // it, with a marker for each pause.
+
     public void send(MidiMessage message, long timeStamp)
     {
+      // Channel messages only, not system messages such as timing clock
+      Receiver currentThruReceiver = thruReceiver;
+      if (currentThruReceiver != null && message instanceof ShortMessage && message.getStatus() < ShortMessage.MIDI_TIME_CODE)
+      {
+        currentThruReceiver.send(getThruMessage((ShortMessage)message), -1);
+      }
+
       if (editor == null)
       {
         return;
@@ -242,26 +278,103 @@ public class MidiInputPanel extends GridBagPanel
 
       noteBuilder.processMessage(message, timeStamp);
 
-      boolean isRecordToCurrentChannel = midiInputSettingsPanel.isRecordToCurrentChannel();
-      long maximumGap = midiInputSettingsPanel.getMaximumGap();
-      long resolution = midiInputSettingsPanel.getResolution();
-
       long thisTime = System.currentTimeMillis();
 
       if (lastTime != -1 && (thisTime - lastTime) > maximumGap)
       {
-        timeBase = -1;
-        long currentTick = editor.getCurrentTick();
-        long gapTick = Midi.convertMillisToTicks(maximumGap);
-        currentTick += gapTick;
-        editor.setCurrentTick(currentTick);
+        captureQueue.add(new Capture(null));
       }
 
+      for (Iterator<Midel> iterator = midi.getIterator(); iterator.hasNext();)
+      {
+        Midel midel = iterator.next();
+        iterator.remove();
+        captureQueue.add(new Capture(midel));
+      }
+
+      lastTime = thisTime;
+
+      if (!captureQueue.isEmpty() && isCommitPending.compareAndSet(false, true))
+      {
+        EventQueue.invokeLater(new Runnable()
+        {
+          public void run()
+          {
+            isCommitPending.set(false);
+            commit();
+          }
+        });
+      }
+    }
+
+    private ShortMessage getThruMessage(ShortMessage message)
+    {
+      if (!isRecordToCurrentChannel || message.getChannel() == channel)
+      {
+        return message;
+      }
+      try
+      {
+        ShortMessage thruMessage = new ShortMessage();
+        thruMessage.setMessage(message.getCommand(), channel, message.getData1(), message.getData2());
+        return thruMessage;
+      }
+      catch (InvalidMidiDataException e)
+      {
+        throw new RuntimeException(e);
+      }
+    }
+
+    private void sendAllNotesOff()
+    {
+      try
+      {
+        for (int i = 0; i < MidiConstants.MAX_CHANNELS; i++)
+        {
+          ShortMessage allNotesOff = new ShortMessage();
+          allNotesOff.setMessage(ShortMessage.CONTROL_CHANGE, i, ALL_NOTES_OFF, 0);
+          thruReceiver.send(allNotesOff, -1);
+        }
+      }
+      catch (InvalidMidiDataException e)
+      {
+        throw new RuntimeException(e);
+      }
+    }
+
+    // The commit method manages timeBase, in external device resolution, for
+    // external midi events. We use timeBase to keep track of the delta (in
+    // external device units) between notes, so basically all MIDI time keeping
+    // is done using external units which converted to our resolution so that
+    // Midels can be stored.
+    //
+    // Each Midel is placed at its delta from the end of the one before it,
+    // starting at the current tick, and the current tick is then set to the
+    // end of the last one, as though each had been pasted in turn.
+
+    private void commit()
+    {
+      Editor currentEditor = editor;
+      if (currentEditor == null)
+      {
+        captureQueue.clear();
+        return;
+      }
+
+      long currentTick = currentEditor.getCurrentTick();
+      long nextTick = currentTick;
       Midi targetMidi = new Midi();
 
-      for (Iterator<Midel> iterator = midi.getIterator(); iterator.hasNext();)
+      Capture capture;
+      while ((capture = captureQueue.poll()) != null)
       {
-        Midel midel = iterator.next().clone();
+        Midel midel = capture.getMidel();
+        if (midel == null)
+        {
+          timeBase = -1;
+          nextTick += currentEditor.getMidi().convertMillisToTicks(nextTick, maximumGap);
+          continue;
+        }
 
         if (isRecordToCurrentChannel)
         {
@@ -269,7 +382,7 @@ public class MidiInputPanel extends GridBagPanel
         }
 
         long tick = midel.getTick();
-        
+
         if (timeBase == -1)
         {
           timeBase = tick;
@@ -279,7 +392,8 @@ public class MidiInputPanel extends GridBagPanel
         timeBase = tick;
 
         long convertedTick = Midi.convertResolution(deltaTick, resolution);
-        midel.setTick(convertedTick);
+        nextTick += convertedTick;
+        midel.setTick(nextTick - currentTick);
 
         if (midel instanceof Note)
         {
@@ -288,20 +402,42 @@ public class MidiInputPanel extends GridBagPanel
           timeBase += duration;
           duration = Midi.convertResolution(duration, resolution);
           note.setDuration(duration);
+          nextTick += duration;
         }
 
         targetMidi.add(midel);
-        iterator.remove();
       }
 
       if (targetMidi.size() > 0)
       {
-        editor.pasteRelative(targetMidi, false, true, false, false);
+        currentEditor.pasteRelative(targetMidi, false, false, false, false);
       }
-      
-      lastTime = thisTime;
+
+      if (nextTick != currentTick)
+      {
+        currentEditor.setCurrentTick(nextTick);
+      }
+    }
+
+  }
+
+  /**
+   * A Midel completed by the NoteBuilder, or a pause in input if null.
+   */
+
+  private static class Capture
+  {
+    private Midel midel;
+
+    private Capture(Midel midel)
+    {
+      this.midel = midel;
     }
 
+    public Midel getMidel()
+    {
+      return midel;
+    }
   }
 
 }
@@ -0,0 +1,483 @@
+// Copyright 2007 Anthony F. Stuart - All rights reserved.
+//
+// This program and the accompanying materials are made available
+// under the terms of the GNU General Public License. For other license
+// options please contact the copyright owner.
+//
+// This program is made available on an "as is" basis, without
+// warranties or conditions of any kind, either express or implied.
+
+package com.riffcrafter.studio.midi;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Synthesizer;
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
+import com.riffcrafter.common.midi.MidiConstants;
+import com.riffcrafter.studio.app.Editor;
+
+/**
+ * Renders a Sequence to a WAV file as fast as the processor allows, using
+ * the Java Sound software synthesizer in stream mode: its output is read
+ * from the AudioInputStream returned by AudioSynthesizer.openStream instead
+ * of being played, and each event is sent with the time at which it is to
+ * sound. AudioSynthesizer is not part of the public API, so openStream is
+ * called by reflection. On Java 9 and later this requires
+ *
+ * --add-exports java.desktop/com.sun.media.sound=ALL-UNNAMED
+ *
+ * and there is no public API to fall back on, so without it rendering fails
+ * with a message that says so.
+ *
+ * The program, mute and solo settings of each channel are applied the same
+ * way that Player.synchronizeSynthesizer applies them for live playback.
+ *
+ * A Sequence can be rendered in one pass, or as a stem per channel, with
+ * each stem rendered by its own synthesizer on one of a number of threads,
+ * and the stems then mixed down into one file.
+ */
+
+public class AudioRenderer
+{
+  public static final AudioFormat FORMAT = new AudioFormat(44100, 16, 2, true, false);
+
+  private static final long TAIL_MICROS = 2000000; // time for the last notes to die away
+  private static final int BLOCK_FRAMES = 1024;
+  private static final String EXPORT = "java.desktop/com.sun.media.sound=ALL-UNNAMED";
+
+  private int[] programs = new int[MidiConstants.MAX_CHANNELS];
+  private boolean[] mutes = new boolean[MidiConstants.MAX_CHANNELS];
+  private boolean[] solos = new boolean[MidiConstants.MAX_CHANNELS];
+
+  public AudioRenderer()
+  {
+    for (int i = 0; i < MidiConstants.MAX_CHANNELS; i++)
+    {
+      programs[i] = i;
+    }
+  }
+
+  public void synchronize(Editor editor)
+  {
+    for (int i = 0; i < MidiConstants.MAX_CHANNELS; i++)
+    {
+      mutes[i] = editor.isMute(i);
+      solos[i] = editor.isSolo(i);
+      programs[i] = editor.getInstrument(i);
+    }
+  }
+
+  public void setProgram(int channel, int program)
+  {
+    programs[channel] = program;
+  }
+
+  public void setMute(int channel, boolean isMute)
+  {
+    mutes[channel] = isMute;
+  }
+
+  public void setSolo(int channel, boolean isSolo)
+  {
+    solos[channel] = isSolo;
+  }
+
+  public boolean isAudible(int channel)
+  {
+    if (mutes[channel])
+    {
+      return false;
+    }
+    if (solos[channel])
+    {
+      return true;
+    }
+    for (boolean isSolo : solos)
+    {
+      if (isSolo)
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Renders the audible channels of the sequence to the file in one pass.
+   */
+
+  public void render(Sequence sequence, File file)
+  {
+    SequenceEvents events = new SequenceEvents(sequence);
+    boolean[] channels = new boolean[MidiConstants.MAX_CHANNELS];
+    for (int i = 0; i < MidiConstants.MAX_CHANNELS; i++)
+    {
+      channels[i] = isAudible(i);
+    }
+    render(events, channels, file);
+  }
+
+  /**
+   * Renders each audible channel of the sequence that has events to its own
+   * file in the directory, named baseName-channel-N.wav, using up to
+   * threadCount threads, and returns the files.
+   */
+
+  public ArrayList<File> renderStems(Sequence sequence, File directory, String baseName, int threadCount)
+  {
+    final SequenceEvents events = new SequenceEvents(sequence);
+    boolean[] isUsed = getUsedChannels(events);
+
+    ExecutorService executorService = Executors.newFixedThreadPool(threadCount);
+    try
+    {
+      ArrayList<File> stems = new ArrayList<File>();
+      ArrayList<Future<File>> futures = new ArrayList<Future<File>>();
+      for (int i = 0; i < MidiConstants.MAX_CHANNELS; i++)
+      {
+        if (isUsed[i] && isAudible(i))
+        {
+          final boolean[] channels = new boolean[MidiConstants.MAX_CHANNELS];
+          channels[i] = true;
+          final File stem = new File(directory, baseName + "-channel-" + (i + 1) + ".wav");
+          stems.add(stem);
+          futures.add(executorService.submit(new Callable<File>()
+          {
+            public File call()
+            {
+              render(events, channels, stem);
+              return stem;
+            }
+          }));
+        }
+      }
+      for (Future<File> future : futures)
+      {
+        future.get();
+      }
+      return stems;
+    }
+    catch (InterruptedException e)
+    {
+      throw new RuntimeException(e);
+    }
+    catch (ExecutionException e)
+    {
+      throw new RuntimeException(e.getCause());
+    }
+    finally
+    {
+      executorService.shutdownNow();
+    }
+  }
+
+  /**
+   * Renders the sequence as stems on threadCount threads and mixes them
+   * down into the file. The stems are deleted afterwards.
+   */
+
+  public void render(Sequence sequence, File file, int threadCount)
+  {
+    if (threadCount < 2)
+    {
+      render(sequence, file);
+      return;
+    }
+    File directory = file.getAbsoluteFile().getParentFile();
+    String baseName = "." + file.getName() + "-" + System.currentTimeMillis();
+    try
+    {
+      mix(renderStems(sequence, directory, baseName, threadCount), file);
+    }
+    finally
+    {
+      // Including any left by a stem that failed
+      File[] files = directory.listFiles();
+      for (int i = 0; files != null && i < files.length; i++)
+      {
+        if (files[i].getName().startsWith(baseName))
+        {
+          files[i].delete();
+        }
+      }
+    }
+  }
+
+  /**
+   * Mixes the stems, which must be in FORMAT, into the file by adding their
+   * samples, clipping any that overflow.
+   */
+
+  public static void mix(List<File> stems, File file)
+  {
+    AudioInputStream[] inputs = new AudioInputStream[stems.size()];
+    try
+    {
+      long frameCount = 0;
+      for (int i = 0; i < inputs.length; i++)
+      {
+        inputs[i] = AudioSystem.getAudioInputStream(stems.get(i));
+        frameCount = Math.max(frameCount, inputs[i].getFrameLength());
+      }
+      AudioInputStream mixStream = new AudioInputStream(new MixInputStream(inputs), FORMAT, frameCount);
+      AudioSystem.write(mixStream, AudioFileFormat.Type.WAVE, file);
+    }
+    catch (Exception e)
+    {
+      throw new RuntimeException(e);
+    }
+    finally
+    {
+      for (AudioInputStream input : inputs)
+      {
+        close(input);
+      }
+    }
+  }
+
+  private void render(SequenceEvents events, boolean[] channels, File file)
+  {
+    Synthesizer synthesizer = null;
+    AudioInputStream synthesizerStream = null;
+    try
+    {
+      // Each call returns a new synthesizer, distinct from the one used for playback
+      synthesizer = MidiSystem.getSynthesizer();
+      synthesizerStream = openStream(synthesizer);
+      Receiver receiver = synthesizer.getReceiver();
+      for (int i = 0; i < MidiConstants.MAX_CHANNELS; i++)
+      {
+        if (channels[i])
+        {
+          ShortMessage programChange = new ShortMessage();
+          programChange.setMessage(ShortMessage.PROGRAM_CHANGE, i, programs[i], 0);
+          receiver.send(programChange, 0);
+        }
+      }
+
+      long lengthMicros = events.tickToMicros(events.getTickLength()) + TAIL_MICROS;
+      long frameCount = (long)(lengthMicros * (double)FORMAT.getFrameRate() / 1000000);
+      InputStream eventStream = new EventInputStream(synthesizerStream, events, channels, receiver);
+      AudioInputStream audioInputStream = new AudioInputStream(eventStream, FORMAT, frameCount);
+      AudioSystem.write(audioInputStream, AudioFileFormat.Type.WAVE, file);
+    }
+    catch (MidiUnavailableException e)
+    {
+      throw new RuntimeException(e);
+    }
+    catch (InvalidMidiDataException e)
+    {
+      throw new RuntimeException(e);
+    }
+    catch (IOException e)
+    {
+      throw new RuntimeException(e);
+    }
+    finally
+    {
+      close(synthesizerStream);
+      if (synthesizer != null)
+      {
+        synthesizer.close();
+      }
+    }
+  }
+
+  private static AudioInputStream openStream(Synthesizer synthesizer)
+  {
+    try
+    {
+      Method openStream = synthesizer.getClass().getMethod("openStream", AudioFormat.class, Map.class);
+      return (AudioInputStream)openStream.invoke(synthesizer, FORMAT, null);
+    }
+    catch (IllegalAccessException e)
+    {
+      throw new RuntimeException("Rendering audio requires access to the Java Sound synthesizer, which Java 9 and later only allow when run with --add-exports " + EXPORT);
+    }
+    catch (Exception e)
+    {
+      throw new RuntimeException("The synthesizer " + synthesizer.getDeviceInfo().getName() + " cannot render to a stream", e);
+    }
+  }
+
+  private static boolean[] getUsedChannels(SequenceEvents events)
+  {
+    boolean[] isUsed = new boolean[MidiConstants.MAX_CHANNELS];
+    int size = events.size();
+    for (int i = 0; i < size; i++)
+    {
+      int channel = getChannel(events.getMessage(i));
+      if (channel != -1)
+      {
+        isUsed[channel] = true;
+      }
+    }
+    return isUsed;
+  }
+
+  /**
+   * Returns the channel of a channel message, or -1 for a system message.
+   */
+
+  private static int getChannel(MidiMessage message)
+  {
+    int status = message.getStatus();
+    return status < 0xf0 ? status & 0x0f : -1;
+  }
+
+  private static void close(InputStream inputStream)
+  {
+    if (inputStream != null)
+    {
+      try
+      {
+        inputStream.close();
+      }
+      catch (IOException e)
+      {
+      }
+    }
+  }
+
+  /**
+   * Reads the synthesizer output, first sending it the events that sound
+   * before the end of the block being read. System messages go to every
+   * stem.
+   */
+
+  private static class EventInputStream extends FilterInputStream
+  {
+    private SequenceEvents events;
+    private boolean[] channels;
+    private Receiver receiver;
+    private int index;
+    private long frameCount;
+
+    private EventInputStream(InputStream synthesizerStream, SequenceEvents events, boolean[] channels, Receiver receiver)
+    {
+      super(synthesizerStream);
+      this.events = events;
+      this.channels = channels;
+      this.receiver = receiver;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException
+    {
+      int frameSize = FORMAT.getFrameSize();
+      length = Math.min(length, BLOCK_FRAMES * frameSize) / frameSize * frameSize;
+      long endMicros = (long)((frameCount + length / frameSize) * 1000000 / (double)FORMAT.getFrameRate());
+      int size = events.size();
+      while (index < size && events.getMicros(index) < endMicros)
+      {
+        MidiMessage message = events.getMessage(index);
+        int channel = getChannel(message);
+        if (channel == -1 || channels[channel])
+        {
+          receiver.send(message, events.getMicros(index));
+        }
+        index++;
+      }
+
+      int byteCount = super.read(buffer, offset, length);
+      if (byteCount > 0)
+      {
+        frameCount += byteCount / frameSize;
+      }
+      return byteCount;
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+      throw new IOException("Audio must be read in frames");
+    }
+  }
+
+  /**
+   * Adds the 16 bit little endian samples of the inputs.
+   */
+
+  private static class MixInputStream extends InputStream
+  {
+    private AudioInputStream[] inputs;
+    private byte[] inputBuffer = new byte[BLOCK_FRAMES * FORMAT.getFrameSize()];
+    private int[] sums = new int[BLOCK_FRAMES * FORMAT.getChannels()];
+
+    private MixInputStream(AudioInputStream[] inputs)
+    {
+      this.inputs = inputs;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException
+    {
+      length = Math.min(length, inputBuffer.length) / FORMAT.getFrameSize() * FORMAT.getFrameSize();
+      int sampleCount = length / 2;
+      int byteCount = -1;
+      Arrays.fill(sums, 0, sampleCount, 0);
+      for (AudioInputStream input : inputs)
+      {
+        int inputCount = readFully(input, inputBuffer, length);
+        byteCount = Math.max(byteCount, inputCount);
+        for (int i = 0, j = 0; j + 1 < inputCount; i++, j += 2)
+        {
+          sums[i] += (short)((inputBuffer[j] & 0xff) | (inputBuffer[j + 1] << 8));
+        }
+      }
+      for (int i = 0, j = offset; i < byteCount / 2; i++, j += 2)
+      {
+        int sample = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sums[i]));
+        buffer[j] = (byte)sample;
+        buffer[j + 1] = (byte)(sample >> 8);
+      }
+      return byteCount;
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+      throw new IOException("Audio must be read in frames");
+    }
+
+    private static int readFully(InputStream input, byte[] buffer, int length) throws IOException
+    {
+      int count = 0;
+      while (count < length)
+      {
+        int byteCount = input.read(buffer, count, length - count);
+        if (byteCount == -1)
+        {
+          break;
+        }
+        count += byteCount;
+      }
+      return count == 0 ? -1 : count;
+    }
+  }
+
+}
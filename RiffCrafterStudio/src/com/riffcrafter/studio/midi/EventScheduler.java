@@ -0,0 +1,716 @@
+// Copyright 2007 Anthony F. Stuart - All rights reserved.
+//
+// This program and the accompanying materials are made available
+// under the terms of the GNU General Public License. For other license
+// options please contact the copyright owner.
+//
+// This program is made available on an "as is" basis, without
+// warranties or conditions of any kind, either express or implied.
+
+package com.riffcrafter.studio.midi;
+
+import java.util.concurrent.locks.LockSupport;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+
+import com.riffcrafter.common.midi.MidiConstants;
+
+/**
+ * Plays a Sequence by sending its events to a Receiver, such as the
+ * Synthesizer or an external device, in place of the Java Sound Sequencer.
+ *
+ * The events of all tracks are merged into one SequenceEvents list when the
+ * Sequence is set, and timed by the tempo changes in all of the tracks, not
+ * just the first. Starting at a tick
+ * finds the first event at that tick, so no event is skipped when several
+ * share it.
+ *
+ * Events are sent by a dedicated thread at maximum priority. It parks until
+ * SPIN_NANOS before an event is due and busy waits for the rest, which
+ * avoids the granularity of the operating system timer at the cost of at
+ * most SPIN_NANOS of processor time per event. The difference between the
+ * time each event was due and the time it was sent is recorded, and is
+ * available from getStatistics.
+ *
+ * The lock is not held while an event or a notes off is sent, so a receiver
+ * that is slow to return does not hold up the threads that control the
+ * scheduler. A note on that is sent while notes are being ended elsewhere is
+ * followed by its own note off. If the receiver or the listener throws a
+ * RuntimeException, the failure is counted in the statistics, playing stops
+ * and the thread ends, so that the next start begins with a fresh one.
+ *
+ * A loop may cover the whole Sequence or just the region from the loop
+ * start point up to, but not including, the loop end point. Each iteration
+ * is timed from the time the last one was due to end, rather than from when
+ * the thread got round to it, so there is no gap at the loop point. The
+ * loop points may be changed while playing; if the position is already past
+ * the new end point, playing continues from the start point at once.
+ *
+ * The channel mask has a bit for each channel that is to be heard. Note on
+ * events for the other channels are dropped as they come due, while all
+ * other events are still sent so that the channels are ready to be heard
+ * again. Changing the mask takes effect at the next event.
+ */
+
+public class EventScheduler
+{
+  public static final int LOOP_CONTINUOUSLY = -1;
+  public static final int ALL_CHANNELS = (1 << MidiConstants.MAX_CHANNELS) - 1;
+
+  private static final long SPIN_NANOS = 1000000;
+  private static final long LATE_NANOS = 1000000;
+  private static final int ALL_NOTES_OFF = 123;
+  private static final int SUSTAIN = 64;
+
+  private Receiver receiver;
+  private Listener listener;
+  private Thread thread;
+
+  private SequenceEvents events = new SequenceEvents();
+  private long tickLength;
+  private long tickPosition;
+  private long loopStartTick;
+  private long loopEndTick = -1;
+  private int loopCount;
+  private long stopTick = -1;
+  private int channelMask = ALL_CHANNELS;
+
+  private boolean isRunning;
+  private boolean isClosed;
+  private int index;
+  private long startMicros;
+  private long startNanos;
+
+  // Changed whenever the thread must reconsider the event it is waiting for
+  private volatile int generation;
+  // Counts the times notes have been ended on any channel
+  private int notesOffCount;
+
+  private int sentCount;
+  private int lateCount;
+  private int failureCount;
+  private RuntimeException lastFailure;
+  private long totalLatencyNanos;
+  private double totalSquaredLatencyNanos;
+  private long maximumLatencyNanos;
+
+  public EventScheduler(Receiver receiver)
+  {
+    this.receiver = receiver;
+  }
+
+  public synchronized void setReceiver(Receiver receiver)
+  {
+    this.receiver = receiver;
+  }
+
+  public synchronized void setListener(Listener listener)
+  {
+    this.listener = listener;
+  }
+
+  public void setSequence(Sequence sequence)
+  {
+    stop();
+    synchronized (this)
+    {
+      events = new SequenceEvents(sequence);
+      tickLength = events.getTickLength();
+      tickPosition = 0;
+      loopStartTick = 0;
+      loopEndTick = -1;
+      stopTick = -1;
+    }
+  }
+
+  public synchronized long getTickLength()
+  {
+    return tickLength;
+  }
+
+  public synchronized long getMicrosecondLength()
+  {
+    return events.tickToMicros(tickLength);
+  }
+
+  public void setTickPosition(long tick)
+  {
+    Receiver notesOffReceiver = null;
+    synchronized (this)
+    {
+      tickPosition = Math.max(0, Math.min(tick, tickLength));
+      if (isRunning)
+      {
+        seek(tickPosition, System.nanoTime());
+        notesOffReceiver = beginNotesOff();
+      }
+    }
+    sendAllNotesOff(notesOffReceiver, ALL_CHANNELS);
+  }
+
+  public synchronized long getTickPosition()
+  {
+    if (isRunning)
+    {
+      long micros = startMicros + (System.nanoTime() - startNanos) / 1000;
+      return Math.min(events.microsToTick(micros), tickLength);
+    }
+    return tickPosition;
+  }
+
+  public synchronized void setLoopStartPoint(long tick)
+  {
+    loopStartTick = tick;
+    changeGeneration();
+  }
+
+  /**
+   * Sets the tick at which to return to the loop start point, or -1 for the
+   * end of the Sequence.
+   */
+
+  public synchronized void setLoopEndPoint(long tick)
+  {
+    loopEndTick = tick;
+    changeGeneration();
+  }
+
+  /**
+   * Sets the number of times to play from the loop start point to the loop
+   * end point after reaching the loop end point, or LOOP_CONTINUOUSLY.
+   */
+
+  public synchronized void setLoopCount(int loopCount)
+  {
+    this.loopCount = loopCount;
+    changeGeneration();
+  }
+
+  /**
+   * Sets the tick at which to stop, once there are no loops left, or -1 for
+   * the end of the Sequence. Events at the stop point are left, as at the
+   * end of a region, and the notes still playing are ended. It is reset by
+   * setSequence.
+   */
+
+  public synchronized void setStopPoint(long tick)
+  {
+    stopTick = tick;
+    changeGeneration();
+  }
+
+  /**
+   * Sets the channels to be heard, one bit per channel, and ends any notes
+   * playing on the channels that are no longer to be heard.
+   */
+
+  public void setChannelMask(int channelMask)
+  {
+    Receiver notesOffReceiver = null;
+    int disabledMask;
+    synchronized (this)
+    {
+      disabledMask = this.channelMask & ~channelMask;
+      this.channelMask = channelMask;
+      if (isRunning && disabledMask != 0)
+      {
+        notesOffReceiver = beginNotesOff();
+      }
+    }
+    sendAllNotesOff(notesOffReceiver, disabledMask);
+  }
+
+  public synchronized int getChannelMask()
+  {
+    return channelMask;
+  }
+
+  public synchronized void start()
+  {
+    if (isClosed || isRunning)
+    {
+      return;
+    }
+    if (thread == null)
+    {
+      thread = new Thread(new Runnable()
+      {
+        public void run()
+        {
+          schedule();
+        }
+      }, "EventScheduler");
+      thread.setDaemon(true);
+      thread.setPriority(Thread.MAX_PRIORITY);
+      thread.start();
+    }
+    isRunning = true;
+    seek(tickPosition, System.nanoTime());
+    notifyAll();
+  }
+
+  public void stop()
+  {
+    Receiver notesOffReceiver = null;
+    synchronized (this)
+    {
+      if (isRunning)
+      {
+        tickPosition = getTickPosition();
+        isRunning = false;
+        changeGeneration();
+        notesOffReceiver = beginNotesOff();
+      }
+    }
+    sendAllNotesOff(notesOffReceiver, ALL_CHANNELS);
+  }
+
+  public synchronized boolean isRunning()
+  {
+    return isRunning;
+  }
+
+  public void close()
+  {
+    stop();
+    synchronized (this)
+    {
+      isClosed = true;
+      notifyAll();
+    }
+  }
+
+  public synchronized Statistics getStatistics()
+  {
+    double averageNanos = sentCount == 0 ? 0 : (double)totalLatencyNanos / sentCount;
+    double variance = sentCount == 0 ? 0 : Math.max(0, totalSquaredLatencyNanos / sentCount - averageNanos * averageNanos);
+    return new Statistics(sentCount, lateCount, failureCount, averageNanos / 1000, Math.sqrt(variance) / 1000, maximumLatencyNanos / 1000.0);
+  }
+
+  /**
+   * Returns what the receiver or the listener last threw, or null.
+   */
+
+  public synchronized RuntimeException getLastFailure()
+  {
+    return lastFailure;
+  }
+
+  public synchronized void resetStatistics()
+  {
+    sentCount = 0;
+    lateCount = 0;
+    failureCount = 0;
+    totalLatencyNanos = 0;
+    totalSquaredLatencyNanos = 0;
+    maximumLatencyNanos = 0;
+  }
+
+  /**
+   * Positions the schedule so that the event at the tick is due at the
+   * given time.
+   */
+
+  private void seek(long tick, long nanos)
+  {
+    index = events.findFirstEvent(tick);
+    startMicros = events.tickToMicros(tick);
+    startNanos = nanos;
+    changeGeneration();
+  }
+
+  /**
+   * Returns the tick at which this iteration ends, which is the end of the
+   * Sequence unless looping a region within it or stopping before the end.
+   */
+
+  private long getEndTick()
+  {
+    if (loopCount != 0 && loopEndTick > Math.min(loopStartTick, tickLength) && loopEndTick < tickLength)
+    {
+      return loopEndTick;
+    }
+    if (stopTick >= 0 && stopTick < tickLength)
+    {
+      return stopTick;
+    }
+    return tickLength;
+  }
+
+  /**
+   * Returns true if the event at index is to be sent before this iteration
+   * ends. Events at the end of the Sequence are, but those at the end of a
+   * region are left for the next time the region is reached.
+   */
+
+  private boolean isBeforeEnd(int index, long endTick)
+  {
+    return index < events.size() && (events.getTick(index) < endTick || endTick == tickLength);
+  }
+
+  private void changeGeneration()
+  {
+    generation++;
+    if (thread != null)
+    {
+      LockSupport.unpark(thread);
+    }
+  }
+
+  private void schedule()
+  {
+    while (true)
+    {
+      int expectedGeneration;
+      long dueNanos;
+
+      synchronized (this)
+      {
+        while (!isRunning)
+        {
+          if (isClosed)
+          {
+            return;
+          }
+          try
+          {
+            wait();
+          }
+          catch (InterruptedException e)
+          {
+            return;
+          }
+        }
+        expectedGeneration = generation;
+        long endTick = getEndTick();
+        long dueMicros = isBeforeEnd(index, endTick) ? events.getMicros(index) : events.tickToMicros(endTick);
+        dueNanos = startNanos + (dueMicros - startMicros) * 1000;
+      }
+
+      if (!waitUntil(dueNanos, expectedGeneration))
+      {
+        continue;
+      }
+
+      Listener currentListener;
+      Receiver currentReceiver = null;
+      MidiMessage message = null;
+      int expectedNotesOffCount = 0;
+      Receiver notesOffReceiver = null;
+      long tick;
+      boolean isEnd = false;
+
+      synchronized (this)
+      {
+        if (generation != expectedGeneration)
+        {
+          continue;
+        }
+        currentListener = listener;
+        long endTick = getEndTick();
+        if (isBeforeEnd(index, endTick))
+        {
+          tick = events.getTick(index);
+          if (isEnabled(events.getMessage(index)))
+          {
+            currentReceiver = receiver;
+            message = events.getMessage(index);
+            expectedNotesOffCount = notesOffCount;
+          }
+          index++;
+        }
+        else if (loopCount != 0)
+        {
+          if (loopCount > 0)
+          {
+            loopCount--;
+          }
+          // Start the next iteration when this one ends, rather than now, so the beat is kept
+          tick = Math.min(loopStartTick, tickLength);
+          notesOffReceiver = beginNotesOff();
+          // Unless the end point was moved back past the position, in which case start now
+          long nowNanos = System.nanoTime();
+          seek(tick, nowNanos - dueNanos > LATE_NANOS ? nowNanos : dueNanos);
+        }
+        else
+        {
+          if (endTick < tickLength)
+          {
+            // Stopped short of the end, with notes that would end later
+            notesOffReceiver = beginNotesOff();
+          }
+          tick = endTick;
+          tickPosition = endTick;
+          isRunning = false;
+          isEnd = true;
+        }
+      }
+
+      try
+      {
+        // Sent without the lock, so a slow receiver does not hold up the callers
+        sendAllNotesOff(notesOffReceiver, ALL_CHANNELS);
+        if (message != null)
+        {
+          currentReceiver.send(message, -1);
+          boolean isNotesOff;
+          synchronized (this)
+          {
+            recordLatency(System.nanoTime() - dueNanos);
+            isNotesOff = notesOffCount != expectedNotesOffCount;
+          }
+          // A note on that crossed a stop, seek or mask change must be ended too
+          if (isNotesOff)
+          {
+            sendNoteOff(currentReceiver, message);
+          }
+        }
+
+        if (currentListener != null)
+        {
+          if (isEnd)
+          {
+            currentListener.onEnd();
+          }
+          else
+          {
+            currentListener.onTick(tick);
+          }
+        }
+      }
+      catch (RuntimeException e)
+      {
+        fail(e);
+        return;
+      }
+    }
+  }
+
+  /**
+   * Stops playing after the receiver or the listener has failed, and lets
+   * this thread end, so that the next start spawns a fresh one.
+   */
+
+  private void fail(RuntimeException e)
+  {
+    Listener currentListener;
+    synchronized (this)
+    {
+      failureCount++;
+      lastFailure = e;
+      if (isRunning)
+      {
+        tickPosition = getTickPosition();
+        isRunning = false;
+      }
+      thread = null;
+      changeGeneration();
+      currentListener = listener;
+    }
+    if (currentListener != null)
+    {
+      try
+      {
+        currentListener.onEnd();
+      }
+      catch (RuntimeException onEndException)
+      {
+        // Already failed; the thread is ending either way
+      }
+    }
+  }
+
+  /**
+   * Waits until the time, returning false if the generation changes first.
+   */
+
+  private boolean waitUntil(long dueNanos, int expectedGeneration)
+  {
+    while (generation == expectedGeneration)
+    {
+      long remainingNanos = dueNanos - System.nanoTime();
+      if (remainingNanos <= 0)
+      {
+        return true;
+      }
+      if (remainingNanos > SPIN_NANOS)
+      {
+        LockSupport.parkNanos(remainingNanos - SPIN_NANOS);
+      }
+    }
+    return false;
+  }
+
+  private void recordLatency(long latencyNanos)
+  {
+    sentCount++;
+    totalLatencyNanos += latencyNanos;
+    totalSquaredLatencyNanos += (double)latencyNanos * latencyNanos;
+    maximumLatencyNanos = Math.max(maximumLatencyNanos, latencyNanos);
+    if (latencyNanos > LATE_NANOS)
+    {
+      lateCount++;
+    }
+  }
+
+  private boolean isEnabled(MidiMessage message)
+  {
+    if (channelMask == ALL_CHANNELS || !(message instanceof ShortMessage))
+    {
+      return true;
+    }
+    ShortMessage shortMessage = (ShortMessage)message;
+    if (shortMessage.getCommand() != ShortMessage.NOTE_ON || shortMessage.getData2() == 0)
+    {
+      return true;
+    }
+    return (channelMask & (1 << shortMessage.getChannel())) != 0;
+  }
+
+  private void sendNoteOff(Receiver receiver, MidiMessage message)
+  {
+    if (!(message instanceof ShortMessage))
+    {
+      return;
+    }
+    ShortMessage noteOn = (ShortMessage)message;
+    if (noteOn.getCommand() != ShortMessage.NOTE_ON || noteOn.getData2() == 0)
+    {
+      return;
+    }
+    try
+    {
+      ShortMessage noteOff = new ShortMessage();
+      noteOff.setMessage(ShortMessage.NOTE_OFF, noteOn.getChannel(), noteOn.getData1(), 0);
+      receiver.send(noteOff, -1);
+    }
+    catch (InvalidMidiDataException e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Notes that notes are about to be ended, and returns the receiver to send
+   * the notes off to once the lock is released. Must be called with the lock.
+   */
+
+  private Receiver beginNotesOff()
+  {
+    notesOffCount++;
+    return receiver;
+  }
+
+  /**
+   * Ends the notes on the channels in the mask, unless the receiver is null.
+   * Called without the lock.
+   */
+
+  private static void sendAllNotesOff(Receiver receiver, int channelMask)
+  {
+    if (receiver == null)
+    {
+      return;
+    }
+    try
+    {
+      for (int channel = 0; channel < MidiConstants.MAX_CHANNELS; channel++)
+      {
+        if ((channelMask & (1 << channel)) == 0)
+        {
+          continue;
+        }
+        ShortMessage sustainOff = new ShortMessage();
+        sustainOff.setMessage(ShortMessage.CONTROL_CHANGE, channel, SUSTAIN, 0);
+        receiver.send(sustainOff, -1);
+        ShortMessage allNotesOff = new ShortMessage();
+        allNotesOff.setMessage(ShortMessage.CONTROL_CHANGE, channel, ALL_NOTES_OFF, 0);
+        receiver.send(allNotesOff, -1);
+      }
+    }
+    catch (InvalidMidiDataException e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Notified on the scheduler thread, which must not be kept waiting.
+   */
+
+  public interface Listener
+  {
+    void onTick(long tick);
+
+    void onEnd();
+  }
+
+  public static class Statistics
+  {
+    private int eventCount;
+    private int lateCount;
+    private int failureCount;
+    private double averageMicros;
+    private double standardDeviationMicros;
+    private double maximumMicros;
+
+    Statistics(int eventCount, int lateCount, int failureCount, double averageMicros, double standardDeviationMicros, double maximumMicros)
+    {
+      this.eventCount = eventCount;
+      this.lateCount = lateCount;
+      this.failureCount = failureCount;
+      this.averageMicros = averageMicros;
+      this.standardDeviationMicros = standardDeviationMicros;
+      this.maximumMicros = maximumMicros;
+    }
+
+    public int getEventCount()
+    {
+      return eventCount;
+    }
+
+    /**
+     * Returns the number of events sent more than a millisecond late.
+     */
+
+    public int getLateCount()
+    {
+      return lateCount;
+    }
+
+    /**
+     * Returns the number of times the receiver or the listener failed, each
+     * of which stopped playing.
+     */
+
+    public int getFailureCount()
+    {
+      return failureCount;
+    }
+
+    public double getAverageMicros()
+    {
+      return averageMicros;
+    }
+
+    public double getStandardDeviationMicros()
+    {
+      return standardDeviationMicros;
+    }
+
+    public double getMaximumMicros()
+    {
+      return maximumMicros;
+    }
+
+    public String toString()
+    {
+      return String.format("%d events, %d late, %d failed, latency average=%.1f us, deviation=%.1f us, maximum=%.1f us", eventCount, lateCount, failureCount, averageMicros, standardDeviationMicros, maximumMicros);
+    }
+  }
+
+}
@@ -90,7 +90,7 @@ public class GraphicalNotator extends Notator
   }
 
   @Override
-  protected void paintStaffs(Graphics2D g2d, int ticksPerMeasure, long firstMeasureTick, long lastMeasureTick)
+  protected void paintStaffs(Graphics2D g2d, long[] measureTicks)
   {
     for (int channelPosition = 0; channelPosition < activeChannelMap.length; channelPosition++)
     {
@@ -103,9 +103,9 @@ public class GraphicalNotator extends Notator
         int y = adjustY(getY(channelPosition, j - firstLine));
         g2d.drawLine(0, y, width, y);
       }
-      for (long j = firstMeasureTick; j <= lastMeasureTick; j += ticksPerMeasure)
+      for (long measureTick : measureTicks)
       {
-        int x = getX(j);
+        int x = getX(measureTick);
         int y1 = adjustY(getY(channelPosition, 0));
         int y2 = adjustY(getY(channelPosition, lastLine - firstLine));
         g2d.drawLine(x, y1, x, y2);
@@ -32,6 +32,7 @@ import javax.swing.JPanel;
 import com.riffcrafter.common.midi.Channel;
 import com.riffcrafter.common.midi.ChannelEvent;
 import com.riffcrafter.common.midi.Instruments;
+import com.riffcrafter.common.midi.MeasureMap;
 import com.riffcrafter.common.midi.MetaEvent;
 import com.riffcrafter.common.midi.Midel;
 import com.riffcrafter.common.midi.Midi;
@@ -605,18 +606,16 @@ public abstract class Notator extends JPanel
 
     width = getWidth();
     height = getHeight();
-    int ticksPerMeasure = midi.findTicksPerMeasure(currentTick);
 
     paintBackground(g2d);
     paintHighlight(g2d);
 
-    long firstMeasureTick = (firstTick / ticksPerMeasure) * ticksPerMeasure;
-    long lastMeasureTick = (lastTick / ticksPerMeasure) * ticksPerMeasure;
+    long[] measureTicks = getMeasureTicks(firstTick, lastTick);
 
     g2d.setFont(titleFont);
     g2d.setColor(getForeground());
 
-    paintStaffs(g2d, ticksPerMeasure, firstMeasureTick, lastMeasureTick);
+    paintStaffs(g2d, measureTicks);
     paintTitles(g2d);
 
     ArrayList<MetaEvent> lyrics = new ArrayList<MetaEvent>();
@@ -639,10 +638,28 @@ public abstract class Notator extends JPanel
       g2d.drawRect(x, y, width, selectionRectangleInTicks.height);
     }
 
-    paintNonScrollingArea(g2d, ticksPerMeasure, lyrics);
+    paintNonScrollingArea(g2d, lyrics);
   }
 
-  protected abstract void paintStaffs(Graphics2D g2d, int ticksPerMeasure, long firstMeasureTick, long lastMeasureTick);
+  /**
+   * Returns the ticks at which the measures that start between firstTick
+   * and lastTick start, or that contain firstTick.
+   */
+
+  private long[] getMeasureTicks(long firstTick, long lastTick)
+  {
+    MeasureMap measureMap = midi.getMeasureMap();
+    long firstMeasure = measureMap.getMeasure(firstTick);
+    long lastMeasure = measureMap.getMeasure(lastTick);
+    long[] measureTicks = new long[(int)(lastMeasure - firstMeasure + 1)];
+    for (int i = 0; i < measureTicks.length; i++)
+    {
+      measureTicks[i] = measureMap.getMeasureTick(firstMeasure + i);
+    }
+    return measureTicks;
+  }
+
+  protected abstract void paintStaffs(Graphics2D g2d, long[] measureTicks);
 
   protected abstract void paintTitles(Graphics2D g2d);
 
@@ -655,14 +672,25 @@ public abstract class Notator extends JPanel
     g2d.fillRect(currentX, 0, HIGHLIGHT_WIDTH, getHeight());
   }
 
-  private void paintNonScrollingArea(Graphics2D g2d, int ticksPerMeasure, ArrayList<MetaEvent> lyrics)
+  private static String formatMillis(long millis)
+  {
+    long seconds = millis / 1000;
+    return String.format("%d:%02d.%03d", seconds / 60, seconds % 60, millis % 1000);
+  }
+
+  private void paintNonScrollingArea(Graphics2D g2d, ArrayList<MetaEvent> lyrics)
   {
     StringBuffer buffer = new StringBuffer(64);
 
+    MeasureMap measureMap = midi.getMeasureMap();
     buffer.append("Measure: ");
-    buffer.append(Long.toString(currentTick / ticksPerMeasure));
+    buffer.append(Long.toString(measureMap.getMeasure(currentTick)));
+    buffer.append(", Beat: ");
+    buffer.append(Integer.toString(measureMap.getBeat(currentTick)));
     buffer.append(", Tick: ");
     buffer.append(Long.toString(currentTick));
+    buffer.append(", Time: ");
+    buffer.append(formatMillis(midi.getTempoMap().getMillis(currentTick)));
 
     TimeSignatureChange timeSignatureChange = midi.findTimeSignatureChange(currentTick);
     if (timeSignatureChange != null)
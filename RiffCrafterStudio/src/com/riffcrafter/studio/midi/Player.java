@@ -11,21 +11,30 @@ package com.riffcrafter.studio.midi;
 
 import java.awt.EventQueue;
 import java.awt.event.AdjustmentEvent;
-
-import javax.sound.midi.MetaEventListener;
-import javax.sound.midi.MetaMessage;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import javax.sound.midi.Instrument;
 import javax.sound.midi.MidiChannel;
 import javax.sound.midi.MidiDevice;
 import javax.sound.midi.MidiMessage;
 import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Patch;
 import javax.sound.midi.Receiver;
 import javax.sound.midi.Sequence;
-import javax.sound.midi.Sequencer;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Soundbank;
 import javax.sound.midi.Synthesizer;
 import javax.sound.midi.MidiDevice.Info;
 
 import com.riffcrafter.common.midi.Catcher;
 import com.riffcrafter.common.midi.MidiConstants;
+import com.riffcrafter.library.util.Resources;
 import com.riffcrafter.studio.app.Editor;
 import com.riffcrafter.studio.app.Studio;
 import com.riffcrafter.studio.app.Editor.Bridger;
@@ -38,38 +47,131 @@ import com.riffcrafter.studio.app.Editor.Bridger;
  */
 public class Player
 {
-  private Sequencer sequencer;
+  private static final long LATE_NANOS = 1000000;
+
+  private EventScheduler scheduler;
   private Synthesizer synthesizer;
+  private MidiChannel[] channels;
+  private Receiver receiver;
+  private Receiver thruReceiver;
+
+  // What has last been sent to each synthesizer channel, or -1 for a program
+  // that a Sequence or live input has changed since. It is updated without
+  // the Player lock, which the scheduler thread must not wait for.
+  private AtomicIntegerArray programs = new AtomicIntegerArray(MidiConstants.MAX_CHANNELS);
+  private boolean[] isMute = new boolean[MidiConstants.MAX_CHANNELS];
+  private boolean[] isSolo = new boolean[MidiConstants.MAX_CHANNELS];
+
+  // The channels that mute and solo leave to be heard, which also applies to
+  // live input and the keyboard, and the channels being played, such as
+  // those of a selection. The scheduler plays notes on channels in both.
+  private volatile int audibleChannelMask = EventScheduler.ALL_CHANNELS;
+  private int playChannelMask = EventScheduler.ALL_CHANNELS;
+
+  private int auditionCount;
+  private int lateAuditionCount;
+  private long totalAuditionNanos;
+  private double totalSquaredAuditionNanos;
+  private long maximumAuditionNanos;
   private boolean started;
   private Studio studio;
   private Editor editor;
   private Bridger bridger;
 
-  private MidiReceiver midiReceiver = new MidiReceiver();
-  private MidiMetaEventListener midiMetaEventListener = new MidiMetaEventListener();
+  private SchedulerListener schedulerListener = new SchedulerListener();
   private long loopStart;
+  private boolean isLoop;
+  private long regionStart = -1;
+  private long regionEnd = -1;
+
+  // Opening the synthesizer and loading its instruments takes long enough to
+  // hold up the first paint, and to make the first note played on each
+  // instrument stutter, so it is done on a background thread. Anything that
+  // needs the synthesizer waits for it to open.
+
+  private ExecutorService warmUpExecutor = Executors.newSingleThreadExecutor(new ThreadFactory()
+  {
+    public Thread newThread(Runnable runnable)
+    {
+      Thread thread = new Thread(runnable, "Player-WarmUp");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+  private CountDownLatch openLatch = new CountDownLatch(1);
+  private RuntimeException openException;
+  private ConcurrentLinkedQueue<int[]> pendingPrograms = new ConcurrentLinkedQueue<int[]>();
 
   public Player(Studio studio)
   {
+    this.studio = studio;
+    invalidatePrograms();
+
+    scheduler = new EventScheduler(null);
+    scheduler.setListener(schedulerListener);
+
+    warmUpExecutor.execute(new Runnable()
+    {
+      public void run()
+      {
+        warmUp();
+      }
+    });
+  }
+
+  // The latch is released as soon as the synthesizer is open, so nothing
+  // waits for the instruments to load. A failure to load them is reported,
+  // but leaves the synthesizer usable. The instruments of a file, queued by
+  // preload, are loaded ahead of the rest of the soundbank.
+
+  private void warmUp()
+  {
+    long startTime = System.currentTimeMillis();
+    try
+    {
+      open();
+    }
+    catch (RuntimeException e)
+    {
+      openException = e;
+      report("Player.WarmUp.Failed", e.getMessage());
+      return;
+    }
+    finally
+    {
+      openLatch.countDown();
+    }
+    long openTime = System.currentTimeMillis();
     try
     {
-      this.studio = studio;
+      int instrumentCount = loadInstruments(null);
+      long loadTime = System.currentTimeMillis();
+      report("Player.WarmUp.Done", openTime - startTime, instrumentCount, loadTime - openTime);
+    }
+    catch (RuntimeException e)
+    {
+      report("Player.WarmUp.LoadFailed", e.getMessage());
+    }
+  }
 
-      sequencer = MidiSystem.getSequencer(false);
+  private void open()
+  {
+    try
+    {
       synthesizer = MidiSystem.getSynthesizer();
       synthesizer.open();
+      channels = synthesizer.getChannels();
+      Receiver synthesizerReceiver = synthesizer.getReceiver();
+      receiver = new ProgramTrackingReceiver(synthesizerReceiver, false);
+      thruReceiver = new ProgramTrackingReceiver(synthesizerReceiver, true);
 
       // Uncomment the following one (1) line to use standard Java Sound synthesizer:
-      sequencer.getTransmitter().setReceiver(synthesizer.getReceiver());
+      scheduler.setReceiver(receiver);
 
       // Uncomment the following three (3) lines to use Microsoft GS Wavetable SW Synth:
       // MidiDevice msSynthesizer = getMidiDevice("Microsoft GS Wavetable SW Synth");
       // msSynthesizer.open();
-      // sequencer.getTransmitter().setReceiver(msSynthesizer.getReceiver());
-
-      sequencer.addMetaEventListener(midiMetaEventListener);
-      sequencer.open();
-      sequencer.getTransmitter().setReceiver(midiReceiver);
+      // scheduler.setReceiver(msSynthesizer.getReceiver());
     }
     catch (Exception e)
     {
@@ -77,6 +179,118 @@ public class Player
     }
   }
 
+  /**
+   * Loads the instruments for the programs, or every instrument in the
+   * default soundbank if programs is null, and returns how many were loaded.
+   * Loading every instrument takes a while, so the programs queued by
+   * preload are loaded before each one.
+   */
+
+  private int loadInstruments(int[] programs)
+  {
+    Soundbank soundbank = synthesizer.getDefaultSoundbank();
+    if (soundbank == null)
+    {
+      return 0;
+    }
+    int instrumentCount = 0;
+    if (programs == null)
+    {
+      for (Instrument instrument : soundbank.getInstruments())
+      {
+        loadPendingInstruments();
+        if (synthesizer.loadInstrument(instrument))
+        {
+          instrumentCount++;
+        }
+      }
+    }
+    else
+    {
+      for (int program : programs)
+      {
+        Instrument instrument = soundbank.getInstrument(new Patch(0, program));
+        if (instrument != null && synthesizer.loadInstrument(instrument))
+        {
+          instrumentCount++;
+        }
+      }
+    }
+    return instrumentCount;
+  }
+
+  private void loadPendingInstruments()
+  {
+    int[] programs;
+    while ((programs = pendingPrograms.poll()) != null)
+    {
+      loadInstruments(programs);
+    }
+  }
+
+  /**
+   * Loads the instruments for the programs in the background, such as those
+   * used by a file that has just been opened, so that they are ready before
+   * they are played. They are loaded ahead of any of the default soundbank
+   * that is still to be loaded.
+   */
+
+  public void preload(int[] programs)
+  {
+    pendingPrograms.add(programs);
+    warmUpExecutor.execute(new Runnable()
+    {
+      public void run()
+      {
+        if (openException == null)
+        {
+          try
+          {
+            loadPendingInstruments();
+          }
+          catch (RuntimeException e)
+          {
+            report("Player.WarmUp.LoadFailed", e.getMessage());
+          }
+        }
+      }
+    });
+  }
+
+  private void report(final String templateName, final Object... arguments)
+  {
+    if (studio != null)
+    {
+      EventQueue.invokeLater(new Runnable()
+      {
+        public void run()
+        {
+          studio.setStatusText(Resources.format(templateName, arguments));
+        }
+      });
+    }
+  }
+
+  /**
+   * Waits for the synthesizer to open, if it has not already.
+   */
+
+  private void awaitSynthesizer()
+  {
+    try
+    {
+      openLatch.await();
+    }
+    catch (InterruptedException e)
+    {
+      throw new RuntimeException(e);
+    }
+    if (openException != null)
+    {
+      throw openException;
+    }
+  }
+
   public MidiDevice getMidiDevice(String name)
   {
     Info[] deviceDescriptors = MidiSystem.getMidiDeviceInfo();
@@ -95,6 +309,36 @@ public class Player
   }
 
   public void play(Sequence sequence, long tickPosition, Editor editor, Bridger bridger)
+  {
+    play(sequence, tickPosition, -1, EventScheduler.ALL_CHANNELS, editor, bridger, -1, -1);
+  }
+
+  /**
+   * Plays the sequence from tickPosition, looping the region from
+   * regionStart up to regionEnd if regionEnd is greater than regionStart.
+   * Any region from a previous play is replaced, so a play without one does
+   * not loop.
+   */
+
+  public void play(Sequence sequence, long tickPosition, Editor editor, Bridger bridger, long regionStart, long regionEnd)
+  {
+    play(sequence, tickPosition, -1, EventScheduler.ALL_CHANNELS, editor, bridger, regionStart, regionEnd);
+  }
+
+  /**
+   * Plays only the notes on the channels in channelMask, one bit per
+   * channel, from firstTick up to stopTick, such as a selection within the
+   * playback Sequence of a whole file, which saves building a Sequence for
+   * the selection. With repeat on, the range is played over and over.
+   */
+
+  public void playRange(Sequence sequence, long firstTick, long stopTick, int channelMask, Editor editor, Bridger bridger)
+  {
+    boolean isRepeat = studio.isRepeat() && stopTick > firstTick;
+    play(sequence, firstTick, stopTick, channelMask, editor, bridger, isRepeat ? firstTick : -1, isRepeat ? stopTick : -1);
+  }
+
+  private void play(Sequence sequence, long tickPosition, long stopTick, int channelMask, Editor editor, Bridger bridger, long regionStart, long regionEnd)
   {
     this.editor = editor;
     this.bridger = bridger;
@@ -106,34 +350,65 @@ public class Player
     {
       tickPosition = 0;
     }
-    
-    // Workground bug in the Java RealTimeSequencer. Note MidiUtils.tick2index
-    // does a binary search on tick to find the track read position. This doesn't
-    // work when there is more than one event at that tick, because it may not
-    // find the first one, so any occurring before it will not be processed.
-    tickPosition = Math.max(0, tickPosition - 1);
 
     synchronizeSynthesizer(editor);
-    Catcher.setSequence(sequencer, sequence);
-    sequencer.setTickPosition(tickPosition);
-    sequencer.start();
+    setPlayChannelMask(channelMask);
+    scheduler.setSequence(sequence);
+    scheduler.setTickPosition(tickPosition);
+    scheduler.setStopPoint(stopTick);
+    scheduler.resetStatistics();
+    scheduler.start();
     this.loopStart = tickPosition; // in case we repeat
+    this.regionStart = regionStart;
+    this.regionEnd = regionEnd;
     long tickLength = sequence.getTickLength();
     setLoop(studio.isRepeat() && tickLength > 0);
     started = true;
   }
 
-  public void play(Editor editor, int channel, int key, int velocity)
+  /**
+   * Plays a note for the editor, such as one played on the on-screen
+   * keyboard, without disturbing anything that is already playing. Only
+   * the note's channel is set to the editor's instrument, and only if it is
+   * not already, so a Sequence keeps its instruments on the others. The time
+   * from pressNanos, when the key was pressed, to the note on is recorded,
+   * and is available from getAuditionStatistics.
+   */
+
+  public void play(Editor editor, int channel, int key, int velocity, long pressNanos)
   {
-    stop();
-    synchronizeSynthesizer(editor);
-    MidiChannel[] channels = synthesizer.getChannels();
-    channels[channel].noteOn(key, velocity);
+    awaitSynthesizer();
+    if (isAudible(channel))
+    {
+      setProgram(channel, editor.getInstrument(channel));
+      channels[channel].noteOn(key, velocity);
+      recordAuditionLatency(System.nanoTime() - pressNanos);
+    }
   }
 
   public void stop(int channel, int key)
   {
-    synthesizer.getChannels()[channel].noteOff(key);
+    awaitSynthesizer();
+    channels[channel].noteOff(key);
+  }
+
+  public synchronized EventScheduler.Statistics getAuditionStatistics()
+  {
+    double averageNanos = auditionCount == 0 ? 0 : (double)totalAuditionNanos / auditionCount;
+    double variance = auditionCount == 0 ? 0 : Math.max(0, totalSquaredAuditionNanos / auditionCount - averageNanos * averageNanos);
+    return new EventScheduler.Statistics(auditionCount, lateAuditionCount, 0, averageNanos / 1000, Math.sqrt(variance) / 1000, maximumAuditionNanos / 1000.0);
+  }
+
+  private synchronized void recordAuditionLatency(long latencyNanos)
+  {
+    auditionCount++;
+    totalAuditionNanos += latencyNanos;
+    totalSquaredAuditionNanos += (double)latencyNanos * latencyNanos;
+    maximumAuditionNanos = Math.max(maximumAuditionNanos, latencyNanos);
+    if (latencyNanos > LATE_NANOS)
+    {
+      lateAuditionCount++;
+    }
   }
 
   public void stop()
@@ -142,134 +417,295 @@ public class Player
     {
       bridger.stop();
     }
-    sequencer.stop();
-    sequencer.setLoopCount(0);
+    scheduler.stop();
+    scheduler.setLoopCount(0);
+    setPlayChannelMask(EventScheduler.ALL_CHANNELS);
     resetSynthesizer();
     started = false;
   }
 
   public boolean isPlaying(Editor editor)
   {
-    return sequencer.isRunning() && this.editor == editor;
+    return scheduler.isRunning() && this.editor == editor;
   }
 
   public boolean isPlaying()
   {
-    return sequencer.isRunning();
+    return scheduler.isRunning();
   }
 
-  public Sequencer getSequencer()
+  public EventScheduler getScheduler()
   {
-    return sequencer;
+    return scheduler;
   }
 
   public Synthesizer getSynthesizer()
   {
+    awaitSynthesizer();
     return synthesizer;
   }
 
+  /**
+   * Returns a Receiver that sends messages straight to the synthesizer, for
+   * playing live input, after setting up its channels for the editor. Note
+   * ons for channels that are muted, or not soloed while another is, are
+   * dropped. It may be used from any thread.
+   */
+
+  public Receiver getThruReceiver(Editor editor)
+  {
+    awaitSynthesizer();
+    synchronizeSynthesizer(editor);
+    return thruReceiver;
+  }
+
   public void setLoop(boolean isLoop)
   {
-    sequencer.setLoopStartPoint(loopStart);
-    sequencer.setLoopCount(isLoop ? Sequencer.LOOP_CONTINUOUSLY : 0);
+    this.isLoop = isLoop;
+    updateLoop();
+  }
+
+  /**
+   * Sets a region to play over and over, from regionStart up to regionEnd,
+   * in place of the whole sequence. It takes effect at once, even while
+   * playing, and lasts until cleared or the next play.
+   */
+
+  public void setLoopRegion(long regionStart, long regionEnd)
+  {
+    this.regionStart = regionStart;
+    this.regionEnd = regionEnd;
+    updateLoop();
+  }
+
+  public void clearLoopRegion()
+  {
+    setLoopRegion(-1, -1);
+  }
+
+  public boolean isLoopRegion()
+  {
+    return regionEnd > regionStart;
+  }
+
+  private void updateLoop()
+  {
+    if (isLoopRegion())
+    {
+      scheduler.setLoopStartPoint(regionStart);
+      scheduler.setLoopEndPoint(regionEnd);
+      scheduler.setLoopCount(EventScheduler.LOOP_CONTINUOUSLY);
+    }
+    else
+    {
+      scheduler.setLoopStartPoint(loopStart);
+      scheduler.setLoopEndPoint(-1);
+      scheduler.setLoopCount(isLoop ? EventScheduler.LOOP_CONTINUOUSLY : 0);
+    }
   }
 
   private void updateCurrentTick()
   {
     if (bridger != null)
     {
-      bridger.setCurrentTick(sequencer.getTickPosition());
+      bridger.setCurrentTick(scheduler.getTickPosition());
     }
   }
 
   private void synchronizeSynthesizer(Editor editor)
   {
-    MidiChannel[] channels = synthesizer.getChannels();
     for (int i = 0; i < MidiConstants.MAX_CHANNELS; i++)
     {
-      channels[i].setMute(editor.isMute(i));
-      channels[i].setSolo(editor.isSolo(i));
-      channels[i].programChange(editor.getInstrument(i));
+      setMute(i, editor.isMute(i));
+      setSolo(i, editor.isSolo(i));
+      setProgram(i, editor.getInstrument(i));
     }
   }
 
   public void resetSynthesizer()
   {
-    MidiChannel[] channels = synthesizer.getChannels();
     for (int i = 0; i < MidiConstants.MAX_CHANNELS; i++)
     {
-      channels[i].setMute(false);
-      channels[i].setSolo(false);
-      channels[i].programChange(i);
+      setMute(i, false);
+      setSolo(i, false);
+      setProgram(i, i);
+    }
+  }
+
+  private void invalidatePrograms()
+  {
+    for (int i = 0; i < MidiConstants.MAX_CHANNELS; i++)
+    {
+      programs.set(i, -1);
     }
   }
 
-  public boolean isMute(int channel)
+  public void setProgram(int channel, int program)
   {
-    return synthesizer.getChannels()[channel].getMute();
+    awaitSynthesizer();
+    if (programs.get(channel) != program)
+    {
+      // Record it first, so a program change sent meanwhile invalidates it
+      programs.set(channel, program);
+      channels[channel].programChange(program);
+    }
   }
 
-  public void setMute(int channel, boolean isMute)
+  public synchronized boolean isMute(int channel)
   {
-    synthesizer.getChannels()[channel].setMute(isMute);
+    return isMute[channel];
   }
 
-  public boolean isSolo(int channel)
+  public synchronized void setMute(int channel, boolean isMute)
   {
-    return synthesizer.getChannels()[channel].getSolo();
+    if (this.isMute[channel] != isMute)
+    {
+      this.isMute[channel] = isMute;
+      updateChannelMask();
+    }
   }
 
-  public void setSolo(int channel, boolean isSolo)
+  public synchronized boolean isSolo(int channel)
   {
-    synthesizer.getChannels()[channel].setSolo(isSolo);
+    return isSolo[channel];
+  }
+
+  public synchronized void setSolo(int channel, boolean isSolo)
+  {
+    if (this.isSolo[channel] != isSolo)
+    {
+      this.isSolo[channel] = isSolo;
+      updateChannelMask();
+    }
+  }
+
+  private synchronized void setPlayChannelMask(int playChannelMask)
+  {
+    this.playChannelMask = playChannelMask;
+    updateChannelMask();
+  }
+
+  private boolean isAudible(int channel)
+  {
+    return (audibleChannelMask & (1 << channel)) != 0;
+  }
+
+  /**
+   * Mutes and solos by masking the channels in the scheduler, which drops
+   * their notes as they come due, so they can be switched while playing
+   * without touching the Sequence. Live input and notes played on the
+   * keyboard are checked against the same channels.
+   */
+
+  private void updateChannelMask()
+  {
+    boolean isAnySolo = false;
+    for (int i = 0; i < MidiConstants.MAX_CHANNELS; i++)
+    {
+      isAnySolo |= isSolo[i];
+    }
+    int channelMask = 0;
+    for (int i = 0; i < MidiConstants.MAX_CHANNELS; i++)
+    {
+      if (!isMute[i] && (!isAnySolo || isSolo[i]))
+      {
+        channelMask |= 1 << i;
+      }
+    }
+    audibleChannelMask = channelMask;
+    scheduler.setChannelMask(channelMask & playChannelMask);
   }
 
   public void onScrollerChange(AdjustmentEvent e)
   {
-    if (sequencer.isRunning() && e.getValueIsAdjusting())
+    if (scheduler.isRunning() && e.getValueIsAdjusting())
     {
-      sequencer.stop();
+      scheduler.stop();
     }
     else
     {
       long tick = e.getValue();
-      sequencer.setTickPosition(tick);
-      if (started & !sequencer.isRunning())
+      scheduler.setTickPosition(tick);
+      if (started & !scheduler.isRunning())
       {
-        sequencer.start();
+        scheduler.start();
       }
     }
   }
 
-  private class MidiReceiver implements Receiver
+  /**
+   * Passes messages to the synthesizer, noting the channels whose program
+   * they change, so that the next setProgram for the channel is sent. For
+   * live input, which the scheduler does not mask, note ons for channels
+   * that are not audible are dropped.
+   */
+
+  private class ProgramTrackingReceiver implements Receiver
   {
-    public void send(final MidiMessage message, final long timeStamp)
+    private Receiver receiver;
+    private boolean isMasking;
+
+    private ProgramTrackingReceiver(Receiver receiver, boolean isMasking)
     {
-      EventQueue.invokeLater(new Runnable()
+      this.receiver = receiver;
+      this.isMasking = isMasking;
+    }
+
+    public void send(MidiMessage message, long timeStamp)
+    {
+      if (message instanceof ShortMessage)
       {
-        public void run()
+        ShortMessage shortMessage = (ShortMessage)message;
+        int command = shortMessage.getCommand();
+        if (command == ShortMessage.PROGRAM_CHANGE)
         {
-          updateCurrentTick();
+          programs.set(shortMessage.getChannel(), -1);
         }
-      });
+        else if (isMasking && command == ShortMessage.NOTE_ON && shortMessage.getData2() > 0 && !isAudible(shortMessage.getChannel()))
+        {
+          return;
+        }
+      }
+      receiver.send(message, timeStamp);
     }
 
     public void close()
     {
+      receiver.close();
     }
-
   }
 
-  private class MidiMetaEventListener implements MetaEventListener
+  private class SchedulerListener implements EventScheduler.Listener
   {
-    public void meta(MetaMessage event)
+    private AtomicBoolean isUpdatePending = new AtomicBoolean();
+
+    public void onTick(long tick)
     {
-      if (event.getType() == MidiConstants.END_OF_TRACK)
+      // One update at a time is enough to keep up with the scheduler
+      if (isUpdatePending.compareAndSet(false, true))
       {
-        updateCurrentTick();
-        studio.stop();
+        EventQueue.invokeLater(new Runnable()
+        {
+          public void run()
+          {
+            isUpdatePending.set(false);
+            updateCurrentTick();
+          }
+        });
       }
     }
+
+    public void onEnd()
+    {
+      EventQueue.invokeLater(new Runnable()
+      {
+        public void run()
+        {
+          updateCurrentTick();
+          studio.stop();
+        }
+      });
+    }
   }
 
 }
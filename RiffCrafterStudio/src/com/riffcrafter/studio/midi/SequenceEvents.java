@@ -0,0 +1,166 @@
+// Copyright 2007 Anthony F. Stuart - All rights reserved.
+//
+// This program and the accompanying materials are made available
+// under the terms of the GNU General Public License. For other license
+// options please contact the copyright owner.
+//
+// This program is made available on an "as is" basis, without
+// warranties or conditions of any kind, either express or implied.
+
+package com.riffcrafter.studio.midi;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.Track;
+
+import com.riffcrafter.common.midi.Midi;
+import com.riffcrafter.common.midi.TempoMap;
+
+/**
+ * The events of all tracks of a Sequence merged into one list in tick
+ * order, with the time of each one in microseconds from a TempoMap of the
+ * tempo changes in all of the tracks. Events at the same tick are taken in
+ * track order. Meta messages are used for the tempo map and are not in the
+ * list.
+ */
+
+class SequenceEvents
+{
+  private long[] ticks;
+  private long[] micros;
+  private MidiMessage[] messages;
+  private int count;
+  private long tickLength;
+
+  private TempoMap tempoMap;
+
+  SequenceEvents()
+  {
+    this(createEmptySequence());
+  }
+
+  SequenceEvents(Sequence sequence)
+  {
+    Track[] tracks = sequence.getTracks();
+    int totalEventCount = 0;
+    for (Track track : tracks)
+    {
+      totalEventCount += track.size();
+    }
+
+    ticks = new long[totalEventCount];
+    micros = new long[totalEventCount];
+    messages = new MidiMessage[totalEventCount];
+    tempoMap = new TempoMap(sequence);
+
+    // Merge the tracks, taking events at the same tick in track order
+    int[] trackIndexes = new int[tracks.length];
+    while (true)
+    {
+      int nextTrack = -1;
+      long nextTick = Long.MAX_VALUE;
+      for (int i = 0; i < tracks.length; i++)
+      {
+        if (trackIndexes[i] < tracks[i].size())
+        {
+          long tick = tracks[i].get(trackIndexes[i]).getTick();
+          if (tick < nextTick)
+          {
+            nextTick = tick;
+            nextTrack = i;
+          }
+        }
+      }
+      if (nextTrack == -1)
+      {
+        break;
+      }
+
+      MidiEvent event = tracks[nextTrack].get(trackIndexes[nextTrack]++);
+      MidiMessage message = event.getMessage();
+      if (!(message instanceof MetaMessage))
+      {
+        ticks[count] = nextTick;
+        micros[count] = tempoMap.getMicros(nextTick);
+        messages[count] = message;
+        count++;
+      }
+    }
+
+    tickLength = sequence.getTickLength();
+  }
+
+  private static Sequence createEmptySequence()
+  {
+    try
+    {
+      return new Sequence(Sequence.PPQ, Midi.DEFAULT_RESOLUTION);
+    }
+    catch (InvalidMidiDataException e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+
+  int size()
+  {
+    return count;
+  }
+
+  long getTick(int index)
+  {
+    return ticks[index];
+  }
+
+  long getMicros(int index)
+  {
+    return micros[index];
+  }
+
+  MidiMessage getMessage(int index)
+  {
+    return messages[index];
+  }
+
+  long getTickLength()
+  {
+    return tickLength;
+  }
+
+  /**
+   * Returns the index of the first event at or after the tick.
+   */
+
+  int findFirstEvent(long tick)
+  {
+    int low = 0;
+    int high = count;
+    while (low < high)
+    {
+      int middle = (low + high) >>> 1;
+      if (ticks[middle] < tick)
+      {
+        low = middle + 1;
+      }
+      else
+      {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  long tickToMicros(long tick)
+  {
+    return tempoMap.getMicros(tick);
+  }
+
+  long microsToTick(long micros)
+  {
+    return tempoMap.getTick(micros);
+  }
+
+}
@@ -24,6 +24,7 @@ import javax.swing.ImageIcon;
 
 import com.riffcrafter.common.midi.ChannelEvent;
 import com.riffcrafter.common.midi.Instruments;
+import com.riffcrafter.common.midi.MeasureMap;
 import com.riffcrafter.common.midi.MetaEvent;
 import com.riffcrafter.common.midi.Midel;
 import com.riffcrafter.common.midi.Midi;
@@ -68,7 +69,7 @@ public class StaffNotator extends Notator
 
   private MaxTicks maxTicks = new MaxTicks();
 
-  private long ticksPerMeasure; // TODO: Add support for multiple Time Signatures per midi file
+  private MeasureMap measureMap;
 
   public StaffNotator(Midi midi, SelectionManager selectionManager)
   {
@@ -106,7 +107,7 @@ public class StaffNotator extends Notator
 
   // See http://en.wikipedia.org/wiki/Musical_staff
 
-  protected void paintStaffs(Graphics2D g2d, int ticksPerMeasure, long firstMeasureTick, long lastMeasureTick)
+  protected void paintStaffs(Graphics2D g2d, long[] measureTicks)
   {
     g2d.setColor(STAFF_COLOR);
 
@@ -134,9 +135,9 @@ public class StaffNotator extends Notator
 
       int bassBottom = y - NOTE_HEIGHT; // that last line we just added but never drew
 
-      for (long j = firstMeasureTick; j <= lastMeasureTick; j += ticksPerMeasure)
+      for (long measureTick : measureTicks)
       {
-        int x = getX(j);
+        int x = getX(measureTick);
         g2d.drawLine(x, trebleTop, x, bassBottom);
       }
     }
@@ -161,7 +162,7 @@ public class StaffNotator extends Notator
 
     long lastMeasure = 0;
     MeasureNotes measureNotes = new MeasureNotes();
-    ticksPerMeasure = midi.findTicksPerMeasure(0);
+    measureMap = midi.getMeasureMap();
     maxTicks.clear();
 
     for (Midel midel : midels)
@@ -170,11 +171,11 @@ public class StaffNotator extends Notator
       {
         Note note = (Note)midel;
         long tick = note.getTick();
-        long measure = tick / ticksPerMeasure;
+        long measure = measureMap.getMeasure(tick);
         // TODO: Insert MeasureNotes cache here
         if (measure != lastMeasure)
         {
-          long measureEndingTick = measure * ticksPerMeasure;
+          long measureEndingTick = measureMap.getMeasureTick(lastMeasure + 1);
           measureNotes.paint(g2d, isSelected, measureEndingTick);
           lastMeasure = measure;
           measureNotes.clear();
@@ -190,7 +191,7 @@ public class StaffNotator extends Notator
       }
     }
 
-    measureNotes.paint(g2d, isSelected, (lastMeasure + 1) * ticksPerMeasure);
+    measureNotes.paint(g2d, isSelected, measureMap.getMeasureTick(lastMeasure + 1));
 
     g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
   }
@@ -922,7 +923,7 @@ public class StaffNotator extends Notator
 
     private void insertRests(long measureEndingTick)
     {
-      long measureStartingTick = measureEndingTick - ticksPerMeasure;
+      long measureStartingTick = measureMap.getMeasureStart(measureEndingTick - 1);
 
       // TODO: Right now, we only handle empty measures if the other clef contains notes. Otherwise,
       // there is nothing to force the filling of the empty measure. We need something to trigger the
@@ -960,7 +961,7 @@ public class StaffNotator extends Notator
         }
       }
 
-      long totalRestDuration = ticksPerMeasure - totalNoteDuration;
+      long totalRestDuration = (measureEndingTick - measureStartingTick) - totalNoteDuration;
 
       // Second pass: allocate the rests to the gaps using a best fit approach
       long lastTick = firstAllocatedTick;
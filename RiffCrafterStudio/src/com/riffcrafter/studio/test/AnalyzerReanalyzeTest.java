@@ -0,0 +1,198 @@
+// Copyright 2007 Anthony F. Stuart - All rights reserved.
+//
+// This program and the accompanying materials are made available
+// under the terms of the GNU General Public License. For other license
+// options please contact the copyright owner.
+//
+// This program is made available on an "as is" basis, without
+// warranties or conditions of any kind, either express or implied.
+
+package com.riffcrafter.studio.test;
+
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.Random;
+
+import com.riffcrafter.common.midi.Midel;
+import com.riffcrafter.common.midi.Midi;
+import com.riffcrafter.common.midi.Note;
+import com.riffcrafter.studio.app.Analyzer;
+import com.riffcrafter.studio.app.Analyzer.AnalyzerNode;
+
+/**
+ * Edits notes in a Midi made of repeating phrases, updates an analysis of the
+ * original with Analyzer.reanalyze, and checks that the result has the same
+ * nodes, hash keys and notes as a full analysis of the edited Midi. Each edit
+ * is made with and without building the grammar, once changing a velocity
+ * (which keeps the hash keys) and once changing a key (which does not).
+ *
+ * Usage: java AnalyzerReanalyzeTest
+ */
+
+public class AnalyzerReanalyzeTest
+{
+  private static final int CHANNEL = 0;
+  private static final int MEASURE_COUNT = 48;
+  private static final int NOTES_PER_MEASURE = 4;
+  private static final int MINIMUM_GROUP_SIZE = 5;
+  private static final int PERCENT_AVERAGE_GAP = 200;
+
+  private static int failureCount;
+
+  public static void main(String[] args)
+  {
+    for (boolean isBuildGrammar : new boolean[] { false, true })
+    {
+      for (int measure : new int[] { 0, 17, MEASURE_COUNT - 1 })
+      {
+        check("velocity, grammar=" + isBuildGrammar + ", measure=" + measure, isBuildGrammar, measure, false);
+        check("key, grammar=" + isBuildGrammar + ", measure=" + measure, isBuildGrammar, measure, true);
+      }
+    }
+
+    System.out.println(failureCount == 0 ? "PASSED" : "FAILED (" + failureCount + ")");
+    System.exit(failureCount == 0 ? 0 : 1);
+  }
+
+  private static void check(String name, boolean isBuildGrammar, int measure, boolean isChangeKey)
+  {
+    Midi midi = createMidi();
+    AnalyzerNode root = analyze(midi, isBuildGrammar);
+
+    Note oldNote = findNote(midi, measure);
+    int key = isChangeKey ? oldNote.getKey() + 1 : oldNote.getKey();
+    int velocity = isChangeKey ? oldNote.getVelocity() : oldNote.getVelocity() / 2;
+    Note newNote = new Note(CHANNEL, key, velocity, oldNote.getTick(), oldNote.getDuration());
+    midi.remove(oldNote);
+    midi.add(newNote);
+
+    long tick = newNote.getTick();
+    if (!root.getAnalyzer().reanalyze(root, midi, tick, tick + newNote.getDuration()))
+    {
+      fail(name + ": reanalyze could not update the tree");
+      return;
+    }
+
+    String difference = compare(root, analyze(midi, isBuildGrammar));
+    if (difference == null)
+    {
+      System.out.println(name + ": same as full analysis");
+    }
+    else
+    {
+      fail(name + ": " + difference);
+    }
+  }
+
+  private static AnalyzerNode analyze(Midi midi, boolean isBuildGrammar)
+  {
+    Analyzer analyzer = new Analyzer();
+    AnalyzerNode root = analyzer.createInitialTree(midi, CHANNEL, true, false, MINIMUM_GROUP_SIZE, PERCENT_AVERAGE_GAP);
+    if (isBuildGrammar)
+    {
+      analyzer.buildGrammar(root);
+    }
+    return root;
+  }
+
+  /**
+   * Creates a melody of two-measure phrases, most of them repeats of the
+   * first few, so that the grammar finds patterns in it.
+   */
+
+  private static Midi createMidi()
+  {
+    Random random = new Random(7);
+    int[][] phrases = new int[3][2 * NOTES_PER_MEASURE];
+    for (int[] phrase : phrases)
+    {
+      for (int i = 0; i < phrase.length; i++)
+      {
+        phrase[i] = 60 + random.nextInt(12);
+      }
+    }
+
+    Midi midi = new Midi();
+    long tick = 0;
+    for (int measure = 0; measure < MEASURE_COUNT; measure += 2)
+    {
+      int[] phrase = phrases[random.nextInt(4) == 0 ? 2 : (measure / 2) % 2];
+      for (int key : phrase)
+      {
+        midi.add(new Note(CHANNEL, key, 64 + random.nextInt(32), tick, Midi.DEFAULT_RESOLUTION / 2));
+        tick += Midi.DEFAULT_RESOLUTION;
+      }
+    }
+    return midi;
+  }
+
+  private static Note findNote(Midi midi, int measure)
+  {
+    long tick = (long)measure * NOTES_PER_MEASURE * Midi.DEFAULT_RESOLUTION;
+    for (Midel midel : midi.getMidels())
+    {
+      if (midel instanceof Note && midel.getTick() == tick)
+      {
+        return (Note)midel;
+      }
+    }
+    throw new RuntimeException("No note at measure " + measure);
+  }
+
+  /**
+   * Returns a description of the first difference between the trees, or
+   * null if they have the same shape, node types, hash keys and notes.
+   * Pattern and chord numbers are not compared, because an update may assign
+   * identities in a different order.
+   */
+
+  private static String compare(AnalyzerNode actualRoot, AnalyzerNode expectedRoot)
+  {
+    ArrayList<AnalyzerNode> actualNodes = getNodes(actualRoot);
+    ArrayList<AnalyzerNode> expectedNodes = getNodes(expectedRoot);
+    if (actualNodes.size() != expectedNodes.size())
+    {
+      return "node count " + actualNodes.size() + " != " + expectedNodes.size();
+    }
+    for (int i = 0; i < actualNodes.size(); i++)
+    {
+      AnalyzerNode actual = actualNodes.get(i);
+      AnalyzerNode expected = expectedNodes.get(i);
+      if (actual.getClass() != expected.getClass() || actual.getChildCount() != expected.getChildCount())
+      {
+        return "node " + i + " is " + actual + " with " + actual.getChildCount() + " children, expected " + expected + " with " + expected.getChildCount();
+      }
+      if (actual.getHashKey() != expected.getHashKey())
+      {
+        return "node " + i + " (" + actual + ") hash key " + actual.getHashKey() + " != " + expected.getHashKey();
+      }
+      if (actual.getUserObject() instanceof Note && actual.getUserObject() != expected.getUserObject())
+      {
+        return "node " + i + " note " + actual.getUserObject() + " != " + expected.getUserObject();
+      }
+    }
+    if (!actualRoot.toString().equals(expectedRoot.toString()))
+    {
+      return "root " + actualRoot + " != " + expectedRoot;
+    }
+    return null;
+  }
+
+  private static ArrayList<AnalyzerNode> getNodes(AnalyzerNode root)
+  {
+    ArrayList<AnalyzerNode> nodes = new ArrayList<AnalyzerNode>();
+    Enumeration<?> enumeration = root.preorderEnumeration();
+    while (enumeration.hasMoreElements())
+    {
+      nodes.add((AnalyzerNode)enumeration.nextElement());
+    }
+    return nodes;
+  }
+
+  private static void fail(String message)
+  {
+    System.out.println("FAILED: " + message);
+    failureCount++;
+  }
+
+}
@@ -0,0 +1,55 @@
+// Copyright 2007 Anthony F. Stuart - All rights reserved.
+//
+// This program and the accompanying materials are made available
+// under the terms of the GNU General Public License. For other license
+// options please contact the copyright owner.
+//
+// This program is made available on an "as is" basis, without
+// warranties or conditions of any kind, either express or implied.
+
+package com.riffcrafter.studio.test;
+
+import java.io.File;
+
+import javax.sound.midi.Sequence;
+
+import com.riffcrafter.common.midi.Catcher;
+import com.riffcrafter.studio.midi.AudioRenderer;
+
+/**
+ * Renders a MIDI file to WAV in one pass and as parallel stems mixed down,
+ * and reports how many times faster than real time each was. Requires
+ *
+ * java --add-exports java.desktop/com.sun.media.sound=ALL-UNNAMED
+ *
+ * Usage: java AudioRendererBenchmark file.mid [threads]
+ */
+
+public class AudioRendererBenchmark
+{
+  public static void main(String[] args)
+  {
+    System.setProperty("java.awt.headless", "true");
+
+    Sequence sequence = Catcher.getSequence(new File(args[0]));
+    int threadCount = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+    double seconds = sequence.getMicrosecondLength() / 1e6;
+    AudioRenderer audioRenderer = new AudioRenderer();
+
+    File singleFile = new File(System.getProperty("java.io.tmpdir"), "AudioRendererBenchmark-single.wav");
+    long startTime = System.nanoTime();
+    audioRenderer.render(sequence, singleFile);
+    double singleSeconds = (System.nanoTime() - startTime) / 1e9;
+    System.out.printf("single pass: %.1f s of audio in %.2f s (%.0fx real time), %d bytes\n", seconds, singleSeconds, seconds / singleSeconds, singleFile.length());
+
+    File mixedFile = new File(System.getProperty("java.io.tmpdir"), "AudioRendererBenchmark-mixed.wav");
+    startTime = System.nanoTime();
+    audioRenderer.render(sequence, mixedFile, Math.max(2, threadCount));
+    double mixedSeconds = (System.nanoTime() - startTime) / 1e9;
+    System.out.printf("stems on %d threads: %.1f s of audio in %.2f s (%.0fx real time), %d bytes\n", Math.max(2, threadCount), seconds, mixedSeconds, seconds / mixedSeconds, mixedFile.length());
+
+    singleFile.delete();
+    mixedFile.delete();
+  }
+
+}
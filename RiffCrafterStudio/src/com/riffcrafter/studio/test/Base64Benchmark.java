@@ -0,0 +1,161 @@
+// Copyright 2007 Anthony F. Stuart - All rights reserved.
+//
+// This program and the accompanying materials are made available
+// under the terms of the GNU General Public License. For other license
+// options please contact the copyright owner.
+//
+// This program is made available on an "as is" basis, without
+// warranties or conditions of any kind, either express or implied.
+
+package com.riffcrafter.studio.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.sound.midi.Sequence;
+
+import com.riffcrafter.common.midi.Catcher;
+import com.riffcrafter.common.midi.Midi;
+import com.riffcrafter.common.midi.MidiConstants;
+import com.riffcrafter.common.midi.Note;
+import com.riffcrafter.common.thirdparty.Base64;
+import com.riffcrafter.library.util.Base64Codec;
+
+/**
+ * Compares Midi.toBase64 and Midi.fromBase64 with the previous
+ * implementation, which encoded and decoded through the thirdparty Base64
+ * streams, and checks that each can read the other's output.
+ *
+ * Usage: java Base64Benchmark [notes]
+ */
+
+public class Base64Benchmark
+{
+  private static final int DEFAULT_NOTES = 2000;
+  private static final int ITERATIONS = 200;
+
+  public static void main(String[] args) throws Exception
+  {
+    System.setProperty("java.awt.headless", "true");
+
+    int noteCount = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_NOTES;
+    Midi midi = createMidi(noteCount);
+
+    String legacyBase64 = toLegacyBase64(midi);
+    String base64 = midi.toBase64();
+    if (!Arrays.equals(Base64Codec.decode(legacyBase64), Base64Codec.decode(base64)))
+    {
+      throw new RuntimeException("Encodings differ");
+    }
+    if (Midi.fromBase64(legacyBase64).size() != midi.size() || fromLegacyBase64(base64).size() != midi.size())
+    {
+      throw new RuntimeException("Round trip lost midels");
+    }
+    checkCodec();
+
+    for (int pass = 0; pass < 2; pass++)
+    {
+      long startTime = System.nanoTime();
+      for (int i = 0; i < ITERATIONS; i++)
+      {
+        toLegacyBase64(midi);
+      }
+      long legacyEncodeNanos = System.nanoTime() - startTime;
+
+      startTime = System.nanoTime();
+      for (int i = 0; i < ITERATIONS; i++)
+      {
+        midi.toBase64();
+      }
+      long encodeNanos = System.nanoTime() - startTime;
+
+      startTime = System.nanoTime();
+      for (int i = 0; i < ITERATIONS; i++)
+      {
+        fromLegacyBase64(legacyBase64);
+      }
+      long legacyDecodeNanos = System.nanoTime() - startTime;
+
+      startTime = System.nanoTime();
+      for (int i = 0; i < ITERATIONS; i++)
+      {
+        Midi.fromBase64(base64);
+      }
+      long decodeNanos = System.nanoTime() - startTime;
+
+      System.out.printf("pass=%d, notes=%d, legacyLength=%d, length=%d, encode: legacy=%.3f ms new=%.3f ms, decode: legacy=%.3f ms new=%.3f ms\n", pass, noteCount, legacyBase64.length(), base64.length(), legacyEncodeNanos / 1e6 / ITERATIONS, encodeNanos / 1e6 / ITERATIONS, legacyDecodeNanos / 1e6 / ITERATIONS, decodeNanos / 1e6 / ITERATIONS);
+    }
+
+    long startTime = System.nanoTime();
+    byte[] bytes = midi.toByteArray();
+    for (int i = 0; i < ITERATIONS * 10; i++)
+    {
+      Base64Codec.decode(Base64Codec.encode(bytes));
+    }
+    long codecNanos = System.nanoTime() - startTime;
+    startTime = System.nanoTime();
+    for (int i = 0; i < ITERATIONS * 10; i++)
+    {
+      Base64.decode(Base64.encodeBytes(bytes));
+    }
+    long legacyCodecNanos = System.nanoTime() - startTime;
+    System.out.printf("codec only (%d bytes): legacy=%.3f ms new=%.3f ms\n", bytes.length, legacyCodecNanos / 1e6 / ITERATIONS / 10, codecNanos / 1e6 / ITERATIONS / 10);
+  }
+
+  private static void checkCodec()
+  {
+    Random random = new Random(0);
+    for (int length = 0; length < 300; length++)
+    {
+      byte[] bytes = new byte[length];
+      random.nextBytes(bytes);
+      String base64 = Base64Codec.encode(bytes);
+      if (!base64.equals(Base64.encodeBytes(bytes, Base64.DONT_BREAK_LINES)) || !Arrays.equals(bytes, Base64Codec.decode(Base64.encodeBytes(bytes))))
+      {
+        throw new RuntimeException("Codec differs for length " + length);
+      }
+    }
+    try
+    {
+      Base64Codec.decode("not base64!");
+      throw new RuntimeException("Invalid input was decoded");
+    }
+    catch (IllegalArgumentException e)
+    {
+    }
+  }
+
+  private static Midi createMidi(int noteCount)
+  {
+    Random random = new Random(0);
+    Midi midi = new Midi();
+    long tick = 0;
+    for (int i = 0; i < noteCount; i++)
+    {
+      midi.add(new Note(random.nextInt(4), 36 + random.nextInt(48), 40 + random.nextInt(80), tick, 50 + random.nextInt(400)));
+      tick += random.nextInt(200);
+    }
+    return midi;
+  }
+
+  private static String toLegacyBase64(Midi midi) throws Exception
+  {
+    Sequence sequence = midi.toSequence();
+    ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+    OutputStream base64OutputStream = new Base64.OutputStream(byteArrayOutputStream);
+    Catcher.write(sequence, MidiConstants.MULTIPLE_TRACK, base64OutputStream);
+    base64OutputStream.close();
+    return byteArrayOutputStream.toString();
+  }
+
+  private static Midi fromLegacyBase64(String base64)
+  {
+    InputStream base64InputStream = new Base64.InputStream(new ByteArrayInputStream(base64.getBytes()));
+    return new Midi(base64InputStream);
+  }
+
+}
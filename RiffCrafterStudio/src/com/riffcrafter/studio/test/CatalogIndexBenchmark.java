@@ -0,0 +1,213 @@
+// Copyright 2007 Anthony F. Stuart - All rights reserved.
+//
+// This program and the accompanying materials are made available
+// under the terms of the GNU General Public License. For other license
+// options please contact the copyright owner.
+//
+// This program is made available on an "as is" basis, without
+// warranties or conditions of any kind, either express or implied.
+
+package com.riffcrafter.studio.test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Random;
+
+import com.riffcrafter.common.services.CatalogEntry;
+import com.riffcrafter.common.services.CatalogIndex;
+import com.riffcrafter.common.services.SearchRequest;
+import com.riffcrafter.common.services.Table;
+
+/**
+ * Builds a CatalogIndex of ENTRIES generated entries, checks its answers
+ * against a linear scan of the entries by the rules of DirectoryCatalog, and
+ * reports the time taken to build, snapshot and search it. Then builds one
+ * with a distinct made up word in every title, a vocabulary of ENTRIES
+ * words, and reports the time taken by searches for parts of those words,
+ * which match few entries, so that finding the words is most of the work.
+ */
+
+public class CatalogIndexBenchmark
+{
+  private static final int ENTRIES = 300000;
+  private static final int SEARCHES = 2000;
+
+  private static final String[] WORDS = { "blue", "moon", "river", "night", "train", "love", "rain", "fire", "city", "dance", "heart", "road", "summer", "winter", "song", "star", "dream", "light", "shadow", "waltz" };
+
+  public static void main(String[] args) throws Exception
+  {
+    System.setProperty("java.awt.headless", "true");
+
+    Random random = new Random(1);
+    ArrayList<CatalogEntry> entries = new ArrayList<CatalogEntry>();
+    for (int id = 0; id < ENTRIES; id++)
+    {
+      String title = WORDS[random.nextInt(WORDS.length)] + " " + WORDS[random.nextInt(WORDS.length)] + " " + random.nextInt(1000);
+      String artist = "Artist" + random.nextInt(5000) + " Band";
+      String date = String.format("%04d-%02d-%02d", 1990 + random.nextInt(20), 1 + random.nextInt(12), 1 + random.nextInt(28));
+      String user = "user" + random.nextInt(100);
+      entries.add(new CatalogEntry(id, title, artist, date, user, new File("/songs/" + id + ".mid")));
+    }
+
+    long startTime = System.nanoTime();
+    CatalogIndex catalogIndex = new CatalogIndex();
+    for (CatalogEntry entry : entries)
+    {
+      catalogIndex.add(entry);
+    }
+    System.out.println("build=" + (System.nanoTime() - startTime) / 1000000 + " ms");
+
+    File snapshot = File.createTempFile("catalog", ".snapshot");
+    snapshot.deleteOnExit();
+    startTime = System.nanoTime();
+    catalogIndex.writeSnapshot(snapshot);
+    System.out.println("writeSnapshot=" + (System.nanoTime() - startTime) / 1000000 + " ms, length=" + snapshot.length());
+
+    startTime = System.nanoTime();
+    CatalogIndex loadedIndex = new CatalogIndex();
+    loadedIndex.readSnapshot(snapshot);
+    System.out.println("readSnapshot=" + (System.nanoTime() - startTime) / 1000000 + " ms, size=" + loadedIndex.size());
+
+    ArrayList<SearchRequest> searchRequests = new ArrayList<SearchRequest>();
+    for (int i = 0; i < SEARCHES; i++)
+    {
+      SearchRequest searchRequest = new SearchRequest();
+      String word = WORDS[random.nextInt(WORDS.length)];
+      switch (random.nextInt(3))
+      {
+        case 0:
+          searchRequest.setTitle(WORDS[random.nextInt(WORDS.length)] + " " + word.substring(0, 3));
+          break;
+        case 1:
+          // Within a word, as "eart" is within "heart"
+          searchRequest.setTitle(word.substring(1, 4));
+          break;
+        case 2:
+          searchRequest.setTitle(word.substring(2) + " " + random.nextInt(10));
+          break;
+      }
+      if (random.nextBoolean())
+      {
+        searchRequest.setArtist("artist" + random.nextInt(5000));
+      }
+      if (random.nextBoolean())
+      {
+        searchRequest.setUser("user" + random.nextInt(100));
+      }
+      if (random.nextBoolean())
+      {
+        searchRequest.setAfterDate("2000-01-01");
+        searchRequest.setBeforeDate("2005-01-01");
+      }
+      searchRequests.add(searchRequest);
+    }
+
+    for (int i = 0; i < 100; i++)
+    {
+      SearchRequest searchRequest = searchRequests.get(i);
+      check(loadedIndex.search(searchRequest), scan(entries, searchRequest));
+    }
+
+    long rowCount = 0;
+    startTime = System.nanoTime();
+    for (SearchRequest searchRequest : searchRequests)
+    {
+      rowCount += loadedIndex.search(searchRequest).getRowCount();
+    }
+    long indexNanos = System.nanoTime() - startTime;
+
+    startTime = System.nanoTime();
+    for (int i = 0; i < 100; i++)
+    {
+      scan(entries, searchRequests.get(i));
+    }
+    long scanNanos = (System.nanoTime() - startTime) * (SEARCHES / 100);
+
+    System.out.printf("searches=%d, rows=%d, index=%.3f ms/search, scan=%.3f ms/search\n", SEARCHES, rowCount, indexNanos / 1e6 / SEARCHES, scanNanos / 1e6 / SEARCHES);
+
+    ArrayList<CatalogEntry> wordEntries = new ArrayList<CatalogEntry>();
+    CatalogIndex wordIndex = new CatalogIndex();
+    for (int id = 0; id < ENTRIES; id++)
+    {
+      CatalogEntry entry = new CatalogEntry(id, "the " + createWord(random), "Artist" + random.nextInt(5000), "2000-01-01", "user" + random.nextInt(100), new File("/songs/" + id + ".mid"));
+      wordEntries.add(entry);
+      wordIndex.add(entry);
+    }
+
+    ArrayList<SearchRequest> wordRequests = new ArrayList<SearchRequest>();
+    for (int i = 0; i < SEARCHES; i++)
+    {
+      String word = wordEntries.get(random.nextInt(ENTRIES)).getTitle().substring(4);
+      int start = random.nextInt(word.length() - 4);
+      SearchRequest searchRequest = new SearchRequest();
+      searchRequest.setTitle(word.substring(start, start + 4 + random.nextInt(word.length() - start - 3)));
+      wordRequests.add(searchRequest);
+    }
+
+    for (int i = 0; i < 100; i++)
+    {
+      SearchRequest searchRequest = wordRequests.get(i);
+      check(wordIndex.search(searchRequest), scan(wordEntries, searchRequest));
+    }
+
+    rowCount = 0;
+    startTime = System.nanoTime();
+    for (SearchRequest searchRequest : wordRequests)
+    {
+      rowCount += wordIndex.search(searchRequest).getRowCount();
+    }
+    indexNanos = System.nanoTime() - startTime;
+
+    System.out.printf("words=%d, searches=%d, rows=%d, index=%.3f ms/search\n", ENTRIES, SEARCHES, rowCount, indexNanos / 1e6 / SEARCHES);
+  }
+
+  private static String createWord(Random random)
+  {
+    StringBuilder word = new StringBuilder();
+    int length = 6 + random.nextInt(6);
+    for (int i = 0; i < length; i++)
+    {
+      word.append((char)('a' + random.nextInt(26)));
+    }
+    return word.toString();
+  }
+
+  /**
+   * Returns the ids of the entries that match, by the rules of
+   * DirectoryCatalog.
+   */
+
+  private static ArrayList<Integer> scan(ArrayList<CatalogEntry> entries, SearchRequest searchRequest)
+  {
+    ArrayList<Integer> ids = new ArrayList<Integer>();
+    for (CatalogEntry entry : entries)
+    {
+      if (contains(entry.getTitle(), searchRequest.getTitle()) && contains(entry.getArtist(), searchRequest.getArtist()) && contains(entry.getUser(), searchRequest.getUser()) && (searchRequest.getAfterDate() == null || entry.getDate().compareTo(searchRequest.getAfterDate()) > 0) && (searchRequest.getBeforeDate() == null || entry.getDate().compareTo(searchRequest.getBeforeDate()) < 0))
+      {
+        ids.add(entry.getId());
+      }
+    }
+    return ids;
+  }
+
+  private static boolean contains(String value, String query)
+  {
+    return query == null || value.toLowerCase().contains(query.trim().toLowerCase());
+  }
+
+  private static void check(Table table, ArrayList<Integer> ids)
+  {
+    if (table.getRowCount() != ids.size())
+    {
+      throw new RuntimeException("Expected " + ids.size() + " rows, found " + table.getRowCount());
+    }
+    for (int row = 0; row < ids.size(); row++)
+    {
+      if (!table.getValueAt(row, 0).equals(ids.get(row)))
+      {
+        throw new RuntimeException("Expected id " + ids.get(row) + " in row " + row + ", found " + table.getValueAt(row, 0));
+      }
+    }
+  }
+
+}
@@ -0,0 +1,162 @@
+// Copyright 2007 Anthony F. Stuart - All rights reserved.
+//
+// This program and the accompanying materials are made available
+// under the terms of the GNU General Public License. For other license
+// options please contact the copyright owner.
+//
+// This program is made available on an "as is" basis, without
+// warranties or conditions of any kind, either express or implied.
+
+package com.riffcrafter.studio.test;
+
+import java.io.File;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.riffcrafter.common.services.CatalogServer;
+import com.riffcrafter.common.services.DirectoryCatalog;
+import com.riffcrafter.common.services.DownloadRequest;
+import com.riffcrafter.common.services.DownloadResponse;
+import com.riffcrafter.common.services.SearchRequest;
+import com.riffcrafter.common.services.SearchResponse;
+import com.riffcrafter.common.services.Status;
+import com.riffcrafter.library.services.ConnectionToServer;
+import com.riffcrafter.library.services.ContentTypes;
+
+/**
+ * Starts a CatalogServer on a directory of MIDI files and runs CLIENTS client
+ * threads against it, each sending REQUESTS_PER_CLIENT randomly chosen
+ * searches and downloads. Reports the throughput and latency percentiles for
+ * each encoding.
+ *
+ * Usage: java CatalogServerLoadTest directory [clients] [requestsPerClient]
+ */
+
+public class CatalogServerLoadTest
+{
+  private static final int DEFAULT_CLIENTS = 200;
+  private static final int DEFAULT_REQUESTS_PER_CLIENT = 50;
+  private static final int SERVER_THREADS = 32;
+
+  public static void main(String[] args) throws Exception
+  {
+    System.setProperty("java.awt.headless", "true");
+
+    File directory = new File(args[0]);
+    int clients = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_CLIENTS;
+    int requestsPerClient = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_REQUESTS_PER_CLIENT;
+
+    DirectoryCatalog catalog = new DirectoryCatalog(directory, "test");
+    CatalogServer catalogServer = new CatalogServer(catalog);
+    catalogServer.start(0, SERVER_THREADS);
+
+    try
+    {
+      URL url = new URL("http://localhost:" + catalogServer.getPort() + "/");
+      System.out.println("catalogSize=" + catalog.size() + ", clients=" + clients + ", requestsPerClient=" + requestsPerClient);
+      for (String contentType : new String[] { ContentTypes.XML, ContentTypes.BINARY })
+      {
+        run(url, contentType, catalog.size(), clients, requestsPerClient);
+      }
+      System.out.println("serverRequests=" + catalogServer.getRequestCount() + ", serverErrors=" + catalogServer.getErrorCount());
+    }
+    finally
+    {
+      catalogServer.stop();
+    }
+  }
+
+  private static void run(final URL url, final String contentType, final int catalogSize, int clients, final int requestsPerClient) throws Exception
+  {
+    final long[] latencies = new long[clients * requestsPerClient];
+    final AtomicInteger latencyCount = new AtomicInteger();
+    final AtomicInteger failureCount = new AtomicInteger();
+    final CountDownLatch startLatch = new CountDownLatch(1);
+    final CountDownLatch endLatch = new CountDownLatch(clients);
+
+    for (int client = 0; client < clients; client++)
+    {
+      final Random random = new Random(client);
+      Thread thread = new Thread(new Runnable()
+      {
+        public void run()
+        {
+          ConnectionToServer connectionToServer = new ConnectionToServer(url, contentType);
+          try
+          {
+            startLatch.await();
+            for (int i = 0; i < requestsPerClient; i++)
+            {
+              long startTime = System.nanoTime();
+              try
+              {
+                if (random.nextBoolean())
+                {
+                  SearchRequest searchRequest = new SearchRequest();
+                  searchRequest.setTitle(Character.toString((char)('a' + random.nextInt(26))));
+                  SearchResponse searchResponse = new SearchResponse();
+                  connectionToServer.execute(searchRequest, searchResponse);
+                  check(searchResponse.getStatus(), searchResponse.getMessage());
+                }
+                else
+                {
+                  DownloadRequest downloadRequest = new DownloadRequest();
+                  downloadRequest.setId(random.nextInt(catalogSize));
+                  DownloadResponse downloadResponse = new DownloadResponse();
+                  connectionToServer.execute(downloadRequest, downloadResponse);
+                  check(downloadResponse.getStatus(), downloadResponse.getMessage());
+                }
+                latencies[latencyCount.getAndIncrement()] = System.nanoTime() - startTime;
+              }
+              catch (RuntimeException e)
+              {
+                failureCount.incrementAndGet();
+              }
+            }
+          }
+          catch (InterruptedException e)
+          {
+          }
+          finally
+          {
+            endLatch.countDown();
+          }
+        }
+      });
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    long startTime = System.nanoTime();
+    startLatch.countDown();
+    endLatch.await();
+    long elapsedNanos = System.nanoTime() - startTime;
+
+    int count = latencyCount.get();
+    Arrays.sort(latencies, 0, count);
+    double requestsPerSecond = count / (elapsedNanos / 1e9);
+    System.out.printf("contentType=%s, requests=%d, failures=%d, elapsed=%d ms, throughput=%.0f/s, p50=%.2f ms, p90=%.2f ms, p99=%.2f ms, max=%.2f ms\n", contentType, count, failureCount.get(), elapsedNanos / 1000000, requestsPerSecond, getPercentile(latencies, count, 50), getPercentile(latencies, count, 90), getPercentile(latencies, count, 99), getPercentile(latencies, count, 100));
+  }
+
+  private static void check(int status, String message)
+  {
+    if (status != Status.OKAY)
+    {
+      throw new RuntimeException(message);
+    }
+  }
+
+  private static double getPercentile(long[] sortedLatencies, int count, int percentile)
+  {
+    if (count == 0)
+    {
+      return 0;
+    }
+    int index = Math.min(count - 1, (int)Math.ceil(count * percentile / 100.0) - 1);
+    return sortedLatencies[Math.max(0, index)] / 1e6;
+  }
+
+}
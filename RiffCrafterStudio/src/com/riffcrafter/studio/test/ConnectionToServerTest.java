@@ -0,0 +1,189 @@
+// Copyright 2007 Anthony F. Stuart - All rights reserved.
+//
+// This program and the accompanying materials are made available
+// under the terms of the GNU General Public License. For other license
+// options please contact the copyright owner.
+//
+// This program is made available on an "as is" basis, without
+// warranties or conditions of any kind, either express or implied.
+
+package com.riffcrafter.studio.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.riffcrafter.common.services.ConnectionFromClient;
+import com.riffcrafter.common.services.SearchRequest;
+import com.riffcrafter.common.services.SearchResponse;
+import com.riffcrafter.common.services.Table;
+import com.riffcrafter.library.services.ConnectionToServer;
+import com.riffcrafter.library.services.ContentTypes;
+import com.riffcrafter.library.services.Request;
+import com.riffcrafter.library.services.ConnectionToServer.Invocation;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Exercises ConnectionToServer against an in-process stand-in for the catalog
+ * server that answers every search with a Table of ROWS rows. Checks that
+ * responses decode in each encoding, with and without compression, that
+ * concurrent requests all complete, and that connections are reused.
+ */
+
+public class ConnectionToServerTest
+{
+  private static final int ROWS = 10000;
+  private static final int REQUESTS = 20;
+
+  private static Set<InetSocketAddress> clientAddresses = Collections.synchronizedSet(new HashSet<InetSocketAddress>());
+
+  public static void main(String[] args) throws Exception
+  {
+    HttpServer httpServer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    httpServer.createContext("/", new StandInHandler(createTable()));
+    httpServer.start();
+
+    try
+    {
+      URL url = new URL("http://localhost:" + httpServer.getAddress().getPort() + "/");
+      for (String contentType : new String[] { ContentTypes.XML, ContentTypes.BINARY })
+      {
+        for (boolean isCompressed : new boolean[] { false, true })
+        {
+          run(url, contentType, isCompressed);
+        }
+      }
+      System.out.println("connections=" + clientAddresses.size());
+    }
+    finally
+    {
+      httpServer.stop(0);
+    }
+  }
+
+  private static void run(URL url, String contentType, boolean isCompressed) throws Exception
+  {
+    ConnectionToServer connectionToServer = new ConnectionToServer(url, contentType);
+    connectionToServer.setCompressed(isCompressed);
+
+    long startTime = System.nanoTime();
+    Invocation invocation = null;
+    for (int i = 0; i < REQUESTS; i++)
+    {
+      SearchResponse searchResponse = new SearchResponse();
+      invocation = connectionToServer.execute(createRequest(i), searchResponse);
+      check(searchResponse);
+    }
+    long sequentialMillis = (System.nanoTime() - startTime) / 1000000;
+
+    startTime = System.nanoTime();
+    ArrayList<SearchResponse> searchResponses = new ArrayList<SearchResponse>();
+    ArrayList<Future<Invocation>> futures = new ArrayList<Future<Invocation>>();
+    for (int i = 0; i < REQUESTS; i++)
+    {
+      SearchResponse searchResponse = new SearchResponse();
+      searchResponses.add(searchResponse);
+      futures.add(connectionToServer.submit(createRequest(i), searchResponse));
+    }
+    for (int i = 0; i < REQUESTS; i++)
+    {
+      futures.get(i).get();
+      check(searchResponses.get(i));
+    }
+    long concurrentMillis = (System.nanoTime() - startTime) / 1000000;
+    connectionToServer.shutdown();
+
+    System.out.println("contentType=" + contentType + ", isCompressed=" + isCompressed + ", last=" + invocation + ", sequential=" + sequentialMillis + " ms, concurrent=" + concurrentMillis + " ms, totalBytesSent=" + connectionToServer.getTotalBytesSent() + ", totalBytesReceived=" + connectionToServer.getTotalBytesReceived());
+  }
+
+  private static Request createRequest(int i)
+  {
+    SearchRequest searchRequest = new SearchRequest();
+    searchRequest.setTitle("Title " + i);
+    searchRequest.setArtist("Artist & Band");
+    return searchRequest;
+  }
+
+  private static void check(SearchResponse searchResponse)
+  {
+    Table table = searchResponse.getTable();
+    if (table.getRowCount() != ROWS || !table.getValueAt(ROWS - 1, 1).toString().equals("Song " + (ROWS - 1)))
+    {
+      throw new RuntimeException("Unexpected response table, rows=" + table.getRowCount());
+    }
+  }
+
+  private static Table createTable()
+  {
+    Table table = new Table();
+    table.addColumn("Id");
+    table.addColumn("Title");
+    table.addColumn("Artist");
+    for (int row = 0; row < ROWS; row++)
+    {
+      table.addRow(new Object[] { row, "Song " + row, "Artist " + (row % 100) });
+    }
+    return table;
+  }
+
+  private static class StandInHandler implements HttpHandler
+  {
+    private Table table;
+
+    private StandInHandler(Table table)
+    {
+      this.table = table;
+    }
+
+    public void handle(HttpExchange httpExchange) throws IOException
+    {
+      clientAddresses.add(httpExchange.getRemoteAddress());
+
+      InputStream inputStream = httpExchange.getRequestBody();
+      if ("gzip".equals(httpExchange.getRequestHeaders().getFirst("Content-Encoding")))
+      {
+        inputStream = new GZIPInputStream(inputStream);
+      }
+
+      String contentType = httpExchange.getRequestHeaders().getFirst("Content-Type");
+      ByteArrayOutputStream responseBody = new ByteArrayOutputStream();
+      ConnectionFromClient connectionFromClient = new ConnectionFromClient(inputStream, responseBody, contentType);
+      connectionFromClient.receiveCommandRequest();
+      SearchResponse searchResponse = new SearchResponse();
+      searchResponse.setTable(table);
+      connectionFromClient.sendCommandResponse(searchResponse);
+      inputStream.close();
+
+      byte[] bytes = responseBody.toByteArray();
+      String acceptEncoding = httpExchange.getRequestHeaders().getFirst("Accept-Encoding");
+      if (acceptEncoding != null && acceptEncoding.contains("gzip"))
+      {
+        ByteArrayOutputStream compressedBody = new ByteArrayOutputStream();
+        GZIPOutputStream gzipOutputStream = new GZIPOutputStream(compressedBody);
+        gzipOutputStream.write(bytes);
+        gzipOutputStream.close();
+        bytes = compressedBody.toByteArray();
+        httpExchange.getResponseHeaders().set("Content-Encoding", "gzip");
+      }
+
+      httpExchange.getResponseHeaders().set("Content-Type", connectionFromClient.getContentType());
+      httpExchange.sendResponseHeaders(200, bytes.length);
+      OutputStream outputStream = httpExchange.getResponseBody();
+      outputStream.write(bytes);
+      outputStream.close();
+    }
+  }
+
+}
@@ -0,0 +1,166 @@
+// Copyright 2007 Anthony F. Stuart - All rights reserved.
+//
+// This program and the accompanying materials are made available
+// under the terms of the GNU General Public License. For other license
+// options please contact the copyright owner.
+//
+// This program is made available on an "as is" basis, without
+// warranties or conditions of any kind, either express or implied.
+
+package com.riffcrafter.studio.test;
+
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.Sequencer;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+
+import com.riffcrafter.common.midi.MidiConstants;
+import com.riffcrafter.studio.midi.EventScheduler;
+
+/**
+ * Plays the same Sequence with the Java Sound Sequencer and with the
+ * EventScheduler to a Receiver that records when each note arrives, and
+ * compares the arrival times with the times computed from the tempo. The
+ * Sequence changes tempo half way through, in its second track.
+ *
+ * Usage: java EventSchedulerBenchmark [seconds]
+ */
+
+public class EventSchedulerBenchmark
+{
+  private static final int DEFAULT_SECONDS = 5;
+  private static final int RESOLUTION = 250;
+  private static final int TICKS_PER_NOTE = 25;
+  private static final int FIRST_TEMPO = 500000; // microseconds per quarter note
+  private static final int SECOND_TEMPO = 333333;
+
+  public static void main(String[] args) throws Exception
+  {
+    System.setProperty("java.awt.headless", "true");
+
+    int seconds = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_SECONDS;
+
+    // Half of the time at each tempo
+    long firstTicks = (seconds * 500000L * RESOLUTION / FIRST_TEMPO) / TICKS_PER_NOTE * TICKS_PER_NOTE;
+    long secondTicks = (seconds * 500000L * RESOLUTION / SECOND_TEMPO) / TICKS_PER_NOTE * TICKS_PER_NOTE;
+    long tempoTick = firstTicks;
+    int noteCount = (int)((firstTicks + secondTicks) / TICKS_PER_NOTE);
+
+    Sequence sequence = new Sequence(Sequence.PPQ, RESOLUTION);
+    Track tempoTrack = sequence.createTrack();
+    Track noteTrack = sequence.createTrack();
+    noteTrack.add(new MidiEvent(createTempo(SECOND_TEMPO), tempoTick));
+    for (int i = 0; i < noteCount; i++)
+    {
+      ShortMessage noteOn = new ShortMessage();
+      noteOn.setMessage(ShortMessage.NOTE_ON, 0, 60 + (i % 12), 64);
+      noteTrack.add(new MidiEvent(noteOn, i * TICKS_PER_NOTE));
+    }
+    tempoTrack.add(new MidiEvent(createTempo(FIRST_TEMPO), 0));
+
+    long[] expectedMicros = new long[noteCount];
+    for (int i = 0; i < noteCount; i++)
+    {
+      long tick = i * TICKS_PER_NOTE;
+      if (tick < tempoTick)
+      {
+        expectedMicros[i] = tick * FIRST_TEMPO / RESOLUTION;
+      }
+      else
+      {
+        expectedMicros[i] = tempoTick * FIRST_TEMPO / RESOLUTION + (tick - tempoTick) * SECOND_TEMPO / RESOLUTION;
+      }
+    }
+
+    ArrivalReceiver sequencerReceiver = new ArrivalReceiver(noteCount);
+    Sequencer sequencer = MidiSystem.getSequencer(false);
+    sequencer.open();
+    sequencer.getTransmitter().setReceiver(sequencerReceiver);
+    sequencer.setSequence(sequence);
+    sequencer.start();
+    sequencerReceiver.await();
+    sequencer.close();
+    report("Sequencer", sequencerReceiver, expectedMicros);
+
+    ArrivalReceiver schedulerReceiver = new ArrivalReceiver(noteCount);
+    EventScheduler scheduler = new EventScheduler(schedulerReceiver);
+    scheduler.setSequence(sequence);
+    scheduler.start();
+    schedulerReceiver.await();
+    scheduler.close();
+    report("EventScheduler", schedulerReceiver, expectedMicros);
+    System.out.println("EventScheduler statistics: " + scheduler.getStatistics());
+  }
+
+  private static MetaMessage createTempo(int microsPerQuarter) throws Exception
+  {
+    byte[] data = new byte[] { (byte)(microsPerQuarter >> 16), (byte)(microsPerQuarter >> 8), (byte)microsPerQuarter };
+    MetaMessage metaMessage = new MetaMessage();
+    metaMessage.setMessage(MidiConstants.MM_TEMPO, data, data.length);
+    return metaMessage;
+  }
+
+  /**
+   * Reports the error in each arrival time, relative to the first arrival.
+   */
+
+  private static void report(String name, ArrivalReceiver receiver, long[] expectedMicros)
+  {
+    int count = receiver.count;
+    double total = 0;
+    double totalSquares = 0;
+    long maximum = 0;
+    for (int i = 0; i < count; i++)
+    {
+      long errorMicros = Math.abs((receiver.arrivalNanos[i] - receiver.arrivalNanos[0]) / 1000 - (expectedMicros[i] - expectedMicros[0]));
+      total += errorMicros;
+      totalSquares += (double)errorMicros * errorMicros;
+      maximum = Math.max(maximum, errorMicros);
+    }
+    double average = total / count;
+    double deviation = Math.sqrt(Math.max(0, totalSquares / count - average * average));
+    long finalErrorMicros = (receiver.arrivalNanos[count - 1] - receiver.arrivalNanos[0]) / 1000 - (expectedMicros[count - 1] - expectedMicros[0]);
+    System.out.printf("%s: notes=%d, error average=%.1f us, deviation=%.1f us, maximum=%d us, final=%d us\n", name, count, average, deviation, maximum, finalErrorMicros);
+  }
+
+  private static class ArrivalReceiver implements Receiver
+  {
+    private long[] arrivalNanos;
+    private int count;
+
+    private ArrivalReceiver(int noteCount)
+    {
+      arrivalNanos = new long[noteCount];
+    }
+
+    public synchronized void send(MidiMessage message, long timeStamp)
+    {
+      if (message instanceof ShortMessage && ((ShortMessage)message).getCommand() == ShortMessage.NOTE_ON && count < arrivalNanos.length)
+      {
+        arrivalNanos[count++] = System.nanoTime();
+        if (count == arrivalNanos.length)
+        {
+          notifyAll();
+        }
+      }
+    }
+
+    public synchronized void await() throws InterruptedException
+    {
+      while (count < arrivalNanos.length)
+      {
+        wait();
+      }
+    }
+
+    public void close()
+    {
+    }
+  }
+
+}
@@ -0,0 +1,153 @@
+// Copyright 2007 Anthony F. Stuart - All rights reserved.
+//
+// This program and the accompanying materials are made available
+// under the terms of the GNU General Public License. For other license
+// options please contact the copyright owner.
+//
+// This program is made available on an "as is" basis, without
+// warranties or conditions of any kind, either express or implied.
+
+package com.riffcrafter.studio.test;
+
+import java.util.ArrayList;
+
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+
+import com.riffcrafter.studio.midi.EventScheduler;
+
+/**
+ * Plays a Sequence of one note every eighth note with the EventScheduler
+ * looping a region, then moves the region while it is playing, then clears
+ * it, and checks that every note played in each phase came from the region
+ * in effect and that each region actually looped.
+ *
+ * Usage: java EventSchedulerLoopTest
+ */
+
+public class EventSchedulerLoopTest
+{
+  private static final int RESOLUTION = 250; // 500 ms per quarter note at the default tempo
+  private static final int TICKS_PER_NOTE = 125;
+  private static final int NOTE_COUNT = 32;
+  private static final int FIRST_KEY = 40;
+
+  private static int failureCount;
+
+  public static void main(String[] args) throws Exception
+  {
+    System.setProperty("java.awt.headless", "true");
+
+    Sequence sequence = new Sequence(Sequence.PPQ, RESOLUTION);
+    Track track = sequence.createTrack();
+    for (int i = 0; i < NOTE_COUNT; i++)
+    {
+      ShortMessage noteOn = new ShortMessage();
+      noteOn.setMessage(ShortMessage.NOTE_ON, 0, FIRST_KEY + i, 64);
+      track.add(new MidiEvent(noteOn, i * TICKS_PER_NOTE));
+    }
+
+    KeyReceiver receiver = new KeyReceiver();
+    EventScheduler scheduler = new EventScheduler(receiver);
+    scheduler.setSequence(sequence);
+
+    // Notes 4 through 7, four notes (one second) per pass
+    scheduler.setLoopStartPoint(4 * TICKS_PER_NOTE);
+    scheduler.setLoopEndPoint(8 * TICKS_PER_NOTE);
+    scheduler.setLoopCount(EventScheduler.LOOP_CONTINUOUSLY);
+    scheduler.setTickPosition(4 * TICKS_PER_NOTE);
+    scheduler.start();
+    Thread.sleep(2500);
+    check("first region", receiver.takeKeys(), 4, 8);
+
+    // Move the region back, to notes 0 through 1, while playing past its end
+    scheduler.setLoopStartPoint(0);
+    scheduler.setLoopEndPoint(2 * TICKS_PER_NOTE);
+    Thread.sleep(250); // let the note due before the change finish arriving
+    receiver.takeKeys();
+    Thread.sleep(2000);
+    check("moved region", receiver.takeKeys(), 0, 2);
+
+    // Clear the region, so play continues through the end of the sequence
+    scheduler.setLoopCount(0);
+    scheduler.setLoopEndPoint(-1);
+    Thread.sleep(NOTE_COUNT * 250 + 500);
+    ArrayList<Integer> keys = receiver.takeKeys();
+    if (scheduler.isRunning())
+    {
+      fail("cleared region: still running after the end of the sequence");
+    }
+    if (keys.isEmpty() || keys.get(keys.size() - 1) != FIRST_KEY + NOTE_COUNT - 1)
+    {
+      fail("cleared region: last note was not the last note of the sequence, keys=" + keys);
+    }
+
+    System.out.println(scheduler.getStatistics());
+    scheduler.close();
+
+    System.out.println(failureCount == 0 ? "PASSED" : "FAILED (" + failureCount + ")");
+    System.exit(failureCount == 0 ? 0 : 1);
+  }
+
+  private static void check(String phase, ArrayList<Integer> keys, int firstNote, int endNote)
+  {
+    System.out.println(phase + ": " + keys);
+    int startCount = 0;
+    for (int key : keys)
+    {
+      int note = key - FIRST_KEY;
+      if (note < firstNote || note >= endNote)
+      {
+        fail(phase + ": note " + note + " is outside " + firstNote + " to " + endNote);
+      }
+      if (note == firstNote)
+      {
+        startCount++;
+      }
+    }
+    if (startCount < 2)
+    {
+      fail(phase + ": did not loop, first note played " + startCount + " time(s)");
+    }
+  }
+
+  private static void fail(String message)
+  {
+    System.out.println("FAILED: " + message);
+    failureCount++;
+  }
+
+  private static class KeyReceiver implements Receiver
+  {
+    private ArrayList<Integer> keys = new ArrayList<Integer>();
+
+    public synchronized void send(MidiMessage message, long timeStamp)
+    {
+      if (message instanceof ShortMessage)
+      {
+        ShortMessage shortMessage = (ShortMessage)message;
+        if (shortMessage.getCommand() == ShortMessage.NOTE_ON && shortMessage.getData2() > 0)
+        {
+          keys.add(shortMessage.getData1());
+        }
+      }
+    }
+
+    public synchronized ArrayList<Integer> takeKeys()
+    {
+      ArrayList<Integer> takenKeys = keys;
+      keys = new ArrayList<Integer>();
+      return takenKeys;
+    }
+
+    public void close()
+    {
+    }
+
+  }
+
+}
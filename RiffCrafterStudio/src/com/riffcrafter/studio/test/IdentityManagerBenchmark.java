@@ -0,0 +1,147 @@
+// Copyright 2007 Anthony F. Stuart - All rights reserved.
+//
+// This program and the accompanying materials are made available
+// under the terms of the GNU General Public License. For other license
+// options please contact the copyright owner.
+//
+// This program is made available on an "as is" basis, without
+// warranties or conditions of any kind, either express or implied.
+
+package com.riffcrafter.studio.test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+import com.riffcrafter.library.util.LongIdentityMap;
+
+/**
+ * Compares the boxed HashMap identity manager formerly used by the Analyzer
+ * with LongIdentityMap. Keys are drawn from a skewed distribution shaped like
+ * the Analyzer's note hash keys (duration * 1000 + key), so most finds hit.
+ */
+
+public class IdentityManagerBenchmark
+{
+  private static final int DISTINCT_KEYS = 20000;
+  private static final int FINDS_PER_ROUND = 2000000;
+  private static final int ROUNDS = 10;
+
+  public static void main(String[] args)
+  {
+    long[] hashKeys = createHashKeys();
+
+    long checksum = 0;
+    for (int round = 0; round < ROUNDS; round++)
+    {
+      long startTime = System.nanoTime();
+      checksum += runHashMap(hashKeys);
+      long hashMapTime = System.nanoTime() - startTime;
+
+      startTime = System.nanoTime();
+      checksum -= runLongIdentityMap(hashKeys);
+      long longIdentityMapTime = System.nanoTime() - startTime;
+
+      System.out.println("round=" + round + ", HashMap=" + (hashMapTime / 1000000) + " ms, LongIdentityMap=" + (longIdentityMapTime / 1000000) + " ms, speedup=" + ((hashMapTime * 100) / Math.max(1, longIdentityMapTime)) + "%");
+    }
+
+    if (checksum != 0)
+    {
+      throw new RuntimeException("Implementations disagree, checksum=" + checksum);
+    }
+  }
+
+  private static long[] createHashKeys()
+  {
+    Random random = new Random(42);
+    long[] distinctKeys = new long[DISTINCT_KEYS];
+    for (int i = 0; i < DISTINCT_KEYS; i++)
+    {
+      long duration = 1 + random.nextInt(2000);
+      int key = random.nextInt(128);
+      distinctKeys[i] = (duration * 1000) + key;
+    }
+
+    long[] hashKeys = new long[FINDS_PER_ROUND];
+    for (int i = 0; i < FINDS_PER_ROUND; i++)
+    {
+      // Squaring the uniform value favors a small set of frequent keys
+      double value = random.nextDouble();
+      hashKeys[i] = distinctKeys[(int)(value * value * DISTINCT_KEYS)];
+    }
+    return hashKeys;
+  }
+
+  private static long runHashMap(long[] hashKeys)
+  {
+    HashMapIdentityManager identityManager = new HashMapIdentityManager();
+    long checksum = 0;
+    for (long hashKey : hashKeys)
+    {
+      checksum += identityManager.find(hashKey);
+    }
+    for (int i = 1; i <= identityManager.count; i++)
+    {
+      checksum += identityManager.getFrequency(i);
+    }
+    return checksum;
+  }
+
+  private static long runLongIdentityMap(long[] hashKeys)
+  {
+    LongIdentityMap identityMap = new LongIdentityMap();
+    long checksum = 0;
+    for (long hashKey : hashKeys)
+    {
+      checksum += identityMap.find(hashKey);
+    }
+    for (int i = 1; i <= identityMap.size(); i++)
+    {
+      checksum += identityMap.getFrequency(i);
+    }
+    return checksum;
+  }
+
+  private static class HashMapIdentityManager
+  {
+    private static final int ARRAY_SIZE_INCREMENT = 20;
+
+    private int count;
+    private HashMap<Long, Integer> map = new HashMap<Long, Integer>();
+    private int[] frequency = new int[ARRAY_SIZE_INCREMENT];
+
+    private int find(long hashKey)
+    {
+      int index;
+      Integer value = map.get(hashKey);
+      if (value == null)
+      {
+        index = ++count;
+        map.put(hashKey, index);
+        setFrequency(index, 1);
+      }
+      else
+      {
+        index = value.intValue();
+        setFrequency(index, frequency[index] + 1);
+      }
+      return index;
+    }
+
+    private void setFrequency(int index, int value)
+    {
+      if (index >= frequency.length)
+      {
+        int newLength = ((frequency.length + ARRAY_SIZE_INCREMENT) / ARRAY_SIZE_INCREMENT) * ARRAY_SIZE_INCREMENT;
+        frequency = Arrays.copyOf(frequency, newLength);
+      }
+      frequency[index] = value;
+    }
+
+    private int getFrequency(int index)
+    {
+      return frequency[index];
+    }
+  }
+
+}
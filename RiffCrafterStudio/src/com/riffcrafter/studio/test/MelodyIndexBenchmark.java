@@ -0,0 +1,134 @@
+// Copyright 2007 Anthony F. Stuart - All rights reserved.
+//
+// This program and the accompanying materials are made available
+// under the terms of the GNU General Public License. For other license
+// options please contact the copyright owner.
+//
+// This program is made available on an "as is" basis, without
+// warranties or conditions of any kind, either express or implied.
+
+package com.riffcrafter.studio.test;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import com.riffcrafter.common.midi.MelodyIndex;
+import com.riffcrafter.common.midi.Midi;
+import com.riffcrafter.common.midi.Note;
+import com.riffcrafter.common.midi.MelodyIndex.Match;
+
+/**
+ * Indexes a corpus of generated songs, then looks for transposed and slowed
+ * down excerpts of some of them, checking that the song each excerpt came
+ * from is the best match, and reports the time taken to index and search.
+ *
+ * Usage: java MelodyIndexBenchmark [songs]
+ */
+
+public class MelodyIndexBenchmark
+{
+  private static final int DEFAULT_SONGS = 100000;
+  private static final int NOTES_PER_CHANNEL = 64;
+  private static final int CHANNELS = 2;
+  private static final int EXCERPT_LENGTH = 12;
+  private static final int QUERIES = 200;
+  private static final int[] DURATIONS = { 125, 250, 250, 250, 500, 750 };
+
+  public static void main(String[] args)
+  {
+    System.setProperty("java.awt.headless", "true");
+
+    int songs = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_SONGS;
+
+    MelodyIndex melodyIndex = new MelodyIndex();
+    long startTime = System.nanoTime();
+    for (int id = 0; id < songs; id++)
+    {
+      melodyIndex.add(id, createSong(id));
+    }
+    long indexNanos = System.nanoTime() - startTime;
+    System.out.printf("songs=%d, channels=%d, grams=%d, index=%d ms (%.3f ms/song)\n", songs, melodyIndex.getChannelCount(), melodyIndex.getGramCount(), indexNanos / 1000000, indexNanos / 1e6 / songs);
+
+    Random random = new Random(0);
+    ArrayList<Midi> excerpts = new ArrayList<Midi>();
+    int[] expectedIds = new int[QUERIES];
+    for (int i = 0; i < QUERIES; i++)
+    {
+      expectedIds[i] = random.nextInt(songs);
+      excerpts.add(createExcerpt(expectedIds[i], random));
+    }
+
+    int hitCount = 0;
+    long maximumNanos = 0;
+    startTime = System.nanoTime();
+    for (int i = 0; i < QUERIES; i++)
+    {
+      long queryStartTime = System.nanoTime();
+      ArrayList<Match> matches = melodyIndex.find(excerpts.get(i), 10);
+      maximumNanos = Math.max(maximumNanos, System.nanoTime() - queryStartTime);
+      if (matches.size() > 0 && matches.get(0).getId() == expectedIds[i])
+      {
+        hitCount++;
+      }
+    }
+    long queryNanos = System.nanoTime() - startTime;
+    System.out.printf("queries=%d, hits=%d, average=%.3f ms, maximum=%.3f ms\n", QUERIES, hitCount, queryNanos / 1e6 / QUERIES, maximumNanos / 1e6);
+
+    melodyIndex.remove(expectedIds[0]);
+    ArrayList<Match> matches = melodyIndex.find(excerpts.get(0), 1);
+    if (matches.size() > 0 && matches.get(0).getId() == expectedIds[0])
+    {
+      throw new RuntimeException("Removed song " + expectedIds[0] + " was found");
+    }
+    System.out.println("after remove, best=" + (matches.size() > 0 ? matches.get(0) : "none"));
+  }
+
+  private static Midi createSong(int id)
+  {
+    Random random = new Random(id);
+    Midi midi = new Midi();
+    for (int channel = 0; channel < CHANNELS; channel++)
+    {
+      int key = 48 + random.nextInt(24);
+      long tick = 0;
+      for (int i = 0; i < NOTES_PER_CHANNEL; i++)
+      {
+        long duration = DURATIONS[random.nextInt(DURATIONS.length)];
+        midi.add(new Note(channel, key, 64, tick, duration));
+        tick += duration;
+        key = Math.max(24, Math.min(100, key + random.nextInt(11) - 5));
+      }
+    }
+    return midi;
+  }
+
+  /**
+   * Returns a run of notes from the first channel of a song, transposed and
+   * at half speed.
+   */
+
+  private static Midi createExcerpt(int id, Random random)
+  {
+    Midi song = createSong(id);
+    ArrayList<Note> notes = new ArrayList<Note>();
+    for (Object midel : song.getMidels())
+    {
+      if (midel instanceof Note && ((Note)midel).getChannel() == 0)
+      {
+        notes.add((Note)midel);
+      }
+    }
+
+    int start = random.nextInt(NOTES_PER_CHANNEL - EXCERPT_LENGTH);
+    int deltaKeys = random.nextInt(7) - 3;
+    long firstTick = notes.get(start).getTick();
+    Midi excerpt = new Midi();
+    for (int i = start; i < start + EXCERPT_LENGTH; i++)
+    {
+      Note note = notes.get(i);
+      excerpt.add(new Note(3, note.getKey() + deltaKeys, 64, (note.getTick() - firstTick) * 2, note.getDuration() * 2));
+    }
+    return excerpt;
+  }
+
+}
@@ -0,0 +1,120 @@
+// Copyright 2007 Anthony F. Stuart - All rights reserved.
+//
+// This program and the accompanying materials are made available
+// under the terms of the GNU General Public License. For other license
+// options please contact the copyright owner.
+//
+// This program is made available on an "as is" basis, without
+// warranties or conditions of any kind, either express or implied.
+
+package com.riffcrafter.studio.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.Track;
+
+import com.riffcrafter.common.midi.Midi;
+import com.riffcrafter.common.midi.Note;
+
+/**
+ * Compares the time to get the playback Sequence of a large Midi after a
+ * few edits with the time to convert it with toSequence, and checks that
+ * the playback Sequence has the same events as a fresh conversion.
+ *
+ * Usage: java PlaybackSequenceBenchmark [notes]
+ */
+
+public class PlaybackSequenceBenchmark
+{
+  private static final int DEFAULT_NOTES = 50000;
+  private static final int ROUNDS = 20;
+  private static final int MAXIMUM_CHANGES = 100;
+
+  public static void main(String[] args) throws Exception
+  {
+    System.setProperty("java.awt.headless", "true");
+
+    int noteCount = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_NOTES;
+    Random random = new Random(0);
+    Midi midi = new Midi();
+    ArrayList<Note> notes = new ArrayList<Note>();
+    for (int i = 0; i < noteCount; i++)
+    {
+      Note note = createNote(random, 1 + random.nextInt(6));
+      notes.add(note);
+      midi.add(note);
+    }
+
+    long startTime = System.nanoTime();
+    midi.toSequence();
+    long sequenceNanos = System.nanoTime() - startTime;
+
+    startTime = System.nanoTime();
+    midi.getPlaybackSequence();
+    long firstNanos = System.nanoTime() - startTime;
+    System.out.printf("notes=%d, toSequence=%.3f ms, first getPlaybackSequence=%.3f ms\n", noteCount, sequenceNanos / 1e6, firstNanos / 1e6);
+
+    for (int round = 0; round < ROUNDS; round++)
+    {
+      int changeCount = 1 + random.nextInt(MAXIMUM_CHANGES);
+      for (int i = 0; i < changeCount; i++)
+      {
+        if (random.nextBoolean())
+        {
+          Note note = createNote(random, random.nextInt(8));
+          notes.add(note);
+          midi.add(note);
+        }
+        else
+        {
+          midi.remove(notes.remove(random.nextInt(notes.size())));
+        }
+      }
+
+      startTime = System.nanoTime();
+      Sequence sequence = midi.getPlaybackSequence();
+      long playbackNanos = System.nanoTime() - startTime;
+
+      if (!getEvents(sequence).equals(getEvents(midi.toSequence())))
+      {
+        throw new RuntimeException("Playback sequence differs in round " + round);
+      }
+      System.out.printf("round=%d, changes=%d, version=%d, getPlaybackSequence=%.3f ms\n", round, changeCount, midi.getPlaybackVersion(), playbackNanos / 1e6);
+    }
+  }
+
+  private static Note createNote(Random random, int channel)
+  {
+    return new Note(channel, 36 + random.nextInt(48), 64, random.nextInt(2000000), 50 + random.nextInt(400));
+  }
+
+  /**
+   * Returns a description of the events in each track, other than the end
+   * of track, that does not depend on the order of tracks or of events at
+   * the same tick.
+   */
+
+  private static String getEvents(Sequence sequence)
+  {
+    ArrayList<String> trackEvents = new ArrayList<String>();
+    for (Track track : sequence.getTracks())
+    {
+      ArrayList<String> events = new ArrayList<String>();
+      for (int i = 0; i < track.size() - 1; i++)
+      {
+        MidiEvent event = track.get(i);
+        events.add(event.getTick() + ":" + Arrays.toString(event.getMessage().getMessage()));
+      }
+      Collections.sort(events);
+      trackEvents.add(events.toString());
+    }
+    Collections.sort(trackEvents);
+    return trackEvents.toString();
+  }
+
+}
@@ -0,0 +1,340 @@
+// Copyright 2007 Anthony F. Stuart - All rights reserved.
+//
+// This program and the accompanying materials are made available
+// under the terms of the GNU General Public License. For other license
+// options please contact the copyright owner.
+//
+// This program is made available on an "as is" basis, without
+// warranties or conditions of any kind, either express or implied.
+
+package com.riffcrafter.studio.test;
+
+import java.awt.EventQueue;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import javax.swing.event.TableModelEvent;
+import javax.swing.event.TableModelListener;
+import javax.swing.table.DefaultTableModel;
+
+import com.riffcrafter.common.services.SearchResponse;
+import com.riffcrafter.common.services.Table;
+import com.riffcrafter.common.services.TableUpdater;
+import com.riffcrafter.common.services.Tags;
+import com.riffcrafter.library.util.BinaryReader;
+import com.riffcrafter.library.util.BinaryWriter;
+import com.riffcrafter.library.util.XmlReader;
+import com.riffcrafter.library.util.XmlWriter;
+
+/**
+ * Decodes a search response containing a 100k row Table with the former
+ * byte-at-a-time XmlReader, with the current one and from the binary
+ * encoding, and checks that all produce the same values. The XML is also
+ * streamed through a TableUpdater into a Table on the event dispatch thread,
+ * as a search dialog would display it, to measure how soon the first rows
+ * appear there.
+ */
+
+public class XmlReaderBenchmark
+{
+  private static final int ROWS = 100000;
+  private static final int ROUNDS = 10;
+  private static final int FIRST_PAGE_SIZE = 64;
+  private static final String[] HEADINGS = new String[] { "Id", "Title", "Artist", "Date", "User" };
+
+  public static void main(String[] args) throws Exception
+  {
+    System.setProperty("java.awt.headless", "true");
+
+    SearchResponse response = createResponse();
+    byte[] xml = toXml(response);
+    byte[] binary = toBinary(response);
+    System.out.println("xml=" + xml.length + " bytes, binary=" + binary.length + " bytes, rows=" + ROWS);
+
+    for (int round = 0; round < ROUNDS; round++)
+    {
+      long startTime = System.nanoTime();
+      DefaultTableModel legacyTable = readLegacy(xml);
+      long legacyTime = System.nanoTime() - startTime;
+
+      startTime = System.nanoTime();
+      SearchResponse searchResponse = new SearchResponse();
+      searchResponse.readXml(new XmlReader(new ByteArrayInputStream(xml)));
+      Table table = searchResponse.getTable();
+      long currentTime = System.nanoTime() - startTime;
+
+      startTime = System.nanoTime();
+      SearchResponse binaryResponse = new SearchResponse();
+      binaryResponse.readBinary(new BinaryReader(new ByteArrayInputStream(binary)));
+      long binaryTime = System.nanoTime() - startTime;
+
+      startTime = System.nanoTime();
+      Table streamedTable = new Table();
+      FirstRowListener firstRowListener = new FirstRowListener(streamedTable);
+      streamedTable.addTableModelListener(firstRowListener);
+      SearchResponse streamedResponse = new SearchResponse();
+      streamedResponse.setRowListener(new TableUpdater(streamedTable, FIRST_PAGE_SIZE));
+      streamedResponse.readXml(new XmlReader(new ByteArrayInputStream(xml)));
+      // Wait for the last page to reach the table
+      EventQueue.invokeAndWait(new Runnable()
+      {
+        public void run()
+        {
+        }
+      });
+      long streamedTime = System.nanoTime() - startTime;
+      long firstRowTime = firstRowListener.getFirstRowNanos() - startTime;
+
+      compare(legacyTable, table);
+      compare(legacyTable, binaryResponse.getTable());
+      compare(legacyTable, streamedTable);
+      if (!(table.getValueAt(ROWS - 1, 0) instanceof Integer) || table.getInt(ROWS - 1, 0) != ROWS - 1)
+      {
+        throw new RuntimeException("Id column was not decoded as ints");
+      }
+
+      System.out.println("round=" + round + ", legacy=" + (legacyTime / 1000000) + " ms, current=" + (currentTime / 1000000) + " ms, speedup=" + ((legacyTime * 100) / Math.max(1, currentTime)) + "%, binary=" + (binaryTime / 1000000) + " ms, streamed first rows=" + (firstRowTime / 1000) + " us, all rows=" + (streamedTime / 1000000) + " ms");
+    }
+  }
+
+  private static SearchResponse createResponse()
+  {
+    Random random = new Random(42);
+    Table table = new Table();
+    for (String heading : HEADINGS)
+    {
+      table.addColumn(heading);
+    }
+    for (int row = 0; row < ROWS; row++)
+    {
+      String title = "Song " + random.nextInt(1000000) + (random.nextInt(10) == 0 ? " <live> & \"unplugged\"" : "");
+      String artist = "Artist's Band " + random.nextInt(5000) + (random.nextInt(20) == 0 ? " \u00e9t\u00e9" : "");
+      String date = "2007-" + (1 + random.nextInt(12)) + "-" + (1 + random.nextInt(28));
+      table.addRow(new Object[] { row, title, artist, date, "user" + random.nextInt(100) });
+    }
+
+    SearchResponse searchResponse = new SearchResponse();
+    searchResponse.setTable(table);
+    return searchResponse;
+  }
+
+  private static byte[] toXml(SearchResponse searchResponse)
+  {
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    XmlWriter xmlWriter = new XmlWriter(outputStream);
+    searchResponse.writeXml(xmlWriter, 0);
+    xmlWriter.flush();
+    return outputStream.toByteArray();
+  }
+
+  private static byte[] toBinary(SearchResponse searchResponse)
+  {
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    BinaryWriter binaryWriter = new BinaryWriter(outputStream);
+    searchResponse.writeBinary(binaryWriter);
+    binaryWriter.flush();
+    return outputStream.toByteArray();
+  }
+
+  private static void compare(DefaultTableModel expected, Table actual)
+  {
+    if (expected.getRowCount() != actual.getRowCount() || expected.getColumnCount() != actual.getColumnCount())
+    {
+      throw new RuntimeException("Table sizes differ");
+    }
+    for (int row = 0; row < expected.getRowCount(); row++)
+    {
+      for (int column = 0; column < expected.getColumnCount(); column++)
+      {
+        // The legacy reader returns every value as a String
+        if (!expected.getValueAt(row, column).equals(actual.getValueAt(row, column).toString()))
+        {
+          throw new RuntimeException("Values differ at row " + row + ", column " + column + ": " + expected.getValueAt(row, column) + " / " + actual.getValueAt(row, column));
+        }
+      }
+    }
+  }
+
+  private static DefaultTableModel readLegacy(byte[] xml)
+  {
+    LegacyXmlReader xmlReader = new LegacyXmlReader(new ByteArrayInputStream(xml));
+    xmlReader.beginTag(Tags.SEARCH_RESPONSE);
+    xmlReader.readTaggedInt(Tags.STATUS);
+    xmlReader.readTaggedString(Tags.MESSAGE);
+
+    DefaultTableModel table = new DefaultTableModel();
+    xmlReader.beginTag(Tags.TABLE);
+    int rowCount = xmlReader.readTaggedInt(Tags.ROW_COUNT);
+    int columnCount = xmlReader.readTaggedInt(Tags.COLUMN_COUNT);
+    for (int column = 0; column < columnCount; column++)
+    {
+      table.addColumn(xmlReader.readTaggedString(Tags.HEADING));
+    }
+    table.setRowCount(rowCount);
+    for (int row = 0; row < rowCount; row++)
+    {
+      for (int column = 0; column < columnCount; column++)
+      {
+        table.setValueAt(xmlReader.readTaggedString(Tags.VALUE), row, column);
+      }
+    }
+    xmlReader.endTag(Tags.TABLE);
+    xmlReader.endTag(Tags.SEARCH_RESPONSE);
+    return table;
+  }
+
+  /**
+   * Records when rows first appear in the table, on the event dispatch
+   * thread.
+   */
+
+  private static class FirstRowListener implements TableModelListener
+  {
+    private Table table;
+    private volatile long firstRowNanos;
+
+    private FirstRowListener(Table table)
+    {
+      this.table = table;
+    }
+
+    public void tableChanged(TableModelEvent e)
+    {
+      if (firstRowNanos == 0 && table.getRowCount() > 0)
+      {
+        firstRowNanos = System.nanoTime();
+      }
+    }
+
+    private long getFirstRowNanos()
+    {
+      return firstRowNanos;
+    }
+  }
+
+  /**
+   * The essentials of the former XmlReader, which read one byte at a time
+   * through BufferedInputStream's synchronized read method.
+   */
+
+  private static class LegacyXmlReader extends BufferedInputStream
+  {
+    private String unreadBuffer = "";
+    private int unreadIndex;
+
+    private LegacyXmlReader(InputStream inputStream)
+    {
+      super(inputStream);
+    }
+
+    private void beginTag(String expectedTag)
+    {
+      String tag = getNextTag();
+      if (!tag.equals(expectedTag))
+      {
+        throw new RuntimeException("Expected " + expectedTag + ", got " + tag);
+      }
+    }
+
+    private void endTag(String expectedTag)
+    {
+      String tag = getNextTag();
+      if (tag.charAt(0) != '/' || !tag.substring(1).equals(expectedTag))
+      {
+        throw new RuntimeException("Expected /" + expectedTag + ", got " + tag);
+      }
+    }
+
+    private String getNextTag()
+    {
+      int c;
+      while ((c = read()) != -1 && Character.isWhitespace(c))
+      {
+      }
+      StringBuffer tagBuffer = new StringBuffer();
+      while ((c = read()) != -1 && c != '>')
+      {
+        tagBuffer.append((char)c);
+      }
+      return tagBuffer.toString();
+    }
+
+    private int readTaggedInt(String tag)
+    {
+      return Integer.parseInt(readTaggedString(tag));
+    }
+
+    private String readTaggedString(String tag)
+    {
+      beginTag(tag);
+      StringBuffer buffer = new StringBuffer();
+      StringBuffer encodingBuffer = new StringBuffer();
+      boolean isInEncoding = false;
+      int c;
+      while ((c = read()) != -1 && c != '<')
+      {
+        if (isInEncoding)
+        {
+          if (c == ';')
+          {
+            buffer.append(decode(encodingBuffer.toString()));
+            encodingBuffer.setLength(0);
+            isInEncoding = false;
+          }
+          else
+          {
+            encodingBuffer.append((char)c);
+          }
+        }
+        else if (c == '&')
+        {
+          isInEncoding = true;
+        }
+        else
+        {
+          buffer.append((char)c);
+        }
+      }
+      unreadBuffer = Character.toString((char)c);
+      unreadIndex = 0;
+      endTag(tag);
+      return buffer.toString();
+    }
+
+    private char decode(String codedValue)
+    {
+      if (codedValue.equals("lt"))
+        return '<';
+      if (codedValue.equals("gt"))
+        return '>';
+      if (codedValue.equals("amp"))
+        return '&';
+      if (codedValue.equals("quot"))
+        return '"';
+      if (codedValue.equals("apos"))
+        return '\'';
+      return (char)Integer.parseInt(codedValue.substring(1));
+    }
+
+    public int read()
+    {
+      if (unreadIndex < unreadBuffer.length())
+      {
+        return unreadBuffer.charAt(unreadIndex++);
+      }
+      try
+      {
+        return super.read();
+      }
+      catch (IOException e)
+      {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+}
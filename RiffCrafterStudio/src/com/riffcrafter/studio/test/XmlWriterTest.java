@@ -0,0 +1,252 @@
+// Copyright 2007 Anthony F. Stuart - All rights reserved.
+//
+// This program and the accompanying materials are made available
+// under the terms of the GNU General Public License. For other license
+// options please contact the copyright owner.
+//
+// This program is made available on an "as is" basis, without
+// warranties or conditions of any kind, either express or implied.
+
+package com.riffcrafter.studio.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+import com.riffcrafter.common.services.Table;
+import com.riffcrafter.library.util.XmlReader;
+import com.riffcrafter.library.util.XmlWriter;
+
+/**
+ * Writes a document with XmlWriter, in compact and in indented mode, reads it
+ * back with XmlReader and checks that every value survives the round trip.
+ * The document has values that need encoding, values larger than the
+ * writer's buffer, raw bytes following a tag, enough elements to refill the
+ * reader's buffer several times, and a Table. Also checks the exact layout of
+ * a small document in each mode, and that ending a top level element flushes
+ * the output.
+ *
+ * Usage: java XmlWriterTest
+ */
+
+public class XmlWriterTest
+{
+  private static final int VALUE_COUNT = 5000;
+  private static final int TABLE_ROWS = 1000;
+  private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+  private static int failureCount;
+
+  public static void main(String[] args)
+  {
+    System.setProperty("java.awt.headless", "true");
+
+    String[] strings = createStrings();
+    long[] longs = createLongs();
+    byte[] rawBytes = createRawBytes();
+    Table table = createTable();
+
+    checkLayout(true, "<Document><Values><Long>-5</Long><String>a&#10;b</String></Values></Document>");
+    checkLayout(false, "<Document>_  <Values>_    <Long>-5</Long>_    <String>a&#10;b</String>_  </Values>_</Document>_".replace("_", LINE_SEPARATOR));
+
+    int compactLength = check(true, strings, longs, rawBytes, table);
+    int indentedLength = check(false, strings, longs, rawBytes, table);
+    System.out.println("compact=" + compactLength + " bytes, indented=" + indentedLength + " bytes");
+    if (compactLength >= indentedLength)
+    {
+      fail("compact document is not smaller than the indented one");
+    }
+
+    System.out.println(failureCount == 0 ? "PASSED" : "FAILED (" + failureCount + ")");
+    System.exit(failureCount == 0 ? 0 : 1);
+  }
+
+  private static void checkLayout(boolean isCompact, String expected)
+  {
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    XmlWriter xmlWriter = new XmlWriter(outputStream, isCompact);
+    xmlWriter.beginTag("Document", 0);
+    xmlWriter.beginTag("Values", 1);
+    xmlWriter.writeTaggedLong("Long", -5, 2);
+    xmlWriter.writeTaggedString("String", "a\nb", 2);
+    xmlWriter.endTag("Values", 1);
+    xmlWriter.endTag("Document", 0);
+    expect(isCompact ? "compact" : "indented", "layout", expected, outputStream.toString());
+  }
+
+  private static int check(boolean isCompact, String[] strings, long[] longs, byte[] rawBytes, Table table)
+  {
+    String mode = isCompact ? "compact" : "indented";
+
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    XmlWriter xmlWriter = new XmlWriter(outputStream, isCompact);
+    xmlWriter.beginTag("Document", 0);
+    xmlWriter.beginTag("Values", 1);
+    for (int i = 0; i < VALUE_COUNT; i++)
+    {
+      xmlWriter.writeTaggedString("String", strings[i], 2);
+      xmlWriter.writeTaggedLong("Long", longs[i], 2);
+      xmlWriter.writeTaggedInt("Int", (int)longs[i], 2);
+      xmlWriter.writeTaggedBoolean("Boolean", (i & 1) == 0, 2);
+      xmlWriter.writeTaggedObject("Object", i % 3 == 0 ? Integer.valueOf(i) : strings[i], 2);
+    }
+    xmlWriter.endTag("Values", 1);
+    table.writeXml(xmlWriter, 1);
+    xmlWriter.beginTag("Raw", 1);
+    xmlWriter.write(rawBytes, 0, rawBytes.length);
+    xmlWriter.endTag("Raw", 1);
+    xmlWriter.endTag("Document", 0);
+
+    // Ending the top level element must have written everything, without a flush
+    byte[] document = outputStream.toByteArray();
+
+    XmlReader xmlReader = new XmlReader(new ByteArrayInputStream(document));
+    try
+    {
+      xmlReader.beginTag("Document");
+      xmlReader.beginTag("Values");
+      for (int i = 0; i < VALUE_COUNT; i++)
+      {
+        expect(mode, "String " + i, strings[i], xmlReader.readTaggedString("String"));
+        expect(mode, "Long " + i, longs[i], xmlReader.readTaggedLong("Long"));
+        expect(mode, "Int " + i, (int)longs[i], xmlReader.readTaggedInt("Int"));
+        expect(mode, "Boolean " + i, (i & 1) == 0, xmlReader.readTaggedBoolean("Boolean"));
+        Object object = xmlReader.readTaggedObject("Object");
+        if (i % 3 == 0)
+        {
+          expect(mode, "Object " + i, Integer.valueOf(i), object);
+        }
+        else
+        {
+          // A String in the form of a number comes back as a number
+          expect(mode, "Object " + i, strings[i], String.valueOf(object));
+        }
+      }
+      xmlReader.endTag("Values");
+
+      Table readTable = new Table(xmlReader);
+      expect(mode, "table rows", table.getRowCount(), readTable.getRowCount());
+      for (int row = 0; row < Math.min(table.getRowCount(), readTable.getRowCount()); row++)
+      {
+        expect(mode, "table id " + row, table.getInt(row, 0), readTable.getInt(row, 0));
+        expect(mode, "table title " + row, table.getValueAt(row, 1), readTable.getValueAt(row, 1));
+      }
+
+      // The raw bytes follow the line break after the tag in indented mode
+      xmlReader.beginTag("Raw");
+      byte[] readBytes = new byte[rawBytes.length];
+      int firstByte = xmlReader.read();
+      while (Character.isWhitespace(firstByte))
+      {
+        firstByte = xmlReader.read();
+      }
+      readBytes[0] = (byte)firstByte;
+      int offset = 1;
+      int count;
+      while (offset < readBytes.length && (count = xmlReader.read(readBytes, offset, readBytes.length - offset)) > 0)
+      {
+        offset += count;
+      }
+      for (int i = 0; i < rawBytes.length; i++)
+      {
+        if (readBytes[i] != rawBytes[i])
+        {
+          fail(mode + ": raw byte " + i + " is " + readBytes[i] + ", expected " + rawBytes[i]);
+          break;
+        }
+      }
+      xmlReader.endTag("Raw");
+      xmlReader.endTag("Document");
+    }
+    catch (RuntimeException e)
+    {
+      fail(mode + ": " + e);
+    }
+
+    System.out.println(mode + ": read " + document.length + " bytes");
+    return document.length;
+  }
+
+  /**
+   * Creates strings with markup characters, control characters that are
+   * written as character references, characters outside ASCII, empty
+   * strings, digits that are not in the canonical form of a number, and a
+   * few values larger than the writer's buffer.
+   */
+
+  private static String[] createStrings()
+  {
+    Random random = new Random(11);
+    String alphabet = "abc XYZ 019 <>&\"'\t\n\r \u00e9\u00fc\u20ac\u4e2d";
+    String[] strings = new String[VALUE_COUNT];
+    for (int i = 0; i < VALUE_COUNT; i++)
+    {
+      int length = i % 1000 == 999 ? 20000 + random.nextInt(20000) : random.nextInt(40);
+      StringBuilder stringBuilder = new StringBuilder(length);
+      for (int j = 0; j < length; j++)
+      {
+        stringBuilder.append(alphabet.charAt(random.nextInt(alphabet.length())));
+      }
+      strings[i] = stringBuilder.toString();
+    }
+    strings[1] = "";
+    strings[2] = "007";
+    strings[4] = "-0";
+    strings[5] = "12a";
+    return strings;
+  }
+
+  private static long[] createLongs()
+  {
+    Random random = new Random(13);
+    long[] longs = new long[VALUE_COUNT];
+    for (int i = 0; i < VALUE_COUNT; i++)
+    {
+      longs[i] = random.nextLong() >> random.nextInt(64);
+    }
+    longs[0] = 0;
+    longs[1] = Long.MIN_VALUE;
+    longs[2] = Long.MAX_VALUE;
+    longs[3] = -1;
+    return longs;
+  }
+
+  private static byte[] createRawBytes()
+  {
+    // Not XML: includes '<' and every other byte value
+    byte[] rawBytes = new byte[3 * 256];
+    for (int i = 0; i < rawBytes.length; i++)
+    {
+      rawBytes[i] = (byte)i;
+    }
+    return rawBytes;
+  }
+
+  private static Table createTable()
+  {
+    Table table = new Table();
+    table.setColumnNames(new String[] { "Id", "Title" });
+    for (int row = 0; row < TABLE_ROWS; row++)
+    {
+      table.addRow(new Object[] { row * 7, "Song <" + row + "> & \"more\"" });
+    }
+    return table;
+  }
+
+  private static void expect(String mode, String name, Object expected, Object actual)
+  {
+    if (!expected.equals(actual))
+    {
+      String expectedText = expected.toString();
+      String actualText = String.valueOf(actual);
+      fail(mode + ": " + name + " is " + actualText.substring(0, Math.min(80, actualText.length())) + ", expected " + expectedText.substring(0, Math.min(80, expectedText.length())));
+    }
+  }
+
+  private static void fail(String message)
+  {
+    System.out.println("FAILED: " + message);
+    failureCount++;
+  }
+
+}